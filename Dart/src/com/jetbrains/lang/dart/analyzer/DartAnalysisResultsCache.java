@@ -0,0 +1,248 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.jetbrains.lang.dart.analyzer;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.registry.Registry;
+import org.dartlang.analysis.server.protocol.AnalysisError;
+import org.dartlang.analysis.server.protocol.HighlightRegion;
+import org.dartlang.analysis.server.protocol.Outline;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the last errors, highlights and outline received from the Analysis Server for files open in editors, and persists them
+ * in the IDE system folder when a file is closed or the server is stopped. When the file is opened again, possibly after IDE restart,
+ * and its content is the same, the cached results are shown as provisional data until the server reports fresh ones.
+ * <p>
+ * Results are stored with the hash of the content the server analyzed, that is the content last sent to it by {@link #contentSent},
+ * or the file on disk if no overlay was sent. The document content at the time the file is closed may be newer.
+ * <p>
+ * Enabled by the {@code dart.server.results.cache} registry key. Results are stored in the protocol (server offsets) form,
+ * one gzipped JSON file per source file. The least recently used entries are evicted when the cache exceeds {@link #MAX_CACHE_SIZE}.
+ */
+class DartAnalysisResultsCache {
+
+  private static final Logger LOG = Logger.getInstance(DartAnalysisResultsCache.class);
+
+  private static final int FORMAT_VERSION = 1;
+  private static final long MAX_CACHE_SIZE = 64L * 1024 * 1024;
+
+  static final class Results {
+    @Nullable final List<AnalysisError> errors;
+    @Nullable final List<HighlightRegion> highlights;
+    @Nullable final Outline outline;
+    // content the results were computed for, null for the content on disk
+    @Nullable private final CharSequence content;
+
+    private Results(@Nullable final List<AnalysisError> errors,
+                    @Nullable final List<HighlightRegion> highlights,
+                    @Nullable final Outline outline,
+                    @Nullable final CharSequence content) {
+      this.errors = errors;
+      this.highlights = highlights;
+      this.outline = outline;
+      this.content = content;
+    }
+
+    boolean isComplete() {
+      return errors != null && highlights != null && outline != null;
+    }
+  }
+
+  @NotNull private final File myCacheDir;
+  // latest results for files in editors, keyed by system-independent path
+  private final Map<String, Results> myLatestResults = new ConcurrentHashMap<>();
+  // overlaid content last sent to the server, keyed by system-independent path; hashes are computed only when results are persisted
+  private final Map<String, CharSequence> mySentContent = new ConcurrentHashMap<>();
+
+  DartAnalysisResultsCache(@NotNull final Project project) {
+    myCacheDir = new File(PathManager.getSystemPath(), "dart-analysis-results/" + project.getLocationHash());
+  }
+
+  static boolean isEnabled() {
+    return Registry.is("dart.server.results.cache", false);
+  }
+
+  /**
+   * Must be called when new content of {@code filePath} is sent to the server, {@code content} is {@code null} if the overlay is removed
+   * and the server analyzes the file on disk. Results received before are forgotten: they are for the previous content.
+   */
+  void contentSent(@NotNull final String filePath, @Nullable final CharSequence content) {
+    if (content != null) {
+      mySentContent.put(filePath, content);
+    }
+    else {
+      mySentContent.remove(filePath);
+    }
+    myLatestResults.remove(filePath);
+  }
+
+  void computedErrors(@NotNull final String filePath, @NotNull final List<AnalysisError> errors) {
+    myLatestResults.compute(filePath, (path, results) -> new Results(errors,
+                                                                     results == null ? null : results.highlights,
+                                                                     results == null ? null : results.outline,
+                                                                     getContent(path, results)));
+  }
+
+  void computedHighlights(@NotNull final String filePath, @NotNull final List<HighlightRegion> highlights) {
+    myLatestResults.compute(filePath, (path, results) -> new Results(results == null ? null : results.errors,
+                                                                     highlights,
+                                                                     results == null ? null : results.outline,
+                                                                     getContent(path, results)));
+  }
+
+  void computedOutline(@NotNull final String filePath, @NotNull final Outline outline) {
+    myLatestResults.compute(filePath, (path, results) -> new Results(results == null ? null : results.errors,
+                                                                     results == null ? null : results.highlights,
+                                                                     outline,
+                                                                     getContent(path, results)));
+  }
+
+  @Nullable
+  private CharSequence getContent(@NotNull final String filePath, @Nullable final Results results) {
+    return results != null ? results.content : mySentContent.get(filePath);
+  }
+
+  /**
+   * Forgets the latest results for {@code filePath} and persists them, keyed by the hash of the content they were computed for.
+   * Disk IO happens in the calling thread.
+   *
+   * @param diskContent content of the file on disk, used if no overlay has been sent for it; {@code null} if not known
+   */
+  void persistAndForget(@NotNull final String filePath, @Nullable final CharSequence diskContent) {
+    final Results results = myLatestResults.remove(filePath);
+    mySentContent.remove(filePath);
+    if (results == null || !results.isComplete()) return;
+
+    final CharSequence content = results.content != null ? results.content : diskContent;
+    if (content == null) return;
+
+    final JsonObject json = new JsonObject();
+    json.addProperty("version", FORMAT_VERSION);
+    json.addProperty("contentHash", computeContentHash(content));
+    json.add("errors", toJsonArray(results.errors, AnalysisError::toJson));
+    json.add("highlights", toJsonArray(results.highlights, HighlightRegion::toJson));
+    json.add("outline", results.outline.toJson());
+
+    final File file = getCacheFile(filePath);
+    try {
+      FileUtil.createParentDirs(file);
+      try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(file)), StandardCharsets.UTF_8)) {
+        writer.write(json.toString());
+      }
+    }
+    catch (IOException e) {
+      LOG.info("Failed to write cached analysis results for " + filePath, e);
+      FileUtil.delete(file);
+      return;
+    }
+
+    evictIfNeeded();
+  }
+
+  /**
+   * @return results persisted for {@code filePath} if they were computed for exactly this {@code content}, {@code null} otherwise.
+   * Disk IO happens in the calling thread.
+   */
+  @Nullable
+  Results load(@NotNull final String filePath, @NotNull final CharSequence content) {
+    final File file = getCacheFile(filePath);
+    if (!file.isFile()) return null;
+
+    try (Reader reader = new InputStreamReader(new GZIPInputStream(new FileInputStream(file)), StandardCharsets.UTF_8)) {
+      final JsonObject json = new JsonParser().parse(reader).getAsJsonObject();
+      if (json.get("version").getAsInt() != FORMAT_VERSION ||
+          !computeContentHash(content).equals(json.get("contentHash").getAsString())) {
+        return null;
+      }
+
+      // the entry is used, so it is the last to be evicted
+      //noinspection ResultOfMethodCallIgnored
+      file.setLastModified(System.currentTimeMillis());
+
+      return new Results(AnalysisError.fromJsonArray(json.getAsJsonArray("errors")),
+                         HighlightRegion.fromJsonArray(json.getAsJsonArray("highlights")),
+                         Outline.fromJson(null, json.getAsJsonObject("outline")),
+                         content);
+    }
+    catch (IOException | RuntimeException e) {
+      LOG.info("Failed to read cached analysis results for " + filePath, e);
+      FileUtil.delete(file);
+      return null;
+    }
+  }
+
+  @NotNull
+  List<String> getFilesWithLatestResults() {
+    return Arrays.asList(myLatestResults.keySet().toArray(new String[0]));
+  }
+
+  private void evictIfNeeded() {
+    final File[] files = myCacheDir.listFiles();
+    if (files == null) return;
+
+    long totalSize = 0;
+    for (File file : files) {
+      totalSize += file.length();
+    }
+    if (totalSize <= MAX_CACHE_SIZE) return;
+
+    // evict least recently used entries until the cache takes no more than 3/4 of its maximum size
+    Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+    for (File file : files) {
+      if (totalSize <= MAX_CACHE_SIZE * 3 / 4) break;
+      totalSize -= file.length();
+      FileUtil.delete(file);
+    }
+  }
+
+  @NotNull
+  private File getCacheFile(@NotNull final String filePath) {
+    return new File(myCacheDir, computeContentHash(filePath) + ".json.gz");
+  }
+
+  @NotNull
+  private static <T> JsonArray toJsonArray(@NotNull final List<T> items, @NotNull final Function<T, JsonElement> toJson) {
+    final JsonArray array = new JsonArray();
+    for (T item : items) {
+      array.add(toJson.apply(item));
+    }
+    return array;
+  }
+
+  @NotNull
+  private static String computeContentHash(@NotNull final CharSequence content) {
+    try {
+      final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      final byte[] hash = digest.digest(content.toString().getBytes(StandardCharsets.UTF_8));
+      final StringBuilder result = new StringBuilder(hash.length * 2);
+      for (byte b : hash) {
+        result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return result.toString();
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -10,6 +10,7 @@ import com.google.dart.server.*;
 import com.google.dart.server.generated.AnalysisServer;
 import com.google.dart.server.internal.remote.DebugPrintStream;
 import com.google.dart.server.internal.remote.RemoteAnalysisServerImpl;
+import com.google.dart.server.internal.remote.RequestScheduler;
 import com.google.dart.server.internal.remote.StdioServerSocket;
 import com.google.dart.server.utilities.logging.Logging;
 import com.google.gson.JsonObject;
@@ -19,6 +20,7 @@ import com.intellij.openapi.application.ApplicationInfo;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.application.ApplicationNamesInfo;
 import com.intellij.openapi.application.ModalityState;
+import com.intellij.openapi.application.ReadAction;
 import com.intellij.openapi.components.ServiceManager;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.editor.Document;
@@ -41,6 +43,7 @@ import com.intellij.openapi.util.Ref;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.LocalFileSystem;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.PsiFile;
 import com.intellij.psi.search.SearchScope;
@@ -73,8 +76,8 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.util.*;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.google.dart.server.internal.remote.RemoteAnalysisServerImpl.DART_FIX_INFO_NON_NULLABLE;
 
@@ -84,6 +87,8 @@ public class DartAnalysisServerService implements Disposable {
   private static final String MIN_MOVE_FILE_SDK_VERSION = "2.3.2";
 
   private static final long UPDATE_FILES_TIMEOUT = 300;
+  // when there are more edits than this, the whole document content is sent instead
+  private static final int MAX_PENDING_EDITS = 1000;
 
   private static final long CHECK_CANCELLED_PERIOD = 10;
   private static final long SEND_REQUEST_TIMEOUT = TimeUnit.SECONDS.toMillis(1);
@@ -107,6 +112,7 @@ public class DartAnalysisServerService implements Disposable {
   private static final long GET_TYPE_HIERARCHY_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
   private static final long EXECUTION_CREATE_CONTEXT_TIMEOUT = TimeUnit.SECONDS.toMillis(1);
   private static final long EXECUTION_MAP_URI_TIMEOUT = TimeUnit.SECONDS.toMillis(1);
+  private static final int EXECUTION_MAP_URIS_CHUNK_SIZE = 256;
   private static final long ANALYSIS_IN_TESTS_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
   private static final long TESTS_TIMEOUT_COEFF = 10;
 
@@ -135,12 +141,18 @@ public class DartAnalysisServerService implements Disposable {
   private final Map<String, Long> myFilePathWithOverlaidContentToTimestamp = new THashMap<>();
   private final List<String> myVisibleFiles = new ArrayList<>();
   private final Set<Document> myChangedDocuments = new THashSet<>();
+  // edits made to documents since their content was last sent to the server, guarded by myLock
+  private final Map<String, PendingEdits> myFilePathToPendingEdits = new THashMap<>();
+  private final AtomicLong myOverlaidContentBytesSent = new AtomicLong();
+  private volatile int myLastUpdateOverlaidContentBytes;
   private final Alarm myUpdateFilesAlarm;
 
   @NotNull private final Queue<CompletionInfo> myCompletionInfos = new LinkedList<>();
   @NotNull private final Queue<SearchResultsSet> mySearchResultSets = new LinkedList<>();
 
   @NotNull private final DartServerData myServerData;
+  @Nullable private final DartAnalysisResultsCache myResultsCache;
+  @NotNull private final DartServerNotificationCoalescer myNotificationCoalescer = new DartServerNotificationCoalescer();
 
   private volatile boolean myAnalysisInProgress;
   private volatile boolean myPubListInProgress;
@@ -195,6 +207,20 @@ public class DartAnalysisServerService implements Disposable {
         indicator.setText(DartBundle.message("dart.analysis.progress.with.file", fileName));
       }
 
+      final String filePathSI = FileUtil.toSystemIndependentName(filePathSD);
+      // outdated errors must not get into the cache either
+      if (myServerData.hasUnsentChanges(filePathSI)) return;
+
+      if (myResultsCache != null && myVisibleFiles.contains(filePathSD)) {
+        myResultsCache.computedErrors(filePathSI, errors);
+      }
+      enqueueNotification(DartServerNotificationCoalescer.Kind.ERRORS, filePathSI,
+                          () -> applyComputedErrors(filePathSD, filePathSI, errors));
+    }
+
+    private void applyComputedErrors(@NotNull final String filePathSD,
+                                     @NotNull final String filePathSI,
+                                     @NotNull final List<AnalysisError> errors) {
       final List<AnalysisError> errorsWithoutTodo = errors.isEmpty() ? Collections.emptyList() : new ArrayList<>(errors.size());
       boolean hasSevereProblems = false;
 
@@ -207,8 +233,6 @@ public class DartAnalysisServerService implements Disposable {
         }
       }
 
-      final String filePathSI = FileUtil.toSystemIndependentName(filePathSD);
-
       final int oldHash;
       synchronized (myFilePathsWithErrors) {
         // TObjectIntHashMap returns 0 if there's no such entry, it's equivalent to empty error set for this file
@@ -226,8 +250,15 @@ public class DartAnalysisServerService implements Disposable {
     }
 
     @Override
-    public void computedHighlights(@NotNull final String filePath, @NotNull final List<HighlightRegion> regions) {
-      myServerData.computedHighlights(FileUtil.toSystemIndependentName(filePath), regions);
+    public void computedHighlights(@NotNull final String _filePath, @NotNull final List<HighlightRegion> regions) {
+      final String filePath = FileUtil.toSystemIndependentName(_filePath);
+      if (myServerData.hasUnsentChanges(filePath)) return;
+
+      if (myResultsCache != null) {
+        myResultsCache.computedHighlights(filePath, regions);
+      }
+      enqueueNotification(DartServerNotificationCoalescer.Kind.HIGHLIGHTS, filePath,
+                          () -> myServerData.computedHighlights(filePath, regions));
     }
 
     @Override
@@ -239,22 +270,46 @@ public class DartAnalysisServerService implements Disposable {
     public void computedImplemented(String _filePath,
                                     List<ImplementedClass> implementedClasses,
                                     List<ImplementedMember> implementedMembers) {
-      myServerData.computedImplemented(FileUtil.toSystemIndependentName(_filePath), implementedClasses, implementedMembers);
+      final String filePath = FileUtil.toSystemIndependentName(_filePath);
+      enqueueNotification(DartServerNotificationCoalescer.Kind.IMPLEMENTED, filePath,
+                          () -> myServerData.computedImplemented(filePath, implementedClasses, implementedMembers));
     }
 
     @Override
     public void computedNavigation(@NotNull final String _filePath, @NotNull final List<NavigationRegion> regions) {
-      myServerData.computedNavigation(FileUtil.toSystemIndependentName(_filePath), regions);
+      final String filePath = FileUtil.toSystemIndependentName(_filePath);
+      enqueueNotification(DartServerNotificationCoalescer.Kind.NAVIGATION, filePath,
+                          () -> myServerData.computedNavigation(filePath, regions));
     }
 
     @Override
     public void computedOverrides(@NotNull final String _filePath, @NotNull final List<OverrideMember> overrides) {
-      myServerData.computedOverrides(FileUtil.toSystemIndependentName(_filePath), overrides);
+      final String filePath = FileUtil.toSystemIndependentName(_filePath);
+      enqueueNotification(DartServerNotificationCoalescer.Kind.OVERRIDES, filePath,
+                          () -> myServerData.computedOverrides(filePath, overrides));
     }
 
     @Override
     public void computedOutline(@NotNull final String _filePath, @NotNull final Outline outline) {
-      myServerData.computedOutline(FileUtil.toSystemIndependentName(_filePath), outline);
+      final String filePath = FileUtil.toSystemIndependentName(_filePath);
+      if (myServerData.hasUnsentChanges(filePath)) return;
+
+      if (myResultsCache != null) {
+        myResultsCache.computedOutline(filePath, outline);
+      }
+      enqueueNotification(DartServerNotificationCoalescer.Kind.OUTLINE, filePath,
+                          () -> myServerData.computedOutline(filePath, outline));
+    }
+
+    /**
+     * A notification received for a file with changes not yet sent to the server describes outdated contents. It is dropped right away:
+     * by the time the coalescer applies it the changes may have been sent, and the check in {@link DartServerData} would pass.
+     */
+    private void enqueueNotification(@NotNull final DartServerNotificationCoalescer.Kind kind,
+                                     @NotNull final String filePath,
+                                     @NotNull final Runnable notification) {
+      if (myServerData.hasUnsentChanges(filePath)) return;
+      myNotificationCoalescer.enqueue(kind, filePath, notification);
     }
 
     @Override
@@ -264,11 +319,13 @@ public class DartAnalysisServerService implements Disposable {
         filePaths.add(FileUtil.toSystemIndependentName(path));
       }
 
-      myServerData.onFlushedResults(filePaths);
+      myNotificationCoalescer.enqueueBarrier(filePaths, () -> {
+        myServerData.onFlushedResults(filePaths);
 
-      for (String filePath : filePaths) {
-        onErrorsUpdated(filePath, AnalysisError.EMPTY_LIST, false, 0);
-      }
+        for (String filePath : filePaths) {
+          onErrorsUpdated(filePath, AnalysisError.EMPTY_LIST, false, 0);
+        }
+      });
     }
 
     @Override
@@ -513,6 +570,7 @@ public class DartAnalysisServerService implements Disposable {
     myProject = project;
     myRootsHandler = new DartServerRootsHandler(project);
     myServerData = new DartServerData(this);
+    myResultsCache = DartAnalysisResultsCache.isEnabled() ? new DartAnalysisResultsCache(project) : null;
     myUpdateFilesAlarm = new Alarm(Alarm.ThreadToUse.POOLED_THREAD, project);
     myShowServerProgressAlarm = new Alarm(project);
     myServerErrorHandler = new DartAnalysisServerErrorHandler(project);
@@ -679,6 +737,7 @@ public class DartAnalysisServerService implements Disposable {
           // file could be opened in more than one editor, so this check is needed
           if (FileEditorManager.getInstance(myProject).getSelectedEditor(file) == null) {
             myServerData.onFileClosed(file);
+            persistCachedResults(Collections.singletonList(file.getPath()));
           }
 
           updateVisibleFiles();
@@ -697,6 +756,10 @@ public class DartAnalysisServerService implements Disposable {
 
         final VirtualFile file = FileDocumentManager.getInstance().getFile(e.getDocument());
         if (isLocalAnalyzableFile(file)) {
+          // queued results were computed for the contents before this change, while the regions in DartServerData are already shifted
+          myNotificationCoalescer.dropQueued(file.getPath());
+          recordPendingEdit(file, e);
+
           for (VirtualFile fileInEditor : FileEditorManager.getInstance(myProject).getOpenFiles()) {
             if (fileInEditor.equals(file)) {
               synchronized (myLock) {
@@ -730,11 +793,89 @@ public class DartAnalysisServerService implements Disposable {
     return myProject;
   }
 
+  /**
+   * @return number of per-file analysis notifications that were superseded by newer ones before being applied
+   */
+  public long getDroppedNotificationCount() {
+    return myNotificationCoalescer.getDroppedCount();
+  }
+
+  /**
+   * @return number of per-file analysis notifications that have been applied
+   */
+  public long getAppliedNotificationCount() {
+    return myNotificationCoalescer.getAppliedCount();
+  }
+
+  /**
+   * @return latency statistics of hover, navigation, completion and search requests, keyed by protocol method
+   */
+  @NotNull
+  public Map<String, RequestScheduler.LatencyHistogram> getRequestLatencyHistograms() {
+    final RemoteAnalysisServerImpl server = myServer;
+    return server == null ? Collections.emptyMap() : server.getRequestLatencyHistograms();
+  }
+
   @Override
   public void dispose() {
+    if (myResultsCache != null) {
+      persistCachedResults(myResultsCache.getFilesWithLatestResults());
+    }
     stopServer();
   }
 
+  /**
+   * Writes the latest results for the given files, if any, to {@link DartAnalysisResultsCache} in a pooled thread.
+   */
+  private void persistCachedResults(@NotNull final List<String> filePaths) {
+    final DartAnalysisResultsCache cache = myResultsCache;
+    if (cache == null || filePaths.isEmpty()) return;
+
+    final Map<String, CharSequence> pathToContent = new THashMap<>();
+    ApplicationManager.getApplication().runReadAction(() -> {
+      for (String filePath : filePaths) {
+        final VirtualFile file = LocalFileSystem.getInstance().findFileByPath(filePath);
+        final Document document = file == null ? null : FileDocumentManager.getInstance().getCachedDocument(file);
+        // used only for results of a file without overlay, when the server analyzed the file on disk
+        final boolean sameAsOnDisk = document != null && !FileDocumentManager.getInstance().isDocumentUnsaved(document);
+        pathToContent.put(filePath, sameAsOnDisk ? document.getImmutableCharSequence() : null);
+      }
+    });
+
+    ApplicationManager.getApplication().executeOnPooledThread(() -> {
+      for (Map.Entry<String, CharSequence> entry : pathToContent.entrySet()) {
+        cache.persistAndForget(entry.getKey(), entry.getValue());
+      }
+    });
+  }
+
+  /**
+   * Shows results from {@link DartAnalysisResultsCache} for the files that have been just opened, if their content is the same
+   * as when the results were cached. Cached results are loaded in a pooled thread.
+   */
+  private void applyCachedResults(@NotNull final List<String> filePathsSD) {
+    final DartAnalysisResultsCache cache = myResultsCache;
+    if (cache == null || filePathsSD.isEmpty()) return;
+
+    ApplicationManager.getApplication().executeOnPooledThread(() -> {
+      for (String filePathSD : filePathsSD) {
+        final String filePath = FileUtil.toSystemIndependentName(filePathSD);
+        final CharSequence content = ReadAction.compute(() -> {
+          final VirtualFile file = LocalFileSystem.getInstance().findFileByPath(filePath);
+          if (file == null || myServerData.getSnapshot(file).getOutline() != null) return null;
+          final Document document = FileDocumentManager.getInstance().getDocument(file);
+          return document == null ? null : document.getImmutableCharSequence();
+        });
+        if (content == null) continue;
+
+        final DartAnalysisResultsCache.Results results = cache.load(filePath, content);
+        if (results != null && results.isComplete()) {
+          myServerData.computedProvisionalResults(filePath, results.errors, results.highlights, results.outline);
+        }
+      }
+    });
+  }
+
   private void handleClosingLabelPreferenceChanged() {
     analysis_setSubscriptions();
   }
@@ -749,6 +890,14 @@ public class DartAnalysisServerService implements Disposable {
     return myServerData.getExistingImports(filePathSD);
   }
 
+  /**
+   * @see DartServerData#getSnapshot(VirtualFile)
+   */
+  @NotNull
+  public DartServerData.FileSnapshot getFileSnapshot(@NotNull final VirtualFile file) {
+    return myServerData.getSnapshot(file);
+  }
+
   @NotNull
   public List<DartServerData.DartError> getErrors(@NotNull final VirtualFile file) {
     return myServerData.getErrors(file);
@@ -763,6 +912,18 @@ public class DartAnalysisServerService implements Disposable {
     return myServerData.getHighlight(file);
   }
 
+  public boolean hasHighlights(@NotNull final VirtualFile file) {
+    return myServerData.getSnapshot(file).hasHighlights();
+  }
+
+  /**
+   * @see DartServerData#getHighlightTable(VirtualFile)
+   */
+  @Nullable
+  public DartHighlightRegionTable getHighlightTable(@NotNull final VirtualFile file) {
+    return myServerData.getHighlightTable(file);
+  }
+
   @NotNull
   public List<DartServerData.DartNavigationRegion> getNavigation(@NotNull final VirtualFile file) {
     return myServerData.getNavigation(file);
@@ -822,6 +983,12 @@ public class DartAnalysisServerService implements Disposable {
       }
 
       if (!Comparing.haveEqualElements(myVisibleFiles, newVisibleFiles)) {
+        if (myResultsCache != null) {
+          final List<String> newlyVisibleFiles = new ArrayList<>(newVisibleFiles);
+          newlyVisibleFiles.removeAll(myVisibleFiles);
+          applyCachedResults(newlyVisibleFiles);
+        }
+
         myVisibleFiles.clear();
         myVisibleFiles.addAll(newVisibleFiles);
         analysis_setPriorityFiles();
@@ -860,9 +1027,19 @@ public class DartAnalysisServerService implements Disposable {
     }
   }
 
-  private void doUpdateFilesContent() {
-    // may be use DocumentListener to collect deltas instead of sending the whole Document.getText() each time?
+  private void recordPendingEdit(@NotNull final VirtualFile file, @NotNull final DocumentEvent e) {
+    synchronized (myLock) {
+      PendingEdits edits = myFilePathToPendingEdits.get(file.getPath());
+      if (edits == null) {
+        // beforeDocumentChange(), so this is the stamp of the content the edits are based on
+        edits = new PendingEdits(e.getDocument().getModificationStamp());
+        myFilePathToPendingEdits.put(file.getPath(), edits);
+      }
+      edits.add(e);
+    }
+  }
 
+  private void doUpdateFilesContent() {
     AnalysisServer server = myServer;
     if (server == null) {
       return;
@@ -871,6 +1048,7 @@ public class DartAnalysisServerService implements Disposable {
     myUpdateFilesAlarm.cancelAllRequests();
 
     final Map<String, Object> filesToUpdate = new THashMap<>();
+    int overlaidContentBytes = 0;
     ApplicationManager.getApplication().assertReadAccessAllowed();
     synchronized (myLock) {
       final Set<String> oldTrackedFiles = new THashSet<>(myFilePathWithOverlaidContentToTimestamp.keySet());
@@ -890,8 +1068,20 @@ public class DartAnalysisServerService implements Disposable {
 
           final Long oldTimestamp = myFilePathWithOverlaidContentToTimestamp.get(file.getPath());
           if (oldTimestamp == null || document.getModificationStamp() != oldTimestamp) {
-            filesToUpdate.put(FileUtil.toSystemDependentName(file.getPath()), new AddContentOverlay(document.getText()));
+            final PendingEdits edits = myFilePathToPendingEdits.get(file.getPath());
+            if (oldTimestamp != null && edits != null && edits.canBeSentInsteadOfContent(oldTimestamp, document.getTextLength())) {
+              filesToUpdate.put(FileUtil.toSystemDependentName(file.getPath()), new ChangeContentOverlay(edits.myEdits));
+              overlaidContentBytes += edits.myReplacementBytes;
+            }
+            else {
+              final String text = document.getText();
+              filesToUpdate.put(FileUtil.toSystemDependentName(file.getPath()), new AddContentOverlay(text));
+              overlaidContentBytes += utf8Length(text);
+            }
             myFilePathWithOverlaidContentToTimestamp.put(file.getPath(), document.getModificationStamp());
+            if (myResultsCache != null) {
+              myResultsCache.contentSent(file.getPath(), document.getImmutableCharSequence());
+            }
           }
         }
       }
@@ -901,8 +1091,14 @@ public class DartAnalysisServerService implements Disposable {
         final Long removed = myFilePathWithOverlaidContentToTimestamp.remove(oldPath);
         LOG.assertTrue(removed != null, oldPath);
         filesToUpdate.put(FileUtil.toSystemDependentName(oldPath), new RemoveContentOverlay());
+        if (myResultsCache != null) {
+          myResultsCache.contentSent(oldPath, null);
+        }
       }
 
+      // edits of all documents are either sent or not needed any more: the next change of a document not sent now starts a new sequence
+      myFilePathToPendingEdits.clear();
+
       if (LOG.isDebugEnabled()) {
         final Set<String> overlaid = new THashSet<>(filesToUpdate.keySet());
         for (String removeOverlaid : oldTrackedFiles) {
@@ -919,8 +1115,78 @@ public class DartAnalysisServerService implements Disposable {
     }
 
     if (!filesToUpdate.isEmpty()) {
-      server.analysis_updateContent(filesToUpdate, myServerData::onFilesContentUpdated);
+      myLastUpdateOverlaidContentBytes = overlaidContentBytes;
+      myOverlaidContentBytesSent.addAndGet(overlaidContentBytes);
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("analysis_updateContent for " + filesToUpdate.size() + " file(s), " + overlaidContentBytes + " bytes of content");
+      }
+
+      server.analysis_updateContent(filesToUpdate, new UpdateContentConsumer() {
+        // onError() is followed by onResponse(), both are called on the same thread
+        private boolean myFailed;
+
+        @Override
+        public void onResponse() {
+          // after a failure changes are not applied by the server, they stay unsent until the full content is resent
+          if (!myFailed) {
+            myServerData.onFilesContentUpdated();
+          }
+        }
+
+        @Override
+        public void onError(RequestError requestError) {
+          myFailed = true;
+          // most likely some ChangeContentOverlay didn't match the server's content, resend full content of all these files
+          LOG.info("analysis_updateContent failed: " + requestError.getMessage());
+          synchronized (myLock) {
+            for (String filePathSD : filesToUpdate.keySet()) {
+              final String filePath = FileUtil.toSystemIndependentName(filePathSD);
+              if (myFilePathWithOverlaidContentToTimestamp.containsKey(filePath)) {
+                myFilePathWithOverlaidContentToTimestamp.put(filePath, -1L);
+              }
+            }
+          }
+          myUpdateFilesAlarm.cancelAllRequests();
+          myUpdateFilesAlarm.addRequest(DartAnalysisServerService.this::updateFilesContent, UPDATE_FILES_TIMEOUT);
+        }
+      });
+    }
+  }
+
+  /**
+   * @return total UTF-8 encoded size in bytes of overlaid content (full documents or replacement text of edits) sent to the server,
+   * JSON escaping is not counted
+   */
+  public long getOverlaidContentBytesSent() {
+    return myOverlaidContentBytesSent.get();
+  }
+
+  /**
+   * @return UTF-8 encoded size in bytes of overlaid content sent by the last {@code analysis.updateContent} request
+   */
+  public int getLastUpdateOverlaidContentBytes() {
+    return myLastUpdateOverlaidContentBytes;
+  }
+
+  private static int utf8Length(@NotNull final CharSequence text) {
+    int result = 0;
+    for (int i = 0; i < text.length(); i++) {
+      final char c = text.charAt(i);
+      if (c < 0x80) {
+        result++;
+      }
+      else if (c < 0x800) {
+        result += 2;
+      }
+      else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+        result += 4;
+        i++;
+      }
+      else {
+        result += 3;
+      }
     }
+    return result;
   }
 
   public void ensureAnalysisRootsUpToDate() {
@@ -999,7 +1265,7 @@ public class DartAnalysisServerService implements Disposable {
 
   @NotNull
   public List<HoverInformation> analysis_getHover(@NotNull final VirtualFile file, final int _offset) {
-    final AnalysisServer server = myServer;
+    final RemoteAnalysisServerImpl server = myServer;
     if (server == null) {
       return HoverInformation.EMPTY_LIST;
     }
@@ -1007,26 +1273,17 @@ public class DartAnalysisServerService implements Disposable {
     final String filePath = FileUtil.toSystemDependentName(file.getPath());
     final List<HoverInformation> result = Lists.newArrayList();
 
-    final CountDownLatch latch = new CountDownLatch(1);
     final int offset = getOriginalOffset(file, _offset);
-    server.analysis_getHover(filePath, offset, new GetHoverConsumer() {
-      @Override
-      public void computedHovers(HoverInformation[] hovers) {
-        Collections.addAll(result, hovers);
-        latch.countDown();
-      }
-
-      @Override
-      public void onError(RequestError error) {
-        logError("analysis_getHover()", filePath, error);
-        latch.countDown();
-      }
-    });
+    final CompletableFuture<HoverInformation[]> future = server.analysis_getHoverAsync(filePath, offset);
 
-    awaitForLatchCheckingCanceled(server, latch, GET_HOVER_TIMEOUT);
-
-    if (latch.getCount() > 0) {
+    if (!awaitForFutureCheckingCanceled(server, future, GET_HOVER_TIMEOUT)) {
       logTookTooLongMessage("analysis_getHover", GET_HOVER_TIMEOUT, filePath);
+      return result;
+    }
+
+    final HoverInformation[] hovers = getFutureResult(future, error -> logError("analysis_getHover()", filePath, error));
+    if (hovers != null) {
+      Collections.addAll(result, hovers);
     }
     return result;
   }
@@ -1035,52 +1292,41 @@ public class DartAnalysisServerService implements Disposable {
   public List<DartServerData.DartNavigationRegion> analysis_getNavigation(@NotNull final VirtualFile file,
                                                                           final int _offset,
                                                                           final int length) {
-    final AnalysisServer server = myServer;
+    final RemoteAnalysisServerImpl server = myServer;
     if (server == null) {
       return null;
     }
 
     final String filePath = FileUtil.toSystemDependentName(file.getPath());
-    final Ref<List<DartServerData.DartNavigationRegion>> resultRef = Ref.create();
-
-    final CountDownLatch latch = new CountDownLatch(1);
     LOG.debug("analysis_getNavigation(" + filePath + ")");
 
     final int offset = getOriginalOffset(file, _offset);
-    server.analysis_getNavigation(filePath, offset, length, new GetNavigationConsumer() {
-      @Override
-      public void computedNavigation(final List<NavigationRegion> regions) {
-        final List<DartServerData.DartNavigationRegion> dartRegions = new ArrayList<>(regions.size());
-        for (NavigationRegion region : regions) {
-          if (region.getLength() > 0) {
-            dartRegions.add(DartServerData.createDartNavigationRegion(DartAnalysisServerService.this, file, region));
-          }
-        }
-
-        resultRef.set(dartRegions);
-        latch.countDown();
-      }
+    final CompletableFuture<List<NavigationRegion>> future = server.analysis_getNavigationAsync(filePath, offset, length);
 
-      @Override
-      public void onError(final RequestError error) {
-        if (RequestErrorCode.GET_NAVIGATION_INVALID_FILE.equals(error.getCode())) {
-          LOG.info(getShortErrorMessage("analysis_getNavigation()", filePath, error));
-        }
-        else {
-          logError("analysis_getNavigation()", filePath, error);
-        }
+    if (!awaitForFutureCheckingCanceled(server, future, GET_NAVIGATION_TIMEOUT)) {
+      logTookTooLongMessage("analysis_getNavigation", GET_NAVIGATION_TIMEOUT, filePath);
+      return null;
+    }
 
-        latch.countDown();
+    final List<NavigationRegion> regions = getFutureResult(future, error -> {
+      if (RequestErrorCode.GET_NAVIGATION_INVALID_FILE.equals(error.getCode())) {
+        LOG.info(getShortErrorMessage("analysis_getNavigation()", filePath, error));
+      }
+      else {
+        logError("analysis_getNavigation()", filePath, error);
       }
     });
-
-    awaitForLatchCheckingCanceled(server, latch, GET_NAVIGATION_TIMEOUT);
-
-    if (latch.getCount() > 0) {
-      logTookTooLongMessage("analysis_getNavigation", GET_NAVIGATION_TIMEOUT, filePath);
+    if (regions == null) {
+      return null;
     }
 
-    return resultRef.get();
+    final List<DartServerData.DartNavigationRegion> dartRegions = new ArrayList<>(regions.size());
+    for (NavigationRegion region : regions) {
+      if (region.getLength() > 0) {
+        dartRegions.add(DartServerData.createDartNavigationRegion(this, file, region));
+      }
+    }
+    return dartRegions;
   }
 
   @NotNull
@@ -1300,38 +1546,22 @@ public class DartAnalysisServerService implements Disposable {
   public void search_findElementReferences(@NotNull final VirtualFile file,
                                            final int _offset,
                                            @NotNull final Consumer<? super SearchResult> consumer) {
-    final AnalysisServer server = myServer;
+    final RemoteAnalysisServerImpl server = myServer;
     if (server == null) {
       return;
     }
 
     final String filePath = FileUtil.toSystemDependentName(file.getPath());
-    final Ref<String> searchIdRef = new Ref<>();
-
-    final CountDownLatch latch = new CountDownLatch(1);
     final int offset = getOriginalOffset(file, _offset);
-    server.search_findElementReferences(filePath, offset, true, new FindElementReferencesConsumer() {
-      @Override
-      public void computedElementReferences(String searchId, Element element) {
-        searchIdRef.set(searchId);
-        latch.countDown();
-      }
-
-      @Override
-      public void onError(RequestError error) {
-        LOG.info(getShortErrorMessage("search_findElementReferences()", filePath, error));
-        latch.countDown();
-      }
-    });
+    final CompletableFuture<String> future = server.search_findElementReferencesAsync(filePath, offset, true);
 
-    awaitForLatchCheckingCanceled(server, latch, FIND_ELEMENT_REFERENCES_TIMEOUT);
-
-    if (latch.getCount() > 0) {
+    if (!awaitForFutureCheckingCanceled(server, future, FIND_ELEMENT_REFERENCES_TIMEOUT)) {
       logTookTooLongMessage("search_findElementReferences", FIND_ELEMENT_REFERENCES_TIMEOUT, filePath + "@" + offset);
       return;
     }
 
-    final String searchId = searchIdRef.get();
+    final String searchId =
+      getFutureResult(future, error -> LOG.info(getShortErrorMessage("search_findElementReferences()", filePath, error)));
     if (searchId == null) {
       return;
     }
@@ -1429,36 +1659,22 @@ public class DartAnalysisServerService implements Disposable {
 
   @Nullable
   public String completion_getSuggestions(@NotNull final VirtualFile file, final int _offset) {
-    final AnalysisServer server = myServer;
+    final RemoteAnalysisServerImpl server = myServer;
     if (server == null) {
       return null;
     }
 
     final String filePath = FileUtil.toSystemDependentName(file.getPath());
-    final Ref<String> resultRef = new Ref<>();
-    final CountDownLatch latch = new CountDownLatch(1);
     final int offset = getOriginalOffset(file, _offset);
-    server.completion_getSuggestions(filePath, offset, new GetSuggestionsConsumer() {
-      @Override
-      public void computedCompletionId(@NotNull final String completionId) {
-        resultRef.set(completionId);
-        latch.countDown();
-      }
-
-      @Override
-      public void onError(@NotNull final RequestError error) {
-        // Not a problem. Happens if a file is outside of the project, or server is just not ready yet.
-        latch.countDown();
-      }
-    });
-
-    awaitForLatchCheckingCanceled(server, latch, GET_SUGGESTIONS_TIMEOUT);
+    final CompletableFuture<String> future = server.completion_getSuggestionsAsync(filePath, offset);
 
-    if (latch.getCount() > 0) {
+    if (!awaitForFutureCheckingCanceled(server, future, GET_SUGGESTIONS_TIMEOUT)) {
       logTookTooLongMessage("completion_getSuggestions", GET_SUGGESTIONS_TIMEOUT, filePath);
+      return null;
     }
 
-    return resultRef.get();
+    // An error is not a problem. Happens if a file is outside of the project, or server is just not ready yet.
+    return getFutureResult(future, error -> LOG.info(getShortErrorMessage("completion_getSuggestions()", filePath, error)));
   }
 
   @Nullable
@@ -1914,6 +2130,56 @@ public class DartAnalysisServerService implements Disposable {
     return resultRef.get();
   }
 
+  /**
+   * Maps many {@code uris} in the execution context with the given {@code id} to file paths. Unlike calling
+   * {@link #execution_mapUri(String, String, String)} in a loop, does not wait for a response before sending the next request:
+   * requests are sent in chunks of {@link #EXECUTION_MAP_URIS_CHUNK_SIZE}, each chunk is awaited as a whole.
+   *
+   * @return system-independent file paths keyed by uri, uris that could not be mapped are missing; {@code null} if the server is not
+   * running or some chunk is not answered in time, the whole call fails then rather than returning a partial result
+   */
+  @Nullable
+  public Map<String, String> execution_mapUris(@NotNull final String _id, @NotNull final Collection<String> uris) {
+    final AnalysisServer server = myServer;
+    if (server == null) {
+      return null;
+    }
+
+    final Map<String, String> result = new ConcurrentHashMap<>();
+    final List<String> uriList = new ArrayList<>(uris);
+    for (int chunkStart = 0; chunkStart < uriList.size(); chunkStart += EXECUTION_MAP_URIS_CHUNK_SIZE) {
+      final List<String> chunk = uriList.subList(chunkStart, Math.min(chunkStart + EXECUTION_MAP_URIS_CHUNK_SIZE, uriList.size()));
+      final CountDownLatch latch = new CountDownLatch(chunk.size());
+
+      for (final String uri : chunk) {
+        server.execution_mapUri(_id, null, uri, new MapUriConsumer() {
+          @Override
+          public void computedFileOrUri(final String file, final String mappedUri) {
+            if (file != null) {
+              result.put(uri, FileUtil.toSystemIndependentName(file));
+            }
+            latch.countDown();
+          }
+
+          @Override
+          public void onError(final RequestError error) {
+            LOG.warn("execution_mapUri(" + _id + ", null, " + uri + ") returned error " + error.getCode() + ": " + error.getMessage());
+            latch.countDown();
+          }
+        });
+      }
+
+      awaitForLatchCheckingCanceled(server, latch, EXECUTION_MAP_URI_TIMEOUT * 4);
+
+      if (latch.getCount() > 0) {
+        logTookTooLongMessage("execution_mapUris", EXECUTION_MAP_URI_TIMEOUT * 4, null);
+        return null;
+      }
+    }
+
+    return result;
+  }
+
   private void startServer(@NotNull final DartSdk sdk) {
     if (DartPubActionBase.isInProgress()) return; // DartPubActionBase will start the server itself when finished
 
@@ -1993,6 +2259,8 @@ public class DartAnalysisServerService implements Disposable {
       myServerSocket.setClientVersion(getClientVersion());
 
       final RemoteAnalysisServerImpl startedServer = new RemoteAnalysisServerImpl(myServerSocket);
+      startedServer.setMaxInFlightRequests(Math.max(1, Registry.intValue("dart.server.max.in.flight.requests",
+                                                                         RequestScheduler.DEFAULT_MAX_IN_FLIGHT_REQUESTS)));
 
       try {
         startedServer.start();
@@ -2144,8 +2412,10 @@ public class DartAnalysisServerService implements Disposable {
       myServer = null;
       mySdkHome = null;
       myFilePathWithOverlaidContentToTimestamp.clear();
+      myFilePathToPendingEdits.clear();
       myVisibleFiles.clear();
       myChangedDocuments.clear();
+      myNotificationCoalescer.clear();
       myServerData.clearData();
       myRootsHandler.onServerStopped();
 
@@ -2260,6 +2530,72 @@ public class DartAnalysisServerService implements Disposable {
     }
   }
 
+  /**
+   * Same as {@link #awaitForLatchCheckingCanceled(AnalysisServer, CountDownLatch, long)}, but waits for a future returned by the
+   * asynchronous request API. If the wait ends before the future is completed then the future is cancelled, so that the request is not
+   * sent at all if it is still queued.
+   *
+   * @return {@code true} if the future has been completed
+   */
+  private static boolean awaitForFutureCheckingCanceled(@NotNull final AnalysisServer server,
+                                                        @NotNull final CompletableFuture<?> future,
+                                                        long timeoutInMillis) {
+    if (ApplicationManager.getApplication().isUnitTestMode()) {
+      timeoutInMillis *= TESTS_TIMEOUT_COEFF;
+    }
+
+    boolean completed = false;
+    try {
+      long startTime = System.currentTimeMillis();
+      while (true) {
+        ProgressManager.checkCanceled();
+        if (!server.isSocketOpen()) {
+          return false;
+        }
+        if (timeoutInMillis != -1 && System.currentTimeMillis() > startTime + timeoutInMillis) {
+          return false;
+        }
+        try {
+          Uninterruptibles.getUninterruptibly(future, CHECK_CANCELLED_PERIOD, TimeUnit.MILLISECONDS);
+          completed = true;
+          return true;
+        }
+        catch (ExecutionException | CancellationException e) {
+          completed = true;
+          return true;
+        }
+        catch (TimeoutException ignore) {
+        }
+      }
+    }
+    finally {
+      if (!completed) {
+        future.cancel(false);
+      }
+    }
+  }
+
+  /**
+   * @return result of the completed {@code future}, or {@code null} if the server responded with an error (it is passed to
+   * {@code errorConsumer}) or if the request was cancelled, for example superseded by a newer request for the same file and offset
+   */
+  @Nullable
+  private static <T> T getFutureResult(@NotNull final CompletableFuture<T> future, @NotNull final Consumer<RequestError> errorConsumer) {
+    try {
+      return future.getNow(null);
+    }
+    catch (CancellationException e) {
+      return null;
+    }
+    catch (CompletionException e) {
+      if (e.getCause() instanceof RequestFailedException) {
+        errorConsumer.consume(((RequestFailedException)e.getCause()).getRequestError());
+        return null;
+      }
+      throw e;
+    }
+  }
+
   private void registerPostfixCompletionTemplates() {
     ApplicationManager.getApplication().executeOnPooledThread(() -> DartPostfixTemplateProvider.initializeTemplates(this));
   }
@@ -2310,6 +2646,45 @@ public class DartAnalysisServerService implements Disposable {
                            @Nullable String libraryFilePathSD);
   }
 
+  /**
+   * Edits of one document, in the order they were made, starting from the content with the modification stamp {@link #myBaseStamp}.
+   * The server applies the edits of a {@link ChangeContentOverlay} sequentially, each one to the result of the previous one.
+   */
+  private static class PendingEdits {
+    private final long myBaseStamp;
+    private final List<SourceEdit> myEdits = new ArrayList<>();
+    private int myReplacementLength;
+    private int myReplacementBytes;
+    private boolean myTooMany;
+
+    PendingEdits(final long baseStamp) {
+      myBaseStamp = baseStamp;
+    }
+
+    void add(@NotNull final DocumentEvent e) {
+      if (myTooMany) return;
+
+      if (myEdits.size() == MAX_PENDING_EDITS) {
+        myTooMany = true;
+        myEdits.clear();
+        return;
+      }
+
+      final String replacement = e.getNewFragment().toString();
+      myEdits.add(new SourceEdit(e.getOffset(), e.getOldLength(), replacement, null));
+      myReplacementLength += replacement.length();
+      myReplacementBytes += utf8Length(replacement);
+    }
+
+    /**
+     * Edits are sent instead of the full content only if the server has exactly the content they are based on,
+     * and only if they are noticeably smaller than the content itself.
+     */
+    boolean canBeSentInsteadOfContent(final long serverContentStamp, final int documentLength) {
+      return !myTooMany && myBaseStamp == serverContentStamp && myReplacementLength < documentLength / 2;
+    }
+  }
+
   private static class CompletionInfo {
     @NotNull private final String myCompletionId;
     /**
@@ -0,0 +1,197 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.jetbrains.lang.dart.analyzer;
+
+import com.intellij.util.ArrayUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Compact alternative to {@code List<DartHighlightRegion>}: regions of one file are kept in parallel int arrays sorted by offset,
+ * highlight types are stored as ids of interned type names. Enabled by the {@code dart.server.compact.region.storage} registry key.
+ * <p>
+ * Instances are mutable only until published in a {@link DartServerData.FileSnapshot}; document changes are applied to a {@link #copy()}.
+ */
+public final class DartHighlightRegionTable {
+
+  private static final ConcurrentMap<String, Integer> ourTypeToId = new ConcurrentHashMap<>();
+  private static volatile String[] ourIdToType = ArrayUtil.EMPTY_STRING_ARRAY;
+
+  private final int[] myOffsets;
+  private final int[] myLengths;
+  private final int[] myTypeIds;
+  private int mySize;
+
+  DartHighlightRegionTable(final int capacity) {
+    myOffsets = new int[capacity];
+    myLengths = new int[capacity];
+    myTypeIds = new int[capacity];
+  }
+
+  private DartHighlightRegionTable(@NotNull final DartHighlightRegionTable table) {
+    myOffsets = Arrays.copyOf(table.myOffsets, table.mySize);
+    myLengths = Arrays.copyOf(table.myLengths, table.mySize);
+    myTypeIds = Arrays.copyOf(table.myTypeIds, table.mySize);
+    mySize = table.mySize;
+  }
+
+  @NotNull
+  DartHighlightRegionTable copy() {
+    return new DartHighlightRegionTable(this);
+  }
+
+  void add(final int offset, final int length, @NotNull final String type) {
+    myOffsets[mySize] = offset;
+    myLengths[mySize] = length;
+    myTypeIds[mySize] = getTypeId(type);
+    mySize++;
+  }
+
+  /**
+   * Must be called after all regions are {@link #add(int, int, String) added}, before the table is published.
+   */
+  void sortByOffset() {
+    for (int i = 1; i < mySize; i++) {
+      if (myOffsets[i - 1] > myOffsets[i]) {
+        doSort();
+        return;
+      }
+    }
+  }
+
+  private void doSort() {
+    // offsets are non-negative, so (offset, index) pairs packed into longs sort by offset, keeping the original order for equal offsets
+    final long[] keys = new long[mySize];
+    for (int i = 0; i < mySize; i++) {
+      keys[i] = ((long)myOffsets[i] << 32) | i;
+    }
+    Arrays.sort(keys);
+
+    final int[] lengths = Arrays.copyOf(myLengths, mySize);
+    final int[] typeIds = Arrays.copyOf(myTypeIds, mySize);
+    for (int i = 0; i < mySize; i++) {
+      final int from = (int)keys[i];
+      myOffsets[i] = (int)(keys[i] >>> 32);
+      myLengths[i] = lengths[from];
+      myTypeIds[i] = typeIds[from];
+    }
+  }
+
+  public int size() {
+    return mySize;
+  }
+
+  public boolean isEmpty() {
+    return mySize == 0;
+  }
+
+  public int getOffset(final int index) {
+    return myOffsets[index];
+  }
+
+  public int getLength(final int index) {
+    return myLengths[index];
+  }
+
+  @NotNull
+  public String getType(final int index) {
+    return ourIdToType[myTypeIds[index]];
+  }
+
+  /**
+   * @return index of the first region with offset greater than or equal to {@code offset}, or {@link #size()} if there is no such region
+   */
+  public int findFirstRegionAtOrAfter(final int offset) {
+    int low = 0;
+    int high = mySize;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (myOffsets[mid] < offset) {
+        low = mid + 1;
+      }
+      else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Shifts regions that follow the changed text, extends or shrinks regions that contain it and deletes regions that are broken by it.
+   * Same logic as for {@code List<DartHighlightRegion>}, but done in place without allocating region objects.
+   */
+  void documentChanged(final int eventOffset, final int oldLength, final int newLength) {
+    final int deltaLength = newLength - oldLength;
+    if (deltaLength == 0) return;
+
+    final int eventRightOffset = eventOffset + oldLength;
+    int size = 0;
+
+    for (int i = 0; i < mySize; i++) {
+      int offset = myOffsets[i];
+      int length = myLengths[i];
+
+      if (deltaLength > 0) {
+        // Something was typed. Shift untouched regions, update touched.
+        if (eventOffset <= offset) {
+          offset += deltaLength;
+        }
+        else if (eventOffset < offset + length) {
+          length += deltaLength;
+        }
+      }
+      else {
+        // Some text was deleted. Shift untouched regions, delete or update touched.
+        final int regionRightOffset = offset + length;
+
+        if (eventRightOffset <= offset) {
+          offset += deltaLength;
+        }
+        else if (offset <= eventOffset && eventRightOffset <= regionRightOffset && length != -deltaLength) {
+          length += deltaLength;
+        }
+        else if (eventOffset < regionRightOffset) {
+          continue;
+        }
+      }
+
+      myOffsets[size] = offset;
+      myLengths[size] = length;
+      myTypeIds[size] = myTypeIds[i];
+      size++;
+    }
+
+    mySize = size;
+  }
+
+  /**
+   * Allocates a region object per region, callers that only read regions should use the table directly.
+   */
+  @NotNull
+  List<DartServerData.DartHighlightRegion> toRegionList() {
+    final List<DartServerData.DartHighlightRegion> result = new ArrayList<>(mySize);
+    for (int i = 0; i < mySize; i++) {
+      result.add(new DartServerData.DartHighlightRegion(myOffsets[i], myLengths[i], getType(i)));
+    }
+    return result;
+  }
+
+  private static int getTypeId(@NotNull final String type) {
+    final Integer id = ourTypeToId.get(type);
+    if (id != null) return id;
+
+    synchronized (ourTypeToId) {
+      final Integer existing = ourTypeToId.get(type);
+      if (existing != null) return existing;
+
+      final int newId = ourIdToType.length;
+      ourIdToType = ArrayUtil.append(ourIdToType, type.intern());
+      ourTypeToId.put(type, newId);
+      return newId;
+    }
+  }
+}
@@ -8,21 +8,27 @@ import com.intellij.openapi.application.ModalityState;
 import com.intellij.openapi.editor.event.DocumentEvent;
 import com.intellij.openapi.fileEditor.FileDocumentManager;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Ref;
 import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.vfs.LocalFileSystem;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.PsiManager;
 import com.intellij.psi.impl.PsiModificationTrackerImpl;
 import com.intellij.psi.impl.source.resolve.ResolveCache;
 import com.intellij.psi.search.SearchScope;
+import com.intellij.util.ArrayUtil;
 import com.intellij.util.EventDispatcher;
+import com.intellij.util.Function;
 import com.intellij.util.SmartList;
 import gnu.trove.THashMap;
 import org.dartlang.analysis.server.protocol.*;
+import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class DartServerData {
 
@@ -34,13 +40,8 @@ public class DartServerData {
 
   private final EventDispatcher<OutlineListener> myEventDispatcher = EventDispatcher.create(OutlineListener.class);
 
-  private final Map<String, List<DartError>> myErrorData = Collections.synchronizedMap(new THashMap<>());
-  private final Map<String, List<DartHighlightRegion>> myHighlightData = Collections.synchronizedMap(new THashMap<>());
-  private final Map<String, List<DartNavigationRegion>> myNavigationData = Collections.synchronizedMap(new THashMap<>());
-  private final Map<String, List<DartOverrideMember>> myOverrideData = Collections.synchronizedMap(new THashMap<>());
-  private final Map<String, List<DartRegion>> myImplementedClassData = Collections.synchronizedMap(new THashMap<>());
-  private final Map<String, List<DartRegion>> myImplementedMemberData = Collections.synchronizedMap(new THashMap<>());
-  private final Map<String, Outline> myOutlineData = Collections.synchronizedMap(new THashMap<>());
+  // Per-file data is never modified in place: every update publishes a new immutable FileSnapshot, so readers never lock.
+  private final Map<String, FileSnapshot> myFileData = new ConcurrentHashMap<>();
   private final Map<Integer, AvailableSuggestionSet> myAvailableSuggestionSetMap = Collections.synchronizedMap(new THashMap<>());
   private final Map<String, Map<String, Map<String, Set<String>>>> myExistingImports = Collections.synchronizedMap(new THashMap<>());
 
@@ -53,6 +54,13 @@ public class DartServerData {
     myService = service;
   }
 
+  /**
+   * @return {@code true} if the file has been edited and new contents has not yet been sent to the server
+   */
+  boolean hasUnsentChanges(@NotNull final String filePath) {
+    return myFilePathsWithUnsentChanges.contains(filePath);
+  }
+
   boolean isErrorInfoInaccurate(@NotNull final String filePath) {
     return myFilePathsWithInaccurateErrorInfo.contains(filePath);
   }
@@ -74,7 +82,7 @@ public class DartServerData {
     }
 
     myFilePathsWithInaccurateErrorInfo.remove(filePath);
-    myErrorData.put(filePath, newErrors);
+    updateSnapshot(filePath, snapshot -> snapshot.withErrors(newErrors));
 
     if (restartHighlighting) {
       forceFileAnnotation(file, false);
@@ -92,9 +100,26 @@ public class DartServerData {
   void computedHighlights(@NotNull final String filePath, final @NotNull List<? extends HighlightRegion> regions) {
     if (myFilePathsWithUnsentChanges.contains(filePath)) return;
 
-    final List<DartHighlightRegion> newRegions = new ArrayList<>(regions.size());
     final VirtualFile file = LocalFileSystem.getInstance().findFileByPath(filePath);
 
+    if (isCompactRegionStorage()) {
+      final DartHighlightRegionTable table = new DartHighlightRegionTable(regions.size());
+      for (HighlightRegion region : regions) {
+        if (region.getLength() > 0) {
+          final int offset = myService.getConvertedOffset(file, region.getOffset());
+          final int length = myService.getConvertedOffset(file, region.getOffset() + region.getLength()) - offset;
+          table.add(offset, length, region.getType());
+        }
+      }
+      table.sortByOffset();
+
+      updateSnapshot(filePath, snapshot -> snapshot.withHighlights(null, table));
+      forceFileAnnotation(file, false);
+      return;
+    }
+
+    final List<DartHighlightRegion> newRegions = new ArrayList<>(regions.size());
+
     for (HighlightRegion region : regions) {
       if (region.getLength() > 0) {
         final int offset = myService.getConvertedOffset(file, region.getOffset());
@@ -103,7 +128,7 @@ public class DartServerData {
       }
     }
 
-    myHighlightData.put(filePath, newRegions);
+    updateSnapshot(filePath, snapshot -> snapshot.withHighlights(newRegions, null));
     forceFileAnnotation(file, false);
   }
 
@@ -120,14 +145,69 @@ public class DartServerData {
       }
     }
 
-    myNavigationData.put(filePath, newRegions);
+    updateSnapshot(filePath, snapshot -> snapshot.withNavigation(newRegions));
     forceFileAnnotation(file, true);
   }
 
   void computedOutline(@NotNull final String filePath, @NotNull final Outline outline) {
     if (myFilePathsWithUnsentChanges.contains(filePath)) return;
 
-    myOutlineData.put(filePath, outline);
+    updateSnapshot(filePath, snapshot -> snapshot.withOutline(outline));
+    ApplicationManager.getApplication().invokeLater(() -> myEventDispatcher.getMulticaster().outlineUpdated(filePath),
+                                                    ModalityState.NON_MODAL,
+                                                    myService.getProject().getDisposed());
+  }
+
+  /**
+   * Sets results cached by {@link DartAnalysisResultsCache} for a file that has no data from the server yet.
+   * Any data that the server has already reported for this file wins.
+   */
+  void computedProvisionalResults(@NotNull final String filePath,
+                                  @NotNull final List<? extends AnalysisError> errors,
+                                  @NotNull final List<? extends HighlightRegion> highlights,
+                                  @NotNull final Outline outline) {
+    if (myFilePathsWithUnsentChanges.contains(filePath)) return;
+
+    final VirtualFile file = LocalFileSystem.getInstance().findFileByPath(filePath);
+
+    final List<DartError> newErrors = new ArrayList<>(errors.size());
+    for (AnalysisError error : errors) {
+      final int offset = myService.getConvertedOffset(file, error.getLocation().getOffset());
+      final int length = myService.getConvertedOffset(file, error.getLocation().getOffset() + error.getLocation().getLength()) - offset;
+      newErrors.add(new DartError(error, offset, length));
+    }
+
+    final List<DartHighlightRegion> newHighlights = new ArrayList<>(highlights.size());
+    for (HighlightRegion region : highlights) {
+      if (region.getLength() > 0) {
+        final int offset = myService.getConvertedOffset(file, region.getOffset());
+        final int length = myService.getConvertedOffset(file, region.getOffset() + region.getLength()) - offset;
+        newHighlights.add(new DartHighlightRegion(offset, length, region.getType()));
+      }
+    }
+
+    final Ref<Boolean> errorsSet = Ref.create(false);
+    updateSnapshot(filePath, snapshot -> {
+      FileSnapshot result = snapshot;
+      if (result.myErrors == null) {
+        result = result.withErrors(newErrors);
+        errorsSet.set(true);
+      }
+      if (result.myHighlights == null && result.myHighlightTable == null) {
+        result = result.withHighlights(newHighlights, null);
+      }
+      if (result.myOutline == null) {
+        result = result.withOutline(outline);
+      }
+      return result;
+    });
+
+    if (errorsSet.get()) {
+      // make sure that the errors will be replaced by the ones from the server even if these are equal to previously reported
+      myFilePathsWithInaccurateErrorInfo.add(filePath);
+    }
+
+    forceFileAnnotation(file, false);
     ApplicationManager.getApplication().invokeLater(() -> myEventDispatcher.getMulticaster().outlineUpdated(filePath),
                                                     ModalityState.NON_MODAL,
                                                     myService.getProject().getDisposed());
@@ -178,7 +258,7 @@ public class DartServerData {
       }
     }
 
-    myOverrideData.put(filePath, newOverrides);
+    updateSnapshot(filePath, snapshot -> snapshot.withOverrideMembers(newOverrides));
     forceFileAnnotation(file, false);
   }
 
@@ -203,20 +283,20 @@ public class DartServerData {
       newImplementedMembers.add(new DartRegion(offset, length));
     }
 
-    boolean hasChanges = false;
-    final List<DartRegion> oldClasses = myImplementedClassData.get(filePath);
-    if (oldClasses == null || !oldClasses.equals(newImplementedClasses)) {
-      hasChanges = true;
-      myImplementedClassData.put(filePath, newImplementedClasses);
-    }
-
-    final List<DartRegion> oldMembers = myImplementedMemberData.get(filePath);
-    if (oldMembers == null || !oldMembers.equals(newImplementedMembers)) {
-      hasChanges = true;
-      myImplementedMemberData.put(filePath, newImplementedMembers);
-    }
+    // compare with the data in the same compute() call that replaces it, otherwise a concurrent update may be missed
+    final Ref<Boolean> hasChanges = Ref.create(false);
+    updateSnapshot(filePath, snapshot -> {
+      final List<DartRegion> oldClasses = snapshot.myImplementedClasses;
+      final List<DartRegion> oldMembers = snapshot.myImplementedMembers;
+      if (oldClasses != null && oldClasses.equals(newImplementedClasses) &&
+          oldMembers != null && oldMembers.equals(newImplementedMembers)) {
+        return snapshot;
+      }
+      hasChanges.set(true);
+      return snapshot.withImplemented(newImplementedClasses, newImplementedMembers);
+    });
 
-    if (hasChanges) {
+    if (hasChanges.get()) {
       forceFileAnnotation(file, false);
     }
   }
@@ -225,57 +305,70 @@ public class DartServerData {
   List<DartError> getErrors(@NotNull final SearchScope scope) {
     final List<DartError> errors = new ArrayList<>();
 
-    synchronized (myErrorData) {
-      for (Map.Entry<String, List<DartError>> entry : myErrorData.entrySet()) {
-        final VirtualFile file = LocalFileSystem.getInstance().findFileByPath(entry.getKey());
-        if (file != null && scope.contains(file)) {
-          errors.addAll(entry.getValue());
-        }
+    for (Map.Entry<String, FileSnapshot> entry : myFileData.entrySet()) {
+      final List<DartError> fileErrors = entry.getValue().myErrors;
+      if (fileErrors == null || fileErrors.isEmpty()) continue;
+
+      final VirtualFile file = LocalFileSystem.getInstance().findFileByPath(entry.getKey());
+      if (file != null && scope.contains(file)) {
+        errors.addAll(fileErrors);
       }
     }
 
     return errors;
   }
 
+  /**
+   * @return consistent view of all data received from the server for the given file, as of the last update; never modified afterwards
+   */
+  @NotNull
+  FileSnapshot getSnapshot(@NotNull final VirtualFile file) {
+    final FileSnapshot snapshot = myFileData.get(file.getPath());
+    return snapshot != null ? snapshot : FileSnapshot.EMPTY;
+  }
+
   @NotNull
   List<DartError> getErrors(@NotNull final VirtualFile file) {
-    final List<DartError> errors = myErrorData.get(file.getPath());
-    return errors != null ? errors : Collections.emptyList();
+    return getSnapshot(file).getErrors();
   }
 
   @NotNull
   List<DartHighlightRegion> getHighlight(@NotNull final VirtualFile file) {
-    final List<DartHighlightRegion> regions = myHighlightData.get(file.getPath());
-    return regions != null ? regions : Collections.emptyList();
+    return getSnapshot(file).getHighlights();
+  }
+
+  /**
+   * @return highlight regions in compact form if {@code dart.server.compact.region.storage} registry key is on, {@code null} otherwise
+   * or if no highlighting info has been received for this file yet
+   */
+  @Nullable
+  DartHighlightRegionTable getHighlightTable(@NotNull final VirtualFile file) {
+    return getSnapshot(file).getHighlightTable();
   }
 
   @NotNull
   List<DartNavigationRegion> getNavigation(@NotNull final VirtualFile file) {
-    final List<DartNavigationRegion> regions = myNavigationData.get(file.getPath());
-    return regions != null ? regions : Collections.emptyList();
+    return getSnapshot(file).getNavigation();
   }
 
   @NotNull
   List<DartOverrideMember> getOverrideMembers(@NotNull final VirtualFile file) {
-    final List<DartOverrideMember> regions = myOverrideData.get(file.getPath());
-    return regions != null ? regions : Collections.emptyList();
+    return getSnapshot(file).getOverrideMembers();
   }
 
   @NotNull
   List<DartRegion> getImplementedClasses(@NotNull final VirtualFile file) {
-    final List<DartRegion> classes = myImplementedClassData.get(file.getPath());
-    return classes != null ? classes : Collections.emptyList();
+    return getSnapshot(file).getImplementedClasses();
   }
 
   @NotNull
   List<DartRegion> getImplementedMembers(@NotNull final VirtualFile file) {
-    final List<DartRegion> classes = myImplementedMemberData.get(file.getPath());
-    return classes != null ? classes : Collections.emptyList();
+    return getSnapshot(file).getImplementedMembers();
   }
 
   @Nullable
   Outline getOutline(@NotNull final VirtualFile file) {
-    return myOutlineData.get(file.getPath());
+    return getSnapshot(file).getOutline();
   }
 
   void addOutlineListener(@NotNull final OutlineListener listener) {
@@ -293,13 +386,14 @@ public class DartServerData {
 
   boolean hasAllData_TESTS_ONLY(@NotNull VirtualFile file) {
     assert ApplicationManager.getApplication().isUnitTestMode();
+    final FileSnapshot snapshot = getSnapshot(file);
     return !isErrorInfoInaccurate(file.getPath()) &&
-           myHighlightData.get(file.getPath()) != null &&
-           myNavigationData.get(file.getPath()) != null &&
-           myOverrideData.get(file.getPath()) != null &&
-           myImplementedClassData.get(file.getPath()) != null &&
-           myImplementedMemberData.get(file.getPath()) != null &&
-           myOutlineData.get(file.getPath()) != null;
+           (snapshot.myHighlights != null || snapshot.myHighlightTable != null) &&
+           snapshot.myNavigation != null &&
+           snapshot.myOverrideMembers != null &&
+           snapshot.myImplementedClasses != null &&
+           snapshot.myImplementedMembers != null &&
+           snapshot.myOutline != null;
   }
 
   @Nullable
@@ -308,6 +402,14 @@ public class DartServerData {
     return myExistingImports.get(filePathSD);
   }
 
+  private void updateSnapshot(@NotNull final String filePath, @NotNull final Function<FileSnapshot, FileSnapshot> update) {
+    myFileData.compute(filePath, (path, snapshot) -> update.fun(snapshot != null ? snapshot : FileSnapshot.EMPTY));
+  }
+
+  private static boolean isCompactRegionStorage() {
+    return Registry.is("dart.server.compact.region.storage", false);
+  }
+
   private void forceFileAnnotation(@Nullable final VirtualFile file, final boolean clearCache) {
     if (file != null) {
       final Project project = myService.getProject();
@@ -333,41 +435,22 @@ public class DartServerData {
   }
 
   void onFileClosed(@NotNull final VirtualFile file) {
-    // do not remove from myErrorData, this map is always kept up-to-date for all files, not only for visible
-    myHighlightData.remove(file.getPath());
-    myNavigationData.remove(file.getPath());
-    myOverrideData.remove(file.getPath());
-    myImplementedClassData.remove(file.getPath());
-    myImplementedMemberData.remove(file.getPath());
-    myOutlineData.remove(file.getPath());
+    // do not remove errors, they are always kept up-to-date for all files, not only for visible
+    myFileData.computeIfPresent(file.getPath(), (path, snapshot) -> snapshot.myErrors == null
+                                                                     ? null
+                                                                     : FileSnapshot.EMPTY.withErrors(snapshot.myErrors));
   }
 
   void onFlushedResults(@NotNull final List<String> filePaths) {
-    removeAllFromMap(myErrorData, filePaths);
-    removeAllFromMap(myHighlightData, filePaths);
-    removeAllFromMap(myNavigationData, filePaths);
-    removeAllFromMap(myOverrideData, filePaths);
-    removeAllFromMap(myImplementedClassData, filePaths);
-    removeAllFromMap(myImplementedMemberData, filePaths);
-    removeAllFromMap(myOutlineData, filePaths);
-  }
-
-  private static <T> void removeAllFromMap(@NotNull Map<T, ?> map, @NotNull List<? extends T> keys) {
-    if (map.isEmpty()) return;
+    if (myFileData.isEmpty()) return;
 
-    for (T key : keys) {
-      map.remove(key);
+    for (String filePath : filePaths) {
+      myFileData.remove(filePath);
     }
   }
 
   void clearData() {
-    myErrorData.clear();
-    myHighlightData.clear();
-    myNavigationData.clear();
-    myOverrideData.clear();
-    myImplementedClassData.clear();
-    myImplementedMemberData.clear();
-    myOutlineData.clear();
+    myFileData.clear();
     myAvailableSuggestionSetMap.clear();
   }
 
@@ -378,121 +461,364 @@ public class DartServerData {
     final String filePath = file.getPath();
     myFilePathsWithUnsentChanges.add(filePath);
 
-    boolean regionsUpdated = updateRegionsDeletingTouched(filePath, myErrorData.get(filePath), e);
-    if (regionsUpdated) {
+    if (e.getNewLength() == e.getOldLength()) return;
+
+    // Regions are not shifted here, in the EDT: the change is only recorded in the new snapshot and applied when the regions are read
+    final Ref<Boolean> errorsUpdated = Ref.create(false);
+    myFileData.computeIfPresent(filePath, (path, snapshot) -> {
+      final List<DartError> errors = ShiftedRegionList.shift(filePath, snapshot.myErrors, false, e);
+      errorsUpdated.set(errors instanceof ShiftedRegionList && ((ShiftedRegionList<?>)errors).mayBeChangedBy(e));
+      return new FileSnapshot(errors,
+                              ShiftedRegionList.shift(filePath, snapshot.myHighlights, true, e),
+                              ShiftedHighlightTable.shift(snapshot.myHighlightTable, e),
+                              ShiftedRegionList.shift(filePath, snapshot.myNavigation, false, e),
+                              ShiftedRegionList.shift(filePath, snapshot.myOverrideMembers, false, e),
+                              ShiftedRegionList.shift(filePath, snapshot.myImplementedClasses, false, e),
+                              ShiftedRegionList.shift(filePath, snapshot.myImplementedMembers, false, e),
+                              // A bit outdated outline data is not a big problem, updated data will come shortly
+                              snapshot.myOutline);
+    });
+
+    if (errorsUpdated.get()) {
       myFilePathsWithInaccurateErrorInfo.add(filePath);
     }
-    updateRegionsUpdatingTouched(myHighlightData.get(filePath), e);
-    updateRegionsDeletingTouched(filePath, myNavigationData.get(filePath), e);
-    updateRegionsDeletingTouched(filePath, myOverrideData.get(filePath), e);
-    updateRegionsDeletingTouched(filePath, myImplementedClassData.get(filePath), e);
-    updateRegionsDeletingTouched(filePath, myImplementedMemberData.get(filePath), e);
-    // A bit outdated outline data is not a big problem, updated data will come shortly
+  }
+
+  private static int @NotNull [] appendEdit(final int @NotNull [] edits, @NotNull final DocumentEvent e) {
+    final int[] result = Arrays.copyOf(edits, edits.length + 3);
+    result[edits.length] = e.getOffset();
+    result[edits.length + 1] = e.getOldLength();
+    result[edits.length + 2] = e.getNewLength();
+    return result;
   }
 
   /**
-   * @return {@code true} if at least one region has been updated or deleted, {@code false} if nothing done at all
+   * Regions with document changes that have not been applied yet. Changes are applied on first access to the list, all at once, so typing
+   * costs O(1) per keystroke and region objects are allocated only when somebody reads the regions.
+   * Regions are never modified in place because they may be in use by readers of the previous {@link FileSnapshot}.
    */
-  private static boolean updateRegionsDeletingTouched(@NotNull final String filePath,
-                                                      @Nullable final List<? extends DartRegion> regions,
-                                                      @NotNull final DocumentEvent e) {
-    if (regions == null) return false;
-
-    boolean regionUpdated = false;
-
-    // delete touched regions, shift untouched
-    final int eventOffset = e.getOffset();
-    final int deltaLength = e.getNewLength() - e.getOldLength();
-
-    final Iterator<? extends DartRegion> iterator = regions.iterator();
-    while (iterator.hasNext()) {
-      final DartRegion region = iterator.next();
-
-      if (region instanceof DartNavigationRegion) {
-        // may be we'd better delete target touched by editing?
-        for (DartNavigationTarget target : ((DartNavigationRegion)region).getTargets()) {
-          if (target.myFile.equals(filePath) && target.myConvertedOffset >= eventOffset) {
-            target.myConvertedOffset += deltaLength;
-          }
-        }
+  private static final class ShiftedRegionList<T extends DartRegion> extends AbstractList<T> {
+    // don't let the list of pending changes grow forever if the regions are not read, e.g. for files without an editor
+    private static final int MAX_PENDING_EDITS = 64;
+
+    @NotNull private final String myFilePath;
+    @NotNull private final List<T> myRegions;
+    private final boolean myResizeTouched;
+    private final int @NotNull [] myEdits; // (offset, oldLength, newLength) triples
+    private final int myMaxEndOffset; // not less than the end offset of any region after the changes
+    private volatile List<T> myShiftedRegions;
+
+    private ShiftedRegionList(@NotNull final String filePath,
+                              @NotNull final List<T> regions,
+                              final boolean resizeTouched,
+                              final int @NotNull [] edits,
+                              final int maxEndOffset) {
+      myFilePath = filePath;
+      myRegions = regions;
+      myResizeTouched = resizeTouched;
+      myEdits = edits;
+      myMaxEndOffset = maxEndOffset;
+    }
+
+    /**
+     * @param resizeTouched {@code true} to extend or shrink regions that contain the changed text, {@code false} to delete them
+     */
+    @Contract("_, null, _, _ -> null; _, !null, _, _ -> !null")
+    @SuppressWarnings("unchecked")
+    static <T extends DartRegion> List<T> shift(@NotNull final String filePath,
+                                                @Nullable final List<T> regions,
+                                                final boolean resizeTouched,
+                                                @NotNull final DocumentEvent e) {
+      if (regions == null) return null;
+
+      final int maxDelta = Math.max(0, e.getNewLength() - e.getOldLength());
+      if (regions instanceof ShiftedRegionList) {
+        final ShiftedRegionList<T> shifted = (ShiftedRegionList<T>)regions;
+        final List<T> base = shifted.myShiftedRegions != null || shifted.myEdits.length >= MAX_PENDING_EDITS * 3
+                             ? shifted.getShiftedRegions()
+                             : null;
+        return base != null
+               ? new ShiftedRegionList<>(filePath, base, resizeTouched, appendEdit(ArrayUtil.EMPTY_INT_ARRAY, e),
+                                         shifted.myMaxEndOffset + maxDelta)
+               : new ShiftedRegionList<>(filePath, shifted.myRegions, resizeTouched, appendEdit(shifted.myEdits, e),
+                                         shifted.myMaxEndOffset + maxDelta);
       }
 
-      if (deltaLength > 0) {
-        // Something was typed. Shift untouched regions, delete touched.
-        if (eventOffset <= region.myOffset) {
-          region.myOffset += deltaLength;
-          regionUpdated = true;
-        }
-        else if (eventOffset < region.myOffset + region.myLength) {
-          iterator.remove();
-          regionUpdated = true;
-        }
+      if (regions.isEmpty()) return regions;
+
+      int maxEndOffset = 0;
+      for (T region : regions) {
+        maxEndOffset = Math.max(maxEndOffset, region.myOffset + region.myLength);
       }
-      else if (deltaLength < 0) {
-        // Some text was deleted. Shift untouched regions, delete touched.
-        final int eventRightOffset = eventOffset - deltaLength;
+      return new ShiftedRegionList<>(filePath, regions, resizeTouched, appendEdit(ArrayUtil.EMPTY_INT_ARRAY, e), maxEndOffset + maxDelta);
+    }
+
+    /**
+     * @return {@code false} if the last change is known to leave all regions as they are, i.e. it is after the end of the last region
+     */
+    boolean mayBeChangedBy(@NotNull final DocumentEvent e) {
+      return e.getOffset() <= myMaxEndOffset;
+    }
+
+    @Override
+    public T get(final int index) {
+      return getShiftedRegions().get(index);
+    }
 
-        if (eventRightOffset <= region.myOffset) {
-          region.myOffset += deltaLength;
-          regionUpdated = true;
+    @Override
+    public int size() {
+      return getShiftedRegions().size();
+    }
+
+    @NotNull
+    @SuppressWarnings("unchecked")
+    private List<T> getShiftedRegions() {
+      List<T> result = myShiftedRegions;
+      if (result != null) return result;
+
+      result = new ArrayList<>(myRegions.size());
+      for (T region : myRegions) {
+        T newRegion = region;
+        int offset = region.myOffset;
+        int length = region.myLength;
+        boolean deleted = false;
+
+        for (int i = 0; i < myEdits.length && !deleted; i += 3) {
+          final int eventOffset = myEdits[i];
+          final int deltaLength = myEdits[i + 2] - myEdits[i + 1];
+
+          if (newRegion instanceof DartNavigationRegion) {
+            // may be we'd better delete target touched by editing?
+            newRegion = (T)((DartNavigationRegion)newRegion).withShiftedTargets(myFilePath, eventOffset, deltaLength);
+          }
+
+          if (deltaLength > 0) {
+            // Something was typed. Shift untouched regions, update or delete touched.
+            if (eventOffset <= offset) {
+              offset += deltaLength;
+            }
+            else if (eventOffset < offset + length) {
+              if (myResizeTouched) {
+                length += deltaLength;
+              }
+              else {
+                deleted = true;
+              }
+            }
+          }
+          else {
+            // Some text was deleted. Shift untouched regions, update or delete touched.
+            final int eventRightOffset = eventOffset - deltaLength;
+            final int regionRightOffset = offset + length;
+
+            if (eventRightOffset <= offset) {
+              offset += deltaLength;
+            }
+            else if (myResizeTouched && offset <= eventOffset && eventRightOffset <= regionRightOffset && length != -deltaLength) {
+              length += deltaLength;
+            }
+            else if (eventOffset < regionRightOffset) {
+              deleted = true;
+            }
+          }
         }
-        else if (eventOffset < region.myOffset + region.myLength) {
-          iterator.remove();
-          regionUpdated = true;
+
+        if (!deleted) {
+          result.add(offset == region.myOffset && length == region.myLength ? newRegion : (T)newRegion.withRange(offset, length));
         }
       }
-    }
 
-    return regionUpdated;
+      myShiftedRegions = result;
+      return result;
+    }
   }
 
-  private static void updateRegionsUpdatingTouched(@Nullable final List<? extends DartRegion> regions,
-                                                   @NotNull final DocumentEvent e) {
-    if (regions == null) return;
+  /**
+   * Same as {@link ShiftedRegionList} for {@link DartHighlightRegionTable}: document changes are applied to a copy of the table
+   * when it is read.
+   */
+  private static final class ShiftedHighlightTable {
+    private static final int MAX_PENDING_EDITS = 64;
+
+    @NotNull private final DartHighlightRegionTable myTable;
+    private final int @NotNull [] myEdits; // (offset, oldLength, newLength) triples
+    private volatile DartHighlightRegionTable myShiftedTable;
+
+    private ShiftedHighlightTable(@NotNull final DartHighlightRegionTable table, final int @NotNull [] edits) {
+      myTable = table;
+      myEdits = edits;
+      if (edits.length == 0) {
+        myShiftedTable = table;
+      }
+    }
 
-    final int eventOffset = e.getOffset();
-    final int deltaLength = e.getNewLength() - e.getOldLength();
+    @Contract("null -> null; !null -> !null")
+    static ShiftedHighlightTable create(@Nullable final DartHighlightRegionTable table) {
+      return table == null ? null : new ShiftedHighlightTable(table, ArrayUtil.EMPTY_INT_ARRAY);
+    }
 
-    final Iterator<? extends DartRegion> iterator = regions.iterator();
-    while (iterator.hasNext()) {
-      final DartRegion region = iterator.next();
+    @Contract("null, _ -> null; !null, _ -> !null")
+    static ShiftedHighlightTable shift(@Nullable final ShiftedHighlightTable table, @NotNull final DocumentEvent e) {
+      if (table == null) return null;
 
-      if (deltaLength > 0) {
-        // Something was typed. Shift untouched regions, update touched.
-        if (eventOffset <= region.myOffset) {
-          region.myOffset += deltaLength;
-        }
-        else if (eventOffset < region.myOffset + region.myLength) {
-          region.myLength += deltaLength;
-        }
+      if (table.myShiftedTable != null || table.myEdits.length >= MAX_PENDING_EDITS * 3) {
+        return new ShiftedHighlightTable(table.get(), appendEdit(ArrayUtil.EMPTY_INT_ARRAY, e));
       }
-      else if (deltaLength < 0) {
-        // Some text was deleted. Shift untouched regions, delete or update touched.
-        final int eventRightOffset = eventOffset - deltaLength;
-        final int regionRightOffset = region.myOffset + region.myLength;
+      return new ShiftedHighlightTable(table.myTable, appendEdit(table.myEdits, e));
+    }
 
-        if (eventRightOffset <= region.myOffset) {
-          region.myOffset += deltaLength;
-        }
-        else if (region.myOffset <= eventOffset && eventRightOffset <= regionRightOffset && region.myLength != -deltaLength) {
-          region.myLength += deltaLength;
-        }
-        else if (eventOffset < regionRightOffset) {
-          iterator.remove();
-        }
+    @NotNull
+    DartHighlightRegionTable get() {
+      DartHighlightRegionTable result = myShiftedTable;
+      if (result != null) return result;
+
+      result = myTable.copy();
+      for (int i = 0; i < myEdits.length; i += 3) {
+        result.documentChanged(myEdits[i], myEdits[i + 1], myEdits[i + 2]);
       }
+
+      myShiftedTable = result;
+      return result;
+    }
+  }
+
+  /**
+   * Immutable view of the data received from the server for one file. {@code null} fields mean that the corresponding notification has
+   * not been received yet (or its data has been dropped when the file was closed).
+   */
+  public static final class FileSnapshot {
+    private static final FileSnapshot EMPTY = new FileSnapshot(null, null, null, null, null, null, null, null);
+
+    @Nullable private final List<DartError> myErrors;
+    @Nullable private final List<DartHighlightRegion> myHighlights;
+    @Nullable private final ShiftedHighlightTable myHighlightTable;
+    @Nullable private final List<DartNavigationRegion> myNavigation;
+    @Nullable private final List<DartOverrideMember> myOverrideMembers;
+    @Nullable private final List<DartRegion> myImplementedClasses;
+    @Nullable private final List<DartRegion> myImplementedMembers;
+    @Nullable private final Outline myOutline;
+
+    private FileSnapshot(@Nullable final List<DartError> errors,
+                         @Nullable final List<DartHighlightRegion> highlights,
+                         @Nullable final ShiftedHighlightTable highlightTable,
+                         @Nullable final List<DartNavigationRegion> navigation,
+                         @Nullable final List<DartOverrideMember> overrideMembers,
+                         @Nullable final List<DartRegion> implementedClasses,
+                         @Nullable final List<DartRegion> implementedMembers,
+                         @Nullable final Outline outline) {
+      myErrors = errors;
+      myHighlights = highlights;
+      myHighlightTable = highlightTable;
+      myNavigation = navigation;
+      myOverrideMembers = overrideMembers;
+      myImplementedClasses = implementedClasses;
+      myImplementedMembers = implementedMembers;
+      myOutline = outline;
+    }
+
+    @NotNull
+    private FileSnapshot withErrors(@NotNull final List<DartError> errors) {
+      return new FileSnapshot(errors, myHighlights, myHighlightTable, myNavigation, myOverrideMembers, myImplementedClasses,
+                              myImplementedMembers, myOutline);
+    }
+
+    @NotNull
+    private FileSnapshot withHighlights(@Nullable final List<DartHighlightRegion> highlights,
+                                        @Nullable final DartHighlightRegionTable highlightTable) {
+      return new FileSnapshot(myErrors, highlights, ShiftedHighlightTable.create(highlightTable), myNavigation, myOverrideMembers,
+                              myImplementedClasses, myImplementedMembers, myOutline);
+    }
+
+    @NotNull
+    private FileSnapshot withNavigation(@NotNull final List<DartNavigationRegion> navigation) {
+      return new FileSnapshot(myErrors, myHighlights, myHighlightTable, navigation, myOverrideMembers, myImplementedClasses,
+                              myImplementedMembers, myOutline);
+    }
+
+    @NotNull
+    private FileSnapshot withOverrideMembers(@NotNull final List<DartOverrideMember> overrideMembers) {
+      return new FileSnapshot(myErrors, myHighlights, myHighlightTable, myNavigation, overrideMembers, myImplementedClasses,
+                              myImplementedMembers, myOutline);
+    }
+
+    @NotNull
+    private FileSnapshot withImplemented(@NotNull final List<DartRegion> implementedClasses,
+                                         @NotNull final List<DartRegion> implementedMembers) {
+      return new FileSnapshot(myErrors, myHighlights, myHighlightTable, myNavigation, myOverrideMembers, implementedClasses,
+                              implementedMembers, myOutline);
+    }
+
+    @NotNull
+    private FileSnapshot withOutline(@NotNull final Outline outline) {
+      return new FileSnapshot(myErrors, myHighlights, myHighlightTable, myNavigation, myOverrideMembers, myImplementedClasses,
+                              myImplementedMembers, outline);
+    }
+
+    @NotNull
+    public List<DartError> getErrors() {
+      return myErrors != null ? myErrors : Collections.emptyList();
+    }
+
+    public boolean hasHighlights() {
+      if (myHighlightTable != null) return !myHighlightTable.get().isEmpty();
+      return myHighlights != null && !myHighlights.isEmpty();
+    }
+
+    /**
+     * Creates region objects if highlights are stored in a {@link DartHighlightRegionTable}, use {@link #getHighlightTable()} or
+     * {@link #hasHighlights()} when possible.
+     */
+    @NotNull
+    public List<DartHighlightRegion> getHighlights() {
+      if (myHighlightTable != null) return myHighlightTable.get().toRegionList();
+      return myHighlights != null ? myHighlights : Collections.emptyList();
+    }
+
+    @Nullable
+    public DartHighlightRegionTable getHighlightTable() {
+      return myHighlightTable != null ? myHighlightTable.get() : null;
+    }
+
+    @NotNull
+    public List<DartNavigationRegion> getNavigation() {
+      return myNavigation != null ? myNavigation : Collections.emptyList();
+    }
+
+    @NotNull
+    public List<DartOverrideMember> getOverrideMembers() {
+      return myOverrideMembers != null ? myOverrideMembers : Collections.emptyList();
+    }
+
+    @NotNull
+    public List<DartRegion> getImplementedClasses() {
+      return myImplementedClasses != null ? myImplementedClasses : Collections.emptyList();
+    }
+
+    @NotNull
+    public List<DartRegion> getImplementedMembers() {
+      return myImplementedMembers != null ? myImplementedMembers : Collections.emptyList();
+    }
+
+    @Nullable
+    public Outline getOutline() {
+      return myOutline;
     }
   }
 
   public static class DartRegion {
-    protected int myOffset;
-    protected int myLength;
+    protected final int myOffset;
+    protected final int myLength;
 
     DartRegion(final int offset, final int length) {
       myOffset = offset;
       myLength = length;
     }
 
+    @NotNull
+    DartRegion withRange(final int offset, final int length) {
+      return new DartRegion(offset, length);
+    }
+
     public final int getOffset() {
       return myOffset;
     }
@@ -515,11 +841,17 @@ public class DartServerData {
   public static class DartHighlightRegion extends DartRegion {
     private final String type;
 
-    private DartHighlightRegion(final int offset, final int length, @NotNull final String type) {
+    DartHighlightRegion(final int offset, final int length, @NotNull final String type) {
       super(offset, length);
       this.type = type.intern();
     }
 
+    @NotNull
+    @Override
+    DartHighlightRegion withRange(final int offset, final int length) {
+      return new DartHighlightRegion(offset, length, type);
+    }
+
     public String getType() {
       return type;
     }
@@ -543,6 +875,22 @@ public class DartServerData {
       myUrl = error.getUrl();
     }
 
+    private DartError(@NotNull final DartError error, final int offset, final int length) {
+      super(offset, length);
+      myAnalysisErrorFileSD = error.myAnalysisErrorFileSD;
+      mySeverity = error.mySeverity;
+      myCode = error.myCode;
+      myMessage = error.myMessage;
+      myCorrection = error.myCorrection;
+      myUrl = error.myUrl;
+    }
+
+    @NotNull
+    @Override
+    DartError withRange(final int offset, final int length) {
+      return new DartError(this, offset, length);
+    }
+
     @NotNull
     public String getAnalysisErrorFileSD() {
       return myAnalysisErrorFileSD;
@@ -586,6 +934,30 @@ public class DartServerData {
       myTargets = targets;
     }
 
+    @NotNull
+    @Override
+    DartNavigationRegion withRange(final int offset, final int length) {
+      return new DartNavigationRegion(offset, length, myTargets);
+    }
+
+    /**
+     * @return this region if none of its targets is in {@code filePath} after {@code eventOffset}, otherwise a copy with such targets shifted
+     */
+    @NotNull
+    DartNavigationRegion withShiftedTargets(@NotNull final String filePath, final int eventOffset, final int deltaLength) {
+      List<DartNavigationTarget> newTargets = null;
+      for (int i = 0; i < myTargets.size(); i++) {
+        final DartNavigationTarget target = myTargets.get(i);
+        if (target.myFile.equals(filePath) && target.myConvertedOffset >= eventOffset) {
+          if (newTargets == null) {
+            newTargets = new SmartList<>(myTargets);
+          }
+          newTargets.set(i, new DartNavigationTarget(target, target.myConvertedOffset + deltaLength));
+        }
+      }
+      return newTargets == null ? this : new DartNavigationRegion(myOffset, myLength, newTargets);
+    }
+
     @Override
     public String toString() {
       return "DartNavigationRegion(" + myOffset + ", " + myLength + ")";
@@ -609,6 +981,13 @@ public class DartServerData {
       myKind = target.getKind().intern();
     }
 
+    private DartNavigationTarget(@NotNull final DartNavigationTarget target, final int convertedOffset) {
+      myFile = target.myFile;
+      myOriginalOffset = target.myOriginalOffset;
+      myKind = target.myKind;
+      myConvertedOffset = convertedOffset;
+    }
+
     public String getFile() {
       return myFile;
     }
@@ -638,6 +1017,12 @@ public class DartServerData {
       myInterfaceMembers = interfaceMembers;
     }
 
+    @NotNull
+    @Override
+    DartOverrideMember withRange(final int offset, final int length) {
+      return new DartOverrideMember(offset, length, mySuperclassMember, myInterfaceMembers);
+    }
+
     @Nullable
     public OverriddenMember getSuperclassMember() {
       return mySuperclassMember;
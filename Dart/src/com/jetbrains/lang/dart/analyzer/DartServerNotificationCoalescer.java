@@ -0,0 +1,177 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.jetbrains.lang.dart.analyzer;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sits between the Analysis Server response reader thread and {@link DartServerData}.
+ * Per-file notifications are queued and applied in batches on a background thread. If a notification of some kind arrives for a file
+ * while the previous notification of the same kind for the same file is still queued then the older one is dropped:
+ * it would be overwritten by the newer one anyway.
+ * <p>
+ * Notifications queued before {@link #clear()} are never applied, even if the batch that contains them is already being applied.
+ */
+class DartServerNotificationCoalescer {
+
+  enum Kind {ERRORS, HIGHLIGHTS, NAVIGATION, OVERRIDES, IMPLEMENTED, OUTLINE}
+
+  private static final Logger LOG = Logger.getInstance(DartServerNotificationCoalescer.class);
+
+  private final ExecutorService myExecutor =
+    AppExecutorUtil.createBoundedApplicationPoolExecutor("Dart Analysis Server notifications", 1);
+
+  private final Object myLock = new Object();
+  // keys are either NotificationKey or unique Objects for notifications that must never be dropped (barriers)
+  private Map<Object, Runnable> myPendingNotifications = new LinkedHashMap<>();
+  private boolean myDrainScheduled;
+  // incremented by clear(), guarded by myLock
+  private volatile int myGeneration;
+  // held while a notification is applied, so that clear() waits for it
+  private final Object myApplyLock = new Object();
+
+  private final AtomicLong myDroppedCount = new AtomicLong();
+  private final AtomicLong myAppliedCount = new AtomicLong();
+
+  /**
+   * Queues {@code notification}, superseding the queued notification of the same {@code kind} for the same file, if any.
+   */
+  void enqueue(@NotNull final Kind kind, @NotNull final String filePath, @NotNull final Runnable notification) {
+    enqueue(new NotificationKey(kind, filePath), notification);
+  }
+
+  /**
+   * Drops all queued notifications for {@code filePaths} and queues {@code notification} that is never superseded.
+   * Notifications received for these files later are applied after {@code notification}.
+   */
+  void enqueueBarrier(@NotNull final Collection<String> filePaths, @NotNull final Runnable notification) {
+    synchronized (myLock) {
+      final Set<String> paths = filePaths instanceof Set ? (Set<String>)filePaths : new HashSet<>(filePaths);
+      final Iterator<Object> iterator = myPendingNotifications.keySet().iterator();
+      while (iterator.hasNext()) {
+        final Object key = iterator.next();
+        if (key instanceof NotificationKey && paths.contains(((NotificationKey)key).myFilePath)) {
+          iterator.remove();
+          myDroppedCount.incrementAndGet();
+        }
+      }
+    }
+
+    enqueue(new Object(), notification);
+  }
+
+  private void enqueue(@NotNull final Object key, @NotNull final Runnable notification) {
+    synchronized (myLock) {
+      if (myPendingNotifications.remove(key) != null) {
+        myDroppedCount.incrementAndGet();
+      }
+      // re-inserted so that the newer notification is ordered after the barriers queued in the meantime
+      myPendingNotifications.put(key, notification);
+
+      if (!myDrainScheduled) {
+        myDrainScheduled = true;
+        myExecutor.execute(this::drain);
+      }
+    }
+  }
+
+  private void drain() {
+    final Collection<Runnable> batch;
+    final int generation;
+    synchronized (myLock) {
+      batch = myPendingNotifications.values();
+      generation = myGeneration;
+      myPendingNotifications = new LinkedHashMap<>();
+      myDrainScheduled = false;
+    }
+
+    for (Runnable notification : batch) {
+      synchronized (myApplyLock) {
+        if (generation != myGeneration) {
+          myDroppedCount.incrementAndGet();
+          continue;
+        }
+
+        try {
+          notification.run();
+          myAppliedCount.incrementAndGet();
+        }
+        catch (Throwable t) {
+          LOG.error(t);
+        }
+      }
+    }
+  }
+
+  /**
+   * Drops queued notifications for {@code filePath}, for example when the file is edited and these notifications become outdated.
+   * Barriers are kept.
+   */
+  void dropQueued(@NotNull final String filePath) {
+    synchronized (myLock) {
+      if (myPendingNotifications.isEmpty()) return;
+
+      final Iterator<Object> iterator = myPendingNotifications.keySet().iterator();
+      while (iterator.hasNext()) {
+        final Object key = iterator.next();
+        if (key instanceof NotificationKey && filePath.equals(((NotificationKey)key).myFilePath)) {
+          iterator.remove();
+          myDroppedCount.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  /**
+   * Drops all queued notifications, for example when the server is stopped and its data is cleared. If a notification is being applied
+   * right now then waits for it, so that no notification of the old session is applied after this method returns.
+   */
+  void clear() {
+    synchronized (myApplyLock) {
+      synchronized (myLock) {
+        myGeneration++;
+        myDroppedCount.addAndGet(myPendingNotifications.size());
+        myPendingNotifications.clear();
+      }
+    }
+  }
+
+  /**
+   * @return number of notifications that were superseded by newer ones (or cleared) and therefore never applied
+   */
+  long getDroppedCount() {
+    return myDroppedCount.get();
+  }
+
+  /**
+   * @return number of notifications that have been applied to {@link DartServerData}
+   */
+  long getAppliedCount() {
+    return myAppliedCount.get();
+  }
+
+  private static final class NotificationKey {
+    @NotNull private final Kind myKind;
+    @NotNull private final String myFilePath;
+
+    private NotificationKey(@NotNull final Kind kind, @NotNull final String filePath) {
+      myKind = kind;
+      myFilePath = filePath;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof NotificationKey && myKind == ((NotificationKey)o).myKind && myFilePath.equals(((NotificationKey)o).myFilePath);
+    }
+
+    @Override
+    public int hashCode() {
+      return myKind.hashCode() * 31 + myFilePath.hashCode();
+    }
+  }
+}
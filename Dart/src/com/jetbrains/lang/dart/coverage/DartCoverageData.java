@@ -1,78 +1,141 @@
 // Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
 package com.jetbrains.lang.dart.coverage;
 
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.intellij.util.ArrayUtil;
+import gnu.trove.THashMap;
+import gnu.trove.TIntArrayList;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.*;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
 
+/**
+ * Line hits read from a coverage file, which looks like {@code {"coverage": [{"source": "uri", "hits": [line, count, line, count, ...]}, ...]}}.
+ * <p>
+ * The file is read as a stream, so it is never kept in memory as a whole. Hits of all entries with the same source are merged into
+ * one {@link LineHits} array.
+ */
 public class DartCoverageData {
-  @Nullable private List<DartFileCoverageData> coverage;
-
-  @Nullable
-  public List<DartFileCoverageData> getCoverage() {
-    return coverage;
-  }
-
-  public void setCoverage(@Nullable List<DartFileCoverageData> coverage) {
-    this.coverage = coverage;
-  }
+  @NotNull private final Map<String, LineHits> mySourceToLineHits = new THashMap<>();
 
+  /**
+   * @param entryReadCallback invoked after each entry of the {@code coverage} array, may throw {@code ProcessCanceledException}
+   */
   @NotNull
-  public Map<String, SortedMap<Integer, Integer>> getMergedDartFileCoverageData() {
-    Map<String, SortedMap<Integer, Integer>> mergedCoverageData = new HashMap<>();
-    List<DartFileCoverageData> coverageData = getCoverage();
-    if (coverageData != null) {
-      for (DartFileCoverageData item : coverageData) {
-        String source = item.getSource();
-        if (source == null) {
-          continue;
-        }
-        if (!mergedCoverageData.containsKey(source)) {
-          mergedCoverageData.put(source, new TreeMap<>());
-        }
+  public static DartCoverageData load(@NotNull final Reader reader, @Nullable final Runnable entryReadCallback) throws IOException {
+    final DartCoverageData data = new DartCoverageData();
+    final TIntArrayList hits = new TIntArrayList();
+
+    final JsonReader jsonReader = new JsonReader(reader);
+    jsonReader.beginObject();
+    while (jsonReader.hasNext()) {
+      if (!"coverage".equals(jsonReader.nextName()) || jsonReader.peek() != JsonToken.BEGIN_ARRAY) {
+        jsonReader.skipValue();
+        continue;
+      }
 
-        SortedMap<Integer, Integer> fileData = mergedCoverageData.get(source);
-        List<Integer> hits = item.getHits();
-        if (hits == null) {
-          continue;
+      jsonReader.beginArray();
+      while (jsonReader.hasNext()) {
+        hits.clear();
+        final String source = readEntry(jsonReader, hits);
+        if (source != null) {
+          data.mySourceToLineHits.computeIfAbsent(source, s -> new LineHits()).add(hits);
         }
-        for (int i = 0; i < hits.size(); i += 2) {
-          Integer lineNumber = hits.get(i);
-          Integer hitCount = hits.get(i + 1);
-          if (!fileData.containsKey(lineNumber)) {
-            fileData.put(lineNumber, 0);
-          }
-
-          fileData.put(lineNumber, fileData.get(lineNumber) + hitCount);
+        if (entryReadCallback != null) {
+          entryReadCallback.run();
         }
       }
+      jsonReader.endArray();
     }
+    jsonReader.endObject();
 
-    return mergedCoverageData;
+    return data;
   }
-}
-
-
-class DartFileCoverageData {
-  @Nullable private String source;
-  @Nullable private List<Integer> hits;
 
+  /**
+   * Reads one element of the {@code coverage} array, its hits are added to {@code hits}.
+   *
+   * @return the source uri of the element or {@code null}
+   */
   @Nullable
-  public String getSource() {
+  private static String readEntry(@NotNull final JsonReader jsonReader, @NotNull final TIntArrayList hits) throws IOException {
+    String source = null;
+    jsonReader.beginObject();
+    while (jsonReader.hasNext()) {
+      final String name = jsonReader.nextName();
+      if ("source".equals(name) && jsonReader.peek() == JsonToken.STRING) {
+        source = jsonReader.nextString();
+      }
+      else if ("hits".equals(name) && jsonReader.peek() == JsonToken.BEGIN_ARRAY) {
+        jsonReader.beginArray();
+        while (jsonReader.hasNext()) {
+          hits.add(jsonReader.nextInt());
+        }
+        jsonReader.endArray();
+      }
+      else {
+        jsonReader.skipValue();
+      }
+    }
+    jsonReader.endObject();
     return source;
   }
 
-  public void setSource(@Nullable String source) {
-    this.source = source;
+  @NotNull
+  public Set<String> getSources() {
+    return mySourceToLineHits.keySet();
   }
 
   @Nullable
-  public List<Integer> getHits() {
-    return hits;
+  public LineHits getLineHits(@NotNull final String source) {
+    return mySourceToLineHits.get(source);
   }
 
-  public void setHits(@Nullable List<Integer> hits) {
-    this.hits = hits;
+  /**
+   * Hit counts indexed by line number; lines that are not mentioned in the coverage file have no hit count.
+   */
+  public static final class LineHits {
+    private static final int NO_HITS = -1;
+
+    private int[] myHits = ArrayUtil.EMPTY_INT_ARRAY;
+    private int myLastLine = -1;
+
+    private void add(@NotNull final TIntArrayList lineAndCountPairs) {
+      for (int i = 0; i + 1 < lineAndCountPairs.size(); i += 2) {
+        final int line = lineAndCountPairs.get(i);
+        final int count = lineAndCountPairs.get(i + 1);
+        if (line < 0) continue;
+
+        if (line >= myHits.length) {
+          final int oldLength = myHits.length;
+          myHits = Arrays.copyOf(myHits, Math.max(line + 1, oldLength * 3 / 2));
+          Arrays.fill(myHits, oldLength, myHits.length, NO_HITS);
+        }
+
+        myHits[line] = myHits[line] == NO_HITS ? count : myHits[line] + count;
+        myLastLine = Math.max(myLastLine, line);
+      }
+    }
+
+    /**
+     * @return the greatest line number that has a hit count, or -1
+     */
+    public int getLastLine() {
+      return myLastLine;
+    }
+
+    public boolean hasHits(final int line) {
+      return line < myHits.length && myHits[line] != NO_HITS;
+    }
+
+    public int getHits(final int line) {
+      return hasHits(line) ? myHits[line] : 0;
+    }
   }
-}
\ No newline at end of file
+}
@@ -15,30 +15,29 @@
  */
 package com.jetbrains.lang.dart.coverage;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonSyntaxException;
+import com.google.common.io.CountingInputStream;
 import com.intellij.coverage.CoverageEngine;
 import com.intellij.coverage.CoverageRunner;
 import com.intellij.coverage.CoverageSuite;
 import com.intellij.execution.process.ProcessHandler;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.Ref;
 import com.intellij.rt.coverage.data.ClassData;
 import com.intellij.rt.coverage.data.LineData;
 import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.util.containers.ContainerUtil;
 import com.jetbrains.lang.dart.analyzer.DartAnalysisServerService;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.Map;
-import java.util.SortedMap;
 
 public class DartCoverageRunner extends CoverageRunner {
   private static final String ID = "DartCoverageRunner";
@@ -98,37 +97,47 @@ public class DartCoverageRunner extends CoverageRunner {
     final ProjectData projectData = new ProjectData();
 
     try {
-      DartCoverageData data = new Gson().fromJson(new BufferedReader(new FileReader(sessionDataFile)), DartCoverageData.class);
-      if (data == null) {
-        LOG.warn("Coverage file does not contain valid data.");
+      final DartCoverageData data = loadCoverageFile(sessionDataFile);
+
+      final List<String> uris = ContainerUtil.filter(data.getSources(), uri -> !isSdkInternalUri(uri));
+      final ProgressIndicator indicator = ProgressManager.getInstance().getProgressIndicator();
+      if (indicator != null) {
+        indicator.setText2("Resolving " + uris.size() + " source URIs");
+      }
+      final Map<String, String> uriToFilePath = DartAnalysisServerService.getInstance(project).execution_mapUris(contextId, uris);
+      if (uriToFilePath == null) {
         return null;
       }
 
-      for (Map.Entry<String, SortedMap<Integer, Integer>> entry : data.getMergedDartFileCoverageData().entrySet()) {
+      for (String uri : uris) {
         ProgressManager.checkCanceled();
 
-        String filePath = getFileForUri(project, contextId, entry.getKey());
+        final String filePath = uriToFilePath.get(uri);
         if (filePath == null) {
           // File is not found.
           continue;
         }
-        SortedMap<Integer, Integer> lineHits = entry.getValue();
-        ClassData classData = projectData.getOrCreateClassData(filePath);
-        if (lineHits.size() == 0) {
+
+        final DartCoverageData.LineHits lineHits = data.getLineHits(uri);
+        final ClassData classData = projectData.getOrCreateClassData(filePath);
+        if (lineHits == null || lineHits.getLastLine() < 0) {
           classData.setLines(new LineData[1]);
           continue;
         }
-        LineData[] lines = new LineData[lineHits.lastKey() + 1];
-        for (Map.Entry<Integer, Integer> hit : lineHits.entrySet()) {
-          LineData lineData = new LineData(hit.getKey(), null);
-          lineData.setHits(hit.getValue());
-          lines[hit.getKey()] = lineData;
+
+        final LineData[] lines = new LineData[lineHits.getLastLine() + 1];
+        for (int line = 0; line < lines.length; line++) {
+          if (lineHits.hasHits(line)) {
+            final LineData lineData = new LineData(line, null);
+            lineData.setHits(lineHits.getHits(line));
+            lines[line] = lineData;
+          }
         }
         classData.setLines(lines);
       }
     }
-    catch (FileNotFoundException | JsonSyntaxException e) {
-      LOG.warn(e);
+    catch (IOException | IllegalStateException | NumberFormatException e) {
+      LOG.warn("Coverage file does not contain valid data.", e);
     }
     finally {
       DartAnalysisServerService.getInstance(project).execution_deleteContext(contextId);
@@ -137,14 +146,28 @@ public class DartCoverageRunner extends CoverageRunner {
     return projectData;
   }
 
-  @Nullable
-  private static String getFileForUri(@NotNull final Project project, @NotNull final String contextId, @NotNull final String uri) {
-    if (uri.startsWith("dart:_") || uri.startsWith("dart:") && uri.contains("-patch/")) {
-      // dart:_builtin or dart:core-patch/core_patch.dart
-      return null;
+  @NotNull
+  private static DartCoverageData loadCoverageFile(@NotNull final File sessionDataFile) throws IOException {
+    final ProgressIndicator indicator = ProgressManager.getInstance().getProgressIndicator();
+    final long fileLength = sessionDataFile.length();
+    if (indicator != null) {
+      indicator.setIndeterminate(fileLength == 0);
+    }
+
+    try (CountingInputStream inputStream = new CountingInputStream(new BufferedInputStream(new FileInputStream(sessionDataFile)));
+         Reader reader = new InputStreamReader(inputStream, StandardCharsets.UTF_8)) {
+      return DartCoverageData.load(reader, () -> {
+        ProgressManager.checkCanceled();
+        if (indicator != null && fileLength > 0) {
+          indicator.setFraction((double)inputStream.getCount() / fileLength);
+        }
+      });
     }
+  }
 
-    return DartAnalysisServerService.getInstance(project).execution_mapUri(contextId, null, uri);
+  private static boolean isSdkInternalUri(@NotNull final String uri) {
+    // dart:_builtin or dart:core-patch/core_patch.dart
+    return uri.startsWith("dart:_") || uri.startsWith("dart:") && uri.contains("-patch/");
   }
 
   @NotNull
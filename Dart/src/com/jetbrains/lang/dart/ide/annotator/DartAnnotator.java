@@ -19,6 +19,7 @@ import com.jetbrains.lang.dart.DartBundle;
 import com.jetbrains.lang.dart.DartTokenTypes;
 import com.jetbrains.lang.dart.DartTokenTypesSets;
 import com.jetbrains.lang.dart.analyzer.DartAnalysisServerService;
+import com.jetbrains.lang.dart.analyzer.DartHighlightRegionTable;
 import com.jetbrains.lang.dart.analyzer.DartServerData;
 import com.jetbrains.lang.dart.fixes.DartQuickFix;
 import com.jetbrains.lang.dart.fixes.DartQuickFixSet;
@@ -221,8 +222,9 @@ public class DartAnnotator implements Annotator {
   private static void applyServerHighlighting(@NotNull final VirtualFile file, @NotNull final AnnotationHolder holder) {
     final PsiFile psiFile = holder.getCurrentAnnotationSession().getFile();
 
-    final DartAnalysisServerService das = DartAnalysisServerService.getInstance(psiFile.getProject());
-    for (DartServerData.DartError error : das.getErrors(file)) {
+    // errors and highlights from the same server data version
+    final DartServerData.FileSnapshot snapshot = DartAnalysisServerService.getInstance(psiFile.getProject()).getFileSnapshot(file);
+    for (DartServerData.DartError error : snapshot.getErrors()) {
       if (shouldIgnoreMessageFromDartAnalyzer(file.getPath(), error.getAnalysisErrorFileSD())) continue;
 
       ProblemGroup problemGroup;
@@ -237,15 +239,37 @@ public class DartAnnotator implements Annotator {
       createAnnotation(holder, error, psiFile.getTextLength(), problemGroup, quickFixSet.getQuickFixes());
     }
 
-    for (DartServerData.DartHighlightRegion region : das.getHighlight(file)) {
-      final String attributeKey = HIGHLIGHTING_TYPE_MAP.get(region.getType());
-      if (attributeKey != null) {
-        final TextRange textRange = new TextRange(region.getOffset(), region.getOffset() + region.getLength());
-        holder.newSilentAnnotation(HighlightSeverity.INFORMATION)
-          .range(textRange)
-          .textAttributes(TextAttributesKey.find(attributeKey))
-          .create();
+    final int fileTextLength = psiFile.getTextLength();
+    final DartHighlightRegionTable highlightTable = snapshot.getHighlightTable();
+    if (highlightTable != null) {
+      // regions are sorted by offset, those that start beyond the end of the file are outdated
+      final int end = highlightTable.findFirstRegionAtOrAfter(fileTextLength);
+      for (int i = 0; i < end; i++) {
+        createHighlightAnnotation(holder, highlightTable.getType(i), highlightTable.getOffset(i), highlightTable.getLength(i),
+                                  fileTextLength);
       }
+      return;
+    }
+
+    for (DartServerData.DartHighlightRegion region : snapshot.getHighlights()) {
+      // outdated regions that start beyond the end of the file are skipped
+      if (region.getOffset() >= fileTextLength) continue;
+      createHighlightAnnotation(holder, region.getType(), region.getOffset(), region.getLength(), fileTextLength);
+    }
+  }
+
+  private static void createHighlightAnnotation(@NotNull final AnnotationHolder holder,
+                                                @NotNull final String type,
+                                                final int offset,
+                                                final int length,
+                                                final int fileTextLength) {
+    final String attributeKey = HIGHLIGHTING_TYPE_MAP.get(type);
+    if (attributeKey != null) {
+      final TextRange textRange = new TextRange(offset, Math.min(offset + length, fileTextLength));
+      holder.newSilentAnnotation(HighlightSeverity.INFORMATION)
+        .range(textRange)
+        .textAttributes(TextAttributesKey.find(attributeKey))
+        .create();
     }
   }
 
@@ -497,6 +497,7 @@ public class DartVmServiceDebugProcess extends XDebugProcess {
   }
 
   public void isolateSuspended(@NotNull final IsolateRef isolateRef) {
+    myIsolatesInfo.invalidatePauseCache(isolateRef.getId());
     mySuspendedIsolateIds.add(isolateRef.getId());
   }
 
@@ -514,6 +515,7 @@ public class DartVmServiceDebugProcess extends XDebugProcess {
   }
 
   public void isolateResumed(@NotNull final IsolateRef isolateRef) {
+    myIsolatesInfo.invalidatePauseCache(isolateRef.getId());
     mySuspendedIsolateIds.remove(isolateRef.getId());
   }
 
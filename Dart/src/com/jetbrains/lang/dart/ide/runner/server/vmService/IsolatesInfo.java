@@ -4,7 +4,10 @@ package com.jetbrains.lang.dart.ide.runner.server.vmService;
 import gnu.trove.THashMap;
 import org.dartlang.vm.service.element.Isolate;
 import org.dartlang.vm.service.element.IsolateRef;
+import org.dartlang.vm.service.element.Obj;
+import org.dartlang.vm.service.element.Stack;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -20,6 +23,9 @@ public class IsolatesInfo {
     private boolean breakpointsSet = false;
     private boolean shouldInitialResume = false;
     private CompletableFuture<Isolate> myCachedIsolate;
+    // objects and stack of the paused isolate, keyed by object id (with offset and count for collections); replaced on resume
+    private Map<String, CompletableFuture<Obj>> myCachedObjects = new THashMap<>();
+    private CompletableFuture<Stack> myCachedStack;
 
     private IsolateInfo(@NotNull final String isolateId, @NotNull final String isolateName) {
       myIsolateId = isolateId;
@@ -28,6 +34,12 @@ public class IsolatesInfo {
 
     void invalidateCache() {
       myCachedIsolate = null;
+      invalidatePauseCache();
+    }
+
+    void invalidatePauseCache() {
+      myCachedObjects = new THashMap<>();
+      myCachedStack = null;
     }
 
     CompletableFuture<Isolate> getCachedIsolate() {
@@ -114,6 +126,57 @@ public class IsolatesInfo {
     return cachedIsolate;
   }
 
+  /**
+   * Objects and stack cached while the isolate is paused become stale when it is resumed.
+   */
+  public synchronized void invalidatePauseCache(String isolateId) {
+    IsolateInfo info = myIsolateIdToInfoMap.get(isolateId);
+    if (info != null) {
+      info.invalidatePauseCache();
+    }
+  }
+
+  /**
+   * @return future cached for the {@code objectKey} until the isolate is resumed, or {@code newFuture} if there was none,
+   * in which case {@code newFuture} is cached and the caller is responsible for completing it;
+   * {@code null} if the isolate is unknown
+   */
+  @Nullable
+  public synchronized CompletableFuture<Obj> getOrCacheObject(String isolateId, String objectKey, CompletableFuture<Obj> newFuture) {
+    IsolateInfo info = myIsolateIdToInfoMap.get(isolateId);
+    if (info == null) {
+      return null;
+    }
+    CompletableFuture<Obj> cachedObject = info.myCachedObjects.putIfAbsent(objectKey, newFuture);
+    return cachedObject != null ? cachedObject : newFuture;
+  }
+
+  public synchronized void removeCachedObject(String isolateId, String objectKey, CompletableFuture<Obj> future) {
+    IsolateInfo info = myIsolateIdToInfoMap.get(isolateId);
+    if (info != null) {
+      info.myCachedObjects.remove(objectKey, future);
+    }
+  }
+
+  @NotNull
+  public synchronized CompletableFuture<Stack> getCachedStack(String isolateId, Supplier<? extends CompletableFuture<Stack>> stackSupplier) {
+    IsolateInfo info = myIsolateIdToInfoMap.get(isolateId);
+    if (info == null) {
+      return stackSupplier.get();
+    }
+    if (info.myCachedStack == null) {
+      info.myCachedStack = stackSupplier.get();
+    }
+    return info.myCachedStack;
+  }
+
+  public synchronized void removeCachedStack(String isolateId, CompletableFuture<Stack> future) {
+    IsolateInfo info = myIsolateIdToInfoMap.get(isolateId);
+    if (info != null && info.myCachedStack == future) {
+      info.myCachedStack = null;
+    }
+  }
+
   public synchronized Collection<IsolateInfo> getIsolateInfos() {
     return new ArrayList<>(myIsolateIdToInfoMap.values());
   }
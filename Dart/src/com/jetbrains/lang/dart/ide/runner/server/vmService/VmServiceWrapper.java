@@ -31,11 +31,14 @@ import org.jetbrains.annotations.Nullable;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 public class VmServiceWrapper implements Disposable {
 
   public static final Logger LOG = Logger.getInstance(VmServiceWrapper.class.getName());
   private static final long RESPONSE_WAIT_TIMEOUT = 3000; // millis
+  // stack frames are created and passed to the debugger UI in pages, so that the top of a deep stack is shown early
+  private static final int STACK_FRAMES_PAGE_SIZE = 20;
 
   private final DartVmServiceDebugProcess myDebugProcess;
   private final VmService myVmService;
@@ -44,6 +47,10 @@ public class VmServiceWrapper implements Disposable {
   private final DartVmServiceBreakpointHandler myBreakpointHandler;
   private final Alarm myRequestsScheduler;
 
+  // prefetch requests waiting to be sent, keyed by the future that the response completes
+  private final Map<CompletableFuture<Obj>, Runnable> myPrefetchRequests = new LinkedHashMap<>();
+  private boolean myPrefetchInProgress;
+
   private long myVmServiceReceiverThreadId;
 
   @Nullable private StepOption myLatestStep;
@@ -358,6 +365,7 @@ public class VmServiceWrapper implements Disposable {
   }
 
   public void resumeIsolate(@NotNull final String isolateId, @Nullable final StepOption stepOption) {
+    myIsolatesInfo.invalidatePauseCache(isolateId);
     addRequest(() -> {
       myLatestStep = stepOption;
       myVmService.resume(isolateId, stepOption, null, VmServiceConsumers.EMPTY_SUCCESS_CONSUMER);
@@ -377,6 +385,7 @@ public class VmServiceWrapper implements Disposable {
    * function, so frameIndex must be at least 1.
    */
   public void dropFrame(@NotNull final String isolateId, int frameIndex) {
+    myIsolatesInfo.invalidatePauseCache(isolateId);
     addRequest(() -> {
       myLatestStep = StepOption.Rewind;
       myVmService.resume(isolateId, StepOption.Rewind, frameIndex, new SuccessConsumer() {
@@ -401,48 +410,81 @@ public class VmServiceWrapper implements Disposable {
                                  final int firstFrameIndex,
                                  @NotNull final XExecutionStack.XStackFrameContainer container,
                                  @Nullable final InstanceRef exception) {
-    addRequest(() -> myVmService.getStack(isolateId, new StackConsumer() {
-      @Override
-      public void received(final Stack vmStack) {
-        ApplicationManager.getApplication().executeOnPooledThread(() -> {
-          InstanceRef exceptionToAddToFrame = exception;
-
-          // Check for async causal frames; fall back to using regular sync frames.
-          ElementList<Frame> elementList = vmStack.getAsyncCausalFrames();
-          if (elementList == null) {
-            elementList = vmStack.getFrames();
-          }
+    getCachedStack(isolateId).whenComplete((vmStack, error) -> {
+      if (vmStack == null) {
+        container.errorOccurred(error != null ? error.getMessage() : "Unable to get stack");
+        return;
+      }
 
-          final List<Frame> vmFrames = Lists.newArrayList(elementList);
-          final List<XStackFrame> xStackFrames = new ArrayList<>(vmFrames.size());
+      ApplicationManager.getApplication().executeOnPooledThread(() -> {
+        InstanceRef exceptionToAddToFrame = exception;
 
-          for (final Frame vmFrame : vmFrames) {
-            if (vmFrame.getKind() == FrameKind.AsyncSuspensionMarker) {
-              // Render an asynchronous gap.
-              final XStackFrame markerFrame = new DartAsyncMarkerFrame();
-              xStackFrames.add(markerFrame);
-            }
-            else {
-              final DartVmServiceStackFrame stackFrame =
-                new DartVmServiceStackFrame(myDebugProcess, isolateId, vmFrame, vmFrames, exceptionToAddToFrame);
-              stackFrame.setIsDroppableFrame(vmFrame.getKind() == FrameKind.Regular);
-              xStackFrames.add(stackFrame);
-
-              if (!stackFrame.isInDartSdkPatchFile()) {
-                // The exception (if any) is added to the frame where debugger stops and to the upper frames.
-                exceptionToAddToFrame = null;
-              }
+        // Check for async causal frames; fall back to using regular sync frames.
+        ElementList<Frame> elementList = vmStack.getAsyncCausalFrames();
+        if (elementList == null) {
+          elementList = vmStack.getFrames();
+        }
+
+        final List<Frame> vmFrames = Lists.newArrayList(elementList);
+        List<XStackFrame> xStackFrames = new ArrayList<>(Math.min(vmFrames.size(), STACK_FRAMES_PAGE_SIZE));
+
+        for (int i = 0; i < vmFrames.size(); i++) {
+          final Frame vmFrame = vmFrames.get(i);
+          final XStackFrame xStackFrame;
+          if (vmFrame.getKind() == FrameKind.AsyncSuspensionMarker) {
+            // Render an asynchronous gap.
+            xStackFrame = new DartAsyncMarkerFrame();
+          }
+          else {
+            final DartVmServiceStackFrame stackFrame =
+              new DartVmServiceStackFrame(myDebugProcess, isolateId, vmFrame, vmFrames, exceptionToAddToFrame);
+            stackFrame.setIsDroppableFrame(vmFrame.getKind() == FrameKind.Regular);
+            xStackFrame = stackFrame;
+
+            if (!stackFrame.isInDartSdkPatchFile()) {
+              // The exception (if any) is added to the frame where debugger stops and to the upper frames.
+              exceptionToAddToFrame = null;
             }
           }
-          container.addStackFrames(firstFrameIndex == 0 ? xStackFrames : xStackFrames.subList(firstFrameIndex, xStackFrames.size()), true);
-        });
-      }
 
-      @Override
-      public void onError(final RPCError error) {
-        container.errorOccurred(error.getMessage());
-      }
-    }));
+          if (i >= firstFrameIndex) {
+            xStackFrames.add(xStackFrame);
+          }
+
+          final boolean last = i == vmFrames.size() - 1;
+          if (xStackFrames.size() == STACK_FRAMES_PAGE_SIZE && !last) {
+            if (container.isObsolete()) return;
+            container.addStackFrames(xStackFrames, false);
+            xStackFrames = new ArrayList<>(STACK_FRAMES_PAGE_SIZE);
+          }
+        }
+        container.addStackFrames(xStackFrames, true);
+      });
+    });
+  }
+
+  /**
+   * The stack of a paused isolate is requested once per pause; {@link #computeStackFrames} is called more than once per pause,
+   * for example for the top frame and then for the rest of the stack.
+   */
+  @NotNull
+  private CompletableFuture<Stack> getCachedStack(@NotNull final String isolateId) {
+    return myIsolatesInfo.getCachedStack(isolateId, () -> {
+      final CompletableFuture<Stack> stackFuture = new CompletableFuture<>();
+      addRequest(() -> myVmService.getStack(isolateId, new StackConsumer() {
+        @Override
+        public void received(final Stack vmStack) {
+          stackFuture.complete(vmStack);
+        }
+
+        @Override
+        public void onError(final RPCError error) {
+          myIsolatesInfo.removeCachedStack(isolateId, stackFuture);
+          stackFuture.completeExceptionally(new RuntimeException(error.getMessage()));
+        }
+      }));
+      return stackFuture;
+    });
   }
 
   @Nullable
@@ -476,8 +518,12 @@ public class VmServiceWrapper implements Disposable {
     return resultRef.get();
   }
 
+  /**
+   * Objects are cached until the isolate is resumed, so an object requested more than once per pause (e.g. by sibling nodes,
+   * by presentation and then by children computation, or by prefetching) is fetched from the VM once.
+   */
   public void getObject(@NotNull final String isolateId, @NotNull final String objectId, @NotNull final GetObjectConsumer consumer) {
-    addRequest(() -> myVmService.getObject(isolateId, objectId, consumer));
+    getCachedObject(isolateId, objectId, objectConsumer -> myVmService.getObject(isolateId, objectId, objectConsumer), consumer, false);
   }
 
   public void getCollectionObject(@NotNull final String isolateId,
@@ -485,13 +531,128 @@ public class VmServiceWrapper implements Disposable {
                                   final int offset,
                                   final int count,
                                   @NotNull final GetObjectConsumer consumer) {
-    addRequest(() -> myVmService.getObject(isolateId, objectId, offset, count, consumer));
+    getCachedObject(isolateId, objectId + "[" + offset + ":" + count + "]",
+                    objectConsumer -> myVmService.getObject(isolateId, objectId, offset, count, objectConsumer), consumer, false);
+  }
+
+  /**
+   * Requests the object so that it is in the cache by the time it is needed. Does nothing if it is already cached or requested.
+   * Prefetch requests are sent one at a time, each after the response to the previous one, so they delay other requests by one
+   * response at most. A prefetch request still waiting to be sent is sent right away when the object is requested with
+   * {@link #getObject(String, String, GetObjectConsumer)}.
+   */
+  public void prefetchObject(@NotNull final String isolateId, @NotNull final String objectId) {
+    getCachedObject(isolateId, objectId, objectConsumer -> myVmService.getObject(isolateId, objectId, objectConsumer),
+                    VmServiceConsumers.EMPTY_GET_OBJECT_CONSUMER, true);
+  }
+
+  private void getCachedObject(@NotNull final String isolateId,
+                               @NotNull final String objectKey,
+                               @NotNull final Consumer<GetObjectConsumer> request,
+                               @NotNull final GetObjectConsumer consumer,
+                               final boolean prefetch) {
+    final CompletableFuture<Obj> newFuture = new CompletableFuture<>();
+    final CompletableFuture<Obj> future = myIsolatesInfo.getOrCacheObject(isolateId, objectKey, newFuture);
+    if (future == null) {
+      // unknown isolate
+      if (!prefetch) {
+        addRequest(() -> request.accept(consumer));
+      }
+      return;
+    }
+
+    if (future != newFuture) {
+      if (!prefetch) {
+        sendPrefetchRequestNow(future);
+      }
+      future.thenAccept(obj -> {
+        if (obj != null) {
+          consumer.received(obj);
+        }
+        else {
+          // Sentinel or error is not cached, so the consumer gets it first-hand
+          addRequest(() -> request.accept(consumer));
+        }
+      });
+      return;
+    }
+
+    final Runnable sendRequest = () -> request.accept(new GetObjectConsumer() {
+      @Override
+      public void received(Obj response) {
+        newFuture.complete(response);
+        consumer.received(response);
+      }
+
+      @Override
+      public void received(Sentinel response) {
+        myIsolatesInfo.removeCachedObject(isolateId, objectKey, newFuture);
+        newFuture.complete(null);
+        consumer.received(response);
+      }
+
+      @Override
+      public void onError(RPCError error) {
+        myIsolatesInfo.removeCachedObject(isolateId, objectKey, newFuture);
+        newFuture.complete(null);
+        consumer.onError(error);
+      }
+    });
+
+    if (prefetch) {
+      addPrefetchRequest(newFuture, sendRequest);
+    }
+    else {
+      addRequest(sendRequest);
+    }
+  }
+
+  private void addPrefetchRequest(@NotNull final CompletableFuture<Obj> response, @NotNull final Runnable request) {
+    synchronized (myPrefetchRequests) {
+      if (myPrefetchInProgress) {
+        myPrefetchRequests.put(response, request);
+        return;
+      }
+      myPrefetchInProgress = true;
+    }
+    sendPrefetchRequest(response, request);
+  }
+
+  private void sendPrefetchRequest(@NotNull final CompletableFuture<Obj> response, @NotNull final Runnable request) {
+    response.whenComplete((obj, throwable) -> sendNextPrefetchRequest());
+    addRequest(request);
+  }
+
+  private void sendNextPrefetchRequest() {
+    final Map.Entry<CompletableFuture<Obj>, Runnable> next;
+    synchronized (myPrefetchRequests) {
+      final Iterator<Map.Entry<CompletableFuture<Obj>, Runnable>> iterator = myPrefetchRequests.entrySet().iterator();
+      if (!iterator.hasNext()) {
+        myPrefetchInProgress = false;
+        return;
+      }
+      next = iterator.next();
+      iterator.remove();
+    }
+    sendPrefetchRequest(next.getKey(), next.getValue());
+  }
+
+  private void sendPrefetchRequestNow(@NotNull final CompletableFuture<Obj> response) {
+    final Runnable request;
+    synchronized (myPrefetchRequests) {
+      request = myPrefetchRequests.remove(response);
+    }
+    if (request != null) {
+      addRequest(request);
+    }
   }
 
   public void evaluateInFrame(@NotNull final String isolateId,
                               @NotNull final Frame vmFrame,
                               @NotNull final String expression,
                               @NotNull final XDebuggerEvaluator.XEvaluationCallback callback) {
+    // the expression may change the state of cached objects
+    myIsolatesInfo.invalidatePauseCache(isolateId);
     addRequest(() -> myVmService.evaluateInFrame(isolateId, vmFrame.getIndex(), expression, new EvaluateInFrameConsumer() {
       @Override
       public void received(InstanceRef instanceRef) {
@@ -527,6 +688,8 @@ public class VmServiceWrapper implements Disposable {
                                       @NotNull final String targetId,
                                       @NotNull final String expression,
                                       @NotNull final XDebuggerEvaluator.XEvaluationCallback callback) {
+    // the expression may change the state of cached objects
+    myIsolatesInfo.invalidatePauseCache(isolateId);
     evaluateInTargetContext(isolateId, targetId, expression, new EvaluateConsumer() {
       @Override
       public void received(InstanceRef instanceRef) {
@@ -19,6 +19,8 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 
 // TODO: implement some combination of XValue.getEvaluationExpression() /
@@ -31,6 +33,7 @@ public class DartVmServiceValue extends XNamedValue {
   private static final LayeredIcon STATIC_FIELD_ICON = new LayeredIcon(AllIcons.Nodes.Field, AllIcons.Nodes.StaticMark);
   private static final LayeredIcon STATIC_FINAL_FIELD_ICON =
     new LayeredIcon(AllIcons.Nodes.Field, AllIcons.Nodes.StaticMark, AllIcons.Nodes.FinalMark);
+  private static final int MAX_PREFETCHED_CHILDREN = 10;
 
   @NotNull private final DartVmServiceDebugProcess myDebugProcess;
   @NotNull private final String myIsolateId;
@@ -453,14 +456,32 @@ public class DartVmServiceValue extends XNamedValue {
     }
 
     final XValueChildrenList childrenList = new XValueChildrenList(fields.size());
+    final List<InstanceRef> values = new ArrayList<>(fields.size());
     for (BoundField field : fields) {
       final InstanceRef value = field.getValue();
       if (value != null) {
         childrenList
           .add(new DartVmServiceValue(myDebugProcess, myIsolateId, field.getDecl().getName(), value, null, field.getDecl(), false));
+        values.add(value);
       }
     }
     node.addChildren(childrenList, true);
+    prefetchChildren(values);
+  }
+
+  /**
+   * Fields of an object are likely to be expanded next, so the first few of them are requested in advance,
+   * while the user looks at the just shown children. Requested objects are cached until the isolate is resumed.
+   */
+  private void prefetchChildren(@NotNull final List<InstanceRef> children) {
+    int prefetched = 0;
+    for (InstanceRef child : children) {
+      if (prefetched == MAX_PREFETCHED_CHILDREN) break;
+      if (child.getKind() == InstanceKind.PlainInstance && child.getId() != null) {
+        myDebugProcess.getVmServiceWrapper().prefetchObject(myIsolateId, child.getId());
+        prefetched++;
+      }
+    }
   }
 
   @NotNull
@@ -147,7 +147,7 @@ public class DartFileReference implements PsiPolyVariantReference {
         final DartAnalysisServerService das = DartAnalysisServerService.getInstance(refPsiFile.getProject());
         if (virtualFile != null &&
             das.getNavigation(virtualFile).isEmpty() &&
-            das.getHighlight(virtualFile).isEmpty()) {
+            !das.hasHighlights(virtualFile)) {
           final PsiElement parent = reference.getElement().getParent();
           final int parentOffset = parent.getTextRange().getStartOffset();
           final int parentLength = parent.getTextRange().getLength();
@@ -0,0 +1,131 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.jetbrains.lang.dart.util;
+
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.fileTypes.FileTypeRegistry;
+import com.intellij.openapi.fileTypes.StdFileTypes;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.SimpleModificationTracker;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileContentChangeEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.psi.*;
+import com.jetbrains.lang.dart.DartFileType;
+import com.jetbrains.lang.dart.psi.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * Changes when library, part, import or export directives of Dart files may have changed, or when files that affect resolution of
+ * their uris (pubspec.yaml, .packages) change. Edits inside declarations of Dart files do not change it, so caches that depend on
+ * directives only, like {@link DartLibraryGraph}, survive typing in function bodies.
+ * <p>
+ * Creation, deletion and renaming of files are not tracked here, use {@link VirtualFileManager#VFS_STRUCTURE_MODIFICATIONS} for that.
+ */
+public class DartDirectivesModificationTracker extends SimpleModificationTracker {
+
+  public static DartDirectivesModificationTracker getInstance(@NotNull final Project project) {
+    return ServiceManager.getService(project, DartDirectivesModificationTracker.class);
+  }
+
+  public DartDirectivesModificationTracker(@NotNull final Project project) {
+    PsiManager.getInstance(project).addPsiTreeChangeListener(new PsiTreeChangeAdapter() {
+      @Override
+      public void childAdded(@NotNull final PsiTreeChangeEvent event) {
+        psiChanged(event);
+      }
+
+      @Override
+      public void childRemoved(@NotNull final PsiTreeChangeEvent event) {
+        psiChanged(event);
+      }
+
+      @Override
+      public void childReplaced(@NotNull final PsiTreeChangeEvent event) {
+        psiChanged(event);
+      }
+
+      @Override
+      public void childrenChanged(@NotNull final PsiTreeChangeEvent event) {
+        psiChanged(event);
+      }
+
+      @Override
+      public void childMoved(@NotNull final PsiTreeChangeEvent event) {
+        psiChanged(event);
+      }
+    }, project);
+
+    project.getMessageBus().connect().subscribe(VirtualFileManager.VFS_CHANGES, new BulkFileListener() {
+      @Override
+      public void after(@NotNull final List<? extends VFileEvent> events) {
+        for (VFileEvent event : events) {
+          if (!(event instanceof VFileContentChangeEvent)) continue;
+
+          final VirtualFile file = ((VFileContentChangeEvent)event).getFile();
+          // saving an edited Dart file is already covered by PSI events
+          if (isResolutionConfigFile(file) || !event.isFromSave() && isDartOrHtmlFile(file)) {
+            incModificationCount();
+            return;
+          }
+        }
+      }
+    });
+  }
+
+  private void psiChanged(@NotNull final PsiTreeChangeEvent event) {
+    final PsiFile file = event.getFile();
+    if (file == null) return;
+
+    final VirtualFile virtualFile = file.getVirtualFile();
+    if (virtualFile != null && isResolutionConfigFile(virtualFile)) {
+      incModificationCount();
+      return;
+    }
+
+    if (!(file instanceof DartFile)) {
+      if (virtualFile == null || isDartOrHtmlFile(virtualFile)) {
+        // Dart code embedded in html is not worth a precise check
+        incModificationCount();
+      }
+      return;
+    }
+
+    if (mayAffectDirectives(event.getParent()) ||
+        mayAffectDirectives(event.getChild()) ||
+        mayAffectDirectives(event.getOldChild()) ||
+        mayAffectDirectives(event.getNewChild())) {
+      incModificationCount();
+    }
+  }
+
+  /**
+   * @return {@code true} if {@code element} is a directive, is inside one or is a top-level element of the file;
+   * {@code false} for elements inside declarations, where directives cannot appear
+   */
+  private static boolean mayAffectDirectives(@Nullable final PsiElement element) {
+    if (element == null) return false;
+
+    for (PsiElement e = element; e != null && !(e instanceof PsiFile); e = e.getParent()) {
+      if (e instanceof DartUriBasedDirective || e instanceof DartLibraryStatement || e instanceof DartPartOfStatement) return true;
+      if (e instanceof DartComponent) return false;
+    }
+
+    // a change at the top level of the file, e.g. a directive added or removed, or the whole file reparsed
+    return !(element instanceof PsiWhiteSpace) && !(element instanceof PsiComment);
+  }
+
+  private static boolean isDartOrHtmlFile(@NotNull final VirtualFile file) {
+    final FileTypeRegistry registry = FileTypeRegistry.getInstance();
+    return registry.isFileOfType(file, DartFileType.INSTANCE) || registry.isFileOfType(file, StdFileTypes.HTML);
+  }
+
+  private static boolean isResolutionConfigFile(@NotNull final VirtualFile file) {
+    final String name = file.getName();
+    return PubspecYamlUtil.PUBSPEC_YAML.equals(name) || DotPackagesFileUtil.DOT_PACKAGES.equals(name);
+  }
+}
@@ -0,0 +1,143 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.jetbrains.lang.dart.util;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectRootModificationTracker;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+import com.intellij.util.containers.ContainerUtil;
+import com.jetbrains.lang.dart.ide.index.DartImportAndExportIndex;
+import com.jetbrains.lang.dart.ide.index.DartImportOrExportInfo;
+import com.jetbrains.lang.dart.ide.index.DartPartUriIndex;
+import gnu.trove.THashSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Parts, imports and exports of Dart files with their uris already resolved to files. Top-level declarations processing walks
+ * the same libraries for each reference being resolved and each completion list, so resolved edges are computed once per file and
+ * kept until directives (see {@link DartDirectivesModificationTracker}), VFS structure or project roots change.
+ * <p>
+ * The graph also knows which files are visible through a library, that is the library itself, its parts and everything it
+ * (transitively) exports. This allows skipping imported libraries that cannot contribute to the result of a search by name.
+ */
+public class DartLibraryGraph {
+  @NotNull private final Project myProject;
+  private final ConcurrentMap<VirtualFile, Node> myNodes = ContainerUtil.newConcurrentMap();
+  private final ConcurrentMap<VirtualFile, Set<VirtualFile>> myExportedFiles = ContainerUtil.newConcurrentMap();
+
+  private DartLibraryGraph(@NotNull final Project project) {
+    myProject = project;
+  }
+
+  @NotNull
+  public static DartLibraryGraph getInstance(@NotNull final Project project) {
+    return CachedValuesManager.getManager(project).getCachedValue(project, () -> CachedValueProvider.Result
+      .create(new DartLibraryGraph(project), DartDirectivesModificationTracker.getInstance(project),
+              VirtualFileManager.VFS_STRUCTURE_MODIFICATIONS, ProjectRootModificationTracker.getInstance(project)));
+  }
+
+  /**
+   * @return part files of {@code file} in the order of part directives; unresolved parts are not included
+   */
+  @NotNull
+  public List<VirtualFile> getPartFiles(@NotNull final VirtualFile file) {
+    return getNode(file).myPartFiles;
+  }
+
+  /**
+   * @return imports and exports of {@code file} in the order of directives
+   */
+  @NotNull
+  public List<DartImportOrExportInfo> getImportAndExportInfos(@NotNull final VirtualFile file) {
+    return getNode(file).myImportAndExportInfos;
+  }
+
+  /**
+   * @return the file referenced by the {@code index}-th element of {@link #getImportAndExportInfos(VirtualFile)}, or {@code null}
+   * if its uri cannot be resolved
+   */
+  @Nullable
+  public VirtualFile getImportedFile(@NotNull final VirtualFile file, final int index) {
+    return getNode(file).myImportedFiles.get(index);
+  }
+
+  /**
+   * @return {@code true} if any of {@code files} is {@code libraryFile} itself, its part or a file (transitively) exported by it
+   */
+  public boolean isAnyVisibleThroughLibrary(@NotNull final VirtualFile libraryFile, @NotNull final Collection<? extends VirtualFile> files) {
+    if (files.isEmpty()) return false;
+
+    final Set<VirtualFile> exportedFiles = getExportedFiles(libraryFile);
+    for (VirtualFile file : files) {
+      if (exportedFiles.contains(file)) return true;
+    }
+    return false;
+  }
+
+  @NotNull
+  private Set<VirtualFile> getExportedFiles(@NotNull final VirtualFile libraryFile) {
+    Set<VirtualFile> result = myExportedFiles.get(libraryFile);
+    if (result != null) return result;
+
+    result = new THashSet<>();
+    final Deque<VirtualFile> queue = new ArrayDeque<>();
+    result.add(libraryFile);
+    queue.add(libraryFile);
+
+    while (!queue.isEmpty()) {
+      final Node node = getNode(queue.poll());
+      // parts are processed only if they are searched for themselves, so directives in parts need not be followed
+      result.addAll(node.myPartFiles);
+
+      for (int i = 0; i < node.myImportAndExportInfos.size(); i++) {
+        final VirtualFile exportedFile = node.myImportedFiles.get(i);
+        if (node.myImportAndExportInfos.get(i).getKind() == DartImportOrExportInfo.Kind.Export &&
+            exportedFile != null &&
+            result.add(exportedFile)) {
+          queue.add(exportedFile);
+        }
+      }
+    }
+
+    final Set<VirtualFile> existing = myExportedFiles.putIfAbsent(libraryFile, result);
+    return existing != null ? existing : result;
+  }
+
+  @NotNull
+  private Node getNode(@NotNull final VirtualFile file) {
+    // not computeIfAbsent(): resolving uris may query indices, which must not happen inside a ConcurrentHashMap update
+    Node node = myNodes.get(file);
+    if (node != null) return node;
+
+    node = new Node(myProject, file);
+    final Node existing = myNodes.putIfAbsent(file, node);
+    return existing != null ? existing : node;
+  }
+
+  private static class Node {
+    @NotNull private final List<VirtualFile> myPartFiles;
+    @NotNull private final List<DartImportOrExportInfo> myImportAndExportInfos;
+    @NotNull private final List<VirtualFile> myImportedFiles;
+
+    private Node(@NotNull final Project project, @NotNull final VirtualFile file) {
+      final List<VirtualFile> partFiles = new ArrayList<>();
+      for (String partUri : DartPartUriIndex.getPartUris(project, file)) {
+        ContainerUtil.addIfNotNull(partFiles, DartResolveUtil.getImportedFile(project, file, partUri));
+      }
+      myPartFiles = partFiles.isEmpty() ? Collections.emptyList() : partFiles;
+
+      myImportAndExportInfos = DartImportAndExportIndex.getImportAndExportInfos(project, file);
+      final List<VirtualFile> importedFiles = new ArrayList<>(myImportAndExportInfos.size());
+      for (DartImportOrExportInfo info : myImportAndExportInfos) {
+        importedFiles.add(DartResolveUtil.getImportedFile(project, file, info.getUri()));
+      }
+      myImportedFiles = importedFiles;
+    }
+  }
+}
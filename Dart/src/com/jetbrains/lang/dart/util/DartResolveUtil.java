@@ -234,9 +234,9 @@ public class DartResolveUtil {
       }
     }
 
-    for (String partUrl : DartPartUriIndex.getPartUris(context.getProject(), virtualFile)) {
-      final VirtualFile partFile = getImportedFile(context.getProject(), virtualFile, partUrl);
-      if (partFile == null || alreadyProcessed.contains(partFile) || (filesOfInterest != null && !filesOfInterest.contains(partFile))) {
+    final DartLibraryGraph libraryGraph = DartLibraryGraph.getInstance(context.getProject());
+    for (VirtualFile partFile : libraryGraph.getPartFiles(virtualFile)) {
+      if (alreadyProcessed.contains(partFile) || (filesOfInterest != null && !filesOfInterest.contains(partFile))) {
         continue;
       }
 
@@ -257,7 +257,9 @@ public class DartResolveUtil {
 
     boolean coreImportedExplicitly = false;
 
-    for (DartImportOrExportInfo importOrExportInfo : DartImportAndExportIndex.getImportAndExportInfos(context.getProject(), virtualFile)) {
+    final List<DartImportOrExportInfo> importAndExportInfos = libraryGraph.getImportAndExportInfos(virtualFile);
+    for (int i = 0; i < importAndExportInfos.size(); i++) {
+      final DartImportOrExportInfo importOrExportInfo = importAndExportInfos.get(i);
       if (processingLibraryWhereContextElementLocated && importOrExportInfo.getKind() == Kind.Export) continue;
       if (!processingLibraryWhereContextElementLocated && importOrExportInfo.getKind() == Kind.Import) continue;
 
@@ -268,8 +270,8 @@ public class DartResolveUtil {
       // if statement has prefix all components are prefix.Name
       if (importOrExportInfo.getKind() == Kind.Import && importOrExportInfo.getImportPrefix() != null) continue;
 
-      final VirtualFile importedFile = getImportedFile(context.getProject(), virtualFile, importOrExportInfo.getUri());
-      if (importedFile != null) {
+      final VirtualFile importedFile = libraryGraph.getImportedFile(virtualFile, i);
+      if (importedFile != null && mayContainFilesOfInterest(libraryGraph, importedFile, filesOfInterest, libraryFiles)) {
         processor.importedFileProcessingStarted(importedFile, importOrExportInfo);
         final boolean continueProcessing =
           processTopLevelDeclarationsImpl(context, processor, importedFile, filesOfInterest, alreadyProcessed, false);
@@ -282,7 +284,7 @@ public class DartResolveUtil {
 
     if (!coreImportedExplicitly && processingLibraryWhereContextElementLocated) {
       final VirtualFile dartCoreLib = DartLibraryIndex.getSdkLibByUri(context.getProject(), DART_CORE_URI);
-      if (dartCoreLib != null) {
+      if (dartCoreLib != null && mayContainFilesOfInterest(libraryGraph, dartCoreLib, filesOfInterest, libraryFiles)) {
         final DartImportOrExportInfo implicitImportInfo =
           new DartImportOrExportInfo(Kind.Import, DART_CORE_URI, null, Collections.emptySet(), Collections.emptySet());
         processor.importedFileProcessingStarted(dartCoreLib, implicitImportInfo);
@@ -299,6 +301,19 @@ public class DartResolveUtil {
     return true;
   }
 
+  /**
+   * An imported library contributes only files visible through it. If none of them is of interest (and the walk can't get back to
+   * the library where the context element is located, which is processed differently) the library can be skipped altogether.
+   */
+  private static boolean mayContainFilesOfInterest(final @NotNull DartLibraryGraph libraryGraph,
+                                                   final @NotNull VirtualFile importedFile,
+                                                   final @Nullable Set<? extends VirtualFile> filesOfInterest,
+                                                   final @NotNull List<VirtualFile> libraryFiles) {
+    return filesOfInterest == null ||
+           libraryGraph.isAnyVisibleThroughLibrary(importedFile, filesOfInterest) ||
+           libraryGraph.isAnyVisibleThroughLibrary(importedFile, libraryFiles);
+  }
+
   @Nullable
   public static VirtualFile getImportedFile(final @NotNull Project project,
                                             final @NotNull VirtualFile contextFile,
@@ -0,0 +1,60 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.jetbrains.lang.dart.analyzer;
+
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+public class DartHighlightRegionTableTest extends TestCase {
+
+  @NotNull
+  private static DartHighlightRegionTable createTable(final int... offsetsAndLengths) {
+    final DartHighlightRegionTable table = new DartHighlightRegionTable(offsetsAndLengths.length / 2);
+    for (int i = 0; i < offsetsAndLengths.length; i += 2) {
+      table.add(offsetsAndLengths[i], offsetsAndLengths[i + 1], "TYPE_" + i / 2);
+    }
+    table.sortByOffset();
+    return table;
+  }
+
+  private static void assertRegions(@NotNull final DartHighlightRegionTable table, final int... offsetsAndLengths) {
+    assertEquals(offsetsAndLengths.length / 2, table.size());
+    for (int i = 0; i < table.size(); i++) {
+      assertEquals(offsetsAndLengths[i * 2], table.getOffset(i));
+      assertEquals(offsetsAndLengths[i * 2 + 1], table.getLength(i));
+    }
+  }
+
+  public void testSortAndTypes() {
+    final DartHighlightRegionTable table = createTable(20, 5, 0, 3, 10, 2, 0, 10);
+    assertRegions(table, 0, 3, 0, 10, 10, 2, 20, 5);
+    assertEquals("TYPE_1", table.getType(0));
+    assertEquals("TYPE_3", table.getType(1));
+    assertEquals("TYPE_2", table.getType(2));
+    assertEquals("TYPE_0", table.getType(3));
+  }
+
+  public void testLookup() {
+    final DartHighlightRegionTable table = createTable(0, 3, 0, 10, 10, 2, 20, 5);
+    assertEquals(0, table.findFirstRegionAtOrAfter(0));
+    assertEquals(2, table.findFirstRegionAtOrAfter(1));
+    assertEquals(3, table.findFirstRegionAtOrAfter(20));
+    assertEquals(4, table.findFirstRegionAtOrAfter(21));
+  }
+
+  public void testTyping() {
+    final DartHighlightRegionTable table = createTable(0, 3, 10, 2, 20, 5);
+    table.documentChanged(11, 0, 4);
+    assertRegions(table, 0, 3, 10, 6, 24, 5);
+    table.documentChanged(0, 0, 1);
+    assertRegions(table, 1, 3, 11, 6, 25, 5);
+  }
+
+  public void testDeletion() {
+    final DartHighlightRegionTable table = createTable(0, 3, 10, 6, 20, 5, 30, 2);
+    table.documentChanged(11, 2, 0);
+    assertRegions(table, 0, 3, 10, 4, 18, 5, 28, 2);
+    // deletes the second region completely and breaks the third one
+    table.documentChanged(9, 11, 0);
+    assertRegions(table, 0, 3, 17, 2);
+  }
+}
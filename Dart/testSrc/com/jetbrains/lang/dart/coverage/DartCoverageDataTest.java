@@ -0,0 +1,42 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.jetbrains.lang.dart.coverage;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.HashSet;
+
+public class DartCoverageDataTest extends TestCase {
+
+  public void testMergeHits() throws IOException {
+    final String json = "{\"type\": \"CodeCoverage\", \"coverage\": [" +
+                        "{\"source\": \"package:a/a.dart\", \"script\": {\"type\": \"@Script\"}, \"hits\": [3, 1, 5, 0]}," +
+                        "{\"hits\": [5, 2, 10, 1], \"source\": \"package:a/a.dart\"}," +
+                        "{\"source\": \"package:a/b.dart\"}," +
+                        "{\"hits\": [1, 1]}" +
+                        "]}";
+    final DartCoverageData data = DartCoverageData.load(new StringReader(json), null);
+
+    assertEquals(new HashSet<>(Arrays.asList("package:a/a.dart", "package:a/b.dart")), data.getSources());
+
+    final DartCoverageData.LineHits a = data.getLineHits("package:a/a.dart");
+    assertEquals(10, a.getLastLine());
+    assertTrue(a.hasHits(3));
+    assertEquals(1, a.getHits(3));
+    assertTrue(a.hasHits(5));
+    assertEquals(2, a.getHits(5));
+    assertEquals(1, a.getHits(10));
+    assertFalse(a.hasHits(4));
+    assertFalse(a.hasHits(11));
+
+    assertEquals(-1, data.getLineHits("package:a/b.dart").getLastLine());
+  }
+
+  public void testEntryCallback() throws IOException {
+    final int[] count = {0};
+    DartCoverageData.load(new StringReader("{\"coverage\": [{\"source\": \"a\"}, {\"source\": \"b\"}]}"), () -> count[0]++);
+    assertEquals(2, count[0]);
+  }
+}
@@ -0,0 +1,60 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.jetbrains.lang.dart.resolve;
+
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiDocumentManager;
+import com.jetbrains.lang.dart.DartCodeInsightFixtureTestCase;
+import com.jetbrains.lang.dart.util.DartLibraryGraph;
+
+import java.util.Collections;
+
+public class DartLibraryGraphTest extends DartCodeInsightFixtureTestCase {
+
+  private void replaceText(final String oldText, final String newText) {
+    final Document document = myFixture.getEditor().getDocument();
+    final int offset = document.getText().indexOf(oldText);
+    assertTrue(oldText, offset >= 0);
+    WriteCommandAction.runWriteCommandAction(getProject(), () -> document.replaceString(offset, offset + oldText.length(), newText));
+    PsiDocumentManager.getInstance(getProject()).commitDocument(document);
+  }
+
+  public void testGraphSurvivesEditInsideDeclaration() {
+    final VirtualFile aFile = myFixture.addFileToProject("a.dart", "").getVirtualFile();
+    final VirtualFile mainFile = myFixture.configureByText("main.dart", "import 'a.dart';\nmain() {\n  var x = 1;\n}").getVirtualFile();
+
+    final DartLibraryGraph graph = DartLibraryGraph.getInstance(getProject());
+    assertEquals(aFile, graph.getImportedFile(mainFile, 0));
+
+    replaceText("var x = 1;", "var x = 2; var y = x;");
+    assertSame(graph, DartLibraryGraph.getInstance(getProject()));
+  }
+
+  public void testGraphRebuiltAfterImportChange() {
+    myFixture.addFileToProject("a.dart", "");
+    final VirtualFile bFile = myFixture.addFileToProject("b.dart", "").getVirtualFile();
+    final VirtualFile mainFile = myFixture.configureByText("main.dart", "import 'a.dart';\nmain() {}").getVirtualFile();
+
+    final DartLibraryGraph graph = DartLibraryGraph.getInstance(getProject());
+    graph.getImportedFile(mainFile, 0);
+
+    replaceText("'a.dart'", "'b.dart'");
+    final DartLibraryGraph newGraph = DartLibraryGraph.getInstance(getProject());
+    assertNotSame(graph, newGraph);
+    assertEquals(bFile, newGraph.getImportedFile(mainFile, 0));
+  }
+
+  public void testGraphRebuiltAfterDirectiveAdded() {
+    final VirtualFile partFile = myFixture.addFileToProject("part.dart", "part of lib;").getVirtualFile();
+    final VirtualFile mainFile = myFixture.configureByText("main.dart", "library lib;\nmain() {}").getVirtualFile();
+
+    final DartLibraryGraph graph = DartLibraryGraph.getInstance(getProject());
+    assertEmpty(graph.getPartFiles(mainFile));
+
+    replaceText("library lib;", "library lib;\npart 'part.dart';");
+    final DartLibraryGraph newGraph = DartLibraryGraph.getInstance(getProject());
+    assertNotSame(graph, newGraph);
+    assertEquals(Collections.singletonList(partFile), newGraph.getPartFiles(mainFile));
+  }
+}
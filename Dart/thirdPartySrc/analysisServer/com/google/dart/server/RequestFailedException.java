@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2019, the Dart project authors.
+ *
+ * Licensed under the Eclipse Public License v1.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.dart.server;
+
+import org.dartlang.analysis.server.protocol.RequestError;
+
+/**
+ * The exception a future returned by the asynchronous request API is completed with when the
+ * server responds to the request with an error.
+ *
+ * @coverage dart.server
+ */
+public class RequestFailedException extends RuntimeException {
+
+  /**
+   * The error returned by the server.
+   */
+  private final RequestError requestError;
+
+  public RequestFailedException(RequestError requestError) {
+    super(requestError.getCode() + ": " + requestError.getMessage());
+    this.requestError = requestError;
+  }
+
+  public RequestError getRequestError() {
+    return requestError;
+  }
+}
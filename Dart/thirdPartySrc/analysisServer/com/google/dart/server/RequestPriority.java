@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2019, the Dart project authors.
+ *
+ * Licensed under the Eclipse Public License v1.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.dart.server;
+
+/**
+ * The priority class of a request sent through the asynchronous request API. Queued requests of a
+ * higher priority are sent to the server before queued requests of a lower priority.
+ *
+ * @coverage dart.server
+ */
+public enum RequestPriority {
+  /**
+   * Requests a user is waiting for, such as completion, hover or navigation.
+   */
+  INTERACTIVE,
+
+  /**
+   * Requests without special latency requirements.
+   */
+  NORMAL,
+
+  /**
+   * Long running requests whose results are not urgent, such as searches.
+   */
+  BACKGROUND
+}
@@ -13,6 +13,8 @@
  */
 package com.google.dart.server;
 
+import org.dartlang.analysis.server.protocol.RequestError;
+
 /**
  * The interface {@code UpdateContentConsumer} defines the behavior of objects that consume
  * 'analysis.updateContent' responses.
@@ -24,4 +26,11 @@ public interface UpdateContentConsumer extends Consumer {
    * A response to the request was received.
    */
   public void onResponse();
+
+  /**
+   * The server failed to apply the content change, for example because a change overlay did not
+   * match the content the server has. Called before {@link #onResponse()}.
+   */
+  default public void onError(RequestError requestError) {
+  }
 }
@@ -13,18 +13,27 @@
  */
 package com.google.dart.server.internal.remote;
 
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
 import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * An {@link InputStream} based implementation of {@link ResponseStream}. Each line must contain
  * exactly one complete JSON object.
+ * <p>
+ * Responses are decoded on the reader thread straight from the character stream, without
+ * materializing each line as a {@link String} first. The input is read in chunks into a char
+ * buffer that is scanned for line separators, and decoded responses are handed over through a
+ * bounded queue. When the consumer falls behind, the reader thread blocks, which in turn makes the
+ * server block on its stdout pipe instead of letting unprocessed responses pile up in memory.
  *
  * @coverage dart.server.remote
  */
@@ -37,43 +46,134 @@ public class ByteResponseStream implements ResponseStream {
 
     @Override
     public void run() {
-      while (true) {
-        String line;
-        try {
-          line = reader.readLine();
-        } catch (IOException e) {
-          line = null;
+      try {
+        while (true) {
+          Object response;
+          try {
+            response = readResponse();
+          } catch (IOException e) {
+            response = null;
+          }
+          // check for EOF
+          if (response == null) {
+            return;
+          }
+          // ignore non-JSON (debug) lines
+          if (response == SKIPPED_LINE) {
+            continue;
+          }
+          // blocks while the queue is full
+          responseQueue.put(response);
         }
-        // check for EOF
-        if (line == null) {
-          lineQueue.add(EOF_LINE);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        putEndOfStream();
+        if (onStreamEndRunnable != null) {
+          onStreamEndRunnable.run();
+        }
+      }
+    }
+  }
 
-          if (onStreamEndRunnable != null) {
-            onStreamEndRunnable.run();
-          }
+  /**
+   * A {@link Reader} that returns the characters of the current line from {@link #buffer} and
+   * reports the end of stream at the line separator.
+   */
+  private class SingleLineReader extends Reader {
+    private boolean endOfLine;
 
-          return;
+    void startLine() {
+      endOfLine = false;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (endOfLine || !fillBuffer()) {
+        endOfLine = true;
+        return -1;
+      }
+      char c = buffer[bufferPosition++];
+      if (c == '\n') {
+        endOfLine = true;
+        return -1;
+      }
+      return c;
+    }
+
+    @Override
+    public int read(char[] chars, int offset, int length) throws IOException {
+      if (endOfLine || !fillBuffer()) {
+        endOfLine = true;
+        return -1;
+      }
+      int limit = Math.min(bufferLimit, bufferPosition + length);
+      int newline = indexOfNewline(bufferPosition, limit);
+      int count = (newline == -1 ? limit : newline) - bufferPosition;
+      System.arraycopy(buffer, bufferPosition, chars, offset, count);
+      bufferPosition += count;
+      if (newline != -1) {
+        bufferPosition++;
+        endOfLine = true;
+        if (count == 0) {
+          return -1;
         }
-        // debug output
-        if (debugStream != null) {
-          debugStream.println(System.currentTimeMillis() + " <= " + line);
+      }
+      return count;
+    }
+
+    /**
+     * Consumes the rest of the current line.
+     */
+    void skipToEndOfLine() throws IOException {
+      while (!endOfLine) {
+        if (!fillBuffer()) {
+          endOfLine = true;
+          return;
         }
-        // ignore non-JSON (debug) lines
-        if (!line.startsWith("{")) {
-          continue;
+        int newline = indexOfNewline(bufferPosition, bufferLimit);
+        if (newline == -1) {
+          bufferPosition = bufferLimit;
+        } else {
+          bufferPosition = newline + 1;
+          endOfLine = true;
         }
-        // add a JSON line
-        lineQueue.add(line);
       }
     }
+
+    @Override
+    public void close() {
+    }
   }
 
   public static final String EOF_LINE = "EOF line";
 
   /**
-   * The {@link BufferedReader} to read JSON strings from.
+   * A marker returned by {@link #readResponse()} for lines that do not contain a JSON object.
+   */
+  private static final Object SKIPPED_LINE = new Object();
+
+  /**
+   * The maximum number of decoded responses waiting to be taken.
+   */
+  private static final int MAX_QUEUED_RESPONSES = 256;
+
+  /**
+   * The size of {@link #buffer}, in chars.
+   */
+  private static final int BUFFER_SIZE = 8192;
+
+  /**
+   * The {@link Reader} to read JSON strings from. It is only read in bulk into {@link #buffer},
+   * which is then scanned for line separators.
    */
-  private final BufferedReader reader;
+  private final Reader reader;
+
+  private final char[] buffer = new char[BUFFER_SIZE];
+  private int bufferPosition;
+  private int bufferLimit;
+
+  private final SingleLineReader lineReader = new SingleLineReader();
 
   /**
    * The {@link DebugPrintStream} to print all lines to.
@@ -82,9 +182,10 @@ public class ByteResponseStream implements ResponseStream {
   private final Runnable onStreamEndRunnable;
 
   /**
-   * The queue of lines.
+   * The queue of decoded responses: {@link JsonObject}s, {@link JsonParseException}s for malformed
+   * lines and {@link #EOF_LINE} at the end of the stream.
    */
-  private final BlockingQueue<String> lineQueue = new LinkedBlockingQueue<String>();
+  private final BlockingQueue<Object> responseQueue = new ArrayBlockingQueue<Object>(MAX_QUEUED_RESPONSES);
 
   /**
    * Initializes a newly created response stream.
@@ -93,7 +194,7 @@ public class ByteResponseStream implements ResponseStream {
    * @param debugStream the {@link PrintStream} to print all lines to, may be {@code null}
    */
   public ByteResponseStream(InputStream stream, DebugPrintStream debugStream, Runnable onStreamEndRunnable) {
-    reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+    reader = new InputStreamReader(stream, StandardCharsets.UTF_8);
     this.debugStream = debugStream;
     this.onStreamEndRunnable = onStreamEndRunnable;
     new LinesReaderThread().start();
@@ -105,16 +206,132 @@ public class ByteResponseStream implements ResponseStream {
 
   @Override
   public JsonObject take() throws Exception {
-    String line = lineQueue.take();
-    if (line == EOF_LINE) {
-      lineQueue.add(line);
+    Object response = responseQueue.take();
+    if (response == EOF_LINE) {
+      responseQueue.put(response);
+      return null;
+    }
+    if (response instanceof JsonParseException) {
+      throw (JsonParseException)response;
+    }
+    return (JsonObject)response;
+  }
+
+  /**
+   * Reads and decodes the next line of the stream.
+   *
+   * @return the decoded {@link JsonObject}, a {@link JsonParseException} describing a malformed
+   * line, {@link #SKIPPED_LINE} for a non-JSON line, or {@code null} at the end of the stream
+   */
+  private Object readResponse() throws IOException {
+    // the debug stream needs the text of every line anyway
+    if (debugStream != null) {
+      String line = readLine();
+      if (line == null) {
+        return null;
+      }
+      debugStream.println(System.currentTimeMillis() + " <= " + line);
+      if (!line.startsWith("{")) {
+        return SKIPPED_LINE;
+      }
+      return parseResponse(new StringReader(line), line);
+    }
+
+    if (!fillBuffer()) {
       return null;
     }
+    char firstChar = buffer[bufferPosition];
+    if (firstChar == '\n') {
+      bufferPosition++;
+      return SKIPPED_LINE;
+    }
+    lineReader.startLine();
+    if (firstChar != '{') {
+      lineReader.skipToEndOfLine();
+      return SKIPPED_LINE;
+    }
+    Object response = parseResponse(lineReader, null);
+    lineReader.skipToEndOfLine();
+    return response;
+  }
+
+  /**
+   * Reads the next line without the line separator, or returns {@code null} at the end of the
+   * stream.
+   */
+  private String readLine() throws IOException {
+    if (!fillBuffer()) {
+      return null;
+    }
+    StringBuilder line = new StringBuilder();
+    while (fillBuffer()) {
+      int newline = indexOfNewline(bufferPosition, bufferLimit);
+      int end = newline == -1 ? bufferLimit : newline;
+      line.append(buffer, bufferPosition, end - bufferPosition);
+      bufferPosition = end;
+      if (newline != -1) {
+        bufferPosition++;
+        break;
+      }
+    }
+    int length = line.length();
+    if (length > 0 && line.charAt(length - 1) == '\r') {
+      line.setLength(length - 1);
+    }
+    return line.toString();
+  }
+
+  /**
+   * Ensures that {@link #buffer} has unread characters.
+   *
+   * @return {@code false} at the end of the stream
+   */
+  private boolean fillBuffer() throws IOException {
+    while (bufferPosition == bufferLimit) {
+      int count = reader.read(buffer, 0, BUFFER_SIZE);
+      if (count == -1) {
+        return false;
+      }
+      bufferPosition = 0;
+      bufferLimit = count;
+    }
+    return true;
+  }
+
+  private int indexOfNewline(int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (buffer[i] == '\n') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Puts {@link #EOF_LINE}, so that {@link #take()} returns {@code null} instead of blocking
+   * forever. If the reader thread was interrupted, older responses are dropped to make room.
+   */
+  private void putEndOfStream() {
+    try {
+      responseQueue.put(EOF_LINE);
+    } catch (InterruptedException e) {
+      while (!responseQueue.offer(EOF_LINE)) {
+        responseQueue.poll();
+      }
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static Object parseResponse(Reader lineReader, String line) {
     try {
-      return (JsonObject) new JsonParser().parse(line);
-    } catch (JsonSyntaxException e) {
+      JsonElement element = new JsonParser().parse(new JsonReader(lineReader));
+      if (element.isJsonObject()) {
+        return element;
+      }
+      return new JsonSyntaxException("Server message is not a JSON object: " + element);
+    } catch (JsonParseException e) {
       // Include the line in the message so that we can better diagnose the problem
-      throw new JsonSyntaxException("Parse server message failed: " + line, e);
+      return new JsonSyntaxException("Parse server message failed" + (line != null ? ": " + line : ""), e);
     }
   }
 }
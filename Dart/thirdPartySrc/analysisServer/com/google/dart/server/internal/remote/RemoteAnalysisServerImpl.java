@@ -36,6 +36,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -125,6 +126,11 @@ public class RemoteAnalysisServerImpl implements AnalysisServer {
    */
   private final AtomicInteger nextId = new AtomicInteger();
 
+  /**
+   * The scheduler of requests sent through the asynchronous request API.
+   */
+  private final RequestScheduler requestScheduler = new RequestScheduler(this::sendRequestToServer, this::generateUniqueId);
+
   /**
    * A mapping between "getRefactoring" request ids and the requested refactoring kinds.
    */
@@ -200,6 +206,33 @@ public class RemoteAnalysisServerImpl implements AnalysisServer {
     sendRequestToServer(id, RequestUtilities.generateAnalysisGetHover(id, file, offset), consumer);
   }
 
+  /**
+   * Asynchronous version of {@link #analysis_getHover(String, int, GetHoverConsumer)}, sent with
+   * {@link RequestPriority#INTERACTIVE} priority. Supersedes the previous hover request for the same
+   * file and offset. The future fails with {@link RequestFailedException} if the server responds
+   * with an error and is cancelled if the server is stopped.
+   */
+  public CompletableFuture<HoverInformation[]> analysis_getHoverAsync(String file, int offset) {
+    CompletableFuture<HoverInformation[]> future = new CompletableFuture<>();
+    requestScheduler.submit(RequestPriority.INTERACTIVE,
+                            "analysis.getHover",
+                            "analysis.getHover:" + file + ":" + offset,
+                            id -> RequestUtilities.generateAnalysisGetHover(id, file, offset),
+                            new GetHoverConsumer() {
+                              @Override
+                              public void computedHovers(HoverInformation[] hovers) {
+                                future.complete(hovers);
+                              }
+
+                              @Override
+                              public void onError(RequestError requestError) {
+                                future.completeExceptionally(new RequestFailedException(requestError));
+                              }
+                            },
+                            future);
+    return future;
+  }
+
   @Override
   public void analysis_getImportedElements(String file, int offset, int length, GetImportedElementsConsumer consumer) {
     String id = generateUniqueId();
@@ -218,6 +251,32 @@ public class RemoteAnalysisServerImpl implements AnalysisServer {
     sendRequestToServer(id, RequestUtilities.generateAnalysisGetNavigation(id, file, offset, length), consumer);
   }
 
+  /**
+   * Asynchronous version of {@link #analysis_getNavigation(String, int, int, GetNavigationConsumer)},
+   * sent with {@link RequestPriority#INTERACTIVE} priority. Supersedes the previous navigation
+   * request for the same file, offset and length.
+   */
+  public CompletableFuture<List<NavigationRegion>> analysis_getNavigationAsync(String file, int offset, int length) {
+    CompletableFuture<List<NavigationRegion>> future = new CompletableFuture<>();
+    requestScheduler.submit(RequestPriority.INTERACTIVE,
+                            "analysis.getNavigation",
+                            "analysis.getNavigation:" + file + ":" + offset + ":" + length,
+                            id -> RequestUtilities.generateAnalysisGetNavigation(id, file, offset, length),
+                            new GetNavigationConsumer() {
+                              @Override
+                              public void computedNavigation(List<NavigationRegion> regions) {
+                                future.complete(regions);
+                              }
+
+                              @Override
+                              public void onError(RequestError requestError) {
+                                future.completeExceptionally(new RequestFailedException(requestError));
+                              }
+                            },
+                            future);
+    return future;
+  }
+
   @Override
   public void analysis_getReachableSources(String file, GetReachableSourcesConsumer consumer) {
     // TODO(scheglov) implement
@@ -278,7 +337,9 @@ public class RemoteAnalysisServerImpl implements AnalysisServer {
     if (files == null) {
       files = Maps.newHashMap();
     }
-    sendRequestToServer(id, RequestUtilities.generateAnalysisUpdateContent(id, files), consumer);
+    JsonObject request = RequestUtilities.generateAnalysisUpdateContent(id, files);
+    // scheduled requests queued so far refer to offsets in the content before this update
+    requestScheduler.sendBarrier(() -> sendRequestToServer(id, request, consumer));
   }
 
   @Override
@@ -328,6 +389,32 @@ public class RemoteAnalysisServerImpl implements AnalysisServer {
     sendRequestToServer(id, RequestUtilities.generateCompletionGetSuggestions(id, file, offset), consumer);
   }
 
+  /**
+   * Asynchronous version of {@link #completion_getSuggestions(String, int, GetSuggestionsConsumer)},
+   * sent with {@link RequestPriority#INTERACTIVE} priority. The future is completed with the
+   * completion id. Supersedes the previous request for the same file and offset.
+   */
+  public CompletableFuture<String> completion_getSuggestionsAsync(String file, int offset) {
+    CompletableFuture<String> future = new CompletableFuture<>();
+    requestScheduler.submit(RequestPriority.INTERACTIVE,
+                            "completion.getSuggestions",
+                            "completion.getSuggestions:" + file + ":" + offset,
+                            id -> RequestUtilities.generateCompletionGetSuggestions(id, file, offset),
+                            new GetSuggestionsConsumer() {
+                              @Override
+                              public void computedCompletionId(String completionId) {
+                                future.complete(completionId);
+                              }
+
+                              @Override
+                              public void onError(RequestError requestError) {
+                                future.completeExceptionally(new RequestFailedException(requestError));
+                              }
+                            },
+                            future);
+    return future;
+  }
+
   @Override
   public void completion_listTokenDetails(String file, ListTokenDetailsConsumer consumer) {
   }
@@ -533,6 +620,33 @@ public class RemoteAnalysisServerImpl implements AnalysisServer {
     sendRequestToServer(id, RequestUtilities.generateSearchFindElementReferences(id, file, offset, includePotential), consumer);
   }
 
+  /**
+   * Asynchronous version of
+   * {@link #search_findElementReferences(String, int, boolean, FindElementReferencesConsumer)}, sent
+   * with {@link RequestPriority#BACKGROUND} priority. The future is completed with the search id.
+   * Supersedes the previous request for the same file and offset.
+   */
+  public CompletableFuture<String> search_findElementReferencesAsync(String file, int offset, boolean includePotential) {
+    CompletableFuture<String> future = new CompletableFuture<>();
+    requestScheduler.submit(RequestPriority.BACKGROUND,
+                            "search.findElementReferences",
+                            "search.findElementReferences:" + file + ":" + offset + ":" + includePotential,
+                            id -> RequestUtilities.generateSearchFindElementReferences(id, file, offset, includePotential),
+                            new FindElementReferencesConsumer() {
+                              @Override
+                              public void computedElementReferences(String searchId, Element element) {
+                                future.complete(searchId);
+                              }
+
+                              @Override
+                              public void onError(RequestError requestError) {
+                                future.completeExceptionally(new RequestFailedException(requestError));
+                              }
+                            },
+                            future);
+    return future;
+  }
+
   @Override
   public void search_findMemberDeclarations(String name, FindMemberDeclarationsConsumer consumer) {
     String id = generateUniqueId();
@@ -606,10 +720,34 @@ public class RemoteAnalysisServerImpl implements AnalysisServer {
     startWatcher(5000);
   }
 
+  /**
+   * Sets the maximum number of requests sent through the asynchronous request API that may wait for
+   * a response at the same time; the rest are queued.
+   */
+  public void setMaxInFlightRequests(int maxInFlightRequests) {
+    requestScheduler.setMaxInFlightRequests(maxInFlightRequests);
+  }
+
+  /**
+   * Returns the latency statistics of requests sent through the asynchronous request API, keyed by
+   * protocol method.
+   */
+  public Map<String, RequestScheduler.LatencyHistogram> getRequestLatencyHistograms() {
+    return requestScheduler.getLatencyHistograms();
+  }
+
   @VisibleForTesting
   public void test_waitForWorkerComplete() {
-    while (!consumerMap.isEmpty()) {
-      Thread.yield();
+    synchronized (consumerMapLock) {
+      while (!consumerMap.isEmpty()) {
+        try {
+          consumerMapLock.wait();
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
     }
   }
 
@@ -743,6 +881,9 @@ public class RemoteAnalysisServerImpl implements AnalysisServer {
     // Analysis Domain
     //
     if (consumer instanceof UpdateContentConsumer) {
+      if (requestError != null) {
+        ((UpdateContentConsumer)consumer).onError(requestError);
+      }
       ((UpdateContentConsumer)consumer).onResponse();
     }
     //
@@ -863,7 +1004,11 @@ public class RemoteAnalysisServerImpl implements AnalysisServer {
 
     synchronized (consumerMapLock) {
       consumerMap.remove(idString);
+      if (consumerMap.isEmpty()) {
+        consumerMapLock.notifyAll();
+      }
     }
+    requestScheduler.responseReceived(idString);
   }
 
   private void notifyRequestListeners(JsonObject request) {
@@ -915,7 +1060,11 @@ public class RemoteAnalysisServerImpl implements AnalysisServer {
 
   private void startServer() throws Exception {
     socket.start();
-    consumerMap.clear();
+    synchronized (consumerMapLock) {
+      consumerMap.clear();
+      consumerMapLock.notifyAll();
+    }
+    requestScheduler.cancelAll();
     requestSink = socket.getRequestSink();
     responseStream = socket.getResponseStream();
     errorStream = socket.getErrorStream();
@@ -1004,6 +1153,7 @@ public class RemoteAnalysisServerImpl implements AnalysisServer {
 
   private void stopServer() {
     socket.stop();
+    requestScheduler.cancelAll();
   }
 
   private void stopWatcher() {
@@ -0,0 +1,362 @@
+/*
+ * Copyright (c) 2019, the Dart project authors.
+ *
+ * Licensed under the Eclipse Public License v1.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.dart.server.internal.remote;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.dart.server.Consumer;
+import com.google.dart.server.RequestPriority;
+import com.google.gson.JsonObject;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Schedules requests sent through the asynchronous request API of {@link RemoteAnalysisServerImpl}.
+ * <p>
+ * At most {@link #getMaxInFlightRequests()} scheduled requests are sent to the server without a
+ * response, the rest wait in a queue ordered by {@link RequestPriority} and then by submission
+ * order. A request submitted with a supersede key cancels the previous request with the same key if
+ * that one is not complete yet; a queued request is then never sent, a response to a request that
+ * is already in flight is ignored.
+ * <p>
+ * Requests sent directly, without the scheduler, are not limited by the window. A request that
+ * changes what offsets in other requests refer to, such as {@code analysis.updateContent}, must be
+ * sent through {@link #sendBarrier(Runnable)}: all requests queued before it are sent first, so the
+ * server interprets their offsets against the content they were computed for.
+ * <p>
+ * Requests that a response makes room for are sent from a separate sender thread, never from the
+ * thread that reads responses, so writing to the server cannot stall reading from it.
+ *
+ * @coverage dart.server.remote
+ */
+public class RequestScheduler {
+
+  /**
+   * Sends a request with the given id to the server.
+   */
+  public interface RequestSender {
+    void send(String id, JsonObject request, Consumer consumer);
+  }
+
+  /**
+   * The default maximum number of scheduled requests waiting for a response.
+   */
+  public static final int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 4;
+
+  private static final Comparator<ScheduledRequest> ORDER = new Comparator<ScheduledRequest>() {
+    @Override
+    public int compare(ScheduledRequest r1, ScheduledRequest r2) {
+      int result = r1.priority.compareTo(r2.priority);
+      return result != 0 ? result : Long.compare(r1.sequence, r2.sequence);
+    }
+  };
+
+  private final RequestSender sender;
+  private final Supplier<String> idGenerator;
+
+  /**
+   * The object used to synchronize access to the queue, the in-flight requests and the supersede
+   * keys. Never held while requests are sent or futures are completed.
+   */
+  private final Object lock = new Object();
+  private final PriorityQueue<ScheduledRequest> queue = new PriorityQueue<>(16, ORDER);
+  private final Map<String, ScheduledRequest> inFlightRequests = Maps.newHashMap();
+  private final Map<String, ScheduledRequest> supersedeKeyToRequest = Maps.newHashMap();
+  private int maxInFlightRequests = DEFAULT_MAX_IN_FLIGHT_REQUESTS;
+  private long nextSequence;
+
+  /**
+   * The object held while requests are sent, so that requests polled from the queue are sent in the
+   * same order with respect to barriers. Acquired before {@link #lock}.
+   */
+  private final Object sendLock = new Object();
+
+  /**
+   * The executor that sends queued requests when a response frees a place in the window, and the
+   * flag that is {@code true} while such a send is pending, so that a burst of responses causes a
+   * single send.
+   */
+  private final ThreadPoolExecutor sendExecutor;
+  private final AtomicBoolean sendScheduled = new AtomicBoolean();
+
+  private final Map<String, LatencyHistogram> methodToHistogram = new ConcurrentHashMap<>();
+
+  public RequestScheduler(RequestSender sender, Supplier<String> idGenerator) {
+    this.sender = sender;
+    this.idGenerator = idGenerator;
+    sendExecutor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+      Thread thread = new Thread(runnable, "RequestScheduler.SenderThread");
+      thread.setDaemon(true);
+      return thread;
+    });
+    sendExecutor.allowCoreThreadTimeOut(true);
+  }
+
+  public int getMaxInFlightRequests() {
+    synchronized (lock) {
+      return maxInFlightRequests;
+    }
+  }
+
+  public void setMaxInFlightRequests(int maxInFlightRequests) {
+    if (maxInFlightRequests < 1) {
+      throw new IllegalArgumentException("maxInFlightRequests: " + maxInFlightRequests);
+    }
+    synchronized (lock) {
+      this.maxInFlightRequests = maxInFlightRequests;
+    }
+    sendQueuedRequests();
+  }
+
+  /**
+   * Schedules a request. The {@code consumer} is expected to complete the {@code future}; when the
+   * {@code future} is cancelled before the request is sent, the request is never sent.
+   *
+   * @param priority       the priority class of the request
+   * @param method         the protocol method, used to group latency statistics
+   * @param supersedeKey   the key identifying requests made obsolete by this one, or {@code null}
+   * @param requestFactory creates the request {@link JsonObject} for the given request id
+   * @param consumer       the {@link Consumer} to process a response
+   * @param future         the future to be completed by the {@code consumer}
+   */
+  public void submit(RequestPriority priority,
+                     String method,
+                     String supersedeKey,
+                     Function<String, JsonObject> requestFactory,
+                     Consumer consumer,
+                     CompletableFuture<?> future) {
+    final ScheduledRequest request = new ScheduledRequest(priority, method, supersedeKey, requestFactory, consumer, future);
+    ScheduledRequest superseded = null;
+    synchronized (lock) {
+      request.sequence = nextSequence++;
+      queue.add(request);
+      if (supersedeKey != null) {
+        superseded = supersedeKeyToRequest.put(supersedeKey, request);
+      }
+    }
+    future.whenComplete((result, error) -> requestDone(request));
+    if (superseded != null) {
+      superseded.future.cancel(false);
+    }
+    sendQueuedRequests();
+  }
+
+  /**
+   * Sends all queued requests, ignoring the in-flight window, and then runs {@code barrier} that
+   * sends a request directly. Requests submitted later are sent after the barrier.
+   */
+  public void sendBarrier(Runnable barrier) {
+    synchronized (sendLock) {
+      List<ScheduledRequest> requestsToSend = Lists.newArrayList();
+      synchronized (lock) {
+        while (!queue.isEmpty()) {
+          requestsToSend.add(startRequest(queue.poll()));
+        }
+      }
+      send(requestsToSend);
+      barrier.run();
+    }
+  }
+
+  /**
+   * Must be invoked once the response to the request with the given id has been processed. Queued
+   * requests are sent asynchronously, so this may be invoked from the thread that reads responses.
+   */
+  public void responseReceived(String id) {
+    ScheduledRequest request;
+    synchronized (lock) {
+      request = inFlightRequests.remove(id);
+    }
+    if (request == null) {
+      return;
+    }
+    getLatencyHistogram(request.method).record(System.nanoTime() - request.sentNanos);
+    scheduleSendQueuedRequests();
+  }
+
+  /**
+   * Forgets all queued and in-flight requests and cancels their futures, for example when the
+   * server is stopped.
+   */
+  public void cancelAll() {
+    List<ScheduledRequest> requests = Lists.newArrayList();
+    synchronized (lock) {
+      requests.addAll(queue);
+      requests.addAll(inFlightRequests.values());
+      queue.clear();
+      inFlightRequests.clear();
+      supersedeKeyToRequest.clear();
+    }
+    for (ScheduledRequest request : requests) {
+      request.future.cancel(false);
+    }
+  }
+
+  /**
+   * @return the latency statistics of scheduled requests, keyed by protocol method
+   */
+  public Map<String, LatencyHistogram> getLatencyHistograms() {
+    return Collections.unmodifiableMap(methodToHistogram);
+  }
+
+  private LatencyHistogram getLatencyHistogram(String method) {
+    LatencyHistogram histogram = methodToHistogram.get(method);
+    return histogram != null ? histogram : methodToHistogram.computeIfAbsent(method, m -> new LatencyHistogram());
+  }
+
+  private void requestDone(ScheduledRequest request) {
+    synchronized (lock) {
+      // no-op for a sent request, it stays in flight until the response arrives
+      queue.remove(request);
+      if (request.supersedeKey != null) {
+        supersedeKeyToRequest.remove(request.supersedeKey, request);
+      }
+    }
+  }
+
+  private void scheduleSendQueuedRequests() {
+    if (sendScheduled.compareAndSet(false, true)) {
+      sendExecutor.execute(() -> {
+        sendScheduled.set(false);
+        sendQueuedRequests();
+      });
+    }
+  }
+
+  private void sendQueuedRequests() {
+    synchronized (sendLock) {
+      List<ScheduledRequest> requestsToSend = Lists.newArrayList();
+      synchronized (lock) {
+        while (inFlightRequests.size() < maxInFlightRequests && !queue.isEmpty()) {
+          requestsToSend.add(startRequest(queue.poll()));
+        }
+      }
+      send(requestsToSend);
+    }
+  }
+
+  private ScheduledRequest startRequest(ScheduledRequest request) {
+    request.id = idGenerator.get();
+    request.sentNanos = System.nanoTime();
+    inFlightRequests.put(request.id, request);
+    return request;
+  }
+
+  private void send(List<ScheduledRequest> requests) {
+    for (ScheduledRequest request : requests) {
+      sender.send(request.id, request.requestFactory.apply(request.id), request.consumer);
+    }
+  }
+
+  private static final class ScheduledRequest {
+    private final RequestPriority priority;
+    private final String method;
+    private final String supersedeKey;
+    private final Function<String, JsonObject> requestFactory;
+    private final Consumer consumer;
+    private final CompletableFuture<?> future;
+    private long sequence;
+    private String id;
+    private long sentNanos;
+
+    private ScheduledRequest(RequestPriority priority,
+                             String method,
+                             String supersedeKey,
+                             Function<String, JsonObject> requestFactory,
+                             Consumer consumer,
+                             CompletableFuture<?> future) {
+      this.priority = priority;
+      this.method = method;
+      this.supersedeKey = supersedeKey;
+      this.requestFactory = requestFactory;
+      this.consumer = consumer;
+      this.future = future;
+    }
+  }
+
+  /**
+   * Counts request latencies, from the moment a request is sent until its response is processed,
+   * in power-of-two millisecond buckets: bucket 0 counts latencies below 1 ms, bucket {@code i}
+   * counts latencies from {@code 2^(i-1)} ms up to {@code 2^i} ms, the last bucket counts all longer
+   * latencies.
+   */
+  public static final class LatencyHistogram {
+    public static final int BUCKET_COUNT = 18;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    void record(long nanos) {
+      long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+      int bucket = millis <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(millis);
+      buckets.incrementAndGet(Math.min(bucket, BUCKET_COUNT - 1));
+    }
+
+    public long getBucketCount(int bucket) {
+      return buckets.get(bucket);
+    }
+
+    /**
+     * @return the exclusive upper bound of latencies counted in the given bucket, in milliseconds,
+     *         or {@link Long#MAX_VALUE} for the last bucket
+     */
+    public static long getBucketUpperBoundMillis(int bucket) {
+      return bucket == BUCKET_COUNT - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    public long getTotalCount() {
+      long result = 0;
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        result += buckets.get(i);
+      }
+      return result;
+    }
+
+    /**
+     * @return the upper bound, in milliseconds, of the bucket containing the given percentile
+     *         (0..100) of recorded latencies, or 0 if nothing has been recorded
+     */
+    public long getPercentileUpperBoundMillis(double percentile) {
+      long total = getTotalCount();
+      if (total == 0) {
+        return 0;
+      }
+      long threshold = (long)Math.ceil(total * percentile / 100);
+      long count = 0;
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        count += buckets.get(i);
+        if (count >= threshold) {
+          return getBucketUpperBoundMillis(i);
+        }
+      }
+      return getBucketUpperBoundMillis(BUCKET_COUNT - 1);
+    }
+
+    @Override
+    public String toString() {
+      return "count=" + getTotalCount() +
+             ", p50<" + getPercentileUpperBoundMillis(50) + "ms" +
+             ", p90<" + getPercentileUpperBoundMillis(90) + "ms" +
+             ", p99<" + getPercentileUpperBoundMillis(99) + "ms";
+    }
+  }
+}
@@ -231,6 +231,23 @@ public class Outline {
     this.offset = offset;
   }
 
+  public JsonObject toJson() {
+    JsonObject jsonObject = new JsonObject();
+    jsonObject.add("element", element.toJson());
+    jsonObject.addProperty("offset", offset);
+    jsonObject.addProperty("length", length);
+    jsonObject.addProperty("codeOffset", codeOffset);
+    jsonObject.addProperty("codeLength", codeLength);
+    if (children != null && !children.isEmpty()) {
+      JsonArray jsonArrayChildren = new JsonArray();
+      for (Outline elt : children) {
+        jsonArrayChildren.add(elt.toJson());
+      }
+      jsonObject.add("children", jsonArrayChildren);
+    }
+    return jsonObject;
+  }
+
   @Override
   public String toString() {
     StringBuilder builder = new StringBuilder();
@@ -9,18 +9,21 @@ import jetbrains.communicator.core.transport.Transport;
 import jetbrains.communicator.core.users.User;
 import jetbrains.communicator.core.vfs.ProjectsData;
 import jetbrains.communicator.core.vfs.VFile;
+import jetbrains.communicator.core.vfs.VFileContentsCache;
 import jetbrains.communicator.ide.CanceledException;
 import jetbrains.communicator.ide.IDEFacade;
 import jetbrains.communicator.util.CommunicatorStrings;
 import jetbrains.communicator.util.UIUtil;
 import org.apache.log4j.Logger;
 import org.jdom.Element;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 public class Helper {
   private static final Logger LOG = Logger.getLogger(Helper.class);
+  private static final int CHUNK_ATTEMPTS = 3;
 
   private Helper() {
   }
@@ -57,30 +60,28 @@ public class Helper {
     return result[0];
   }
 
-  public static void fillVFileContent(final Transport transport, final User user, final VFile vFile, IDEFacade ideFacade) {
+  public static void fillVFileContent(final Transport transport, final User user, final VFile vFile, final IDEFacade ideFacade) {
     if (user.isOnline()) {
       try {
         UIUtil.run(ideFacade, CommunicatorStrings.getMsg("GetVFileContents.title"),
                    new Runnable() {
               @Override
               public void run() {
-
-                final Semaphore semaphore = new Semaphore(1);
-                try {
-                  semaphore.acquire();
-
-                  transport.sendXmlMessage(user, new GetVFileContentsXmlMessage(vFile) {
-                    @Override
-                    public void processResponse(Element responseElement) {
-                      super.processResponse(responseElement);
-                      semaphore.release();
-                    }
-                  });
-
-                  semaphore.tryAcquire(getWaitTimeout(), TimeUnit.MILLISECONDS);
-
-                } catch (InterruptedException ignored) {
-                  // noop
+                VFileContentsCache cache = new VFileContentsCache(ideFacade.getCacheDir());
+                GetVFileContentsXmlMessage message = receiveContents(transport, user, vFile, cache.getHash(user, vFile));
+                if (message == null) return;
+
+                if (message.isUnchanged()) {
+                  String contents = cache.getContents(user, vFile, message.getHash());
+                  if (contents != null) {
+                    vFile.setContents(contents);
+                    return;
+                  }
+                  // the cache entry is broken, request the whole contents
+                  message = receiveContents(transport, user, vFile, null);
+                }
+                if (message != null && message.getHash() != null && vFile.getContents() != null) {
+                  cache.put(user, vFile, message.getHash(), vFile.getContents());
                 }
               }
             });
@@ -101,6 +102,44 @@ public class Helper {
     }
   }
 
+  /**
+   * Requests contents chunk by chunk. A chunk which was not received, the first one as well, is requested again
+   * up to {@link #CHUNK_ATTEMPTS} times.
+   * @return the completed message, {@code null} if the transfer failed
+   */
+  @Nullable
+  private static GetVFileContentsXmlMessage receiveContents(Transport transport, User user, VFile vFile, @Nullable String knownHash) {
+    final Semaphore semaphore = new Semaphore(0);
+    GetVFileContentsXmlMessage message = new GetVFileContentsXmlMessage(vFile, knownHash) {
+      @Override
+      protected void responseProcessed() {
+        semaphore.release();
+      }
+    };
+
+    int attempts = 0;
+    try {
+      while (!message.isComplete()) {
+        int offset = message.getOffset();
+        semaphore.drainPermits();
+        transport.sendXmlMessage(user, message);
+        semaphore.tryAcquire(getWaitTimeout(), TimeUnit.MILLISECONDS);
+
+        if (message.getOffset() > offset) {
+          attempts = 0;
+        }
+        else if (!message.isComplete() && ++attempts >= CHUNK_ATTEMPTS) {
+          LOG.info("Unable to get contents of " + vFile + " from " + user + ", received " + offset + " bytes");
+          return null;
+        }
+      }
+    }
+    catch (InterruptedException ignored) {
+      return null;
+    }
+    return message;
+  }
+
   private static int getWaitTimeout() {
     return Pico.isUnitTest() ? 2000 : 120 * 1000;
   }
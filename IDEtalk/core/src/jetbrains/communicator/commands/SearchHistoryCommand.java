@@ -8,7 +8,7 @@ import jetbrains.communicator.core.users.User;
 import jetbrains.communicator.ide.IDEFacade;
 import jetbrains.communicator.util.CommunicatorStrings;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -32,13 +32,7 @@ public class SearchHistoryCommand implements UserCommand {
       CommunicatorStrings.getMsg("search"));
 
     if (searchString != null) {
-      LocalMessage[] localMessages = myMessageDispatcher.getHistory(myUser, null);
-      List<LocalMessage> result = new ArrayList<>();
-      for (LocalMessage message : localMessages) {
-        if (message.containsString(searchString)) {
-          result.add(message);
-        }
-      }
+      List<LocalMessage> result = Arrays.asList(myMessageDispatcher.findInHistory(myUser, searchString));
 
       if (result.size() == 0) {
         myIdeFacade.showMessage(CommunicatorStrings.getMsg("SearchHistoryCommand.search.history", myUser.getDisplayName()),
@@ -23,6 +23,9 @@ public interface LocalMessageDispatcher extends MessageDispatcher {
   /** Oldest messages go first */
   LocalMessage[] getHistory(User user, Date since);
 
+  /** Messages from history for which {@link LocalMessage#containsString(String)} is true, oldest messages go first */
+  LocalMessage[] findInHistory(User user, String searchString);
+
   void clearHistory();
   boolean isHistoryEmpty();
 }
@@ -11,12 +11,14 @@ import jetbrains.communicator.core.dispatcher.MessageDispatcher;
 import jetbrains.communicator.core.impl.users.UserImpl;
 import jetbrains.communicator.core.users.User;
 import jetbrains.communicator.core.users.UserEvent;
+import jetbrains.communicator.ide.IDEFacade;
 import jetbrains.communicator.util.XStreamUtil;
 import org.apache.log4j.Logger;
 import org.picocontainer.Disposable;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * @author Kir
@@ -26,14 +28,19 @@ public abstract class AbstractMessageDispatcher implements MessageDispatcher, Di
   private XStream myXStream;
 
   private final File myDataDir;
+  private final IDEFacade myIdeFacade;
   private final MyEventListener myEventListener;
 
   private final Object myUser2MessagesLock = new Object();
   private final Map<User, List<Message>> myUser2Messages = new HashMap<>();
   private final EventBroadcaster myEventBroadcaster;
 
-  protected AbstractMessageDispatcher(EventBroadcaster eventBroadcaster, File dataDir) {
-    myDataDir = dataDir;
+  private volatile MessagesJournal myJournal;
+  private final AtomicBoolean myCompactionScheduled = new AtomicBoolean();
+
+  protected AbstractMessageDispatcher(EventBroadcaster eventBroadcaster, IDEFacade ideFacade) {
+    myDataDir = ideFacade.getCacheDir();
+    myIdeFacade = ideFacade;
     myEventListener = new MyEventListener(eventBroadcaster);
     myEventBroadcaster = eventBroadcaster;
     load();
@@ -42,6 +49,7 @@ public abstract class AbstractMessageDispatcher implements MessageDispatcher, Di
   @Override
   public void dispose() {
     myEventListener.dispose();
+    flushJournal();
     LOG.debug("Disposed.");
   }
 
@@ -53,18 +61,28 @@ public abstract class AbstractMessageDispatcher implements MessageDispatcher, Di
     }
     boolean result = message.send(user);
 
+    Message removed = null;
     synchronized (myUser2MessagesLock) {
       List<Message> userMessages = getMessages(user);
       if (result) {
-        userMessages.remove(message);
+        int index = userMessages.indexOf(message);
+        if (index >= 0) {
+          removed = userMessages.remove(index);
+          getJournal().removed(user, removed);
+        }
         if (userMessages.size() == 0) {
           myUser2Messages.remove(user);
         }
       }
       else if (!userMessages.contains(message)) {
         userMessages.add(message);
+        getJournal().added(user, message);
       }
     }
+    flushJournal();
+    if (removed != null) {
+      pendingMessageRemoved(removed, true);
+    }
 
     if (LOG.isDebugEnabled()) {
       LOG.debug("End   dispatching " + message + " to " + user);
@@ -99,6 +117,17 @@ public abstract class AbstractMessageDispatcher implements MessageDispatcher, Di
     }
   }
 
+  /** Number of pending messages of all users */
+  public int getPendingMessagesCount() {
+    synchronized (myUser2MessagesLock) {
+      int result = 0;
+      for (List<Message> messages : myUser2Messages.values()) {
+        result += messages.size();
+      }
+      return result;
+    }
+  }
+
   @Override
   public EventBroadcaster getBroadcaster() {
     return myEventBroadcaster;
@@ -106,11 +135,7 @@ public abstract class AbstractMessageDispatcher implements MessageDispatcher, Di
 
   @Override
   public boolean sendNow(User user, Message message) {
-    boolean result = performDispatch(user, message);
-    if (result) {
-      save();
-    }
-    return result;
+    return performDispatch(user, message);
   }
 
   protected void addPendingMessage(User user, Message message) {
@@ -123,9 +148,41 @@ public abstract class AbstractMessageDispatcher implements MessageDispatcher, Di
           LOG.debug("Added pending message " + message + "\nfor user " + user);
         }
         userMessages.add(message);
-        save();
+        getJournal().added(user, message);
+      }
+    }
+    flushJournal();
+  }
+
+  protected void removePendingMessage(User user, int index) {
+    Message removed;
+    synchronized (myUser2MessagesLock) {
+      List<Message> userMessages = myUser2Messages.get(user);
+      if (userMessages == null || index < 0 || index >= userMessages.size()) return;
+
+      removed = userMessages.remove(index);
+      getJournal().removed(user, removed);
+      if (userMessages.isEmpty()) {
+        myUser2Messages.remove(user);
       }
     }
+    flushJournal();
+    pendingMessageRemoved(removed, false);
+  }
+
+  /**
+   * Called without locks held after a message is removed from pending messages: delivered, removed explicitly or
+   * together with its user. Not called for {@link #clearAll()}.
+   */
+  protected void pendingMessageRemoved(Message message, boolean delivered) {
+  }
+
+  protected void clearAll() {
+    synchronized (myUser2MessagesLock) {
+      myUser2Messages.clear();
+      getJournal().cleared();
+    }
+    flushJournal();
   }
 
   private List<Message> getMessages(User user) {
@@ -140,11 +197,10 @@ public abstract class AbstractMessageDispatcher implements MessageDispatcher, Di
   }
 
   protected final void load() {
+    Map<User, List<Message>> user2Messages = new HashMap<>();
+    getJournal().load(user2Messages);
     synchronized (myUser2MessagesLock) {
-      Object pendingEventsStorable = XStreamUtil.fromXml(getXStream(), getFileName(), false);
-      if (pendingEventsStorable instanceof MessagesStorable) {
-        loadFromStorableMessages((MessagesStorable)pendingEventsStorable);
-      }
+      loadFromStorableMessages(new MessagesStorable(user2Messages));
     }
   }
 
@@ -153,29 +209,71 @@ public abstract class AbstractMessageDispatcher implements MessageDispatcher, Di
     myUser2Messages.putAll(messagesStorable.getUser2Messages());
   }
 
-  private String getFileName() {
-    return new File(myDataDir, getEventsFileName()).getAbsolutePath();
+  private MessagesJournal getJournal() {
+    MessagesJournal journal = myJournal;
+    if (journal == null) {
+      synchronized (myUser2MessagesLock) {
+        journal = myJournal;
+        if (journal == null) {
+          journal = new MessagesJournal(new File(myDataDir, getEventsFileName()), getXStream());
+          myJournal = journal;
+        }
+      }
+    }
+    return journal;
   }
 
   private void removeUser(User user) {
+    List<Message> messages;
     synchronized (myUser2MessagesLock) {
-      myUser2Messages.remove(user);
-      save();
+      messages = myUser2Messages.remove(user);
+      if (messages != null) {
+        getJournal().userRemoved(user, messages);
+      }
+    }
+    flushJournal();
+    if (messages != null) {
+      for (Message message : messages) {
+        pendingMessageRemoved(message, false);
+      }
     }
   }
 
+  /** Writes changes to the journal and starts compaction in background when the journal is big enough */
+  private void flushJournal() {
+    if (getJournal().flush() && myCompactionScheduled.compareAndSet(false, true)) {
+      myIdeFacade.runOnPooledThread(() -> {
+        try {
+          save();
+        }
+        finally {
+          myCompactionScheduled.set(false);
+        }
+      });
+    }
+  }
+
+  /** Writes all pending messages at once and starts a new journal. The dispatcher lock is held only to copy the messages. */
   protected void save() {
     if (myDataDir == null || !myDataDir.exists()) return;
 
     LOG.debug("Save start");
-    synchronized (myUser2MessagesLock) {
-      XStreamUtil.toXml(getXStream(), getFileName(), createStorableMessages());
-    }
+    flushJournal();
+    getJournal().compact(() -> {
+      synchronized (myUser2MessagesLock) {
+        return createStorableMessages();
+      }
+    });
     LOG.debug("Save finish");
   }
 
+  /** Called under the dispatcher lock */
   protected MessagesStorable createStorableMessages() {
-    return new MessagesStorable(myUser2Messages);
+    Map<User, List<Message>> copy = new HashMap<>();
+    for (Map.Entry<User, List<Message>> entry : myUser2Messages.entrySet()) {
+      copy.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+    }
+    return getJournal().createStorable(copy, getJournal().getLastSequence());
   }
 
   private XStream getXStream() {
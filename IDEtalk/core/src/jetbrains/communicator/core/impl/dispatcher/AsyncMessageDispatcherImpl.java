@@ -1,6 +1,7 @@
 // Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
 package jetbrains.communicator.core.impl.dispatcher;
 
+import com.intellij.util.Time;
 import jetbrains.communicator.core.EventBroadcaster;
 import jetbrains.communicator.core.EventVisitor;
 import jetbrains.communicator.core.IDEtalkAdapter;
@@ -13,28 +14,83 @@ import jetbrains.communicator.ide.IDEFacade;
 import jetbrains.communicator.util.WaitFor;
 import org.apache.log4j.Logger;
 
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
+ * Delivers pending messages in background. The dispatcher thread passes users with pending messages to a pool of
+ * {@link #MAX_WORKERS} workers, so an unreachable user doesn't delay delivery to others. Messages of a user are
+ * delivered by one worker at a time in the order they were sent; delivery to the user stops at the first failed message.
+ * <p>
+ * After a failure the user is retried in {@link #INITIAL_RETRY_DELAY}, the delay doubles with each next failure up to
+ * {@link #MAX_RETRY_DELAY}. The delay is reset when the user becomes online or a message is delivered.
+ * <p>
+ * A worker checks for messages added during delivery under {@link #myWorkingThreadLock}, before it removes the user from
+ * {@link #myUsersInProgress}: the dispatcher thread skips users in progress, so a message added after the check but before
+ * the removal would otherwise wait for the next unrelated trigger.
+ *
  * @author Kir
  */
 public class AsyncMessageDispatcherImpl extends AbstractMessageDispatcher implements AsyncMessageDispatcher, Runnable {
   private static final Logger LOG = Logger.getLogger(AsyncMessageDispatcherImpl.class);
 
   private static final String FILE_NAME = "pendingNetworkMessages.xml";
+  static final int MAX_WORKERS = 4;
+  static final long INITIAL_RETRY_DELAY = 5 * Time.SECOND;
+  static final long MAX_RETRY_DELAY = 5 * Time.MINUTE;
+
   private final MyEventListener myEventListener;
   private final IDEFacade myIdeFacade;
+  private final ThreadPoolExecutor myWorkers;
 
   private final Object myWorkingThreadLock = new Object();
-  private Thread myWorkingThread;
+  private volatile Thread myWorkingThread;
   private Thread myThread;
 
   private boolean myShouldDeliverNow;
+  /** True while the dispatcher thread passes users to workers, guarded by {@link #myWorkingThreadLock} */
+  private boolean myDispatching;
+
+  /** Users passed to workers, guarded by {@link #myWorkingThreadLock} */
+  private final Set<User> myUsersInProgress = new HashSet<>();
+  /** Users to whom delivery failed, guarded by {@link #myWorkingThreadLock} */
+  private final Map<User, Backoff> myBackoffs = new HashMap<>();
+  /** When messages were passed to {@link #sendLater(User, Message)}, guarded by {@link #myWorkingThreadLock} */
+  private final Map<Message, Long> mySendTimes = new HashMap<>();
+
+  private final AtomicLong myDeliveredCount = new AtomicLong();
+  private final AtomicLong myTotalDeliveryLatency = new AtomicLong();
+  private final AtomicLong myMaxDeliveryLatency = new AtomicLong();
+
+  private static class Backoff {
+    private long myDelay = INITIAL_RETRY_DELAY;
+    private long myNextAttempt;
+
+    void failed() {
+      myNextAttempt = System.currentTimeMillis() + myDelay;
+      myDelay = Math.min(myDelay * 2, MAX_RETRY_DELAY);
+    }
+  }
 
   public AsyncMessageDispatcherImpl(EventBroadcaster broadcaster, IDEFacade ideFacade) {
-    super(broadcaster, ideFacade.getCacheDir());
+    super(broadcaster, ideFacade);
 
     myIdeFacade = ideFacade;
     myEventListener = new MyEventListener(broadcaster);
 
+    AtomicInteger threadNumber = new AtomicInteger();
+    myWorkers = new ThreadPoolExecutor(MAX_WORKERS, MAX_WORKERS, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<>(), r -> {
+      Thread thread = new Thread(r, "Network Message Dispatcher " + threadNumber.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    myWorkers.allowCoreThreadTimeOut(true);
+
     start();
   }
 
@@ -49,6 +105,13 @@ public class AsyncMessageDispatcherImpl extends AbstractMessageDispatcher implem
     return myThread != null && myThread.isAlive();
   }
 
+  /** True if delivery is requested or some messages are being delivered */
+  public boolean isMessageDispatchInProgress() {
+    synchronized (myWorkingThreadLock) {
+      return myShouldDeliverNow || myDispatching || !myUsersInProgress.isEmpty();
+    }
+  }
+
   @Override
   public void run() {
     LOG.debug("Starting " + Thread.currentThread().getName());
@@ -62,14 +125,24 @@ public class AsyncMessageDispatcherImpl extends AbstractMessageDispatcher implem
       while (notDisposed()) {
         synchronized(myWorkingThreadLock) {
           while (!myShouldDeliverNow && notDisposed()) {
-            myWorkingThreadLock.wait();
+            long timeout = getTimeToNextRetry();
+            if (timeout == 0) break;
+            myWorkingThreadLock.wait(timeout < 0 ? 0 : timeout);
           }
           myShouldDeliverNow = false;
+          myDispatching = true;
         }
         LOG.debug("Process pending network messages");
 
-        if (notDisposed()) {
-          dispatchAllMessages();
+        try {
+          if (notDisposed()) {
+            dispatchAllMessages();
+          }
+        }
+        finally {
+          synchronized (myWorkingThreadLock) {
+            myDispatching = false;
+          }
         }
       }
     } catch (InterruptedException e) {
@@ -86,16 +159,125 @@ public class AsyncMessageDispatcherImpl extends AbstractMessageDispatcher implem
     return myWorkingThread != null;
   }
 
+  /** Called under {@link #myWorkingThreadLock}. Returns -1 if no retries are scheduled, 0 if a retry is due */
+  private long getTimeToNextRetry() {
+    long result = -1;
+    long now = System.currentTimeMillis();
+    for (Map.Entry<User, Backoff> entry : myBackoffs.entrySet()) {
+      if (myUsersInProgress.contains(entry.getKey())) continue;
+      long timeout = Math.max(entry.getValue().myNextAttempt - now, 0);
+      if (result < 0 || timeout < result) {
+        result = timeout;
+      }
+    }
+    return result;
+  }
+
   private void dispatchAllMessages() {
+    long now = System.currentTimeMillis();
     User[] usersWithMessages = getUsersWithMessages();
-    for (int i = 0; i < usersWithMessages.length && isRunning(); i++) {
-      User user = usersWithMessages[i];
+    synchronized (myWorkingThreadLock) {
+      // users without messages are not retried
+      myBackoffs.keySet().retainAll(Arrays.asList(usersWithMessages));
+    }
+    for (final User user : usersWithMessages) {
+      synchronized (myWorkingThreadLock) {
+        if (!notDisposed()) return;
+        Backoff backoff = myBackoffs.get(user);
+        if (backoff != null && backoff.myNextAttempt > now) continue;
+        if (!myUsersInProgress.add(user)) continue;
+      }
+      try {
+        myWorkers.execute(() -> dispatchMessages(user));
+      }
+      catch (RejectedExecutionException e) {
+        // disposed
+        synchronized (myWorkingThreadLock) {
+          myUsersInProgress.remove(user);
+        }
+        return;
+      }
+    }
+  }
+
+  /** Runs in a worker, delivers messages of the user in order until one of them fails */
+  private void dispatchMessages(User user) {
+    boolean failed = false;
+    try {
       Message[] pendingMessages = getPendingMessages(user);
-      for (int j = 0; j < pendingMessages.length && isRunning(); j++) {
-        performDispatch(user, pendingMessages[j]);
+      for (int i = 0; i < pendingMessages.length && notDisposed() && !failed; i++) {
+        if (!performDispatch(user, pendingMessages[i])) {
+          failed = true;
+        }
+      }
+    }
+    catch (RuntimeException e) {
+      LOG.error("Error delivering messages to " + user + ": " + e.getMessage(), e);
+      failed = true;
+    }
+    finally {
+      synchronized (myWorkingThreadLock) {
+        // messages could be added during delivery
+        boolean hasMoreMessages = !failed && getPendingMessages(user).length > 0;
+        myUsersInProgress.remove(user);
+        if (failed) {
+          Backoff backoff = myBackoffs.get(user);
+          if (backoff == null) {
+            backoff = new Backoff();
+            myBackoffs.put(user, backoff);
+          }
+          backoff.failed();
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("Delivery to " + user + " failed, next attempt in " + (backoff.myNextAttempt - System.currentTimeMillis()) + " ms");
+          }
+        }
+        else {
+          myBackoffs.remove(user);
+        }
+        myShouldDeliverNow |= hasMoreMessages;
+        myWorkingThreadLock.notifyAll();
       }
     }
-    save();
+  }
+
+  @Override
+  protected void pendingMessageRemoved(Message message, boolean delivered) {
+    Long sendTime;
+    synchronized (myWorkingThreadLock) {
+      sendTime = mySendTimes.remove(message);
+    }
+    if (!delivered || sendTime == null) return;
+
+    long latency = System.currentTimeMillis() - sendTime.longValue();
+    myDeliveredCount.incrementAndGet();
+    myTotalDeliveryLatency.addAndGet(latency);
+    myMaxDeliveryLatency.accumulateAndGet(latency, Math::max);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Delivered " + message + " in " + latency + " ms, pending messages: " + getPendingMessagesCount());
+    }
+  }
+
+  /** Number of messages delivered after {@link #sendLater(User, Message)} */
+  public long getDeliveredCount() {
+    return myDeliveredCount.get();
+  }
+
+  /** Average time from {@link #sendLater(User, Message)} to delivery, ms */
+  public long getAverageDeliveryLatency() {
+    long count = myDeliveredCount.get();
+    return count == 0 ? 0 : myTotalDeliveryLatency.get() / count;
+  }
+
+  /** Maximal time from {@link #sendLater(User, Message)} to delivery, ms */
+  public long getMaxDeliveryLatency() {
+    return myMaxDeliveryLatency.get();
+  }
+
+  /** Number of users whose messages are being delivered */
+  public int getActiveWorkers() {
+    synchronized (myWorkingThreadLock) {
+      return myUsersInProgress.size();
+    }
   }
 
   @Override
@@ -106,10 +288,11 @@ public class AsyncMessageDispatcherImpl extends AbstractMessageDispatcher implem
       myWorkingThread = null;
       myWorkingThreadLock.notifyAll();
     }
+    myWorkers.shutdown();
     new WaitFor(10000){
       @Override
       protected boolean condition() {
-        return !isRunning();
+        return !isRunning() && myWorkers.isTerminated();
       }
     };
 
@@ -123,9 +306,23 @@ public class AsyncMessageDispatcherImpl extends AbstractMessageDispatcher implem
 
   @Override
   public void sendLater(User user, Message message) {
-    synchronized(myWorkingThreadLock) {
-      addPendingMessage(user, message);
-      triggerDelivery();
+    if (message != null) {
+      synchronized (myWorkingThreadLock) {
+        if (!mySendTimes.containsKey(message)) {
+          mySendTimes.put(message, System.currentTimeMillis());
+        }
+      }
+    }
+    addPendingMessage(user, message);
+    triggerDelivery();
+  }
+
+  @Override
+  protected void clearAll() {
+    super.clearAll();
+    synchronized (myWorkingThreadLock) {
+      mySendTimes.clear();
+      myBackoffs.clear();
     }
   }
 
@@ -141,6 +338,13 @@ public class AsyncMessageDispatcherImpl extends AbstractMessageDispatcher implem
     }
   }
 
+  private void userOnline(User user) {
+    synchronized (myWorkingThreadLock) {
+      myBackoffs.remove(user);
+    }
+    triggerDelivery();
+  }
+
   private class MyEventListener extends IDEtalkAdapter {
     private final EventBroadcaster myBroadcaster;
 
@@ -157,7 +361,13 @@ public class AsyncMessageDispatcherImpl extends AbstractMessageDispatcher implem
     public void afterChange(IDEtalkEvent event) {
       event.accept(new EventVisitor(){
         @Override public void visitUserOnline(UserEvent.Online online) {
-          triggerDelivery();
+          userOnline(online.getUser());
+        }
+
+        @Override public void visitUserRemoved(UserEvent.Removed removed) {
+          synchronized (myWorkingThreadLock) {
+            myBackoffs.remove(removed.getUser());
+          }
         }
       });
     }
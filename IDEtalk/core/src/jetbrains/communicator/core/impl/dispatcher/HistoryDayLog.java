@@ -0,0 +1,559 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package jetbrains.communicator.core.impl.dispatcher;
+
+import com.google.common.io.CountingInputStream;
+import com.thoughtworks.xstream.XStream;
+import gnu.trove.THashMap;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntHashSet;
+import jetbrains.communicator.core.dispatcher.LocalMessage;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * History of a single day: an append-only log of XStream-serialized messages and an index of the log.
+ * The index keeps the offsets of messages of every user and an inverted index of the words in them,
+ * so history of a user or search results are read without deserializing the rest of the day.
+ * <p>
+ * Log record: {@code long when, UTF user, int length, byte[length] message XML}.
+ * <p>
+ * The index is append-only too: {@code int version} followed by one block per save, which describes only the records
+ * appended by that save: {@code long covered log length, int user count, UTF[] users, int entry count,
+ * (long offset, long when, int user)[] entries, int token count, (UTF token, int count, int[count] entries)[] postings}.
+ * Missing entries are indexed from the log, e.g. after a crash; an incomplete last block is cut off.
+ * <p>
+ * Not thread safe, guarded by {@link MessageHistory}.
+ *
+ * @author Kir
+ */
+class HistoryDayLog {
+  @NonNls
+  private static final Logger LOG = Logger.getLogger(HistoryDayLog.class);
+
+  private static final int INDEX_VERSION = 2;
+
+  private final File myLogFile;
+  private final File myIndexFile;
+
+  private final List<Entry> myEntries = new ArrayList<>();
+  private final Map<String, TIntArrayList> myUserToEntries = new THashMap<>();
+  private final Map<String, TIntArrayList> myTokenToEntries = new THashMap<>();
+  /** Postings of written entries which are not in the index file yet */
+  private final Map<String, TIntArrayList> myUnindexedTokens = new THashMap<>();
+  /** Entries before this one are written to the log */
+  private int myWrittenCount;
+  /** Entries before this one are in the index file */
+  private int myIndexedCount;
+  private long myLogLength;
+  /** Length of the valid part of the index file, 0 if the index file has to be written from scratch */
+  private long myIndexLength;
+  private boolean myLoaded;
+
+  private static class Entry {
+    private final String myUser;
+    private final long myWhen;
+    private long myOffset;
+    private LocalMessage myMessage;
+
+    private Entry(String user, long when, long offset, @Nullable LocalMessage message) {
+      myUser = user;
+      myWhen = when;
+      myOffset = offset;
+      myMessage = message;
+    }
+  }
+
+  HistoryDayLog(File logFile, File indexFile) {
+    myLogFile = logFile;
+    myIndexFile = indexFile;
+  }
+
+  public void addMessage(String user, LocalMessage message) {
+    ensureLoaded();
+    addEntry(new Entry(user, message.getWhen().getTime(), -1, message));
+  }
+
+  public boolean hasUnsavedMessages() {
+    return myWrittenCount < myEntries.size();
+  }
+
+  /** Messages of the user sent or received after {@code since}, in the order they were added */
+  public List<LocalMessage> getMessages(String user, long since, XStream xStream) {
+    ensureLoaded();
+    TIntArrayList entries = myUserToEntries.get(user);
+    if (entries == null) return Collections.emptyList();
+
+    TIntArrayList result = new TIntArrayList(entries.size());
+    for (int i = 0; i < entries.size(); i++) {
+      if (myEntries.get(entries.get(i)).myWhen > since) {
+        result.add(entries.get(i));
+      }
+    }
+    return readMessages(result, xStream);
+  }
+
+  /** Messages of the user for which {@link LocalMessage#containsString(String)} is true */
+  public List<LocalMessage> findMessages(String user, String searchString, XStream xStream) {
+    ensureLoaded();
+    TIntArrayList entries = myUserToEntries.get(user);
+    if (entries == null) return Collections.emptyList();
+
+    TIntHashSet candidates = findCandidates(searchString);
+    TIntArrayList toRead = new TIntArrayList(entries.size());
+    for (int i = 0; i < entries.size(); i++) {
+      int entry = entries.get(i);
+      if (entry >= myWrittenCount || candidates == null || candidates.contains(entry)) {
+        toRead.add(entry);
+      }
+    }
+
+    List<LocalMessage> result = new ArrayList<>();
+    for (LocalMessage message : readMessages(toRead, xStream)) {
+      if (message.containsString(searchString)) {
+        result.add(message);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Written entries which may contain the search string, {@code null} if any of them may.
+   * A message containing the string contains all the words of it, except the first and the last ones which may be parts of longer words.
+   */
+  @Nullable
+  private TIntHashSet findCandidates(String searchString) {
+    TIntHashSet result = null;
+    for (Token token : tokenize(searchString)) {
+      boolean atStart = token.myStart == 0;
+      boolean atEnd = token.myEnd == searchString.length();
+
+      TIntHashSet matching = new TIntHashSet();
+      if (!atStart && !atEnd) {
+        addAll(matching, myTokenToEntries.get(token.myText));
+      }
+      else {
+        for (Map.Entry<String, TIntArrayList> entry : myTokenToEntries.entrySet()) {
+          String word = entry.getKey();
+          if (atStart && atEnd ? word.contains(token.myText) :
+              atStart ? word.endsWith(token.myText) : word.startsWith(token.myText)) {
+            addAll(matching, entry.getValue());
+          }
+        }
+      }
+
+      if (result != null) {
+        matching.retainAll(result.toArray());
+      }
+      result = matching;
+      if (result.isEmpty()) break;
+    }
+    return result;
+  }
+
+  private static void addAll(TIntHashSet set, @Nullable TIntArrayList list) {
+    if (list != null) {
+      set.addAll(list.toNativeArray());
+    }
+  }
+
+  /** True if a written message of the user has the same time and XML, lets an interrupted import be repeated */
+  public boolean containsWrittenMessage(String user, LocalMessage message, XStream xStream) {
+    ensureLoaded();
+    TIntArrayList entries = myUserToEntries.get(user);
+    if (entries == null) return false;
+
+    long when = message.getWhen().getTime();
+    TIntArrayList sameTime = new TIntArrayList();
+    for (int i = 0; i < entries.size(); i++) {
+      if (entries.get(i) < myWrittenCount && myEntries.get(entries.get(i)).myWhen == when) {
+        sameTime.add(entries.get(i));
+      }
+    }
+    if (sameTime.isEmpty()) return false;
+
+    String xml = xStream.toXML(message);
+    try (RandomAccessFile file = new RandomAccessFile(myLogFile, "r")) {
+      for (int i = 0; i < sameTime.size(); i++) {
+        if (xml.equals(readXml(file, myEntries.get(sameTime.get(i)).myOffset))) return true;
+      }
+    }
+    catch (IOException e) {
+      LOG.info("Error reading " + myLogFile, e);
+    }
+    return false;
+  }
+
+  private List<LocalMessage> readMessages(TIntArrayList entries, XStream xStream) {
+    List<LocalMessage> result = new ArrayList<>(entries.size());
+    RandomAccessFile file = null;
+    try {
+      for (int i = 0; i < entries.size(); i++) {
+        Entry entry = myEntries.get(entries.get(i));
+        if (entry.myMessage == null) {
+          if (file == null) {
+            file = new RandomAccessFile(myLogFile, "r");
+          }
+          entry.myMessage = readMessage(file, entry.myOffset, xStream);
+        }
+        if (entry.myMessage != null) {
+          result.add(entry.myMessage);
+        }
+      }
+    }
+    catch (IOException e) {
+      LOG.info("Error reading " + myLogFile, e);
+    }
+    finally {
+      if (file != null) {
+        try {
+          file.close();
+        }
+        catch (IOException e) {
+          LOG.info(e.getMessage(), e);
+        }
+      }
+    }
+    return result;
+  }
+
+  @Nullable
+  private LocalMessage readMessage(RandomAccessFile file, long offset, XStream xStream) throws IOException {
+    String xml = readXml(file, offset);
+    try {
+      return (LocalMessage)xStream.fromXML(xml);
+    }
+    catch (Throwable e) {
+      // a message of a class which is changed or not available any more
+      LOG.info("Error reading message from " + myLogFile + " at " + offset, e);
+      return null;
+    }
+  }
+
+  private static String readXml(RandomAccessFile file, long offset) throws IOException {
+    file.seek(offset);
+    file.readLong();
+    file.readUTF();
+    byte[] xml = new byte[file.readInt()];
+    file.readFully(xml);
+    return new String(xml, StandardCharsets.UTF_8);
+  }
+
+  /** Appends the unsaved messages to the log and their entries to the index */
+  public void save(XStream xStream) throws IOException {
+    if (!hasUnsavedMessages()) return;
+
+    if (myLogFile.length() > myLogLength) {
+      // the previous save failed in the middle of a record
+      truncateLog();
+    }
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(myLogFile, true)))) {
+      while (myWrittenCount < myEntries.size()) {
+        Entry entry = myEntries.get(myWrittenCount);
+        String xml = xStream.toXML(entry.myMessage);
+        byte[] bytes = xml.getBytes(StandardCharsets.UTF_8);
+        int start = out.size();
+
+        out.writeLong(entry.myWhen);
+        out.writeUTF(entry.myUser);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+
+        entry.myOffset = myLogLength;
+        myLogLength += out.size() - start;
+        indexTokens(myWrittenCount, xml);
+        myWrittenCount++;
+      }
+    }
+
+    appendIndex();
+  }
+
+  private void ensureLoaded() {
+    if (myLoaded) return;
+    myLoaded = true;
+
+    long logLength = myLogFile.length();
+    if (!loadIndex(logLength)) {
+      myEntries.clear();
+      myUserToEntries.clear();
+      myTokenToEntries.clear();
+      myUnindexedTokens.clear();
+      myWrittenCount = 0;
+      myIndexedCount = 0;
+      myLogLength = 0;
+      myIndexLength = 0;
+    }
+
+    if (myLogLength < logLength) {
+      scanLog();
+      appendIndex();
+    }
+  }
+
+  private boolean loadIndex(long logLength) {
+    if (!myIndexFile.isFile()) return false;
+
+    long indexFileLength = myIndexFile.length();
+    try (CountingInputStream counting = new CountingInputStream(new BufferedInputStream(new FileInputStream(myIndexFile)))) {
+      DataInputStream in = new DataInputStream(counting);
+      if (in.readInt() != INDEX_VERSION) return false;
+      myIndexLength = counting.getCount();
+
+      while (counting.getCount() < indexFileLength) {
+        try {
+          if (!readIndexBlock(in, logLength)) break;
+        }
+        catch (EOFException e) {
+          // the last save failed in the middle of a block
+          break;
+        }
+        myIndexLength = counting.getCount();
+      }
+      return true;
+    }
+    catch (IOException | RuntimeException e) {
+      LOG.info("Error reading " + myIndexFile + ", will be rebuilt", e);
+      return false;
+    }
+  }
+
+  /** Reads a block completely before adding its entries, returns false if the block covers more than the log */
+  private boolean readIndexBlock(DataInputStream in, long logLength) throws IOException {
+    long coveredLength = in.readLong();
+
+    String[] users = new String[in.readInt()];
+    for (int i = 0; i < users.length; i++) {
+      users[i] = in.readUTF();
+    }
+
+    Entry[] entries = new Entry[in.readInt()];
+    for (int i = 0; i < entries.length; i++) {
+      long offset = in.readLong();
+      long when = in.readLong();
+      entries[i] = new Entry(users[in.readInt()], when, offset, null);
+    }
+
+    Map<String, int[]> postings = new THashMap<>();
+    int tokenCount = in.readInt();
+    for (int i = 0; i < tokenCount; i++) {
+      String token = in.readUTF();
+      int[] tokenEntries = new int[in.readInt()];
+      for (int j = 0; j < tokenEntries.length; j++) {
+        tokenEntries[j] = in.readInt();
+      }
+      postings.put(token, tokenEntries);
+    }
+
+    if (coveredLength > logLength) return false;
+
+    for (Entry entry : entries) {
+      addEntry(entry);
+    }
+    for (Map.Entry<String, int[]> posting : postings.entrySet()) {
+      TIntArrayList tokenEntries = myTokenToEntries.get(posting.getKey());
+      if (tokenEntries == null) {
+        tokenEntries = new TIntArrayList(posting.getValue().length);
+        myTokenToEntries.put(posting.getKey(), tokenEntries);
+      }
+      tokenEntries.add(posting.getValue());
+    }
+    myWrittenCount = myEntries.size();
+    myIndexedCount = myEntries.size();
+    myLogLength = coveredLength;
+    return true;
+  }
+
+  /** Indexes log records after {@link #myLogLength}, a truncated record left by a crash is cut off */
+  private void scanLog() {
+    long fileLength = myLogFile.length();
+    try (CountingInputStream counting = new CountingInputStream(new BufferedInputStream(new FileInputStream(myLogFile)))) {
+      DataInputStream in = new DataInputStream(counting);
+      while (counting.getCount() < myLogLength) {
+        if (in.skip(myLogLength - counting.getCount()) <= 0) throw new EOFException();
+      }
+
+      while (true) {
+        long when;
+        String user;
+        byte[] xml;
+        try {
+          when = in.readLong();
+          user = in.readUTF();
+          int length = in.readInt();
+          if (length < 0 || length > fileLength - counting.getCount()) break;
+          xml = new byte[length];
+          in.readFully(xml);
+        }
+        catch (EOFException e) {
+          break;
+        }
+
+        addEntry(new Entry(user, when, myLogLength, null));
+        indexTokens(myWrittenCount, new String(xml, StandardCharsets.UTF_8));
+        myWrittenCount++;
+        myLogLength = counting.getCount();
+      }
+    }
+    catch (IOException | RuntimeException e) {
+      LOG.info("Error reading " + myLogFile, e);
+    }
+
+    if (fileLength > myLogLength) {
+      LOG.info("Truncating incomplete record in " + myLogFile);
+      truncateLog();
+    }
+  }
+
+  private void truncateLog() {
+    try (RandomAccessFile file = new RandomAccessFile(myLogFile, "rw")) {
+      file.setLength(myLogLength);
+    }
+    catch (IOException e) {
+      LOG.info(e.getMessage(), e);
+    }
+  }
+
+  /** Appends entries written to the log since the last call to the index, or writes the whole index if there is no valid one */
+  private void appendIndex() {
+    if (myIndexedCount == myWrittenCount) return;
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      DataOutputStream out = new DataOutputStream(bytes);
+      if (myIndexLength == 0) {
+        out.writeInt(INDEX_VERSION);
+        // postings of all entries are written below
+        myIndexedCount = 0;
+      }
+      writeIndexBlock(out);
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e); // not expected from a byte array
+    }
+
+    //noinspection ResultOfMethodCallIgnored
+    myIndexFile.getParentFile().mkdirs();
+    try (RandomAccessFile file = new RandomAccessFile(myIndexFile, "rw")) {
+      // cuts off an incomplete block or an index of a different version
+      file.setLength(myIndexLength);
+      file.seek(myIndexLength);
+      file.write(bytes.toByteArray());
+      myIndexLength += bytes.size();
+      myIndexedCount = myWrittenCount;
+      myUnindexedTokens.clear();
+    }
+    catch (IOException e) {
+      LOG.info("Error writing " + myIndexFile, e);
+      //noinspection ResultOfMethodCallIgnored
+      myIndexFile.delete();
+      myIndexLength = 0;
+      myIndexedCount = 0;
+      myUnindexedTokens.clear();
+    }
+  }
+
+  private void writeIndexBlock(DataOutputStream out) throws IOException {
+    out.writeLong(myLogLength);
+
+    Map<String, Integer> userIds = new LinkedHashMap<>();
+    for (int i = myIndexedCount; i < myWrittenCount; i++) {
+      String user = myEntries.get(i).myUser;
+      if (!userIds.containsKey(user)) {
+        userIds.put(user, userIds.size());
+      }
+    }
+    out.writeInt(userIds.size());
+    for (String user : userIds.keySet()) {
+      out.writeUTF(user);
+    }
+
+    out.writeInt(myWrittenCount - myIndexedCount);
+    for (int i = myIndexedCount; i < myWrittenCount; i++) {
+      Entry entry = myEntries.get(i);
+      out.writeLong(entry.myOffset);
+      out.writeLong(entry.myWhen);
+      out.writeInt(userIds.get(entry.myUser));
+    }
+
+    Map<String, TIntArrayList> postings = myIndexedCount == 0 ? myTokenToEntries : myUnindexedTokens;
+    out.writeInt(postings.size());
+    for (Map.Entry<String, TIntArrayList> posting : postings.entrySet()) {
+      out.writeUTF(posting.getKey());
+      TIntArrayList entries = posting.getValue();
+      out.writeInt(entries.size());
+      for (int i = 0; i < entries.size(); i++) {
+        out.writeInt(entries.get(i));
+      }
+    }
+  }
+
+  private void addEntry(Entry entry) {
+    myEntries.add(entry);
+    TIntArrayList entries = myUserToEntries.get(entry.myUser);
+    if (entries == null) {
+      entries = new TIntArrayList();
+      myUserToEntries.put(entry.myUser, entries);
+    }
+    entries.add(myEntries.size() - 1);
+  }
+
+  private void indexTokens(int entry, String xml) {
+    Set<String> words = new HashSet<>();
+    for (Token token : tokenize(xml)) {
+      if (words.add(token.myText)) {
+        addPosting(myTokenToEntries, token.myText, entry);
+        addPosting(myUnindexedTokens, token.myText, entry);
+      }
+    }
+  }
+
+  private static void addPosting(Map<String, TIntArrayList> postings, String token, int entry) {
+    TIntArrayList entries = postings.get(token);
+    if (entries == null) {
+      entries = new TIntArrayList(1);
+      postings.put(token, entries);
+    }
+    entries.add(entry);
+  }
+
+  private static class Token {
+    private final String myText;
+    private final int myStart;
+    private final int myEnd;
+
+    private Token(String text, int start, int end) {
+      myText = text;
+      myStart = start;
+      myEnd = end;
+    }
+  }
+
+  /**
+   * Words of letters and digits, lower case. Characters are lowered one by one, so a substring of a string
+   * is still a substring in lower case. XML entities start and end with non-letters, so escaping doesn't change the words.
+   */
+  private static List<Token> tokenize(String text) {
+    List<Token> result = new ArrayList<>();
+    int start = -1;
+    for (int i = 0; i <= text.length(); i++) {
+      boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+      if (letter && start < 0) {
+        start = i;
+      }
+      else if (!letter && start >= 0) {
+        char[] chars = new char[i - start];
+        for (int j = 0; j < chars.length; j++) {
+          chars[j] = Character.toLowerCase(text.charAt(start + j));
+        }
+        result.add(new Token(new String(chars), start, i));
+        start = -1;
+      }
+    }
+    return result;
+  }
+}
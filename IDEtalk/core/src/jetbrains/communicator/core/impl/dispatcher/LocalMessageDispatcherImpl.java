@@ -32,7 +32,7 @@ public class LocalMessageDispatcherImpl extends AbstractMessageDispatcher implem
   private final MessageHistory myHistory;
 
   public LocalMessageDispatcherImpl(EventBroadcaster eventBroadcaster, IDEFacade facade, UserModel userModel) {
-    super(eventBroadcaster, facade.getCacheDir());
+    super(eventBroadcaster, facade);
 
     myFacade = facade;
     myUserModel = userModel;
@@ -100,6 +100,11 @@ public class LocalMessageDispatcherImpl extends AbstractMessageDispatcher implem
     return myHistory.getHistory(user, since);
   }
 
+  @Override
+  public LocalMessage[] findInHistory(User user, String searchString) {
+    return myHistory.findMessages(user, searchString);
+  }
+
   @Override
   public void clearHistory() {
     myHistory.clear();
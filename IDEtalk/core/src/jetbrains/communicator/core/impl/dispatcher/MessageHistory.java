@@ -14,12 +14,16 @@ import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
+import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.Future;
 
 /**
+ * Message history, one {@link HistoryDayLog} per day. Days are loaded lazily, only those requested by
+ * {@link #getHistory(User, Date)}, and only messages of the requested user are deserialized.
+ *
  * @author Kir
  */
 class MessageHistory {
@@ -29,8 +33,17 @@ class MessageHistory {
   public static final long SAVE_TIMEOUT = 300;
   @NonNls
   private static final String HISTORY = "history";
+  @NonNls
+  private static final String HISTORY_INDEX = "historyIndex";
+  @NonNls
+  private static final String LOG_EXTENSION = ".log";
+  @NonNls
+  private static final String XML_EXTENSION = ".xml";
+  /** Appended to the name of an XML history file while it is imported */
+  @NonNls
+  private static final String IMPORTING_EXTENSION = ".importing";
 
-  private final DayHistory myHistory = new DayHistory();
+  private final SortedMap<Date, HistoryDayLog> myDays = new TreeMap<>();
   @NonNls
   private final XStream myXStream;
   private final UserModel myUserModel;
@@ -50,7 +63,7 @@ class MessageHistory {
     myXStream = XStreamUtil.createXStream();
     setupXStream();
 
-    loadHistorySince(new Date());
+    importXmlHistory();
   }
 
   public synchronized void dispose() {
@@ -59,7 +72,7 @@ class MessageHistory {
       myPendingSave = null;
     }
 
-    myHistory.clear();
+    myDays.clear();
   }
 
   private void setupXStream() {
@@ -71,23 +84,26 @@ class MessageHistory {
   }
 
   public synchronized void addMessage(User user, LocalMessage message) {
-    myHistory.addMessage(user, message);
+    getDayLog(TimeUtil.getDay(message.getWhen())).addMessage(getUserKey(user), message);
     triggerSave();
   }
 
   public synchronized void clear() {
-    myHistory.clear();
+    myDays.clear();
 
     deleteAllHistoryFiles();
   }
 
   private void deleteAllHistoryFiles() {
-    File historyDir = getHistoryDir();
     Thread thread = Thread.currentThread();
 
-    for (File file : historyDir.listFiles()) {
-      if (thread.isInterrupted()) return;
-      file.delete();
+    for (File dir : new File[]{getHistoryDir(), getHistoryIndexDir()}) {
+      File[] files = dir.listFiles();
+      if (files == null) continue;
+      for (File file : files) {
+        if (thread.isInterrupted()) return;
+        file.delete();
+      }
     }
   }
 
@@ -95,69 +111,126 @@ class MessageHistory {
     return new File(myFacade.getCacheDir(), HISTORY);
   }
 
+  private File getHistoryIndexDir() {
+    return new File(myFacade.getCacheDir(), HISTORY_INDEX);
+  }
+
   public synchronized LocalMessage[] getHistory(User user, @Nullable Date since) {
-    loadHistorySince(since);
+    String userKey = getUserKey(user);
+    long sinceTime = since == null ? Long.MIN_VALUE : since.getTime();
+
+    List<LocalMessage> result = new ArrayList<>();
+    for (HistoryDayLog dayLog : getDayLogsSince(since)) {
+      result.addAll(dayLog.getMessages(userKey, sinceTime, myXStream));
+    }
+    sortByDate(result);
+    return result.toArray(new LocalMessage[0]);
+  }
 
-    List<LocalMessage> list = filterHistoryByDate(user, since);
-    return list.toArray(new LocalMessage[0]);
+  /** Messages of the user for which {@link LocalMessage#containsString(String)} is true, oldest go first */
+  public synchronized LocalMessage[] findMessages(User user, String searchString) {
+    String userKey = getUserKey(user);
+
+    List<LocalMessage> result = new ArrayList<>();
+    for (HistoryDayLog dayLog : getDayLogsSince(null)) {
+      result.addAll(dayLog.findMessages(userKey, searchString, myXStream));
+    }
+    sortByDate(result);
+    return result.toArray(new LocalMessage[0]);
+  }
+
+  private static void sortByDate(List<LocalMessage> messages) {
+    Collections.sort(messages, (o1, o2) -> o1.getWhen().compareTo(o2.getWhen()));
   }
 
-  private List<LocalMessage> filterHistoryByDate(User user, Date since) {
-    List<LocalMessage> list = myHistory.readMessages(user);
-    if (since != null) {
-      List<LocalMessage> result = new ArrayList<>(list.size());
-      for (LocalMessage message : list) {
-        if (message.getWhen().after(since)) {
-          result.add(message);
+  private Collection<HistoryDayLog> getDayLogsSince(@Nullable Date since) {
+    String[] logFiles = getHistoryDir().list((dir, name) -> name.endsWith(LOG_EXTENSION));
+    if (logFiles != null) {
+      for (String logFile : logFiles) {
+        Date day = parseDate(logFile);
+        if (day != null) {
+          getDayLog(day);
         }
       }
-      list = result;
     }
-    return list;
+
+    return since == null ? myDays.values() : myDays.tailMap(TimeUtil.getDay(since)).values();
   }
 
-  private void loadHistorySince(@Nullable Date since) {
-    if (since != null) {
-      since = TimeUtil.getDay(since);
+  private HistoryDayLog getDayLog(Date day) {
+    HistoryDayLog dayLog = myDays.get(day);
+    if (dayLog == null) {
+      String name = DATE_FORMAT.format(day);
+      dayLog = new HistoryDayLog(new File(getHistoryDir(), name + LOG_EXTENSION), new File(getHistoryIndexDir(), name + ".idx"));
+      myDays.put(day, dayLog);
     }
+    return dayLog;
+  }
 
-    if (!myHistory.hasHistorySince(since)) {
-      if (since == null) {
-        doLoadHistorySince(new Date(0));
-        myHistory.setHasFullHistory();
-      }
-      else {
-        doLoadHistorySince(since);
-      }
+  @Nullable
+  private static Date parseDate(String fileName) {
+    try {
+      return DATE_FORMAT.parse(fileName);
+    }
+    catch (ParseException | NumberFormatException e) {
+      // ignore file of wrong format
+      return null;
     }
   }
 
-  private void doLoadHistorySince(Date since) {
-    File historyDir = getHistoryDir();
+  private static String getUserKey(User user) {
+    return user.getTransportCode() + ':' + user.getName();
+  }
 
-    String[] historyFiles = historyDir.list((dir, name) -> name.endsWith(".xml"));
-
-    Arrays.sort(historyFiles);
-    for (int i = historyFiles.length - 1; i >= 0; i--) {
-      String historyFile = historyFiles[i];
-      try {
-        Date date = DATE_FORMAT.parse(historyFile);
-        if (!date.before(since) && !myHistory.hasHistorySince(date)) {
-          DayHistory dayHistory = (DayHistory)XStreamUtil.fromXml(myXStream, myFacade.getCacheDir(), getFileNameForDate(date), false);
-          if (dayHistory != null) {
-            dayHistory.copyTo(myHistory);
-          }
+  /**
+   * Moves history saved by previous versions, one XML file per day, to the day logs. A file is renamed before its messages
+   * are added, so if the import is interrupted, e.g. between saving the day logs and deleting the file, the next import
+   * knows it is resumed and skips messages which are already in the logs.
+   */
+  private void importXmlHistory() {
+    String[] historyFiles = getHistoryDir().list((dir, name) -> name.endsWith(XML_EXTENSION) || name.endsWith(IMPORTING_EXTENSION));
+    if (historyFiles == null || historyFiles.length == 0) return;
+
+    LOG.info("Importing " + historyFiles.length + " history files");
+    for (String historyFile : historyFiles) {
+      Date date = parseDate(historyFile);
+      if (date == null) continue;
+
+      File file = new File(getHistoryDir(), historyFile);
+      boolean resumed = historyFile.endsWith(IMPORTING_EXTENSION);
+      if (!resumed) {
+        File importing = new File(getHistoryDir(), historyFile + IMPORTING_EXTENSION);
+        if (!file.renameTo(importing)) {
+          LOG.error("Unable to import history from " + file + ": cannot rename it to " + importing);
+          continue;
         }
+        file = importing;
       }
-      catch (ParseException e) {
-        // ignore file of wrong format
-      }
-      catch (NumberFormatException e) {
-        // ignore file of wrong format
+
+      DayHistory dayHistory = (DayHistory)XStreamUtil.fromXml(myXStream, file.getAbsolutePath(), false);
+      if (dayHistory != null) {
+        for (User user : dayHistory.keySet()) {
+          String userKey = getUserKey(user);
+          for (LocalMessage message : dayHistory.get(user)) {
+            HistoryDayLog dayLog = getDayLog(TimeUtil.getDay(message.getWhen()));
+            if (!resumed || !dayLog.containsWrittenMessage(userKey, message, myXStream)) {
+              dayLog.addMessage(userKey, message);
+            }
+          }
+        }
+        try {
+          saveDayLogs();
+        }
+        catch (IOException e) {
+          LOG.error("Unable to import history from " + file, e);
+          continue;
+        }
+        finally {
+          myDays.clear();
+        }
       }
+      file.delete();
     }
-
-    myHistory.resort();
   }
 
   private void triggerSave() {
@@ -178,47 +251,21 @@ class MessageHistory {
 
   private synchronized void saveHistory() {
     LOG.debug("Start history save");
-    Map<Date, DayHistory> map = getHistory();
-    for (Date date : map.keySet()) {
-      DayHistory dayHistory = map.get(date);
-      try {
-        XStreamUtil.toXml(myXStream, myFacade.getCacheDir(), getFileNameForDate(date), dayHistory);
-      } catch (RuntimeException e) {
-        LOG.error("Unable to save dayHistory for " + date + ": " + dayHistory, e);
-      }
+    try {
+      saveDayLogs();
     }
-
-    LOG.debug("Done history save");
-  }
-
-  private synchronized Map<Date, DayHistory> getHistory() {
-    Map<Date, DayHistory> result = new HashMap<>();
-
-    for (User user : myHistory.keySet()) {
-      List<LocalMessage> messages = myHistory.get(user);
-      for (LocalMessage message : messages) {
-        DayHistory dayHistory = getDayHistoryFor(message, result);
-
-        dayHistory.addMessage(user, message);
-      }
+    catch (IOException e) {
+      LOG.error("Unable to save history: " + e.getMessage(), e);
     }
 
-    return result;
+    LOG.debug("Done history save");
   }
 
-  private static DayHistory getDayHistoryFor(LocalMessage message, Map<Date, DayHistory> result) {
-    Date day = TimeUtil.getDay(message.getWhen());
-    DayHistory dayHistory = result.get(day);
-    if (dayHistory == null) {
-      dayHistory = new DayHistory();
-      result.put(day, dayHistory);
+  private void saveDayLogs() throws IOException {
+    getHistoryDir().mkdir();
+    for (HistoryDayLog dayLog : myDays.values()) {
+      dayLog.save(myXStream);
     }
-    return dayHistory;
-  }
-
-  @NonNls
-  private static String getFileNameForDate(Date date) {
-    return HISTORY + '/' + DATE_FORMAT.format(date) + ".xml";
   }
 
   public boolean isEmpty() {
@@ -0,0 +1,448 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package jetbrains.communicator.core.impl.dispatcher;
+
+import com.google.common.io.CountingInputStream;
+import com.thoughtworks.xstream.XStream;
+import jetbrains.communicator.core.dispatcher.Message;
+import jetbrains.communicator.core.users.User;
+import jetbrains.communicator.util.XStreamUtil;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NonNls;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Supplier;
+
+/**
+ * Persistent pending messages of {@link AbstractMessageDispatcher}: a snapshot ({@link MessagesStorable} XML, as before)
+ * and a journal of changes made after it. A change is recorded in memory while the dispatcher lock is held and written to
+ * the journal by {@link #flush()} after the lock is released, so the dispatcher lock is never held across disk IO.
+ * When the journal grows, {@link #compact(Supplier)} writes a new snapshot and starts an empty journal.
+ * <p>
+ * Every journal record has a sequence number, and the snapshot remembers the last one included into it. Records already
+ * included into the snapshot are skipped when loading, so a crash during compaction doesn't apply a change twice.
+ * A record left incomplete by a crash is cut off. Records are removed from the memory queue only after they are on disk,
+ * so after a failed write they are written again by the next {@link #flush()}.
+ * <p>
+ * Every pending message has an id, the sequence of the record which added it. Ids of the messages in the snapshot are stored
+ * in it, so removals refer to messages by id and a record which can't be read doesn't affect other messages.
+ *
+ * @author Kir
+ */
+class MessagesJournal {
+  @NonNls
+  private static final Logger LOG = Logger.getLogger(MessagesJournal.class);
+
+  @NonNls
+  private static final String JOURNAL_EXTENSION = ".journal";
+  static final int COMPACTION_THRESHOLD = 100;
+
+  private static final byte ADD = 1;
+  private static final byte REMOVE_USER = 3;
+  private static final byte CLEAR = 4;
+  private static final byte REMOVE_MESSAGE = 5;
+
+  private final File mySnapshotFile;
+  private final File myJournalFile;
+  private final XStream myXStream;
+
+  private final Queue<Record> myQueue = new ConcurrentLinkedQueue<>();
+  /** Guarded by the dispatcher lock */
+  private long myLastSequence;
+  /** Pending message -> its id, guarded by the dispatcher lock */
+  private final Map<Message, Long> myMessageIds = new IdentityHashMap<>();
+
+  private final Object myJournalLock = new Object();
+  /** Sequence of the last record written or dropped because it is included into the snapshot, guarded by {@link #myJournalLock} */
+  private long myWrittenSequence;
+  private int myJournalSize;
+  /** Length of the journal without a partially written record, -1 if unknown */
+  private long myValidLength = -1;
+
+  private static class Record {
+    private final long mySequence;
+    private final byte myOperation;
+    private final User myUser;
+    private final Message myMessage;
+    /** Message id for REMOVE_MESSAGE */
+    private final long myMessageId;
+
+    private Record(long sequence, byte operation, User user, Message message, long messageId) {
+      mySequence = sequence;
+      myOperation = operation;
+      myUser = user;
+      myMessage = message;
+      myMessageId = messageId;
+    }
+  }
+
+  MessagesJournal(File snapshotFile, XStream xStream) {
+    mySnapshotFile = snapshotFile;
+    myJournalFile = new File(snapshotFile.getPath() + JOURNAL_EXTENSION);
+    myXStream = xStream;
+  }
+
+  /** Reads the snapshot and applies the journal to it, the result is put into {@code user2Messages} */
+  void load(Map<User, List<Message>> user2Messages) {
+    synchronized (myJournalLock) {
+      myQueue.clear();
+      myMessageIds.clear();
+
+      long snapshotSequence = 0;
+      boolean hasIds = true;
+      Object storable = XStreamUtil.fromXml(myXStream, mySnapshotFile.getAbsolutePath(), false);
+      if (storable instanceof MessagesStorable) {
+        snapshotSequence = ((MessagesStorable)storable).getJournalPosition();
+        Map<User, List<Long>> ids = ((MessagesStorable)storable).getMessageIds();
+        for (Map.Entry<User, List<Message>> entry : ((MessagesStorable)storable).getUser2Messages().entrySet()) {
+          List<Message> messages = new ArrayList<>(entry.getValue());
+          List<Long> messageIds = ids == null ? null : ids.get(entry.getKey());
+          if (messageIds != null && messageIds.size() == messages.size()) {
+            for (int i = 0; i < messages.size(); i++) {
+              myMessageIds.put(messages.get(i), messageIds.get(i));
+            }
+          }
+          else {
+            hasIds = false;
+          }
+          user2Messages.put(entry.getKey(), messages);
+        }
+      }
+
+      myLastSequence = Math.max(snapshotSequence, replayJournal(snapshotSequence, user2Messages));
+      myWrittenSequence = myLastSequence;
+
+      if (!hasIds) {
+        // a snapshot of an older version: give the messages ids and save them, so that journal records can refer to them
+        for (List<Message> messages : user2Messages.values()) {
+          for (Message message : messages) {
+            if (!myMessageIds.containsKey(message)) {
+              myMessageIds.put(message, ++myLastSequence);
+            }
+          }
+        }
+        writeSnapshot(createStorable(user2Messages, myLastSequence));
+      }
+    }
+  }
+
+  /** Called under the dispatcher lock, {@code user2Messages} should be a copy of the pending messages */
+  MessagesStorable createStorable(Map<User, List<Message>> user2Messages, long journalPosition) {
+    Map<User, List<Long>> ids = new HashMap<>();
+    for (Map.Entry<User, List<Message>> entry : user2Messages.entrySet()) {
+      List<Long> messageIds = new ArrayList<>(entry.getValue().size());
+      for (Message message : entry.getValue()) {
+        messageIds.add(myMessageIds.get(message));
+      }
+      ids.put(entry.getKey(), messageIds);
+    }
+    return new MessagesStorable(user2Messages, journalPosition, ids);
+  }
+
+  private long replayJournal(long snapshotSequence, Map<User, List<Message>> user2Messages) {
+    myJournalSize = 0;
+    if (!myJournalFile.isFile()) return 0;
+
+    long lastSequence = 0;
+    long validLength = 0;
+    boolean incomplete = false;
+    long fileLength = myJournalFile.length();
+    try (CountingInputStream counting = new CountingInputStream(new BufferedInputStream(new FileInputStream(myJournalFile)))) {
+      DataInputStream in = new DataInputStream(counting);
+      while (counting.getCount() < fileLength) {
+        long sequence;
+        byte operation;
+        byte[] user = null;
+        byte[] message = null;
+        long messageId = -1;
+        try {
+          sequence = in.readLong();
+          operation = in.readByte();
+          if (operation != CLEAR) {
+            user = readBytes(in, fileLength);
+          }
+          if (operation == ADD) {
+            message = readBytes(in, fileLength);
+          }
+          else if (operation == REMOVE_MESSAGE) {
+            messageId = in.readLong();
+          }
+        }
+        catch (EOFException e) {
+          incomplete = true;
+          break;
+        }
+
+        validLength = counting.getCount();
+        lastSequence = sequence;
+        myJournalSize++;
+        if (sequence > snapshotSequence) {
+          try {
+            apply(new Record(sequence, operation, user == null ? null : (User)fromXml(user),
+                             message == null ? null : (Message)fromXml(message), messageId), user2Messages, myMessageIds);
+          }
+          catch (RuntimeException e) {
+            // e.g. a message of a class which is changed or not available any more
+            LOG.info("Error reading journal record " + sequence + " from " + myJournalFile, e);
+          }
+        }
+      }
+    }
+    catch (IOException e) {
+      LOG.info("Error reading " + myJournalFile, e);
+    }
+
+    myValidLength = validLength;
+    if (incomplete) {
+      LOG.info("Truncating incomplete record in " + myJournalFile);
+      truncate();
+    }
+    return lastSequence;
+  }
+
+  private static void apply(Record record, Map<User, List<Message>> user2Messages, Map<Message, Long> messageIds) {
+    List<Message> messages;
+    switch (record.myOperation) {
+      case ADD:
+        user2Messages.computeIfAbsent(record.myUser, user -> new ArrayList<>(5)).add(record.myMessage);
+        messageIds.put(record.myMessage, record.mySequence);
+        break;
+      case REMOVE_MESSAGE:
+        messages = user2Messages.get(record.myUser);
+        Message message = messages == null ? null : findMessage(messages, record.myMessageId, messageIds);
+        if (message == null) {
+          // e.g. the record which added it could not be read
+          LOG.info("Unexpected journal record " + record.mySequence + ": no message with id " + record.myMessageId +
+                   " for " + record.myUser);
+          return;
+        }
+        messages.remove(message);
+        messageIds.remove(message);
+        if (messages.isEmpty()) {
+          user2Messages.remove(record.myUser);
+        }
+        break;
+      case REMOVE_USER:
+        messages = user2Messages.remove(record.myUser);
+        if (messages != null) {
+          messageIds.keySet().removeAll(messages);
+        }
+        break;
+      case CLEAR:
+        user2Messages.clear();
+        messageIds.clear();
+        break;
+      default:
+        throw new IllegalStateException("Unknown journal operation " + record.myOperation);
+    }
+  }
+
+  private static Message findMessage(List<Message> messages, long id, Map<Message, Long> messageIds) {
+    for (Message message : messages) {
+      Long messageId = messageIds.get(message);
+      if (messageId != null && messageId == id) return message;
+    }
+    return null;
+  }
+
+  // Following methods are called under the dispatcher lock, they don't do IO
+
+  void added(User user, Message message) {
+    long sequence = ++myLastSequence;
+    myMessageIds.put(message, sequence);
+    myQueue.add(new Record(sequence, ADD, user, message, -1));
+  }
+
+  void removed(User user, Message message) {
+    Long id = myMessageIds.remove(message);
+    if (id == null) {
+      LOG.info("No id for the removed message " + message + " of " + user);
+      return;
+    }
+    myQueue.add(new Record(++myLastSequence, REMOVE_MESSAGE, user, null, id));
+  }
+
+  void userRemoved(User user, List<Message> messages) {
+    myMessageIds.keySet().removeAll(messages);
+    myQueue.add(new Record(++myLastSequence, REMOVE_USER, user, null, -1));
+  }
+
+  void cleared() {
+    myMessageIds.clear();
+    myQueue.add(new Record(++myLastSequence, CLEAR, null, null, -1));
+  }
+
+  long getLastSequence() {
+    return myLastSequence;
+  }
+
+  /**
+   * Writes the recorded changes to the journal. Must not be called under the dispatcher lock.
+   * The changes are appended to the end of the valid part of the journal and synced to disk; if this fails, the journal is
+   * truncated back and the changes are kept for the next call.
+   *
+   * @return true if the journal is big enough to be compacted
+   */
+  boolean flush() {
+    synchronized (myJournalLock) {
+      if (myQueue.isEmpty()) return false;
+
+      File dir = myJournalFile.getParentFile();
+      if (dir == null || !dir.exists()) {
+        myQueue.clear();
+        return false;
+      }
+
+      // this is the only consumer of the queue, so these records stay at its head until they are polled
+      List<Record> records = new ArrayList<>(myQueue);
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      long lastSequence = myWrittenSequence;
+      int count = 0;
+      for (Record record : records) {
+        if (record.mySequence <= myWrittenSequence) continue;
+
+        try {
+          bytes.write(toBytes(record));
+          count++;
+        }
+        catch (IOException | RuntimeException e) {
+          // e.g. a message which can't be serialized, it would fail again
+          LOG.error("Unable to write journal record " + record.mySequence + ": " + e.getMessage(), e);
+        }
+        lastSequence = record.mySequence;
+      }
+
+      if (count > 0 && !append(bytes.toByteArray())) return false;
+
+      for (int i = 0; i < records.size(); i++) {
+        myQueue.poll();
+      }
+      myWrittenSequence = lastSequence;
+      myJournalSize += count;
+      return myJournalSize >= COMPACTION_THRESHOLD;
+    }
+  }
+
+  /**
+   * Replaces the snapshot and the journal with a new snapshot. Changes recorded while the snapshot is written are
+   * written to the new journal by the next {@link #flush()}.
+   *
+   * @param snapshot called under the journal lock, it should take the dispatcher lock and copy pending messages
+   */
+  void compact(Supplier<MessagesStorable> snapshot) {
+    synchronized (myJournalLock) {
+      File dir = mySnapshotFile.getParentFile();
+      if (dir == null || !dir.exists()) return;
+
+      writeSnapshot(snapshot.get());
+    }
+  }
+
+  /** Called under the journal lock */
+  private void writeSnapshot(MessagesStorable storable) {
+    File tempFile = new File(mySnapshotFile.getPath() + ".tmp");
+    XStreamUtil.toXml(myXStream, tempFile.getAbsolutePath(), storable);
+    try {
+      replaceFile(tempFile, mySnapshotFile);
+    }
+    catch (IOException e) {
+      LOG.info("Unable to replace " + mySnapshotFile + ", journal is kept", e);
+      return;
+    }
+
+    // the changes recorded before the snapshot are in it, the journal is not needed any more
+    myWrittenSequence = Math.max(myWrittenSequence, storable.getJournalPosition());
+    if (!myJournalFile.delete() && myJournalFile.exists()) {
+      LOG.info("Unable to delete " + myJournalFile);
+      // records of the old journal are skipped when loading, new ones are appended after them
+      myValidLength = -1;
+    }
+    else {
+      myValidLength = 0;
+    }
+    myJournalSize = 0;
+  }
+
+  private static void replaceFile(File source, File target) throws IOException {
+    try {
+      Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch (AtomicMoveNotSupportedException e) {
+      Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private byte[] toBytes(Record record) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeLong(record.mySequence);
+    out.writeByte(record.myOperation);
+    if (record.myUser != null) {
+      writeObject(out, record.myUser);
+    }
+    if (record.myOperation == ADD) {
+      writeObject(out, record.myMessage);
+    }
+    else if (record.myOperation == REMOVE_MESSAGE) {
+      out.writeLong(record.myMessageId);
+    }
+    return bytes.toByteArray();
+  }
+
+  private void writeObject(DataOutputStream out, Object object) throws IOException {
+    byte[] bytes = myXStream.toXML(object).getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /** Writes {@code bytes} after the valid part of the journal, the journal is left as it was if this fails */
+  private boolean append(byte[] bytes) {
+    try (RandomAccessFile file = new RandomAccessFile(myJournalFile, "rw")) {
+      long start = myValidLength >= 0 ? myValidLength : file.length();
+      try {
+        file.setLength(start);
+        file.seek(start);
+        file.write(bytes);
+        file.getFD().sync();
+      }
+      catch (IOException e) {
+        // a partial record in the middle of the journal would break reading of all records after it
+        myValidLength = start;
+        file.setLength(start);
+        throw e;
+      }
+      myValidLength = start + bytes.length;
+      return true;
+    }
+    catch (IOException e) {
+      LOG.error("Unable to write " + myJournalFile + ", changes are kept to be written later: " + e.getMessage(), e);
+      return false;
+    }
+  }
+
+  private void truncate() {
+    try (RandomAccessFile file = new RandomAccessFile(myJournalFile, "rw")) {
+      file.setLength(myValidLength);
+    }
+    catch (IOException e) {
+      LOG.info(e.getMessage(), e);
+    }
+  }
+
+  private static byte[] readBytes(DataInputStream in, long fileLength) throws IOException {
+    int length = in.readInt();
+    if (length < 0 || length > fileLength) throw new EOFException();
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  private Object fromXml(byte[] bytes) {
+    return myXStream.fromXML(new String(bytes, StandardCharsets.UTF_8));
+  }
+}
@@ -12,12 +12,30 @@ import java.util.Map;
  */
 public class MessagesStorable {
   private final Map<User, List<Message>> myUser2Messages;
+  /** The last {@link MessagesJournal} record included, 0 in files written before the journal appeared */
+  private final long myJournalPosition;
+  /** Ids of the messages, in the same order, see {@link MessagesJournal}; {@code null} in files written before ids appeared */
+  private final Map<User, List<Long>> myMessageIds;
 
   public MessagesStorable(Map<User,List<Message>> user2Messages) {
+    this(user2Messages, 0, null);
+  }
+
+  public MessagesStorable(Map<User,List<Message>> user2Messages, long journalPosition, Map<User, List<Long>> messageIds) {
     myUser2Messages = user2Messages;
+    myJournalPosition = journalPosition;
+    myMessageIds = messageIds;
   }
 
   public Map<User,List<Message>> getUser2Messages() {
     return myUser2Messages;
   }
+
+  public long getJournalPosition() {
+    return myJournalPosition;
+  }
+
+  public Map<User, List<Long>> getMessageIds() {
+    return myMessageIds;
+  }
 }
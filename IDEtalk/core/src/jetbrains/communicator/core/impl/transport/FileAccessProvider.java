@@ -42,9 +42,14 @@ public abstract class FileAccessProvider extends XmlResponseProvider {
       }
     }
 
-    doProcess(request, response);
+    doProcess(request, response, requestingUser);
     return true;
   }
 
+  /** Processes a request of a user who is allowed to access files, by default the user doesn't matter */
+  protected void doProcess(Element request, Element response, User requestingUser) {
+    doProcess(request, response);
+  }
+
   protected abstract void doProcess(Element request, Element response);
 }
@@ -1,16 +1,50 @@
 // Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
 package jetbrains.communicator.core.impl.transport;
 
+import com.intellij.util.Time;
 import jetbrains.communicator.core.transport.GetVFileContentsXmlMessage;
+import jetbrains.communicator.core.users.User;
 import jetbrains.communicator.core.users.UserModel;
 import jetbrains.communicator.core.vfs.VFile;
+import jetbrains.communicator.core.vfs.VFileContentsCache;
 import jetbrains.communicator.ide.IDEFacade;
 import org.jdom.Element;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+import static jetbrains.communicator.core.transport.GetVFileContentsXmlMessage.*;
+
 /**
+ * Sends file contents by chunks, see {@link GetVFileContentsXmlMessage}. Contents of files being transferred are kept
+ * for {@link #TRANSFER_TIMEOUT}, so the file is read once per transfer, not once per chunk. Transfers of the same file to
+ * different users are independent.
+ *
  * @author Kir
  */
 public class GetVFileContentsProvider extends FileAccessProvider {
+  static final long TRANSFER_TIMEOUT = Time.MINUTE;
+  private static final int MAX_TRANSFERS = 8;
+
+  /** user and file key -> file contents being transferred */
+  private final Map<String, Transfer> myTransfers = new LinkedHashMap<>();
+
+  private static class Transfer {
+    private final byte[] myContents;
+    private final String myHash;
+    private long myLastAccess;
+
+    private Transfer(byte[] contents) {
+      myContents = contents;
+      myHash = VFileContentsCache.computeHash(contents);
+      myLastAccess = System.currentTimeMillis();
+    }
+  }
 
   public GetVFileContentsProvider(IDEFacade ideFacade, UserModel userModel) {
     super(ideFacade, userModel);
@@ -23,8 +57,115 @@ public class GetVFileContentsProvider extends FileAccessProvider {
 
   @Override
   protected void doProcess(Element request, Element response) {
+    doProcess(request, response, null);
+  }
+
+  @Override
+  protected void doProcess(Element request, Element response, User requestingUser) {
     VFile from = VFile.createFrom(request);
-    myIdeFacade.fillFileContents(from);
+    String chunkSize = request.getAttributeValue(CHUNK_SIZE_ATTR);
+    if (chunkSize == null) {
+      // request from an older version
+      myIdeFacade.fillFileContents(from);
+      from.saveTo(response);
+      return;
+    }
+    String requestNumber = request.getAttributeValue(REQUEST_ATTR);
+    if (requestNumber != null) {
+      response.setAttribute(REQUEST_ATTR, requestNumber);
+    }
+
+    int offset = parseInt(request.getAttributeValue(OFFSET_ATTR), 0);
+    String hash = request.getAttributeValue(HASH_ATTR);
+    String key = getKey(requestingUser, from);
+
+    Transfer transfer = offset > 0 ? getTransfer(key, hash) : null;
+    if (transfer == null) {
+      offset = 0;
+      myIdeFacade.fillFileContents(from);
+      String contents = from.getContents();
+      from.setContents(null);
+      if (contents == null) {
+        from.saveTo(response);
+        return;
+      }
+      transfer = new Transfer(contents.getBytes(StandardCharsets.UTF_8));
+    }
+
     from.saveTo(response);
+    response.setAttribute(HASH_ATTR, transfer.myHash);
+    response.setAttribute(LENGTH_ATTR, String.valueOf(transfer.myContents.length));
+    if (offset == 0 && transfer.myHash.equals(hash)) {
+      response.setAttribute(UNCHANGED_ATTR, "true");
+      return;
+    }
+
+    offset = Math.min(offset, transfer.myContents.length);
+    int length = Math.min(Math.max(parseInt(chunkSize, CHUNK_SIZE), 1), transfer.myContents.length - offset);
+    response.setAttribute(OFFSET_ATTR, String.valueOf(offset));
+    response.setText(deflate(transfer.myContents, offset, length));
+
+    if (offset + length < transfer.myContents.length) {
+      putTransfer(key, transfer);
+    }
+    else {
+      removeTransfer(key);
+    }
+  }
+
+  private synchronized Transfer getTransfer(String key, String hash) {
+    Transfer transfer = myTransfers.get(key);
+    if (transfer == null || !transfer.myHash.equals(hash)) return null;
+    return transfer;
+  }
+
+  private synchronized void putTransfer(String key, Transfer transfer) {
+    long now = System.currentTimeMillis();
+    transfer.myLastAccess = now;
+    myTransfers.remove(key);
+    myTransfers.put(key, transfer);
+
+    Iterator<Transfer> it = myTransfers.values().iterator();
+    while (it.hasNext()) {
+      Transfer next = it.next();
+      if (myTransfers.size() > MAX_TRANSFERS || now - next.myLastAccess > TRANSFER_TIMEOUT) {
+        it.remove();
+      }
+    }
+  }
+
+  private synchronized void removeTransfer(String key) {
+    myTransfers.remove(key);
+  }
+
+  private static String getKey(User user, VFile file) {
+    String userKey = user == null ? "" : user.getTransportCode() + '/' + user.getName();
+    return userKey + ':' + file.getProjectName() + ':' + file.getFullPath();
+  }
+
+  private static String deflate(byte[] bytes, int offset, int length) {
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      deflater.setInput(bytes, offset, length);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 16);
+      byte[] buffer = new byte[8192];
+      while (!deflater.finished()) {
+        out.write(buffer, 0, deflater.deflate(buffer));
+      }
+      return Base64.getEncoder().encodeToString(out.toByteArray());
+    }
+    finally {
+      deflater.end();
+    }
+  }
+
+  private static int parseInt(String value, int defaultValue) {
+    try {
+      return value == null ? defaultValue : Integer.parseInt(value);
+    }
+    catch (NumberFormatException e) {
+      return defaultValue;
+    }
   }
 }
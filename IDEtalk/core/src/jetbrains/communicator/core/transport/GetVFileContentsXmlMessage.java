@@ -3,17 +3,62 @@
 package jetbrains.communicator.core.transport;
 
 import jetbrains.communicator.core.vfs.VFile;
+import org.apache.log4j.Logger;
 import org.jdom.Element;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 /**
+ * Requests contents of a remote file. Contents are transferred in compressed chunks of {@link #CHUNK_SIZE} bytes,
+ * the message is sent again for each next chunk until {@link #isComplete()}. A chunk which was not received is
+ * requested again from the same offset.
+ * <p>
+ * If the requester has contents of the file with hash {@link #myKnownHash} and the file is not changed, no contents are
+ * sent, see {@link #isUnchanged()}. Peers which don't know about chunks send the whole contents in one response.
+ * <p>
+ * Each request is numbered and the number is sent back with the response, so a late response to an earlier request, for
+ * example one that arrives after the requester gave up waiting and sent the request again, is ignored. The state is accessed
+ * from the thread sending requests and from the thread receiving responses, hence synchronization.
+ *
  * @author Kir
  */
 public class GetVFileContentsXmlMessage implements XmlMessage {
+  private static final Logger LOG = Logger.getLogger(GetVFileContentsXmlMessage.class);
+
   public static final String TAG = "fillContents";
+  @NonNls public static final String OFFSET_ATTR = "offset";
+  @NonNls public static final String CHUNK_SIZE_ATTR = "chunkSize";
+  @NonNls public static final String HASH_ATTR = "hash";
+  @NonNls public static final String LENGTH_ATTR = "length";
+  @NonNls public static final String UNCHANGED_ATTR = "unchanged";
+  @NonNls public static final String REQUEST_ATTR = "request";
+  public static final int CHUNK_SIZE = 64 * 1024;
+
   private final VFile myFile;
+  private final String myKnownHash;
+
+  private String myHash;
+  private byte[] myContents;
+  private int myOffset;
+  private boolean myComplete;
+  private boolean myUnchanged;
+  private int myRequestNumber;
 
   public GetVFileContentsXmlMessage(VFile file) {
+    this(file, null);
+  }
+
+  /**
+   * @param knownHash hash of the file contents the requester already has
+   */
+  public GetVFileContentsXmlMessage(VFile file, @Nullable String knownHash) {
     myFile = file;
+    myKnownHash = knownHash;
   }
 
   @Override
@@ -32,15 +77,117 @@ public class GetVFileContentsXmlMessage implements XmlMessage {
   }
 
   @Override
-  public void fillRequest(Element element) {
+  public synchronized void fillRequest(Element element) {
     myFile.saveTo(element);
+    element.setAttribute(REQUEST_ATTR, String.valueOf(++myRequestNumber));
+    element.setAttribute(CHUNK_SIZE_ATTR, String.valueOf(CHUNK_SIZE));
+    element.setAttribute(OFFSET_ATTR, String.valueOf(myOffset));
+    String hash = myHash != null ? myHash : myKnownHash;
+    if (hash != null) {
+      element.setAttribute(HASH_ATTR, hash);
+    }
   }
 
   @Override
-  public void processResponse(Element responseElement) {
-    VFile from = VFile.createFrom(responseElement);
-    if (from != null) {
-      myFile.setContents(from.getContents());
+  public final void processResponse(Element responseElement) {
+    synchronized (this) {
+      String requestNumber = responseElement.getAttributeValue(REQUEST_ATTR);
+      if (requestNumber != null && !requestNumber.equals(String.valueOf(myRequestNumber))) {
+        LOG.info("Late response for " + myFile + " ignored: " + requestNumber + " instead of " + myRequestNumber);
+        return;
+      }
+      doProcessResponse(responseElement);
+    }
+    responseProcessed();
+  }
+
+  /** Called after a response to the last request has been processed */
+  protected void responseProcessed() {
+  }
+
+  private void doProcessResponse(Element responseElement) {
+    String hash = responseElement.getAttributeValue(HASH_ATTR);
+    if (hash == null) {
+      // the whole contents, or the file is not available
+      VFile from = VFile.createFrom(responseElement);
+      if (from != null) {
+        myFile.setContents(from.getContents());
+      }
+      myComplete = true;
+      return;
+    }
+
+    if ("true".equals(responseElement.getAttributeValue(UNCHANGED_ATTR))) {
+      myHash = hash;
+      myUnchanged = true;
+      myComplete = true;
+      return;
+    }
+
+    try {
+      int length = Integer.parseInt(responseElement.getAttributeValue(LENGTH_ATTR));
+      int offset = Integer.parseInt(responseElement.getAttributeValue(OFFSET_ATTR));
+      if (offset == 0 || !hash.equals(myHash) || myContents == null || myContents.length != length) {
+        // a new transfer, or the remote side restarted it: the file was changed or the transfer expired
+        myHash = hash;
+        myContents = new byte[length];
+        myOffset = 0;
+      }
+      if (offset != myOffset) {
+        LOG.info("Unexpected chunk of " + myFile + ": " + offset + " instead of " + myOffset);
+        return;
+      }
+
+      myOffset += inflate(responseElement.getText(), myContents, offset);
+      if (myOffset == length) {
+        myFile.setContents(new String(myContents, StandardCharsets.UTF_8));
+        myContents = null;
+        myComplete = true;
+      }
+    }
+    catch (NumberFormatException | DataFormatException | IllegalArgumentException e) {
+      LOG.info("Bad contents chunk of " + myFile + ": " + e.getMessage());
+      myContents = null;
+      myHash = null;
+      myOffset = 0;
+    }
+  }
+
+  private static int inflate(String chunk, byte[] target, int offset) throws DataFormatException {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(Base64.getMimeDecoder().decode(chunk.trim()));
+      int read = 0;
+      while (!inflater.finished() && offset + read < target.length) {
+        int n = inflater.inflate(target, offset + read, target.length - offset - read);
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+        read += n;
+      }
+      return read;
     }
+    finally {
+      inflater.end();
+    }
+  }
+
+  /** True if the last response was received and contents are set to the file, or they are not available */
+  public synchronized boolean isComplete() {
+    return myComplete;
+  }
+
+  /** True if the file contents have hash passed to the constructor, the contents are not sent */
+  public synchronized boolean isUnchanged() {
+    return myUnchanged;
+  }
+
+  /** Hash of the received contents, {@code null} if the remote side sent the whole contents without a hash */
+  @Nullable
+  public synchronized String getHash() {
+    return myHash;
+  }
+
+  /** Number of bytes received so far */
+  public synchronized int getOffset() {
+    return myOffset;
   }
 }
@@ -0,0 +1,138 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package jetbrains.communicator.core.vfs;
+
+import com.intellij.openapi.util.text.StringUtil;
+import jetbrains.communicator.core.users.User;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Contents of remote files received earlier, one entry per remote file. An entry starts with the content hash, so
+ * a remote file can be validated by its hash without reading the contents.
+ * Least recently used entries are evicted when the cache exceeds {@link #MAX_CACHE_SIZE}.
+ *
+ * @author Kir
+ */
+public class VFileContentsCache {
+  @NonNls
+  private static final Logger LOG = Logger.getLogger(VFileContentsCache.class);
+
+  @NonNls
+  private static final String CACHE_DIR = "vfileContents";
+  private static final long MAX_CACHE_SIZE = 32L * 1024 * 1024;
+
+  private final File myDir;
+
+  public VFileContentsCache(File cacheDir) {
+    myDir = new File(cacheDir, CACHE_DIR);
+  }
+
+  /** @return hash of the cached contents of the remote file, {@code null} if there is no entry */
+  @Nullable
+  public String getHash(User user, VFile file) {
+    File entry = getEntryFile(user, file);
+    if (!entry.isFile()) return null;
+
+    try (DataInputStream in = new DataInputStream(new FileInputStream(entry))) {
+      return in.readUTF();
+    }
+    catch (IOException e) {
+      LOG.info("Unable to read " + entry + ": " + e.getMessage());
+      entry.delete();
+      return null;
+    }
+  }
+
+  /** @return cached contents of the remote file if their hash is {@code hash} */
+  @Nullable
+  public String getContents(User user, VFile file, String hash) {
+    File entry = getEntryFile(user, file);
+    if (!entry.isFile()) return null;
+
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(entry)))) {
+      if (!hash.equals(in.readUTF())) return null;
+      int length = in.readInt();
+      byte[] bytes = new byte[length];
+      new DataInputStream(new GZIPInputStream(in)).readFully(bytes);
+      // the entry is used, so it is the last to be evicted
+      entry.setLastModified(System.currentTimeMillis());
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+    catch (IOException e) {
+      LOG.info("Unable to read " + entry + ": " + e.getMessage());
+      entry.delete();
+      return null;
+    }
+  }
+
+  public void put(User user, VFile file, String hash, String contents) {
+    File entry = getEntryFile(user, file);
+    File tempFile = new File(entry.getPath() + ".tmp");
+    myDir.mkdirs();
+
+    byte[] bytes = contents.getBytes(StandardCharsets.UTF_8);
+    try {
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+        out.writeUTF(hash);
+        out.writeInt(bytes.length);
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(bytes);
+        gzip.finish();
+      }
+      entry.delete();
+      if (!tempFile.renameTo(entry)) {
+        throw new IOException("Unable to rename " + tempFile);
+      }
+    }
+    catch (IOException e) {
+      LOG.info("Unable to write " + entry + ": " + e.getMessage());
+      tempFile.delete();
+      return;
+    }
+
+    evictIfNeeded();
+  }
+
+  private void evictIfNeeded() {
+    File[] files = myDir.listFiles();
+    if (files == null) return;
+
+    long totalSize = 0;
+    for (File file : files) {
+      totalSize += file.length();
+    }
+    if (totalSize <= MAX_CACHE_SIZE) return;
+
+    Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+    for (File file : files) {
+      if (totalSize <= MAX_CACHE_SIZE * 3 / 4) break;
+      totalSize -= file.length();
+      file.delete();
+    }
+  }
+
+  private File getEntryFile(User user, VFile file) {
+    String key = user.getTransportCode() + ':' + user.getName() + ':' + file.getProjectName() + ':' + file.getFullPath();
+    return new File(myDir, computeHash(key.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  /** SHA-1 of the bytes as a hex string */
+  public static String computeHash(byte[] bytes) {
+    try {
+      return StringUtil.toHexString(MessageDigest.getInstance("SHA-1").digest(bytes));
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -1,19 +1,33 @@
 // Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
 package jetbrains.communicator.p2p;
 
+import com.intellij.util.Time;
+import gnu.trove.THashMap;
 import jetbrains.communicator.ide.IDEFacade;
 import jetbrains.communicator.p2p.commands.AddOnlineUserP2PCommand;
 import org.apache.log4j.Logger;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.InetAddress;
-import java.net.MulticastSocket;
-import java.net.SocketException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
+import java.util.*;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * Sends multicast ping requests and answers ping requests of others on all local interfaces.
+ * A single datagram channel joins the multicast group on every interface, and a single thread serves it with a selector.
+ * <p>
+ * Answers are XML-RPC calls to the requester (see {@link AddOnlineUserP2PCommand}). They are made on a small pool, spread
+ * over {@link #MAX_RESPONSE_DELAY} so that a ping doesn't make all the network call the requester at once, and not more often
+ * than once per {@link #MIN_RESPONSE_INTERVAL} for a requester: a ping received via several interfaces is answered once.
+ *
  * @author Kir Maximov
  */
 @SuppressWarnings({"HardCodedStringLiteral"})
@@ -23,154 +37,254 @@ class MulticastPingThread extends Thread {
 
   public static final int MULTICAST_PORT = 2863;
   static final String PING_MESSAGE = "Is there anybody out there?";
-  private static final String MULTICAST_ADORES = "239.203.13.64";
+  static final String MULTICAST_ADORES = "239.203.13.64";
   private static final int BUFFER_SIZE = PING_MESSAGE.getBytes(StandardCharsets.UTF_8).length + 6;
   private static final int ALLOWED_FAILURES = 3000;
 
+  static final long MIN_RESPONSE_INTERVAL = Time.SECOND;
+  static final long MAX_RESPONSE_DELAY = 300;
+  private static final int RESPONSE_THREADS = 2;
+  private static final int MAX_QUEUED_RESPONSES = 64;
+
   private volatile boolean myIsRunning;
-  private MulticastSocket myDatagramSocket;
-  protected boolean myStarted;
+  private volatile Selector mySelector;
+  private DatagramChannel myChannel;
+  protected volatile boolean myStarted;
 
-  private final InetAddress mySelfAddress;
+  private final Collection<InetAddress> mySelfAddresses;
   private final IDEFacade myIdeFacade;
   private final UserMonitorClient myUserMonitorClient;
 
-  private int myFailuresCounter;
+  /** Interfaces to send pings via, with the number of failed attempts in a row */
+  private final Map<InetAddress, Integer> myFailuresCounters = new THashMap<>();
+  /** Used by the channel thread only */
+  private final Map<String, Long> myLastResponseTimes = new THashMap<>();
+  private ScheduledThreadPoolExecutor myResponseExecutor;
+  /** Written by the channel thread only, for tests */
+  private volatile int myReceivedPings;
+  private volatile int myAnsweredPings;
 
-  MulticastPingThread(InetAddress address, IDEFacade ideFacade, UserMonitorClient userMonitorClient) {
-    super(address.toString() + " IDEtalk Multicast Thread");
+  MulticastPingThread(Collection<InetAddress> selfAddresses, IDEFacade ideFacade, UserMonitorClient userMonitorClient) {
+    super("IDEtalk Multicast Thread");
     setDaemon(true); //Sometimes this thread lives forever, that's why idea.exe process never ends
                      // see jetbrains.communicator.p2p.NetworkUtil.sendMessage(...) inside try/catch block
                      //TODO: make it not a Daemon thread again and fix the problem somewhere else. Where...?
-    mySelfAddress = address;
+    mySelfAddresses = new ArrayList<>(selfAddresses);
     myIdeFacade = ideFacade;
     myUserMonitorClient = userMonitorClient;
+    for (InetAddress address : mySelfAddresses) {
+      myFailuresCounters.put(address, 0);
+    }
 
     System.setProperty("sun.net.client.defaultConnectTimeout", "2000");
   }
 
-  public void sendMulticastPingRequest() throws IOException {
-    if (!myIsRunning) return;
+  public synchronized void sendMulticastPingRequest() throws IOException {
+    DatagramChannel channel = myChannel;
+    if (!myIsRunning || channel == null) return;
 
-    MulticastSocket datagramSocket = null;
-    try {
-      datagramSocket = new MulticastSocket();
-      datagramSocket.setInterface(mySelfAddress);
-      LOG.debug("Sending Multicast ping request: " + mySelfAddress);
-      sendMessage(datagramSocket, PING_MESSAGE + myUserMonitorClient.getPort());
-      myFailuresCounter = 0;
-    } catch (IOException e) {
-
-      if (++myFailuresCounter > ALLOWED_FAILURES) {
-        LOG.info("Unable to send multicast request on interface " + mySelfAddress + ". I give up after " +
-            myFailuresCounter + " attempts.", e);
-        myIsRunning = false;
+    ByteBuffer message = ByteBuffer.wrap((PING_MESSAGE + myUserMonitorClient.getPort()).getBytes(StandardCharsets.UTF_8));
+    InetSocketAddress group = new InetSocketAddress(InetAddress.getByName(MULTICAST_ADORES), MULTICAST_PORT);
+    for (InetAddress selfAddress : new ArrayList<>(myFailuresCounters.keySet())) {
+      try {
+        NetworkInterface networkInterface = NetworkInterface.getByInetAddress(selfAddress);
+        if (networkInterface == null) throw new SocketException("No interface for " + selfAddress);
+
+        LOG.debug("Sending Multicast ping request: " + selfAddress);
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+        message.rewind();
+        channel.send(message, group);
+        myFailuresCounters.put(selfAddress, 0);
       }
-    }
-    finally {
-      if (datagramSocket != null) {
-        datagramSocket.close();
+      catch (ClosedChannelException e) {
+        return;
+      }
+      catch (IOException e) {
+        int failures = myFailuresCounters.get(selfAddress) + 1;
+        myFailuresCounters.put(selfAddress, failures);
+        if (failures > ALLOWED_FAILURES) {
+          LOG.info("Unable to send multicast request on interface " + selfAddress + ". I give up after " +
+                   failures + " attempts.", e);
+          myFailuresCounters.remove(selfAddress);
+        }
       }
     }
   }
 
-  private static void sendMessage(MulticastSocket datagramSocket, String msg) throws IOException {
-    DatagramPacket packet = new DatagramPacket(msg.getBytes(StandardCharsets.UTF_8), 0, msg.getBytes(StandardCharsets.UTF_8).length,
-                                               InetAddress.getByName(MULTICAST_ADORES), MULTICAST_PORT);
-    datagramSocket.send(packet);
-  }
-
   @Override
   public void run() {
     LOG.info(getName() + ": Start thread.");
     Runtime.getRuntime().addShutdownHook(new Thread("IDETalk shutdown hook") {
       @Override
       public void run() {
-        MulticastPingThread.this.interrupt(); // Yes, MulticastPingThread is daemon, but it still keeps JVM running.
-                                              // Seems this is some troubles with native calls.
-                                              // see IDEA-52501
+        MulticastPingThread.this.shutdown();
       }
     });
-    myDatagramSocket = null;
     myIsRunning = true;
 
-    try {
-      myDatagramSocket = new MulticastSocket(MULTICAST_PORT);
-      myDatagramSocket.setInterface(mySelfAddress);
-      myDatagramSocket.joinGroup(InetAddress.getByName(MULTICAST_ADORES));
+    myResponseExecutor = new ScheduledThreadPoolExecutor(RESPONSE_THREADS, r -> {
+      Thread thread = new Thread(r, "IDEtalk Multicast Response");
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    try (Selector selector = Selector.open();
+         DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET)) {
+      channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+      channel.bind(new InetSocketAddress(MULTICAST_PORT));
+      joinGroup(channel);
+      channel.configureBlocking(false);
+      channel.register(selector, SelectionKey.OP_READ);
+
+      mySelector = selector;
+      myChannel = channel;
+      myStarted = true;
 
-      byte[] buffer = new byte[BUFFER_SIZE];
+      ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
       while (myIsRunning) {
-        try {
-          DatagramPacket datagramPacket = new DatagramPacket(buffer, buffer.length);
-          LOG.debug(getName() + ": Listening for multicast messages... ");
-          myStarted = true;
-          myDatagramSocket.receive(datagramPacket);
-          String message = new String(buffer, 0, datagramPacket.getLength(), StandardCharsets.UTF_8);
-          final InetAddress remoteAddress = datagramPacket.getAddress();
-
-          if (LOG.isDebugEnabled()) {
-            LOG.debug(getName() + ": Got multicast message '" + message + "' from " + remoteAddress);
-          }
-          if (message.startsWith(PING_MESSAGE)) {
-            final int targetPort = extractPort(message);
-
-            if (shouldAddSelf(datagramPacket, targetPort)) {
-              addSelfInfoTo(remoteAddress, targetPort);
-            }
-          }
-        }
-        catch(SocketException e) {
-          if (!"Socket closed".equalsIgnoreCase(e.getMessage())) {
-            LOG.error(e.getMessage(), e);
-          }
-          else {
-            myIsRunning = false;
-          }
+        LOG.debug(getName() + ": Listening for multicast messages... ");
+        selector.select();
+        selector.selectedKeys().clear();
+
+        SocketAddress from;
+        while (myIsRunning && (from = channel.receive(buffer)) != null) {
+          buffer.flip();
+          String message = StandardCharsets.UTF_8.decode(buffer).toString();
+          buffer.clear();
+          processMessage(message, ((InetSocketAddress)from).getAddress());
         }
       }
-    } catch (SocketException e) {
-      final String msg = e.getMessage();
-      if (msg != null) {
-        LOG.info(msg, e);
+    }
+    catch (ClosedChannelException e) {
+      LOG.debug(getName() + " is closed");
+    }
+    catch (IOException e) {
+      if (e.getMessage() != null) {
+        LOG.info(e.getMessage(), e);
       }
       else {
         logError(e);
       }
-    } catch (IOException e) {
-      logError(e);
     }
     finally {
       myIsRunning = false;
-      if (myDatagramSocket != null && !myDatagramSocket.isClosed()){
-        myDatagramSocket.close();
+      mySelector = null;
+      myChannel = null;
+      myResponseExecutor.shutdownNow();
+    }
+  }
+
+  private void joinGroup(DatagramChannel channel) throws IOException {
+    InetAddress group = InetAddress.getByName(MULTICAST_ADORES);
+    Set<NetworkInterface> joined = new HashSet<>();
+    for (InetAddress selfAddress : mySelfAddresses) {
+      NetworkInterface networkInterface = NetworkInterface.getByInetAddress(selfAddress);
+      if (networkInterface == null || !joined.add(networkInterface)) continue;
+      try {
+        channel.join(group, networkInterface);
       }
+      catch (IOException e) {
+        LOG.info(getName() + ": unable to join multicast group on " + networkInterface.getName() + ": " + e.getMessage());
+      }
+    }
+    if (joined.isEmpty()) {
+      throw new SocketException("No interfaces to listen for multicast messages on");
     }
   }
 
+  private void processMessage(String message, InetAddress remoteAddress) {
+    if (LOG.isDebugEnabled()) {
+      LOG.debug(getName() + ": Got multicast message '" + message + "' from " + remoteAddress);
+    }
+    if (!message.startsWith(PING_MESSAGE)) return;
+
+    if (scheduleResponse(extractPort(message), remoteAddress)) {
+      myAnsweredPings++;
+    }
+    myReceivedPings++;
+  }
+
+  private boolean scheduleResponse(int targetPort, InetAddress remoteAddress) {
+    InetAddress selfAddress = getSelfAddressToAdvertise(remoteAddress, targetPort);
+    if (selfAddress == null || !isResponseAllowed(remoteAddress, targetPort)) return false;
+
+    if (myResponseExecutor.getQueue().size() >= MAX_QUEUED_RESPONSES) {
+      LOG.debug(getName() + ": Too many ping requests, " + remoteAddress + " is ignored");
+      return false;
+    }
+    long delay = ThreadLocalRandom.current().nextLong(MAX_RESPONSE_DELAY + 1);
+    myResponseExecutor.schedule(() -> addSelfInfoTo(remoteAddress, targetPort, selfAddress), delay, TimeUnit.MILLISECONDS);
+    return true;
+  }
+
+  private boolean isResponseAllowed(InetAddress remoteAddress, int targetPort) {
+    long now = System.currentTimeMillis();
+    if (myLastResponseTimes.size() > 1024) {
+      myLastResponseTimes.values().removeIf(time -> now - time >= MIN_RESPONSE_INTERVAL);
+    }
+
+    String requester = remoteAddress.getHostAddress() + ':' + targetPort;
+    Long lastResponse = myLastResponseTimes.get(requester);
+    if (lastResponse != null && now - lastResponse < MIN_RESPONSE_INTERVAL) return false;
+
+    myLastResponseTimes.put(requester, now);
+    return true;
+  }
+
   private void logError(IOException e) {
     LOG.error(getName() + " is terminated:\n" + e.getMessage(), e);
   }
 
-  private void addSelfInfoTo(InetAddress remoteAddress, int targetPort) {
+  protected void addSelfInfoTo(InetAddress remoteAddress, int targetPort, InetAddress selfAddress) {
     String[] projects = myIdeFacade.getProjects();
 
     if (LOG.isDebugEnabled()) {
-      LOG.debug(getName() + ": Add self to " + remoteAddress);
+      LOG.debug(getName() + ": Add self " + selfAddress + " to " + remoteAddress);
     }
-    AddOnlineUserP2PCommand.addSelfTo(targetPort, remoteAddress, mySelfAddress, myUserMonitorClient.getPort(), Arrays.asList(projects), myUserMonitorClient.getOwnPresence());
+    AddOnlineUserP2PCommand.addSelfTo(targetPort, remoteAddress, selfAddress, myUserMonitorClient.getPort(), Arrays.asList(projects), myUserMonitorClient.getOwnPresence());
   }
 
-  private boolean shouldAddSelf(DatagramPacket datagramPacket, int targetPort) {
-    boolean ownAddress = NetworkUtil.isOwnAddress(datagramPacket.getAddress());
-    if (ownAddress) {
-      return shouldSendToSelf(datagramPacket, targetPort); // For tests
+  /**
+   * @return the local address the requester can reach us at, {@code null} if the request should not be answered
+   */
+  protected InetAddress getSelfAddressToAdvertise(InetAddress remoteAddress, int targetPort) {
+    if (NetworkUtil.isOwnAddress(remoteAddress)) {
+      // For tests
+      return mySelfAddresses.contains(remoteAddress) && targetPort == myUserMonitorClient.getPort() ? remoteAddress : null;
     }
-    return !mySelfAddress.isLoopbackAddress();
+
+    InetAddress result = null;
+    for (InetAddress selfAddress : mySelfAddresses) {
+      if (selfAddress.isLoopbackAddress()) continue;
+      if (result == null || isSameNetwork(selfAddress, remoteAddress)) {
+        result = selfAddress;
+      }
+    }
+    return result;
   }
 
-  private boolean shouldSendToSelf(DatagramPacket datagramPacket, int targetPort) {
-    return datagramPacket.getAddress().equals(mySelfAddress) && targetPort == myUserMonitorClient.getPort();
+  private static boolean isSameNetwork(InetAddress selfAddress, InetAddress remoteAddress) {
+    try {
+      NetworkInterface networkInterface = NetworkInterface.getByInetAddress(selfAddress);
+      if (networkInterface == null) return false;
+      for (InterfaceAddress interfaceAddress : networkInterface.getInterfaceAddresses()) {
+        if (selfAddress.equals(interfaceAddress.getAddress())) {
+          return samePrefix(selfAddress.getAddress(), remoteAddress.getAddress(), interfaceAddress.getNetworkPrefixLength());
+        }
+      }
+    }
+    catch (SocketException ignored) {
+    }
+    return false;
+  }
+
+  private static boolean samePrefix(byte[] address1, byte[] address2, int prefixLength) {
+    if (address1.length != address2.length) return false;
+    for (int i = 0; i < address1.length && prefixLength > 0; i++, prefixLength -= 8) {
+      int mask = prefixLength >= 8 ? 0xFF : (0xFF << (8 - prefixLength)) & 0xFF;
+      if ((address1[i] & mask) != (address2[i] & mask)) return false;
+    }
+    return true;
   }
 
   static int extractPort(String message) {
@@ -185,18 +299,10 @@ class MulticastPingThread extends Thread {
   }
 
   public void shutdown() {
-    if (myDatagramSocket != null) {
-      myDatagramSocket.close();
-    }
-    if (myIsRunning) {
-      myIsRunning = false;
-      //try {
-      //  while (!myDisposed) {
-      //    Thread.sleep(100);
-      //  }
-      //}
-      //catch (InterruptedException ignored) {
-      //}
+    myIsRunning = false;
+    Selector selector = mySelector;
+    if (selector != null) {
+      selector.wakeup();
     }
   }
 
@@ -207,4 +313,14 @@ class MulticastPingThread extends Thread {
   public boolean isRunning() {
     return myIsRunning;
   }
+
+  /** @return the number of ping requests received so far, answered or not */
+  int getReceivedPings() {
+    return myReceivedPings;
+  }
+
+  /** @return the number of ping requests a response has been scheduled for so far */
+  int getAnsweredPings() {
+    return myAnsweredPings;
+  }
 }
@@ -360,6 +360,11 @@ public class P2PTransport implements Transport, UserMonitorClient, Disposable {
     }
   }
 
+  @Override
+  public void addOnlineUsers(@NotNull Collection<User> newOnlineUsers) {
+    addNewOnlineUsers(newOnlineUsers);
+  }
+
   public void setAvailable(String remoteUser) {
     final User user = myUserModel.findUser(remoteUser, getName());
     if (user != null) {
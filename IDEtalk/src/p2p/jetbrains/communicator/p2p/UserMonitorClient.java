@@ -26,6 +26,9 @@ import java.util.Collection;
 public interface UserMonitorClient {
   void setOnlineUsers(Collection<User> onlineUsers);
 
+  /** Users found during a search so far, they are passed before the full list is set via {@link #setOnlineUsers(Collection)} */
+  void addOnlineUsers(Collection<User> newOnlineUsers);
+
   User createUser(String remoteUsername, OnlineUserInfo onlineUserInfo);
   int getPort();
   UserPresence getOwnPresence();
@@ -30,13 +30,17 @@ public class UserMonitorThread extends Thread {
   static final long WAIT_USER_RESPONSES_TIMEOUT = 3000;
   static final String SCAN_TIMEOUT_PROPERTY = "ideTalk.scanTimeout";
   static final long TIMEOUT_BETWEEN_SCANS = 3 * Time.MINUTE;
+  /** Users found during a search are passed to the client in batches, not more often than this */
+  static final long AGGREGATION_PERIOD = 250;
 
-  private final MulticastPingThread[] myMulticastThreads;
+  private final MulticastPingThread myMulticastThread;
   private final UserMonitorClient myClient;
   private final long myWaitUserResponsesTimeout;
   private final long myScansTimeout;
 
   private final Set<User> myAvailableUsers = Collections.synchronizedSet(new THashSet<>());
+  /** Users found after the last batch was passed to the client, guarded by {@link #myAvailableUsers} */
+  private final List<User> myNewUsers = new ArrayList<>();
 
   private Thread myThread;
   private long myStartFindingAt;
@@ -44,16 +48,16 @@ public class UserMonitorThread extends Thread {
   private final Object myLock = new Object();
 
   public UserMonitorThread(P2PTransport client, long waitUserResponsesTimeout) {
-    this(createMulticastThreads(client), client, waitUserResponsesTimeout);
+    this(new MulticastPingThread(NetworkUtil.getSelfAddresses(), client.getIdeFacade(), client), client, waitUserResponsesTimeout);
   }
 
-  UserMonitorThread(MulticastPingThread[] multicastPingThread, UserMonitorClient client, long waitUserResponsesTimeout) {
+  UserMonitorThread(MulticastPingThread multicastPingThread, UserMonitorClient client, long waitUserResponsesTimeout) {
     super("User Monitor Thread");
 
     setDaemon(true);
     assert multicastPingThread != null;
     myClient = client;
-    myMulticastThreads = multicastPingThread;
+    myMulticastThread = multicastPingThread;
     myWaitUserResponsesTimeout = waitUserResponsesTimeout;
 
     String timeout = System.getProperty(SCAN_TIMEOUT_PROPERTY);
@@ -72,16 +76,10 @@ public class UserMonitorThread extends Thread {
     }
   }
 
-  private static MulticastPingThread[] createMulticastThreads(P2PTransport client) {
-    List<MulticastPingThread> result = new ArrayList<>();
-    for (InetAddress selfAddress : NetworkUtil.getSelfAddresses()) {
-      result.add(new MulticastPingThread(selfAddress, client.getIdeFacade(), client));
-    }
-    return result.toArray(new MulticastPingThread[0]);
-  }
-
   public void shutdown() {
-    shutdownMulticastThreads();
+    if (myMulticastThread.isAlive()) {
+      myMulticastThread.shutdown();
+    }
     if (isRunning()) {
       final Thread thr = myThread;
       myThread = null;
@@ -94,20 +92,12 @@ public class UserMonitorThread extends Thread {
     }
   }
 
-  private void shutdownMulticastThreads() {
-    for (MulticastPingThread multicastThread : myMulticastThreads) {
-      if (multicastThread.isAlive()) {
-        multicastThread.shutdown();
-      }
-    }
-  }
-
   @Override
   public void run() {
     super.run();
     LOG.info("Start " + getName());
 
-    startupMulticastThreads();
+    startupMulticastThread();
 
     myThread = Thread.currentThread();
 
@@ -122,10 +112,11 @@ public class UserMonitorThread extends Thread {
         }
 
         try {
-          sendMulticastRequests(getListeningThreads());
+          if (myMulticastThread.isAlive()) {
+            myMulticastThread.sendMulticastPingRequest();
+          }
 
-          //noinspection BusyWait
-          Thread.sleep(myWaitUserResponsesTimeout);
+          waitForResponses();
 
           flushOnlineUsers();
         }
@@ -160,40 +151,46 @@ public class UserMonitorThread extends Thread {
     return myThread != null;
   }
 
-  private static void sendMulticastRequests(List<MulticastPingThread> listeningThreads) throws IOException {
-    for (MulticastPingThread thread : listeningThreads) {
-      thread.sendMulticastPingRequest();
+  /** Waits for the responses to the ping, users who responded are reported to the client as they come */
+  private void waitForResponses() throws InterruptedException {
+    long end = System.currentTimeMillis() + myWaitUserResponsesTimeout;
+    long remaining;
+    while ((remaining = end - System.currentTimeMillis()) > 0) {
+      //noinspection BusyWait
+      Thread.sleep(Math.min(AGGREGATION_PERIOD, remaining));
+      addNewOnlineUsers();
     }
   }
 
-  private List<MulticastPingThread> getListeningThreads() {
-    List<MulticastPingThread> result = new ArrayList<>();
-    for (MulticastPingThread multicastThread : myMulticastThreads) {
-      if (multicastThread.isAlive()) {
-        result.add(multicastThread);
-      }
+  private void addNewOnlineUsers() {
+    List<User> users;
+    synchronized (myAvailableUsers) {
+      if (myNewUsers.isEmpty()) return;
+      users = new ArrayList<>(myNewUsers);
+      myNewUsers.clear();
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Adding online users: \n" + users);
     }
-    return result;
+    myClient.addOnlineUsers(users);
   }
 
   private void startFindingUsers() {
     synchronized (myLock) {
       myStartFindingAt = System.currentTimeMillis();
-      myAvailableUsers.clear();
+      synchronized (myAvailableUsers) {
+        myAvailableUsers.clear();
+        myNewUsers.clear();
+      }
     }
   }
 
-  private void startupMulticastThreads() {
-    for (MulticastPingThread multicastThread : myMulticastThreads) {
-      multicastThread.start();
-    }
+  private void startupMulticastThread() {
+    myMulticastThread.start();
     new WaitFor(Time.SECOND) {
       @Override
       protected boolean condition() {
-        for (MulticastPingThread multicastThread : myMulticastThreads) {
-          if (!multicastThread.isStarted()) return false;
-        }
-        return true;
+        return myMulticastThread.isStarted();
       }
     };
   }
@@ -219,7 +216,12 @@ public class UserMonitorThread extends Thread {
       }
       OnlineUserInfo onlineUserInfo = new OnlineUserInfo(InetAddress.getByName(remoteAddress), remotePort.intValue(), projects, presence);
       if (!onlineUserInfo.getAddress().isLoopbackAddress() || Pico.isUnitTest()) {
-        myAvailableUsers.add(myClient.createUser(remoteUsername, onlineUserInfo));
+        User user = myClient.createUser(remoteUsername, onlineUserInfo);
+        synchronized (myAvailableUsers) {
+          if (myAvailableUsers.add(user)) {
+            myNewUsers.add(user);
+          }
+        }
       }
     }
     catch (UnknownHostException ignored) {
@@ -237,6 +239,7 @@ public class UserMonitorThread extends Thread {
     Set<User> users;
     synchronized (myAvailableUsers) {
       users = new THashSet<>(myAvailableUsers);
+      myNewUsers.clear();
     }
     if (LOG.isDebugEnabled()) {
       LOG.debug("Setting online users: \n" + Arrays.toString(users.toArray()));
@@ -289,9 +292,6 @@ public class UserMonitorThread extends Thread {
   }
 
   boolean _isAlive() {
-    for (MulticastPingThread multicastThread : myMulticastThreads) {
-      if (multicastThread.isRunning()) return true;
-    }
-    return super.isAlive();
+    return myMulticastThread.isRunning() || super.isAlive();
   }
 }
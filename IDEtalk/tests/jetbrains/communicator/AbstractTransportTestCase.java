@@ -23,6 +23,7 @@ import jetbrains.communicator.core.users.User;
 import jetbrains.communicator.core.users.UserPresence;
 import jetbrains.communicator.core.vfs.ProjectsData;
 import jetbrains.communicator.core.vfs.VFile;
+import jetbrains.communicator.core.vfs.VFileContentsCache;
 import jetbrains.communicator.mock.MockIDEFacade;
 import jetbrains.communicator.util.WaitFor;
 import jetbrains.communicator.util.WatchDog;
@@ -151,6 +152,26 @@ public abstract class AbstractTransportTestCase extends BaseTestCase {
     assertEquals("Should successfully return file text", new String(buf), vFile.getContents() );
   }
 
+  public void testGetFileContent_Cached() {
+    VFile vFile = VFile.create("a path");
+    myUserModel.addUser(mySelf);
+    mySelf.setCanAccessMyFiles(true, myUserModel);
+
+    myIdeFacade.setReturnedFileText(vFile, "some text");
+    assertEquals("some text", mySelf.getVFile(VFile.create("a path"), myIdeFacade));
+    VFileContentsCache cache = new VFileContentsCache(myIdeFacade.getCacheDir());
+    String hash = cache.getHash(mySelf, vFile);
+    assertNotNull("Contents should be cached", hash);
+
+    // a cached copy that differs from the remote file shows whether the contents were transferred again
+    cache.put(mySelf, vFile, hash, "cached copy");
+    assertEquals("Unchanged file should be taken from cache, not transferred", "cached copy",
+                 mySelf.getVFile(VFile.create("a path"), myIdeFacade));
+
+    myIdeFacade.setReturnedFileText(vFile, "another text");
+    assertEquals("Changed file should be transferred", "another text", mySelf.getVFile(VFile.create("a path"), myIdeFacade));
+  }
+
   public void testGetFileContent_NoRights() {
     VFile vFile = VFile.create("a path");
     myUserModel.addUser(mySelf);
@@ -22,6 +22,16 @@ import jetbrains.communicator.mock.MockIDEFacade;
 import jetbrains.communicator.mock.MockMessage;
 import jetbrains.communicator.mock.MockUser;
 import jetbrains.communicator.p2p.commands.P2PNetworkMessage;
+import jetbrains.communicator.util.WaitFor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
 
 /**
  * @author kir
@@ -45,7 +55,7 @@ public class AbstractMessageDispatcherTest extends BaseTestCase {
 
 
   private AbstractMessageDispatcher createDispatcher() {
-    return new AbstractMessageDispatcher(getBroadcaster(), myIdeFacade.getCacheDir()) {
+    return new AbstractMessageDispatcher(getBroadcaster(), myIdeFacade) {
 
       @Override
       protected String getEventsFileName() {
@@ -146,4 +156,93 @@ public class AbstractMessageDispatcherTest extends BaseTestCase {
     dispatcher.dispose();
   }
 
-}
\ No newline at end of file
+  public void testJournalPersistency() {
+    MockMessage message1 = new MockMessage(new Date(), "message1");
+    MockMessage message2 = new MockMessage(new Date(), "message2");
+    MockMessage message3 = new MockMessage(new Date(), "message3");
+    myDispatcher.addPendingMessage(myUser, message1);
+    myDispatcher.performDispatch(myUser, message2);
+    myDispatcher.addPendingMessage(myUser, message3);
+    myDispatcher.removePendingMessage(myUser, 0);
+
+    assertEquals("Changes should persist without save()", Arrays.asList("message3"), getPendingTexts(createDispatcher()));
+  }
+
+  public void testIncompleteJournalRecord() throws Exception {
+    myDispatcher.addPendingMessage(myUser, new MockMessage(new Date(), "message1"));
+
+    // a crash in the middle of writing a record
+    try (FileOutputStream out = new FileOutputStream(getJournalFile(), true)) {
+      out.write(new byte[]{0, 0, 0, 0, 0, 0, 0, 10, 1, 0, 0});
+    }
+
+    AbstractMessageDispatcher dispatcher = createDispatcher();
+    assertEquals(Arrays.asList("message1"), getPendingTexts(dispatcher));
+
+    dispatcher.addPendingMessage(myUser, new MockMessage(new Date(), "message2"));
+    assertEquals(Arrays.asList("message1", "message2"), getPendingTexts(createDispatcher()));
+  }
+
+  public void testUnreadableJournalRecord() throws Exception {
+    myDispatcher.addPendingMessage(myUser, new MockMessage(new Date(), "message1"));
+    myDispatcher.addPendingMessage(myUser, new MockMessage(new Date(), "message2"));
+    myDispatcher.addPendingMessage(myUser, new MockMessage(new Date(), "message3"));
+    myDispatcher.removePendingMessage(myUser, 1);
+
+    // the record which adds message1 can't be read any more
+    byte[] journal = Files.readAllBytes(getJournalFile().toPath());
+    String text = new String(journal, StandardCharsets.ISO_8859_1);
+    int index = text.indexOf("message1");
+    assertTrue(index > 0);
+    journal[index + 6] = '<';
+    Files.write(getJournalFile().toPath(), journal);
+
+    assertEquals("Removal should not move to another message", Arrays.asList("message3"), getPendingTexts(createDispatcher()));
+  }
+
+  public void testCrashDuringCompaction() throws Exception {
+    myDispatcher.addPendingMessage(myUser, new MockMessage(new Date(), "message1"));
+    myDispatcher.addPendingMessage(myUser, new MockMessage(new Date(), "message2"));
+    byte[] journal = Files.readAllBytes(getJournalFile().toPath());
+
+    myDispatcher.save();
+    assertFalse("Journal should be started anew", getJournalFile().exists());
+
+    // a crash after the snapshot is written, but before the journal is deleted
+    Files.write(getJournalFile().toPath(), journal);
+    assertEquals("Changes should not be applied twice", Arrays.asList("message1", "message2"), getPendingTexts(createDispatcher()));
+
+    myDispatcher.addPendingMessage(myUser, new MockMessage(new Date(), "message3"));
+    assertEquals(Arrays.asList("message1", "message2", "message3"), getPendingTexts(createDispatcher()));
+  }
+
+  public void testBackgroundCompaction() {
+    List<String> expected = new ArrayList<>();
+    for (int i = 0; i < MessagesJournal.COMPACTION_THRESHOLD + 1; i++) {
+      myDispatcher.addPendingMessage(myUser, new MockMessage(new Date(), "message" + i));
+      expected.add("message" + i);
+    }
+
+    new WaitFor(10000) {
+      @Override
+      protected boolean condition() {
+        return getJournalFile().length() < 1000;
+      }
+    };
+    assertTrue("Journal should be compacted", getJournalFile().length() < 1000);
+    assertEquals(expected, getPendingTexts(createDispatcher()));
+  }
+
+  private File getJournalFile() {
+    return new File(myIdeFacade.getCacheDir(), "test.xml.journal");
+  }
+
+  private List<String> getPendingTexts(AbstractMessageDispatcher dispatcher) {
+    List<String> result = new ArrayList<>();
+    for (Message message : dispatcher.getPendingMessages(myUser)) {
+      result.add(((MockMessage)message).getMessage());
+    }
+    dispatcher.dispose();
+    return result;
+  }
+}
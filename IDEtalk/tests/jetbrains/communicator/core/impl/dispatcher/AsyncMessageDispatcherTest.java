@@ -17,6 +17,7 @@ package jetbrains.communicator.core.impl.dispatcher;
 
 import jetbrains.communicator.core.impl.BaseTestCase;
 import jetbrains.communicator.core.users.User;
+import jetbrains.communicator.core.users.UserEvent;
 import jetbrains.communicator.mock.MockIDEFacade;
 import jetbrains.communicator.mock.MockMessage;
 import jetbrains.communicator.mock.MockUser;
@@ -122,8 +123,14 @@ public class AsyncMessageDispatcherTest extends BaseTestCase {
     mockMessage.waitUntilDispatchingStarted();
     myDispatcher.sendLater(user2, new MockMessage(true));
 
-    assertEquals("Messages not delivered yet", 2,
-        myDispatcher.getUsersWithMessages().length);
+    new WaitFor(1000) {
+      @Override
+      protected boolean condition() {
+        return myDispatcher.getPendingMessages(user2).length == 0;
+      }
+    };
+    assertEquals("Delivery to user2 should not wait for user1", 0, myDispatcher.getPendingMessages(user2).length);
+    assertEquals("Message to user1 not delivered yet", 1, myDispatcher.getUsersWithMessages().length);
 
     triggerMessageProcessing(mockMessage);
 
@@ -137,6 +144,106 @@ public class AsyncMessageDispatcherTest extends BaseTestCase {
     assertEquals("All messages should be delivered", 0, myDispatcher.getUsersWithMessages().length);
   }
 
+  public void testMessagesOfUserDeliveredInOrder() {
+    final StringBuffer log = new StringBuffer();
+    for (int i = 0; i < 20; i++) {
+      final int n = i;
+      myDispatcher.sendLater(myUser, new MockMessage(true) {
+        @Override
+        public boolean send(User user) {
+          log.append(n).append(' ');
+          return true;
+        }
+      });
+    }
+
+    new WaitFor(1000) {
+      @Override
+      protected boolean condition() {
+        return myDispatcher.getDeliveredCount() == 20;
+      }
+    };
+    assertEquals("0 1 2 3 4 5 6 7 8 9 10 11 12 13 14 15 16 17 18 19 ", log.toString());
+  }
+
+  public void testDeliveryStopsAtFailedMessage() {
+    MockMessage failed = new MockMessage(false);
+    MockMessage next = new MockMessage(true);
+    myDispatcher.sendLater(myUser, failed);
+    myDispatcher.sendLater(myUser, next);
+
+    // the worker gives up on the user right after the failed message, so the next one is not sent
+    waitForFailedSend(failed);
+    assertEquals("Next message should wait for the failed one", 2, myDispatcher.getPendingMessages(myUser).length);
+    assertEquals("", next.getLog());
+  }
+
+  public void testBackoffAfterFailure() {
+    MockMessage message = new MockMessage(false);
+    myDispatcher.sendLater(myUser, message);
+    waitForFailedSend(message);
+
+    message.clearLog();
+    message.setSendSuccessful(true);
+    myDispatcher.sendLater(myUser, new MockMessage(true));
+    // the pass which delivers to another user considers this user too
+    myDispatcher.sendLater(new MockUser("another", null), new MockMessage(true));
+    new WaitFor(1000) {
+      @Override
+      protected boolean condition() {
+        return myDispatcher.getDeliveredCount() == 1;
+      }
+    };
+    assertEquals("Message to another user should be delivered", 1, myDispatcher.getDeliveredCount());
+    assertEquals("User should not be retried before retry delay", "", message.getLog());
+
+    getBroadcaster().fireEvent(new UserEvent.Online(myUser));
+    new WaitFor(1000) {
+      @Override
+      protected boolean condition() {
+        return !myDispatcher.hasUsersWithMessages();
+      }
+    };
+    assertFalse("Messages should be delivered when user becomes online", myDispatcher.hasUsersWithMessages());
+  }
+
+  public void testDeliveryMetrics() {
+    myDispatcher.sendLater(myUser, new MockMessage(true));
+    myDispatcher.sendLater(new MockUser("another", null), new MockMessage(true));
+
+    new WaitFor(1000) {
+      @Override
+      protected boolean condition() {
+        return myDispatcher.getDeliveredCount() == 2;
+      }
+    };
+    assertEquals(2, myDispatcher.getDeliveredCount());
+    assertEquals(0, myDispatcher.getPendingMessagesCount());
+    assertTrue(myDispatcher.getMaxDeliveryLatency() >= myDispatcher.getAverageDeliveryLatency());
+  }
+
+  public void testDeliveryMetricsForSendNowOfPendingMessage() {
+    MockMessage message = new MockMessage(false);
+    myDispatcher.sendLater(myUser, message);
+    waitForFailedSend(message);
+    assertEquals(0, myDispatcher.getDeliveredCount());
+
+    message.setSendSuccessful(true);
+    assertTrue(myDispatcher.sendNow(myUser, message));
+    assertEquals(1, myDispatcher.getDeliveredCount());
+    assertEquals(0, myDispatcher.getPendingMessagesCount());
+  }
+
+  private static void waitForFailedSend(final MockMessage message) {
+    new WaitFor(1000) {
+      @Override
+      protected boolean condition() {
+        return message.getLog().endsWith("fail");
+      }
+    };
+    assertTrue("Message should be sent and fail: " + message.getLog(), message.getLog().endsWith("fail"));
+  }
+
   private static class NotifyableMessage extends MockMessage {
     private boolean myDispatchingStarted;
     private boolean myProcessed;
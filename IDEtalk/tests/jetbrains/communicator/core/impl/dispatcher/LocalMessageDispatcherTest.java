@@ -31,6 +31,9 @@ import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.Date;
 
 /**
@@ -308,4 +311,100 @@ public class LocalMessageDispatcherTest extends BaseTestCase {
     assertEquals(0, myDispatcher.getHistory(myUser, null).length);
     assertTrue(myDispatcher.isHistoryEmpty());
   }
+
+  public void testFindInHistory() throws Exception {
+    myDispatcher.sendNow(myUser, new MockMessage(yesterday(), "some text1"));
+    myDispatcher.sendNow(myUser, new MockMessage(new Date(), "some text2"));
+    myDispatcher.sendNow(myUser, new MockMessage(new Date(), "some text2 ataing"));
+
+    assertEquals("Not saved messages should be found", 2, myDispatcher.findInHistory(myUser, "text2").length);
+
+    Thread.sleep(SAVE_WAIT_TIMEOUT);
+
+    LocalMessageDispatcherImpl localMessageDispatcher = createLocalMessageDispatcher();
+    LocalMessage[] found = localMessageDispatcher.findInHistory(myUser, "text2");
+    assertEquals(2, found.length);
+    assertEquals("some text2", ((MockMessage)found[0]).getMessage());
+    assertEquals("some text2 ataing", ((MockMessage)found[1]).getMessage());
+
+    assertEquals("Parts of words should be found", 1, localMessageDispatcher.findInHistory(myUser, "xt2 ata").length);
+    assertEquals("Search is case sensitive", 0, localMessageDispatcher.findInHistory(myUser, "Text2").length);
+    assertEquals(3, localMessageDispatcher.findInHistory(myUser, "").length);
+    assertEquals(0, localMessageDispatcher.findInHistory(myUser, "text3").length);
+    assertEquals(0, localMessageDispatcher.findInHistory(UserImpl.create("another", MockTransport.NAME), "text").length);
+  }
+
+  public void testHistoryIndexRebuilt() throws Exception {
+    myDispatcher.sendNow(myUser, new MockMessage(new Date(), "some text"));
+    Thread.sleep(SAVE_WAIT_TIMEOUT);
+
+    for (File file : new File(myIdeFacade.getCacheDir(), "historyIndex").listFiles()) {
+      assertTrue(file.delete());
+    }
+
+    LocalMessageDispatcherImpl localMessageDispatcher = createLocalMessageDispatcher();
+    assertEquals(1, localMessageDispatcher.getHistory(myUser, null).length);
+    assertEquals(1, localMessageDispatcher.findInHistory(myUser, "text").length);
+  }
+
+  public void testHistoryIndexAppended() throws Exception {
+    myDispatcher.sendNow(myUser, new MockMessage(new Date(), "some text"));
+    Thread.sleep(SAVE_WAIT_TIMEOUT);
+    File[] indexFiles = new File(myIdeFacade.getCacheDir(), "historyIndex").listFiles();
+    assertEquals(1, indexFiles.length);
+    byte[] index = Files.readAllBytes(indexFiles[0].toPath());
+
+    myDispatcher.sendNow(myUser, new MockMessage(new Date(), "another text"));
+    Thread.sleep(SAVE_WAIT_TIMEOUT);
+    byte[] appendedIndex = Files.readAllBytes(indexFiles[0].toPath());
+    assertTrue(appendedIndex.length > index.length);
+    assertTrue("Saved part of the index should not be rewritten", Arrays.equals(index, Arrays.copyOf(appendedIndex, index.length)));
+
+    LocalMessageDispatcherImpl localMessageDispatcher = createLocalMessageDispatcher();
+    assertEquals(2, localMessageDispatcher.getHistory(myUser, null).length);
+    assertEquals(1, localMessageDispatcher.findInHistory(myUser, "another").length);
+    assertEquals(2, localMessageDispatcher.findInHistory(myUser, "text").length);
+  }
+
+  public void testHistoryRecoveredAfterIncompleteIndexBlock() throws Exception {
+    myDispatcher.sendNow(myUser, new MockMessage(new Date(), "some text"));
+    Thread.sleep(SAVE_WAIT_TIMEOUT);
+
+    File[] indexFiles = new File(myIdeFacade.getCacheDir(), "historyIndex").listFiles();
+    assertEquals(1, indexFiles.length);
+    try (FileOutputStream out = new FileOutputStream(indexFiles[0], true)) {
+      out.write(new byte[]{0, 0, 1});
+    }
+
+    LocalMessageDispatcherImpl localMessageDispatcher = createLocalMessageDispatcher();
+    assertEquals(1, localMessageDispatcher.findInHistory(myUser, "text").length);
+
+    localMessageDispatcher.sendNow(myUser, new MockMessage(new Date(), "another text"));
+    Thread.sleep(SAVE_WAIT_TIMEOUT);
+
+    localMessageDispatcher = createLocalMessageDispatcher();
+    assertEquals(2, localMessageDispatcher.getHistory(myUser, null).length);
+    assertEquals(1, localMessageDispatcher.findInHistory(myUser, "another").length);
+  }
+
+  public void testHistoryRecoveredAfterIncompleteRecord() throws Exception {
+    myDispatcher.sendNow(myUser, new MockMessage(new Date(), "some text"));
+    Thread.sleep(SAVE_WAIT_TIMEOUT);
+
+    File[] logs = new File(myIdeFacade.getCacheDir(), "history").listFiles();
+    assertEquals(1, logs.length);
+    try (FileOutputStream out = new FileOutputStream(logs[0], true)) {
+      out.write(new byte[]{0, 0, 1});
+    }
+
+    LocalMessageDispatcherImpl localMessageDispatcher = createLocalMessageDispatcher();
+    assertEquals(1, localMessageDispatcher.getHistory(myUser, null).length);
+
+    localMessageDispatcher.sendNow(myUser, new MockMessage(new Date(), "another text"));
+    Thread.sleep(SAVE_WAIT_TIMEOUT);
+
+    LocalMessage[] messages = createLocalMessageDispatcher().getHistory(myUser, null);
+    assertEquals(2, messages.length);
+    assertEquals("another text", ((MockMessage)messages[1]).getMessage());
+  }
 }
@@ -0,0 +1,196 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package jetbrains.communicator.core.impl.transport;
+
+import jetbrains.communicator.core.impl.BaseTestCase;
+import jetbrains.communicator.core.transport.GetVFileContentsXmlMessage;
+import jetbrains.communicator.core.vfs.VFile;
+import jetbrains.communicator.core.vfs.VFileContentsCache;
+import jetbrains.communicator.mock.MockIDEFacade;
+import jetbrains.communicator.mock.MockUser;
+import org.jdom.Element;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author Kir
+ */
+public class GetVFileContentsProviderTest extends BaseTestCase {
+  private MockIDEFacade myIdeFacade;
+  private GetVFileContentsProvider myProvider;
+  private VFile myFile;
+  private String myText;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+
+    myIdeFacade = new MockIDEFacade();
+    myProvider = new GetVFileContentsProvider(myIdeFacade, null);
+
+    myFile = VFile.create("some/path");
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; text.length() < 3 * GetVFileContentsXmlMessage.CHUNK_SIZE; i++) {
+      text.append("line ").append(i).append(" \u0447\u0442\u043e &<>\n");
+    }
+    myText = text.toString();
+    myIdeFacade.setReturnedFileText(myFile, myText);
+  }
+
+  public void testChunkedTransfer() {
+    VFile file = VFile.create("some/path");
+    GetVFileContentsXmlMessage message = new GetVFileContentsXmlMessage(file);
+
+    int requests = 0;
+    while (!message.isComplete()) {
+      message.processResponse(process(message));
+      assertTrue("Too many requests", ++requests < 100);
+    }
+
+    assertEquals(myText, file.getContents());
+    int length = myText.getBytes(StandardCharsets.UTF_8).length;
+    assertEquals("One request per chunk", (length + GetVFileContentsXmlMessage.CHUNK_SIZE - 1) / GetVFileContentsXmlMessage.CHUNK_SIZE, requests);
+    assertEquals(VFileContentsCache.computeHash(myText.getBytes(StandardCharsets.UTF_8)), message.getHash());
+  }
+
+  public void testChunksAreCompressed() {
+    Element response = process(new GetVFileContentsXmlMessage(VFile.create("some/path")));
+    assertTrue("Chunk is not compressed: " + response.getText().length(),
+               response.getText().length() < GetVFileContentsXmlMessage.CHUNK_SIZE / 2);
+  }
+
+  public void testLostChunkIsRequestedAgain() {
+    VFile file = VFile.create("some/path");
+    GetVFileContentsXmlMessage message = new GetVFileContentsXmlMessage(file);
+
+    message.processResponse(process(message));
+    int offset = message.getOffset();
+    process(message); // response is lost
+    assertEquals(offset, message.getOffset());
+
+    while (!message.isComplete()) {
+      message.processResponse(process(message));
+    }
+    assertEquals(myText, file.getContents());
+  }
+
+  public void testLateResponseIsIgnored() {
+    VFile file = VFile.create("some/path");
+    GetVFileContentsXmlMessage message = new GetVFileContentsXmlMessage(file);
+
+    Element late = process(message); // the requester stops waiting and sends the request again
+    message.processResponse(process(message));
+    message.processResponse(process(message));
+    int offset = message.getOffset();
+    message.processResponse(late);
+    assertEquals("Late response should not restart the transfer", offset, message.getOffset());
+
+    while (!message.isComplete()) {
+      message.processResponse(process(message));
+    }
+    assertEquals(myText, file.getContents());
+  }
+
+  public void testFileChangedAfterTransferExpired() {
+    VFile file = VFile.create("some/path");
+    GetVFileContentsXmlMessage message = new GetVFileContentsXmlMessage(file);
+    message.processResponse(process(message));
+
+    myProvider = new GetVFileContentsProvider(myIdeFacade, null);
+    myIdeFacade.setReturnedFileText(myFile, "new text");
+
+    message.processResponse(process(message));
+    assertTrue(message.isComplete());
+    assertEquals("Transfer should be restarted", "new text", file.getContents());
+  }
+
+  public void testTransfersToDifferentUsers() {
+    VFile file1 = VFile.create("some/path");
+    GetVFileContentsXmlMessage message1 = new GetVFileContentsXmlMessage(file1);
+    message1.processResponse(process(message1, new MockUser("user1", null)));
+
+    myIdeFacade.setReturnedFileText(myFile, "new text");
+    VFile file2 = VFile.create("some/path");
+    GetVFileContentsXmlMessage message2 = new GetVFileContentsXmlMessage(file2);
+    message2.processResponse(process(message2, new MockUser("user2", null)));
+    assertEquals("new text", file2.getContents());
+
+    while (!message1.isComplete()) {
+      message1.processResponse(process(message1, new MockUser("user1", null)));
+    }
+    assertEquals("Transfer to another user should not interfere", myText, file1.getContents());
+  }
+
+  public void testUnchanged() {
+    String hash = VFileContentsCache.computeHash(myText.getBytes(StandardCharsets.UTF_8));
+    VFile file = VFile.create("some/path");
+    GetVFileContentsXmlMessage message = new GetVFileContentsXmlMessage(file, hash);
+
+    Element response = process(message);
+    assertEquals("No contents expected", "", response.getText());
+    message.processResponse(response);
+
+    assertTrue(message.isComplete());
+    assertTrue(message.isUnchanged());
+    assertNull(file.getContents());
+  }
+
+  public void testChangedSinceCached() {
+    VFile file = VFile.create("some/path");
+    GetVFileContentsXmlMessage message = new GetVFileContentsXmlMessage(file, "some old hash");
+    while (!message.isComplete()) {
+      message.processResponse(process(message));
+    }
+
+    assertFalse(message.isUnchanged());
+    assertEquals(myText, file.getContents());
+  }
+
+  public void testRequestFromOlderVersion() {
+    Element request = new Element("request");
+    VFile.create("some/path").saveTo(request);
+    Element response = new Element("response");
+    myProvider.doProcess(request, response);
+
+    assertEquals(myText, VFile.createFrom(response).getContents());
+  }
+
+  public void testResponseFromOlderVersion() {
+    VFile file = VFile.create("some/path");
+    file.setContents("old text");
+    Element response = new Element("response");
+    file.saveTo(response);
+
+    VFile target = VFile.create("some/path");
+    GetVFileContentsXmlMessage message = new GetVFileContentsXmlMessage(target, "some hash");
+    message.processResponse(response);
+
+    assertTrue(message.isComplete());
+    assertNull(message.getHash());
+    assertEquals("old text", target.getContents());
+  }
+
+  public void testNoFile() {
+    VFile file = VFile.create("another/path");
+    GetVFileContentsXmlMessage message = new GetVFileContentsXmlMessage(file);
+    message.processResponse(process(message));
+
+    assertTrue(message.isComplete());
+    assertNull(file.getContents());
+  }
+
+  private Element process(GetVFileContentsXmlMessage message) {
+    Element request = new Element("request");
+    message.fillRequest(request);
+    Element response = new Element("response");
+    myProvider.doProcess(request, response);
+    return response;
+  }
+
+  private Element process(GetVFileContentsXmlMessage message, MockUser user) {
+    Element request = new Element("request");
+    message.fillRequest(request);
+    Element response = new Element("response");
+    myProvider.doProcess(request, response, user);
+    return response;
+  }
+}
@@ -27,7 +27,7 @@ import java.util.Date;
  */
 public class MockMessage implements LocalMessage {
   private boolean mySendSuccessful;
-  protected String myLog = "";
+  protected volatile String myLog = "";
   private Date myDate = new Date();
   private String myMessage;
 
@@ -16,8 +16,14 @@
 package jetbrains.communicator.p2p;
 
 import jetbrains.communicator.core.impl.BaseTestCase;
+import jetbrains.communicator.core.users.User;
+import jetbrains.communicator.core.users.UserPresence;
+import jetbrains.communicator.util.WaitFor;
 
-import java.net.InetAddress;
+import java.io.IOException;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
 
 /**
  * @author Kir
@@ -29,7 +35,7 @@ public class MulticastPingThreadTest extends BaseTestCase {
   protected void setUp() throws Exception {
     super.setUp();
 
-    myMulticastPingThread = new MulticastPingThread(InetAddress.getLocalHost(), null, null);
+    myMulticastPingThread = new MulticastPingThread(Collections.singletonList(InetAddress.getLocalHost()), null, null);
   }
 
   public void testExtractPort() {
@@ -40,4 +46,135 @@ public class MulticastPingThreadTest extends BaseTestCase {
 
   }
 
+  public void testDiscoveryLatencyOnLoopback() throws Exception {
+    final InetAddress loopback = InetAddress.getByName("localhost");
+    // the discovery itself can only be tested where the loopback interface supports multicast
+    if (!isMulticastAvailable(loopback)) return;
+
+    final int nodesCount = 5;
+    final Map<Integer, Long> responseTimes = Collections.synchronizedMap(new HashMap<>());
+    List<MulticastPingThread> nodes = new ArrayList<>();
+    try {
+      for (int i = 0; i < nodesCount; i++) {
+        final int port = 12300 + i;
+        MulticastPingThread node = new MulticastPingThread(Collections.singletonList(loopback), null, new MockClient(port)) {
+          @Override
+          protected InetAddress getSelfAddressToAdvertise(InetAddress remoteAddress, int targetPort) {
+            return targetPort == port ? null : remoteAddress;
+          }
+
+          @Override
+          protected void addSelfInfoTo(InetAddress remoteAddress, int targetPort, InetAddress selfAddress) {
+            responseTimes.put(port, System.currentTimeMillis());
+          }
+        };
+        nodes.add(node);
+        node.start();
+      }
+
+      new WaitFor(2000) {
+        @Override
+        protected boolean condition() {
+          for (MulticastPingThread node : nodes) {
+            if (!node.isStarted()) return false;
+          }
+          return true;
+        }
+      };
+      for (MulticastPingThread node : nodes) {
+        assertTrue("All nodes should start", node.isStarted());
+      }
+
+      long start = System.currentTimeMillis();
+      nodes.get(0).sendMulticastPingRequest();
+      new WaitFor(3000) {
+        @Override
+        protected boolean condition() {
+          return responseTimes.size() == nodesCount - 1;
+        }
+      };
+
+      assertEquals("All other nodes should respond: " + responseTimes, nodesCount - 1, responseTimes.size());
+      assertFalse("Node should not respond to itself", responseTimes.containsKey(12300));
+      long latency = Collections.max(responseTimes.values()) - start;
+      assertTrue("Discovery took too long: " + latency, latency < 2000);
+
+      // repeated requests are not answered more often than MIN_RESPONSE_INTERVAL
+      final int[] receivedPings = new int[nodesCount];
+      final int[] answeredPings = new int[nodesCount];
+      for (int i = 0; i < nodesCount; i++) {
+        answeredPings[i] = nodes.get(i).getAnsweredPings();
+        receivedPings[i] = nodes.get(i).getReceivedPings();
+      }
+      nodes.get(0).sendMulticastPingRequest();
+      new WaitFor(3000) {
+        @Override
+        protected boolean condition() {
+          for (int i = 0; i < nodesCount; i++) {
+            if (nodes.get(i).getReceivedPings() == receivedPings[i]) return false;
+          }
+          return true;
+        }
+      };
+      for (int i = 0; i < nodesCount; i++) {
+        assertTrue("Node " + i + " should receive the repeated request", nodes.get(i).getReceivedPings() > receivedPings[i]);
+        assertEquals("Request should be rate limited by node " + i, answeredPings[i], nodes.get(i).getAnsweredPings());
+      }
+    }
+    finally {
+      for (MulticastPingThread node : nodes) {
+        node.shutdown();
+      }
+    }
+  }
+
+  private static boolean isMulticastAvailable(InetAddress address) throws IOException {
+    NetworkInterface networkInterface = NetworkInterface.getByInetAddress(address);
+    if (networkInterface == null) return false;
+
+    InetAddress group = InetAddress.getByName(MulticastPingThread.MULTICAST_ADORES);
+    byte[] data = "ping".getBytes(StandardCharsets.UTF_8);
+    try (MulticastSocket socket = new MulticastSocket(0)) {
+      socket.setNetworkInterface(networkInterface);
+      socket.joinGroup(new InetSocketAddress(group, 0), networkInterface);
+      socket.setSoTimeout(1000);
+      socket.send(new DatagramPacket(data, data.length, group, socket.getLocalPort()));
+      socket.receive(new DatagramPacket(new byte[data.length], data.length));
+      return true;
+    }
+    catch (SocketException | SocketTimeoutException e) {
+      return false;
+    }
+  }
+
+  private static class MockClient implements UserMonitorClient {
+    private final int myPort;
+
+    MockClient(int port) {
+      myPort = port;
+    }
+
+    @Override
+    public void setOnlineUsers(Collection<User> onlineUsers) {
+    }
+
+    @Override
+    public void addOnlineUsers(Collection<User> newOnlineUsers) {
+    }
+
+    @Override
+    public User createUser(String remoteUsername, OnlineUserInfo onlineUserInfo) {
+      return null;
+    }
+
+    @Override
+    public int getPort() {
+      return myPort;
+    }
+
+    @Override
+    public UserPresence getOwnPresence() {
+      return new UserPresence(true);
+    }
+  }
 }
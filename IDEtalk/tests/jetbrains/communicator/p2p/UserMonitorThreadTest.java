@@ -48,7 +48,7 @@ public class UserMonitorThreadTest extends BaseTestCase {
     myUserMonitorClientMock = mock(UserMonitorClient.class);
 
     final boolean[] started = new boolean[1];
-    myMulticastThread = new MulticastPingThread(InetAddress.getByName("localhost"), null, (UserMonitorClient) myUserMonitorClientMock.proxy()) {
+    myMulticastThread = new MulticastPingThread(Collections.singletonList(InetAddress.getByName("localhost")), null, (UserMonitorClient) myUserMonitorClientMock.proxy()) {
       @Override
       public void run() {
         myStarted = true;
@@ -66,7 +66,8 @@ public class UserMonitorThreadTest extends BaseTestCase {
     };
 
     myUserMonitorClientMock.stubs().method("getPort").will(returnValue(PORT));
-    myUserMonitorThread = new UserMonitorThread(new MulticastPingThread[]{myMulticastThread},
+    myUserMonitorClientMock.stubs().method("addOnlineUsers");
+    myUserMonitorThread = new UserMonitorThread(myMulticastThread,
         (UserMonitorClient) myUserMonitorClientMock.proxy(), WAIT_USER_RESPONSES_TIMEOUT);
     myUserMonitorThread.start();
 
@@ -48,7 +48,7 @@ public class UserMonitorThread_WaitingForNextSearch_Test extends BaseTestCase {
     myUserMonitorClientMock = mock(UserMonitorClient.class);
 
     final boolean[] started = new boolean[1];
-    myMulticastThread = new MulticastPingThread(InetAddress.getByName("localhost"), null, (UserMonitorClient) myUserMonitorClientMock.proxy()) {
+    myMulticastThread = new MulticastPingThread(Collections.singletonList(InetAddress.getByName("localhost")), null, (UserMonitorClient) myUserMonitorClientMock.proxy()) {
       @Override
       public void run() {
         myStarted = true;
@@ -62,11 +62,12 @@ public class UserMonitorThread_WaitingForNextSearch_Test extends BaseTestCase {
     };
 
     myUserMonitorClientMock.stubs().method("getPort").will(returnValue(PORT));
+    myUserMonitorClientMock.stubs().method("addOnlineUsers");
 
 
     System.setProperty(UserMonitorThread.SCAN_TIMEOUT_PROPERTY, "" + SECS_BETWEEN_SCANS); // seconds
 
-    myUserMonitorThread = new UserMonitorThread(new MulticastPingThread[]{myMulticastThread},
+    myUserMonitorThread = new UserMonitorThread(myMulticastThread,
         (UserMonitorClient) myUserMonitorClientMock.proxy(), WAIT_USER_RESPONSES_TIMEOUT);
     myUserMonitorThread.start();
 
@@ -66,6 +66,19 @@ public class FlexCommonUtils {
   public static final String JAVA_HEAP_SPACE = "Java heap space";
   public static final String COULD_NOT_CREATE_JVM = "Could not create the Java virtual machine";
 
+  /**
+   * Elements of compiler configuration files that contain paths of files the compilation depends on. Source paths are not listed,
+   * output and link report are produced by the compilation.
+   */
+  public static final List<String> TAGS_FOR_FILE_PATHS_IN_CONFIG_FILE = Collections.unmodifiableList(Arrays.asList(
+    "<flex-config><compiler><external-library-path><path-element>", "<flex-config><compiler><local-font-paths><path-element>",
+    "<flex-config><compiler><library-path><path-element>", "<flex-config><compiler><namespaces><namespace><manifest>",
+    "<flex-config><compiler><theme><filename>", "<flex-config><include-file><path>",
+    "<flex-config><include-stylesheet><path>", "<flex-config><file-specs><path-element>",
+    "<flex-config><compiler><include-libraries><library>", "<flex-config><compiler><local-fonts-snapshot>",
+    "<flex-config><compiler><defaults-css-url>", "<flex-config><compiler><defaults-css-files><filename>",
+    "<flex-config><load-config>", "<flex-config><load-externs>", "<flex-config><services>"));
+
   public static final String HTML_WRAPPER_TEMPLATE_FILE_NAME = "index.template.html";
 
   public static final String SWF_MACRO = "${swf}";
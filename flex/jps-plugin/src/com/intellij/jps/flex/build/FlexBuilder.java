@@ -19,7 +19,6 @@ import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.util.io.FileUtilRt;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.util.PathUtilRt;
-import com.intellij.util.concurrency.Semaphore;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.jps.builders.BuildOutputConsumer;
 import org.jetbrains.jps.builders.BuildRootDescriptor;
@@ -36,18 +35,26 @@ import org.jetbrains.jps.incremental.messages.ProgressMessage;
 import org.jetbrains.jps.model.JpsProject;
 import org.jetbrains.jps.model.library.sdk.JpsSdk;
 import org.jetbrains.jps.model.module.JpsModule;
+import org.jetbrains.jps.service.SharedThreadPool;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class FlexBuilder extends TargetBuilder<BuildRootDescriptor, FlexBuildTarget> {
 
   private static final Logger LOG = Logger.getInstance(FlexBuilder.class.getName());
-  private JpsBuiltInFlexCompilerHandler myBuiltInCompilerHandler;
+  // each compiler process is started with HEAP_SIZE_MB, so the bigger the heap, the fewer compilations run at once
+  private static final int MAX_TOTAL_COMPILER_HEAP_SIZE_MB = 1024;
+
+  private JpsBuiltInFlexCompilerPool myBuiltInCompilerPool;
+  // limits the number of compilations running at once, with both built-in and external compilers
+  private Semaphore myParallelCompilationsSemaphore;
 
   private enum Status {Ok, Failed, Cancelled}
 
@@ -64,15 +71,24 @@ public class FlexBuilder extends TargetBuilder<BuildRootDescriptor, FlexBuildTar
   @Override
   public void buildStarted(final CompileContext context) {
     super.buildStarted(context);
-    myBuiltInCompilerHandler = new JpsBuiltInFlexCompilerHandler(context.getProjectDescriptor().getProject());
+    final JpsProject project = context.getProjectDescriptor().getProject();
+    final int maxParallelCompilations = getMaxParallelCompilations(JpsFlexCompilerProjectExtension.getInstance(project));
+    myBuiltInCompilerPool = new JpsBuiltInFlexCompilerPool(project, maxParallelCompilations);
+    myParallelCompilationsSemaphore = new Semaphore(maxParallelCompilations);
+  }
+
+  static int getMaxParallelCompilations(@NotNull final JpsFlexCompilerProjectExtension options) {
+    final int byHeapSize = MAX_TOTAL_COMPILER_HEAP_SIZE_MB / Math.max(1, options.HEAP_SIZE_MB);
+    return Math.max(1, Math.min(options.MAX_PARALLEL_COMPILATIONS, byHeapSize));
   }
 
   @Override
   public void buildFinished(final CompileContext context) {
-    LOG.assertTrue(myBuiltInCompilerHandler.getActiveCompilationsNumber() == 0,
-                   myBuiltInCompilerHandler.getActiveCompilationsNumber() + " Flex compilation(s) are not finished!");
-    myBuiltInCompilerHandler.stopCompilerProcess();
-    myBuiltInCompilerHandler = null;
+    LOG.assertTrue(myBuiltInCompilerPool.getActiveCompilationsNumber() == 0,
+                   myBuiltInCompilerPool.getActiveCompilationsNumber() + " Flex compilation(s) are not finished!");
+    myBuiltInCompilerPool.stopCompilerProcesses();
+    myBuiltInCompilerPool = null;
+    myParallelCompilationsSemaphore = null;
 
     FlexCommonUtils.deleteTempFlexConfigFiles(context.getProjectDescriptor().getProject().getName());
 
@@ -112,7 +128,9 @@ public class FlexBuilder extends TargetBuilder<BuildRootDescriptor, FlexBuildTar
 
     final List<JpsFlexBuildConfiguration> bcsToCompile = getAllBCsToCompile(mainBC);
 
-    if (!FlexCommonUtils.isFlexUnitBC(mainBC) && !isFlexmojosBCWithUpdatedConfigFile(mainBC)) {
+    if (!FlexCommonUtils.isFlexUnitBC(mainBC) &&
+        !isFlexmojosBCWithUpdatedConfigFile(mainBC) &&
+        !FlexCompilationDependencies.isChanged(context, buildTarget)) {
       if (dirtyFilePaths.isEmpty()) {
         boolean outputFilesExist = true;
 
@@ -135,8 +153,12 @@ public class FlexBuilder extends TargetBuilder<BuildRootDescriptor, FlexBuildTar
       }
     }
 
-    for (JpsFlexBuildConfiguration bc : bcsToCompile) {
-      final Status status = compileBuildConfiguration(context, bc, myBuiltInCompilerHandler);
+    final Map<JpsFlexBuildConfiguration, List<File>> usedConfigFiles = new ConcurrentHashMap<>();
+    final List<Status> statuses = compileBuildConfigurations(context, bcsToCompile, usedConfigFiles);
+
+    for (int i = 0; i < bcsToCompile.size(); i++) {
+      final JpsFlexBuildConfiguration bc = bcsToCompile.get(i);
+      final Status status = statuses.get(i);
 
       switch (status) {
         case Ok:
@@ -153,15 +175,137 @@ public class FlexBuilder extends TargetBuilder<BuildRootDescriptor, FlexBuildTar
                                  : FlexCommonBundle.message("compilation.failed.dependent.will.be.skipped");
           context.processMessage(new CompilerMessage(FlexBuilderUtils.getCompilerName(bc), BuildMessage.Kind.INFO, message));
 
+          FlexCompilationDependencies.compilationFailed(context, buildTarget);
           throw new StopBuildException();
 
         case Cancelled:
           context.processMessage(
             new CompilerMessage(FlexBuilderUtils.getCompilerName(bc), BuildMessage.Kind.INFO,
                                 FlexCommonBundle.message("compilation.cancelled")));
+          FlexCompilationDependencies.compilationFailed(context, buildTarget);
           return;
       }
     }
+
+    final List<File> generatedConfigFiles = new ArrayList<>();
+    final List<File> customConfigFiles = new ArrayList<>();
+    for (List<File> configFiles : usedConfigFiles.values()) {
+      generatedConfigFiles.add(configFiles.get(0));
+      customConfigFiles.addAll(configFiles.subList(1, configFiles.size()));
+    }
+    FlexCompilationDependencies.compilationSucceeded(context, buildTarget, generatedConfigFiles, customConfigFiles);
+  }
+
+  /**
+   * Compiles the main BC together with runtime stylesheets, then all RLMs, which are optimized for the main BC and need its output.
+   * Build configurations of each of the two groups are compiled in parallel.
+   *
+   * @return statuses in the order of {@code bcsToCompile}, the first one is the main BC. If the main BC is not compiled successfully,
+   * RLMs are not compiled, their statuses are {@link Status#Cancelled}.
+   */
+  private List<Status> compileBuildConfigurations(final CompileContext context,
+                                                  final List<JpsFlexBuildConfiguration> bcsToCompile,
+                                                  final Map<JpsFlexBuildConfiguration, List<File>> usedConfigFiles)
+    throws ProjectBuildException {
+    final Status[] statuses = new Status[bcsToCompile.size()];
+
+    final List<Integer> mainAndCss = new ArrayList<>();
+    final List<Integer> rlms = new ArrayList<>();
+    for (int i = 0; i < bcsToCompile.size(); i++) {
+      (i > 0 && bcsToCompile.get(i).getOutputType() == OutputType.RuntimeLoadedModule ? rlms : mainAndCss).add(i);
+    }
+
+    compileInParallel(context, bcsToCompile, mainAndCss, statuses, usedConfigFiles);
+
+    if (statuses[0] == Status.Ok) {
+      compileInParallel(context, bcsToCompile, rlms, statuses, usedConfigFiles);
+    }
+    else {
+      for (int i : rlms) {
+        statuses[i] = Status.Cancelled;
+      }
+    }
+
+    return Arrays.asList(statuses);
+  }
+
+  private void compileInParallel(final CompileContext context,
+                                 final List<JpsFlexBuildConfiguration> bcsToCompile,
+                                 final List<Integer> indices,
+                                 final Status[] statuses,
+                                 final Map<JpsFlexBuildConfiguration, List<File>> usedConfigFiles) throws ProjectBuildException {
+    final AtomicBoolean cancelled = new AtomicBoolean();
+    if (indices.size() == 1) {
+      final int index = indices.get(0);
+      statuses[index] = compileBuildConfigurationWithPermit(context, bcsToCompile.get(index), usedConfigFiles, cancelled);
+      return;
+    }
+
+    final List<Future<Status>> futures = new ArrayList<>(indices.size());
+    for (int index : indices) {
+      final JpsFlexBuildConfiguration bc = bcsToCompile.get(index);
+      futures.add(SharedThreadPool.getInstance().submit(
+        () -> compileBuildConfigurationWithPermit(context, bc, usedConfigFiles, cancelled)));
+    }
+
+    try {
+      for (int i = 0; i < indices.size(); i++) {
+        try {
+          statuses[indices.get(i)] = futures.get(i).get();
+        }
+        catch (InterruptedException e) {
+          statuses[indices.get(i)] = Status.Cancelled;
+        }
+        catch (ExecutionException e) {
+          // compilations that haven't started yet are not started at all
+          cancelled.set(true);
+          throw new ProjectBuildException(e.getCause());
+        }
+      }
+    }
+    finally {
+      // don't leave compilations running when the build goes on or stops
+      for (Future<Status> future : futures) {
+        try {
+          future.get();
+        }
+        catch (InterruptedException | ExecutionException ignored) {
+        }
+      }
+    }
+  }
+
+  /**
+   * @param cancelled if set, the build configuration is not compiled, unless the compilation has already started
+   */
+  private Status compileBuildConfigurationWithPermit(final CompileContext context,
+                                                     final JpsFlexBuildConfiguration bc,
+                                                     final Map<JpsFlexBuildConfiguration, List<File>> usedConfigFiles,
+                                                     final AtomicBoolean cancelled) {
+    try {
+      myParallelCompilationsSemaphore.acquire();
+    }
+    catch (InterruptedException e) {
+      return Status.Cancelled;
+    }
+
+    try {
+      if (context.getCancelStatus().isCanceled() || cancelled.get()) return Status.Cancelled;
+
+      final long start = System.currentTimeMillis();
+      final Status status = compileBuildConfiguration(context, bc, myBuiltInCompilerPool, usedConfigFiles);
+      final long duration = System.currentTimeMillis() - start;
+
+      LOG.info(FlexCommonUtils.getBCSpecifier(bc) + " (module " + bc.getModule().getName() + "): " + status + " in " + duration + " ms");
+      if (status != Status.Cancelled) {
+        context.processMessage(new CompilerMessage(FlexBuilderUtils.getCompilerName(bc), BuildMessage.Kind.INFO,
+                                                   FlexCommonBundle.message("compilation.time", StringUtil.formatDuration(duration))));
+      }
+      return status;
+    }
+    finally {
+      myParallelCompilationsSemaphore.release();
+    }
   }
 
   /**
@@ -283,13 +427,15 @@ public class FlexBuilder extends TargetBuilder<BuildRootDescriptor, FlexBuildTar
 
   private static Status compileBuildConfiguration(final CompileContext context,
                                                   final JpsFlexBuildConfiguration bc,
-                                                  final JpsBuiltInFlexCompilerHandler builtInCompilerHandler) {
+                                                  final JpsBuiltInFlexCompilerPool builtInCompilerPool,
+                                                  final Map<JpsFlexBuildConfiguration, List<File>> usedConfigFiles) {
     setProgressMessage(context, bc);
 
     final String compilerName = FlexBuilderUtils.getCompilerName(bc);
 
     try {
       final List<File> configFiles = createConfigFiles(bc, context.getProjectDescriptor());
+      usedConfigFiles.put(bc, configFiles);
       final String outputFilePath = bc.getActualOutputFilePath();
 
       if (!ensureCanCreateFile(new File(outputFilePath))) {
@@ -298,7 +444,7 @@ public class FlexBuilder extends TargetBuilder<BuildRootDescriptor, FlexBuildTar
         return Status.Failed;
       }
 
-      return doCompile(context, bc, configFiles, compilerName, builtInCompilerHandler);
+      return doCompile(context, bc, configFiles, compilerName, builtInCompilerPool);
     }
     catch (IOException e) {
       context.processMessage(new CompilerMessage(compilerName, BuildMessage.Kind.ERROR, e.getMessage()));
@@ -351,7 +497,7 @@ public class FlexBuilder extends TargetBuilder<BuildRootDescriptor, FlexBuildTar
                                   final JpsFlexBuildConfiguration bc,
                                   final List<File> configFiles,
                                   final String compilerName,
-                                  final JpsBuiltInFlexCompilerHandler builtInCompilerHandler) {
+                                  final JpsBuiltInFlexCompilerPool builtInCompilerPool) {
     final boolean app = bc.getOutputType() != OutputType.Library;
     final JpsSdk<?> sdk = bc.getSdk();
     assert sdk != null;
@@ -361,11 +507,25 @@ public class FlexBuilder extends TargetBuilder<BuildRootDescriptor, FlexBuildTar
                           (JpsFlexCompilerProjectExtension.getInstance(bc.getModule().getProject()).PREFER_ASC_20 ||
                            FlexCommonUtils.isAirSdkWithoutFlex(sdk));
     final boolean builtIn = !asc20 &&
-                            JpsFlexCompilerProjectExtension.getInstance(bc.getModule().getProject()).USE_BUILT_IN_COMPILER &&
-                            builtInCompilerHandler.canBeUsedForSdk(sdk.getHomePath());
+                            JpsFlexCompilerProjectExtension.getInstance(bc.getModule().getProject()).USE_BUILT_IN_COMPILER;
 
     if (builtIn) {
-      return doCompileWithBuiltInCompiler(context, bc, configFiles, compilerName, builtInCompilerHandler);
+      final JpsBuiltInFlexCompilerHandler builtInCompilerHandler;
+      try {
+        builtInCompilerHandler = builtInCompilerPool.acquire(sdk.getHomePath());
+      }
+      catch (InterruptedException e) {
+        return Status.Cancelled;
+      }
+
+      if (builtInCompilerHandler != null) {
+        try {
+          return doCompileWithBuiltInCompiler(context, bc, configFiles, compilerName, builtInCompilerHandler);
+        }
+        finally {
+          builtInCompilerPool.release(builtInCompilerHandler);
+        }
+      }
     }
 
     final List<String> compilerCommand = asc20 ? getASC20Command(bc.getModule().getProject(), sdk, app)
@@ -413,16 +573,15 @@ public class FlexBuilder extends TargetBuilder<BuildRootDescriptor, FlexBuildTar
     final String plainCommand = StringUtil.join(command,
                                                 s -> s.indexOf(' ') >= 0 && !(s.startsWith("\"") && s.endsWith("\"")) ? '\"' + s + '\"' : s, " ");
 
-    final Semaphore semaphore = new Semaphore();
-    semaphore.down();
+    final Semaphore semaphore = new Semaphore(0);
 
     context.processMessage(new CompilerMessage(compilerName, BuildMessage.Kind.INFO, plainCommand));
 
-    final BuiltInCompilerListener listener = new BuiltInCompilerListener(context, compilerName, () -> semaphore.up());
+    final BuiltInCompilerListener listener = new BuiltInCompilerListener(context, compilerName, () -> semaphore.release());
 
     builtInCompilerHandler.sendCompilationCommand(plainCommand, listener);
 
-    semaphore.waitFor();
+    semaphore.acquireUninterruptibly();
     builtInCompilerHandler.removeListener(listener);
 
     return listener.isCompilationCancelled() ? Status.Cancelled
@@ -0,0 +1,376 @@
+package com.intellij.jps.flex.build;
+
+import com.intellij.flex.FlexCommonUtils;
+import com.intellij.flex.build.FlexBuildTarget;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.JDOMUtil;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.containers.ContainerUtil;
+import org.jdom.Element;
+import org.jdom.JDOMException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jps.incremental.CompileContext;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Files that compilation of a Flex build target depends on, but that are not roots of the target, so JPS doesn't check them:
+ * compiler configuration files, SDK SWCs and everything else referenced from configuration files (for example, from configs
+ * generated by Flexmojos). Their state at the last successful compilation is kept in the target data folder, so it survives restarts.
+ * Referenced folders are recorded with the list of SWCs in them, so a SWC added to a library path folder is noticed, and referenced
+ * files that don't exist are recorded as missing, so a file that appears later is noticed too.
+ * <p>
+ * The check is cheap even for hundreds of SWCs: a file is hashed only if its length or timestamp differs from the stored one,
+ * so touching a file without changing it doesn't cause recompilation. The same holds for recording the state after compilation.
+ */
+class FlexCompilationDependencies {
+
+  private static final Logger LOG = Logger.getInstance(FlexCompilationDependencies.class.getName());
+
+  private static final int VERSION = 2;
+  private static final String FILE_NAME = "flex-compilation-dependencies.dat";
+
+  private static final byte[] NO_HASH = new byte[0];
+
+  enum Kind {
+    FILE,
+    /** length is the number of SWCs in the folder, hash is computed from their names */
+    SWC_FOLDER,
+    MISSING
+  }
+
+  static class FileState {
+    private final String myPath;
+    private final Kind myKind;
+    private final long myLength;
+    private long myTimestamp;
+    private final byte[] myHash;
+
+    FileState(final String path, final long length, final long timestamp, final byte[] hash) {
+      this(path, Kind.FILE, length, timestamp, hash);
+    }
+
+    FileState(final String path, final Kind kind, final long length, final long timestamp, final byte[] hash) {
+      myPath = path;
+      myKind = kind;
+      myLength = length;
+      myTimestamp = timestamp;
+      myHash = hash;
+    }
+
+    String getPath() {
+      return myPath;
+    }
+
+    Kind getKind() {
+      return myKind;
+    }
+
+    byte[] getHash() {
+      return myHash;
+    }
+  }
+
+  private FlexCompilationDependencies() {
+  }
+
+  /**
+   * @return {@code true} if any of the files recorded at the last successful compilation of the target has changed or disappeared;
+   * {@code false} if nothing has changed or nothing is recorded
+   */
+  static boolean isChanged(@NotNull final CompileContext context, @NotNull final FlexBuildTarget target) {
+    final File storageFile = getStorageFile(context, target);
+    final List<FileState> states = load(storageFile);
+    if (states == null) return false;
+
+    boolean timestampsUpdated = false;
+
+    for (FileState state : states) {
+      final long timestamp = state.myTimestamp;
+      if (isChanged(state)) {
+        LOG.debug("recompile because dependency changed: " + state.myPath);
+        return true;
+      }
+      timestampsUpdated |= state.myTimestamp != timestamp;
+    }
+
+    if (timestampsUpdated) {
+      save(storageFile, states);
+    }
+    return false;
+  }
+
+  /**
+   * @return {@code true} if the dependency has changed since its state was recorded; if it was only touched, the recorded timestamp is
+   * updated instead
+   */
+  static boolean isChanged(@NotNull final FileState state) {
+    final File file = new File(state.myPath);
+    if (state.myKind == Kind.MISSING) return file.exists();
+
+    final long timestamp = file.lastModified();
+    if (timestamp == 0) return true;
+
+    if (state.myKind == Kind.SWC_FOLDER) {
+      // adding or removing a file changes the timestamp of the folder
+      if (timestamp == state.myTimestamp) return false;
+      if (!file.isDirectory()) return true;
+
+      final FileState current = computeFolderState(file);
+      if (current.myLength != state.myLength || !Arrays.equals(current.myHash, state.myHash)) return true;
+    }
+    else {
+      final long length = file.length();
+      if (timestamp == state.myTimestamp && length == state.myLength) return false;
+      if (length != state.myLength || !Arrays.equals(getHash(file), state.myHash)) return true;
+    }
+
+    // touched but not changed
+    state.myTimestamp = timestamp;
+    return false;
+  }
+
+  /**
+   * Records the state of files referenced from config files after successful compilation of the target. Generated config files are
+   * temporary and reflect the build configuration, which JPS checks itself, so only custom config files are recorded themselves.
+   */
+  static void compilationSucceeded(@NotNull final CompileContext context,
+                                   @NotNull final FlexBuildTarget target,
+                                   @NotNull final Collection<File> generatedConfigFiles,
+                                   @NotNull final Collection<File> customConfigFiles) {
+    final String workDirPath = FlexCommonUtils.getFlexCompilerWorkDirPath(target.getBC().getModule().getProject());
+    final Set<File> files = new LinkedHashSet<>(customConfigFiles);
+    final Set<File> swcFolders = new LinkedHashSet<>();
+
+    for (File configFile : ContainerUtil.concat(generatedConfigFiles, customConfigFiles)) {
+      for (String path : findFilePaths(configFile)) {
+        // the compiler takes the first existing one, so a missing candidate that appears later changes what is compiled
+        for (File file : getCandidateFiles(path, configFile.getParent(), workDirPath)) {
+          if (file.isDirectory()) {
+            // a folder in library path means all SWCs in it
+            swcFolders.add(file);
+            Collections.addAll(files, listSwcs(file));
+          }
+          else {
+            files.add(file);
+          }
+          if (file.exists()) break;
+        }
+      }
+    }
+
+    final File storageFile = getStorageFile(context, target);
+    save(storageFile, computeStates(files, swcFolders, load(storageFile)));
+  }
+
+  /**
+   * @param previousStates states recorded at the previous successful compilation; hashes of files with the same length and timestamp
+   *                       are taken from there instead of being computed again
+   */
+  @NotNull
+  static List<FileState> computeStates(@NotNull final Collection<File> files,
+                                       @NotNull final Collection<File> swcFolders,
+                                       @Nullable final List<FileState> previousStates) {
+    final Map<String, FileState> pathToPreviousState = new HashMap<>();
+    if (previousStates != null) {
+      for (FileState state : previousStates) {
+        pathToPreviousState.put(state.myPath, state);
+      }
+    }
+
+    final List<FileState> states = new ArrayList<>(files.size() + swcFolders.size());
+    for (File file : files) {
+      final long length = file.length();
+      final long timestamp = file.lastModified();
+      if (timestamp == 0) {
+        states.add(new FileState(file.getPath(), Kind.MISSING, 0, 0, NO_HASH));
+        continue;
+      }
+
+      final FileState previous = pathToPreviousState.get(file.getPath());
+      final boolean unchanged =
+        previous != null && previous.myKind == Kind.FILE && previous.myTimestamp == timestamp && previous.myLength == length;
+      final byte[] hash = unchanged ? previous.myHash : getHash(file);
+      states.add(new FileState(file.getPath(), length, timestamp, hash));
+    }
+    for (File folder : swcFolders) {
+      states.add(computeFolderState(folder));
+    }
+    return states;
+  }
+
+  @NotNull
+  private static FileState computeFolderState(@NotNull final File folder) {
+    final File[] swcs = listSwcs(folder);
+    final String[] names = new String[swcs.length];
+    for (int i = 0; i < swcs.length; i++) {
+      names[i] = swcs[i].getName();
+    }
+    Arrays.sort(names);
+
+    final MessageDigest digest = createDigest();
+    for (String name : names) {
+      digest.update(name.getBytes(StandardCharsets.UTF_8));
+      digest.update((byte)0);
+    }
+    return new FileState(folder.getPath(), Kind.SWC_FOLDER, names.length, folder.lastModified(), digest.digest());
+  }
+
+  @NotNull
+  private static File[] listSwcs(@NotNull final File folder) {
+    final File[] swcs = folder.listFiles((dir, name) -> StringUtil.endsWithIgnoreCase(name, ".swc"));
+    return swcs != null ? swcs : new File[0];
+  }
+
+  static void compilationFailed(@NotNull final CompileContext context, @NotNull final FlexBuildTarget target) {
+    FileUtil.delete(getStorageFile(context, target));
+  }
+
+  @NotNull
+  private static File getStorageFile(@NotNull final CompileContext context, @NotNull final FlexBuildTarget target) {
+    return new File(context.getProjectDescriptor().dataManager.getDataPaths().getTargetDataRoot(target), FILE_NAME);
+  }
+
+  @NotNull
+  private static List<String> findFilePaths(@NotNull final File configFile) {
+    final List<String> result = new ArrayList<>();
+    try {
+      final Element root = JDOMUtil.load(configFile);
+      for (String tags : FlexCommonUtils.TAGS_FOR_FILE_PATHS_IN_CONFIG_FILE) {
+        final List<String> names = StringUtil.split(StringUtil.trimEnd(StringUtil.trimStart(tags, "<"), ">"), "><");
+        if (root.getName().equals(names.get(0))) {
+          collectTexts(root, names, 1, result);
+        }
+      }
+    }
+    catch (IOException | JDOMException e) {
+      LOG.debug("Failed to parse " + configFile.getPath(), e);
+    }
+    return result;
+  }
+
+  private static void collectTexts(@NotNull final Element element,
+                                   @NotNull final List<String> names,
+                                   final int index,
+                                   @NotNull final List<String> result) {
+    if (index == names.size()) {
+      final String text = element.getTextTrim();
+      if (!text.isEmpty()) {
+        result.add(text);
+      }
+      return;
+    }
+
+    for (Element child : element.getChildren()) {
+      // namespaces are not taken into consideration
+      if (child.getName().equals(names.get(index))) {
+        collectTexts(child, names, index + 1, result);
+      }
+    }
+  }
+
+  /**
+   * @return the files the path may refer to, in the order they are looked for
+   */
+  @NotNull
+  private static List<File> getCandidateFiles(@NotNull final String path, @NotNull final String... potentialBaseDirs) {
+    final List<File> result = new ArrayList<>();
+    result.add(new File(FileUtil.toSystemDependentName(path)));
+    if (!FileUtil.isAbsolute(path)) {
+      for (String baseDir : potentialBaseDirs) {
+        result.add(new File(FileUtil.toSystemDependentName(baseDir + '/' + path)));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the hash of the file contents, or an empty array if the file can't be read, so that it is considered changed once it can
+   */
+  @NotNull
+  private static byte[] getHash(@NotNull final File file) {
+    final byte[] hash = computeHash(file);
+    return hash != null ? hash : NO_HASH;
+  }
+
+  @Nullable
+  static byte[] computeHash(@NotNull final File file) {
+    try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+      final MessageDigest digest = createDigest();
+      final byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) > 0) {
+        digest.update(buffer, 0, read);
+      }
+      return digest.digest();
+    }
+    catch (IOException e) {
+      return null;
+    }
+  }
+
+  @NotNull
+  private static MessageDigest createDigest() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Nullable
+  private static List<FileState> load(@NotNull final File storageFile) {
+    if (!storageFile.isFile()) return null;
+
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(storageFile)))) {
+      if (in.readInt() != VERSION) return null;
+
+      final int count = in.readInt();
+      final List<FileState> result = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        final String path = in.readUTF();
+        final int kind = in.readUnsignedByte();
+        if (kind >= Kind.values().length) throw new IOException("Unknown kind: " + kind);
+        final long length = in.readLong();
+        final long timestamp = in.readLong();
+        final byte[] hash = new byte[in.readUnsignedByte()];
+        in.readFully(hash);
+        result.add(new FileState(path, Kind.values()[kind], length, timestamp, hash));
+      }
+      return result;
+    }
+    catch (IOException e) {
+      LOG.debug("Failed to load " + storageFile.getPath(), e);
+      return null;
+    }
+  }
+
+  private static void save(@NotNull final File storageFile, @NotNull final List<FileState> states) {
+    try {
+      FileUtil.createParentDirs(storageFile);
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(storageFile)))) {
+        out.writeInt(VERSION);
+        out.writeInt(states.size());
+        for (FileState state : states) {
+          out.writeUTF(state.myPath);
+          out.writeByte(state.myKind.ordinal());
+          out.writeLong(state.myLength);
+          out.writeLong(state.myTimestamp);
+          out.writeByte(state.myHash.length);
+          out.write(state.myHash);
+        }
+      }
+    }
+    catch (IOException e) {
+      LOG.warn("Failed to save " + storageFile.getPath(), e);
+      FileUtil.delete(storageFile);
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package com.intellij.jps.flex.build;
+
+import gnu.trove.THashMap;
+import gnu.trove.THashSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jps.model.JpsProject;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Built-in compiler processes, at most {@code maxSize} of them. Each process serves a single SDK and compiles one build configuration
+ * at a time, so build configurations that use the same SDK can be compiled in parallel by different processes.
+ */
+class JpsBuiltInFlexCompilerPool {
+
+  private final JpsProject myProject;
+  private final int myMaxSize;
+
+  // handler -> home path of the SDK it was acquired for first
+  private final Map<JpsBuiltInFlexCompilerHandler, String> myHandlers = new THashMap<>();
+  private final Set<JpsBuiltInFlexCompilerHandler> myBusyHandlers = new THashSet<>();
+
+  JpsBuiltInFlexCompilerPool(@NotNull final JpsProject project, final int maxSize) {
+    myProject = project;
+    myMaxSize = Math.max(1, maxSize);
+  }
+
+  /**
+   * Returns an idle handler for the SDK, starting a new one if the pool is not full yet, or waits until a busy handler for the SDK
+   * becomes idle. The handler must be given back with {@link #release(JpsBuiltInFlexCompilerHandler)}.
+   *
+   * @return {@code null} if all handlers serve other SDKs and the pool is full, so the built-in compiler can't be used for this SDK
+   */
+  @Nullable
+  synchronized JpsBuiltInFlexCompilerHandler acquire(@NotNull final String sdkHome) throws InterruptedException {
+    while (true) {
+      boolean busyHandlerForSdkExists = false;
+
+      for (Map.Entry<JpsBuiltInFlexCompilerHandler, String> entry : myHandlers.entrySet()) {
+        if (sdkHome.equals(entry.getValue())) {
+          final JpsBuiltInFlexCompilerHandler handler = entry.getKey();
+          if (myBusyHandlers.add(handler)) {
+            return handler;
+          }
+          busyHandlerForSdkExists = true;
+        }
+      }
+
+      if (myHandlers.size() < myMaxSize) {
+        final JpsBuiltInFlexCompilerHandler handler = new JpsBuiltInFlexCompilerHandler(myProject);
+        myHandlers.put(handler, sdkHome);
+        myBusyHandlers.add(handler);
+        return handler;
+      }
+
+      if (!busyHandlerForSdkExists) {
+        return null;
+      }
+
+      wait();
+    }
+  }
+
+  synchronized void release(@NotNull final JpsBuiltInFlexCompilerHandler handler) {
+    myBusyHandlers.remove(handler);
+    notifyAll();
+  }
+
+  synchronized int getActiveCompilationsNumber() {
+    int result = 0;
+    for (JpsBuiltInFlexCompilerHandler handler : myHandlers.keySet()) {
+      result += handler.getActiveCompilationsNumber();
+    }
+    return result;
+  }
+
+  synchronized void stopCompilerProcesses() {
+    for (JpsBuiltInFlexCompilerHandler handler : myHandlers.keySet()) {
+      handler.stopCompilerProcess();
+    }
+    myHandlers.clear();
+    myBusyHandlers.clear();
+  }
+}
@@ -0,0 +1,106 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.intellij.jps.flex.build;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class FlexCompilationDependenciesTest extends TestCase {
+  private File myFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myFile = FileUtil.createTempFile("dependency", ".swc", true);
+    FileUtil.writeToFile(myFile, "contents");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      FileUtil.delete(myFile);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testHashComputedForNewFile() {
+    final List<FlexCompilationDependencies.FileState> states =
+      FlexCompilationDependencies.computeStates(Collections.singletonList(myFile), Collections.emptyList(), null);
+
+    assertEquals(1, states.size());
+    assertEquals(myFile.getPath(), states.get(0).getPath());
+    assertTrue(Arrays.equals(FlexCompilationDependencies.computeHash(myFile), states.get(0).getHash()));
+  }
+
+  public void testStoredHashReusedForUnchangedFile() {
+    final byte[] storedHash = {1, 2, 3};
+    final List<FlexCompilationDependencies.FileState> previous = Collections.singletonList(
+      new FlexCompilationDependencies.FileState(myFile.getPath(), myFile.length(), myFile.lastModified(), storedHash));
+
+    final List<FlexCompilationDependencies.FileState> states =
+      FlexCompilationDependencies.computeStates(Collections.singletonList(myFile), Collections.emptyList(), previous);
+
+    assertSame("File with the same length and timestamp should not be hashed again", storedHash, states.get(0).getHash());
+  }
+
+  public void testHashRecomputedForChangedFile() throws IOException {
+    final byte[] storedHash = {1, 2, 3};
+    final List<FlexCompilationDependencies.FileState> previous = Collections.singletonList(
+      new FlexCompilationDependencies.FileState(myFile.getPath(), myFile.length(), myFile.lastModified(), storedHash));
+
+    FileUtil.writeToFile(myFile, "changed contents");
+    assertTrue(myFile.setLastModified(myFile.lastModified() + 2000));
+
+    final List<FlexCompilationDependencies.FileState> states =
+      FlexCompilationDependencies.computeStates(Collections.singletonList(myFile), Collections.emptyList(), previous);
+
+    assertTrue(Arrays.equals(FlexCompilationDependencies.computeHash(myFile), states.get(0).getHash()));
+  }
+
+  public void testAppearedFileDetected() throws IOException {
+    final File missing = new File(myFile.getPath() + ".missing");
+    final List<FlexCompilationDependencies.FileState> states =
+      FlexCompilationDependencies.computeStates(Collections.singletonList(missing), Collections.emptyList(), null);
+
+    assertEquals(FlexCompilationDependencies.Kind.MISSING, states.get(0).getKind());
+    assertFalse(FlexCompilationDependencies.isChanged(states.get(0)));
+
+    try {
+      FileUtil.writeToFile(missing, "contents");
+      assertTrue(FlexCompilationDependencies.isChanged(states.get(0)));
+    }
+    finally {
+      FileUtil.delete(missing);
+    }
+  }
+
+  public void testSwcAddedToFolderDetected() throws IOException {
+    final File folder = FileUtil.createTempDirectory("library-path", null, true);
+    try {
+      FileUtil.writeToFile(new File(folder, "a.swc"), "contents");
+      final List<FlexCompilationDependencies.FileState> states =
+        FlexCompilationDependencies.computeStates(Collections.emptyList(), Collections.singletonList(folder), null);
+
+      assertEquals(FlexCompilationDependencies.Kind.SWC_FOLDER, states.get(0).getKind());
+      assertFalse(FlexCompilationDependencies.isChanged(states.get(0)));
+
+      FileUtil.writeToFile(new File(folder, "readme.txt"), "not a library");
+      assertTrue(folder.setLastModified(folder.lastModified() + 2000));
+      assertFalse("Files other than SWCs should not matter", FlexCompilationDependencies.isChanged(states.get(0)));
+
+      FileUtil.writeToFile(new File(folder, "b.swc"), "contents");
+      assertTrue(folder.setLastModified(folder.lastModified() + 2000));
+      assertTrue(FlexCompilationDependencies.isChanged(states.get(0)));
+    }
+    finally {
+      FileUtil.delete(folder);
+    }
+  }
+}
@@ -0,0 +1,130 @@
+package com.intellij.javascript.flex.compiled;
+
+import com.intellij.lang.javascript.flex.importer.FlexImporter;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * ActionScript interface text decompiled from library.swf files, kept in the IDE system folder and keyed by the swf content hash.
+ * The same SWC is usually used by many modules and projects (a Flex SDK, a shared Maven repository), so ABC parsing is done
+ * once per distinct swf rather than each time a project opens a decompiled file.
+ * <p>
+ * One gzipped file per entry. The least recently used entries are evicted when the cache exceeds {@link #MAX_CACHE_SIZE}.
+ * Only text of successfully decompiled files is cached. Entries are written and evicted in a pooled thread.
+ */
+final class SwfDecompiledTextCache {
+
+  private static final Logger LOG = Logger.getInstance(SwfDecompiledTextCache.class.getName());
+
+  // increment when the format of cache files changes, changes of the text itself are tracked by FlexImporter.INTERFACE_VERSION
+  private static final int VERSION = 1;
+  private static final long MAX_CACHE_SIZE = 128L * 1024 * 1024;
+
+  private SwfDecompiledTextCache() {
+  }
+
+  /**
+   * Disk IO happens in the calling thread.
+   */
+  @Nullable
+  static String get(@NotNull final String key) {
+    final File file = getCacheFile(key);
+    if (!file.isFile()) return null;
+
+    try (Reader reader = new InputStreamReader(new GZIPInputStream(new FileInputStream(file)), StandardCharsets.UTF_8)) {
+      final String text = FileUtil.loadTextAndClose(reader);
+      // the entry is used, so it is the last to be evicted
+      //noinspection ResultOfMethodCallIgnored
+      file.setLastModified(System.currentTimeMillis());
+      return text;
+    }
+    catch (IOException e) {
+      LOG.info("Failed to read cached decompiled text from " + file.getPath(), e);
+      FileUtil.delete(file);
+      return null;
+    }
+  }
+
+  static void putInBackground(@NotNull final String key, @NotNull final String text) {
+    ApplicationManager.getApplication().executeOnPooledThread(() -> put(key, text));
+  }
+
+  private static void put(@NotNull final String key, @NotNull final String text) {
+    final File file = getCacheFile(key);
+    File tempFile = null;
+    try {
+      FileUtil.createParentDirs(file);
+      // other IDE instances may write the same entry, so it appears under its name only when written completely
+      tempFile = FileUtil.createTempFile(file.getParentFile(), file.getName(), ".tmp", true, false);
+      try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(tempFile)), StandardCharsets.UTF_8)) {
+        writer.write(text);
+      }
+      if (!tempFile.renameTo(file)) {
+        FileUtil.delete(tempFile);
+      }
+    }
+    catch (IOException e) {
+      LOG.info("Failed to write cached decompiled text to " + file.getPath(), e);
+      if (tempFile != null) FileUtil.delete(tempFile);
+      return;
+    }
+
+    evictIfNeeded(file.getParentFile());
+  }
+
+  private static void evictIfNeeded(@NotNull final File cacheDir) {
+    final File[] files = cacheDir.listFiles();
+    if (files == null) return;
+
+    long totalSize = 0;
+    for (File file : files) {
+      totalSize += file.length();
+    }
+    if (totalSize <= MAX_CACHE_SIZE) return;
+
+    // evict least recently used entries until the cache takes no more than 3/4 of its maximum size
+    Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+    for (File file : files) {
+      if (totalSize <= MAX_CACHE_SIZE * 3 / 4) break;
+      totalSize -= file.length();
+      FileUtil.delete(file);
+    }
+  }
+
+  @NotNull
+  private static File getCacheFile(@NotNull final String key) {
+    return new File(PathManager.getSystemPath(),
+                    "flex-decompiled-swf/" + VERSION + "." + FlexImporter.INTERFACE_VERSION + "/" + key + ".as.gz");
+  }
+
+  /**
+   * SHA-1 of the content, callers compute it once for both {@link #get(String)} and {@link #putInBackground(String, String)}.
+   */
+  @NotNull
+  static String computeKey(@NotNull final byte[] content) {
+    try {
+      final byte[] hash = MessageDigest.getInstance("SHA-1").digest(content);
+      final StringBuilder result = new StringBuilder(hash.length * 2);
+      for (byte b : hash) {
+        result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return result.toString();
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -19,12 +19,27 @@ public class SwfFileDecompiler implements BinaryFileDecompiler {
   public CharSequence decompile(@NotNull final VirtualFile file) {
     final Project project = findProject();
     if (project == null) return "";
+    final byte[] content;
     try {
-      return FlexImporter.buildInterfaceFromStream(file.getInputStream());
+      content = file.contentsToByteArray();
     }
     catch (IOException ex) {
       return ArrayUtil.EMPTY_CHAR_SEQUENCE;
     }
+
+    final String cacheKey = SwfDecompiledTextCache.computeKey(content);
+    final String cachedText = SwfDecompiledTextCache.get(cacheKey);
+    if (cachedText != null) return cachedText;
+
+    try {
+      final String text = FlexImporter.buildInterface(content);
+      SwfDecompiledTextCache.putInBackground(cacheKey, text);
+      return text;
+    }
+    catch (IOException ex) {
+      // not cached: the text only describes the problem
+      return "/* " + ex.getLocalizedMessage() + " */";
+    }
   }
 
   private static Project findProject() {
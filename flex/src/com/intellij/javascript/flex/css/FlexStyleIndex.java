@@ -24,6 +24,8 @@ import com.intellij.psi.stubs.StubTree;
 import com.intellij.psi.xml.XmlDocument;
 import com.intellij.psi.xml.XmlFile;
 import com.intellij.psi.xml.XmlTag;
+import com.intellij.util.containers.Interner;
+import com.intellij.util.containers.WeakStringInterner;
 import com.intellij.util.indexing.*;
 import com.intellij.util.io.*;
 import gnu.trove.THashMap;
@@ -44,7 +46,9 @@ public class FlexStyleIndex extends FileBasedIndexExtension<String, Set<FlexStyl
 
   public static final ID<String, Set<FlexStyleIndexInfo>> INDEX_ID = ID.create("js.style.index");
 
-  private static final int VERSION = 18;
+  private static final int VERSION = 19;
+
+  private static final Interner<String> ourInterner = new WeakStringInterner();
 
   private final DataExternalizer<Set<FlexStyleIndexInfo>> myDataExternalizer = new DataExternalizer<Set<FlexStyleIndexInfo>>() {
 
@@ -72,11 +76,11 @@ public class FlexStyleIndex extends FileBasedIndexExtension<String, Set<FlexStyl
         assert className != null;
         String attributeName = readUTF(in);
         assert attributeName != null;
-        String inherit = readUTF(in);
+        String inherit = intern(readUTF(in));
         assert inherit != null;
-        String type = readUTF(in);
-        String arrayType = readUTF(in);
-        String format = readUTF(in);
+        String type = intern(readUTF(in));
+        String arrayType = intern(readUTF(in));
+        String format = intern(readUTF(in));
         String enumeration = readUTF(in);
         boolean inClass = in.readBoolean();
         result.add(new FlexStyleIndexInfo(className, attributeName, inherit, type, arrayType, format, enumeration, inClass));
@@ -101,6 +105,15 @@ public class FlexStyleIndex extends FileBasedIndexExtension<String, Set<FlexStyl
     IOUtil.writeUTF(out, s != null ? s : "");
   }
 
+  /**
+   * Values are keyed by style name, so the same inherit flags, style types and formats are read again for every style of every
+   * library. There are only a few distinct ones, so the same instances are shared by all values read from the index.
+   */
+  @Nullable
+  private static String intern(@Nullable String s) {
+    return s != null ? ourInterner.intern(s) : null;
+  }
+
   private static <TKey, TValue> void addElement(Map<TKey, Set<TValue>> map, TKey key, TValue value) {
     Set<TValue> list = map.get(key);
     if (list == null) {
@@ -76,8 +76,9 @@ public class ClassBackedElementDescriptor extends IconProvider implements XmlEle
   protected final CodeContext context;
   private final boolean predefined;
 
-  private Map<String, AnnotationBackedDescriptor> myDescriptors; // can be both XML attributes and elements
-  private Map<String, Map<String, AnnotationBackedDescriptor>> myPackageToInternalDescriptors; // These descriptors are resolved only if MXML file is in the same package as descriptor originating element. Can be both XML attributes and elements.
+  // both maps are published without locking, myPackageToInternalDescriptors is always assigned first
+  private volatile Map<String, AnnotationBackedDescriptor> myDescriptors; // can be both XML attributes and elements
+  private volatile Map<String, Map<String, AnnotationBackedDescriptor>> myPackageToInternalDescriptors; // These descriptors are resolved only if MXML file is in the same package as descriptor originating element. Can be both XML attributes and elements.
   private Map<String, AnnotationBackedDescriptor> myPredefinedDescriptors; // can be XML attributes, but not elements
 
   @NonNls private static final String ARRAY_TYPE_ANNOTATION_PARAMETER = "arrayType";
@@ -433,8 +434,8 @@ public class ClassBackedElementDescriptor extends IconProvider implements XmlEle
     if (myDescriptors == null || myPackageToInternalDescriptors == null) {
       PsiElement element = getDeclaration();
       if (element == null) {
-        myDescriptors = Collections.emptyMap();
         myPackageToInternalDescriptors = Collections.emptyMap();
+        myDescriptors = Collections.emptyMap();
       }
       else {
         ensureDescriptorsMapsInitialized(element, null);
@@ -481,8 +482,8 @@ public class ClassBackedElementDescriptor extends IconProvider implements XmlEle
   public void addPredefinedMemberDescriptor(@NotNull AnnotationBackedDescriptor descriptor) {
     if (predefined) {
       if (myDescriptors == null) {
-        myDescriptors = new THashMap<>();
         myPackageToInternalDescriptors = Collections.emptyMap();
+        myDescriptors = new THashMap<>();
       }
       myDescriptors.put(descriptor.getName(), descriptor);
     } else {
@@ -492,69 +493,70 @@ public class ClassBackedElementDescriptor extends IconProvider implements XmlEle
   }
 
   private void ensureDescriptorsMapsInitialized(PsiElement element, @Nullable Set<JSClass> visited) {
-    Map<String, AnnotationBackedDescriptor> map;
     Map<String, Map<String, AnnotationBackedDescriptor>> packageToInternalDescriptors;
 
-    synchronized (CodeContext.class) {
-      map = myDescriptors;
-      packageToInternalDescriptors = myPackageToInternalDescriptors;
-      if (map != null && packageToInternalDescriptors != null) return;
+    // Computed without a global lock, so code contexts of different modules are filled in parallel. Concurrent calls for the same
+    // descriptor may compute equal maps twice, which is cheaper than contention; the last one wins.
+    if (myDescriptors != null && myPackageToInternalDescriptors != null) return;
 
-      map = new THashMap<>();
-      packageToInternalDescriptors = new THashMap<>();
-      Set<PsiElement> processedElements = null;
+    // Descriptors of super classes are shared with their own ClassBackedElementDescriptors, not copied
+    final LayeredDescriptorMap map = new LayeredDescriptorMap();
+    final Map<String, AnnotationBackedDescriptor> mxmlDescriptors = new THashMap<>();
+    packageToInternalDescriptors = new THashMap<>();
+    Set<PsiElement> processedElements = null;
 
-      if (element instanceof XmlBackedJSClassImpl) {
-        element = element.getParent().getContainingFile(); // TODO: make this code and following loop better
-      }
+    if (element instanceof XmlBackedJSClassImpl) {
+      element = element.getParent().getContainingFile(); // TODO: make this code and following loop better
+    }
 
-      if (element instanceof XmlFile && MxmlJSClass.isFxgFile((PsiFile)element)) {
-        element = XmlBackedJSClassFactory.getXmlBackedClass((XmlFile)element);
-      }
+    if (element instanceof XmlFile && MxmlJSClass.isFxgFile((PsiFile)element)) {
+      element = XmlBackedJSClassFactory.getXmlBackedClass((XmlFile)element);
+    }
 
-      while (element instanceof XmlFile) {
-        final XmlDocument document = ((XmlFile)element).getDocument();
-        final XmlTag rootTag = document != null ? document.getRootTag():null;
-        final XmlElementDescriptor descriptor = rootTag != null ? rootTag.getDescriptor():null;
-        if (processedElements == null) processedElements = new THashSet<>();
-        processedElements.add(element);
+    while (element instanceof XmlFile) {
+      final XmlDocument document = ((XmlFile)element).getDocument();
+      final XmlTag rootTag = document != null ? document.getRootTag():null;
+      final XmlElementDescriptor descriptor = rootTag != null ? rootTag.getDescriptor():null;
+      if (processedElements == null) processedElements = new THashSet<>();
+      processedElements.add(element);
 
-        element = descriptor != null ? descriptor.getDeclaration():null;
-        if (processedElements.contains(element)) break;
-        collectMxmlAttributes(map, packageToInternalDescriptors, rootTag);
-      }
+      element = descriptor != null ? descriptor.getDeclaration():null;
+      if (processedElements.contains(element)) break;
+      collectMxmlAttributes(mxmlDescriptors, packageToInternalDescriptors, rootTag);
+    }
+    // descriptors of super classes override the ones from mxml files
+    map.addLayer(mxmlDescriptors);
 
-      if (element instanceof JSNamedElement) {
-        JSNamedElement jsClass = (JSNamedElement)element;
+    if (element instanceof JSNamedElement) {
+      JSNamedElement jsClass = (JSNamedElement)element;
 
-        if (visited == null || !visited.contains(jsClass)) {
-          if (!MxmlJSClass.XML_TAG_NAME.equals(jsClass.getName()) && !MxmlJSClass.XMLLIST_TAG_NAME.equals(jsClass.getName())) {
-            JSReferenceList extendsList = jsClass instanceof JSClass ? ((JSClass)jsClass).getExtendsList():null;
-            if (extendsList != null) {
-              final JSClass clazz = (JSClass)jsClass;
-              if (visited == null) {
-                visited = new THashSet<>();
-              }
-              visited.add(clazz);
+      if (visited == null || !visited.contains(jsClass)) {
+        if (!MxmlJSClass.XML_TAG_NAME.equals(jsClass.getName()) && !MxmlJSClass.XMLLIST_TAG_NAME.equals(jsClass.getName())) {
+          JSReferenceList extendsList = jsClass instanceof JSClass ? ((JSClass)jsClass).getExtendsList():null;
+          if (extendsList != null) {
+            final JSClass clazz = (JSClass)jsClass;
+            if (visited == null) {
+              visited = new THashSet<>();
+            }
+            visited.add(clazz);
 
-              for(JSClass superClazz: clazz.getSuperClasses()) {
-                appendSuperClassDescriptors(map, packageToInternalDescriptors, superClazz, visited);
-              }
-            } else if (!OBJECT_CLASS_NAME.equals(jsClass.getName()) && CodeContext.isStdNamespace(context.namespace)) {
-              appendSuperClassDescriptors(
-                  map,
-                  packageToInternalDescriptors,
-                  ActionScriptClassResolver.findClassByQNameStatic(OBJECT_CLASS_NAME, jsClass),
-                  visited);
+            for(JSClass superClazz: clazz.getSuperClasses()) {
+              appendSuperClassDescriptors(map, packageToInternalDescriptors, superClazz, visited);
             }
+          } else if (!OBJECT_CLASS_NAME.equals(jsClass.getName()) && CodeContext.isStdNamespace(context.namespace)) {
+            appendSuperClassDescriptors(
+                map,
+                packageToInternalDescriptors,
+                ActionScriptClassResolver.findClassByQNameStatic(OBJECT_CLASS_NAME, jsClass),
+                visited);
           }
-
-          collectMyAttributes(jsClass, map, packageToInternalDescriptors);
         }
+
+        collectMyAttributes(jsClass, map, packageToInternalDescriptors);
       }
-      myDescriptors = map;
-      myPackageToInternalDescriptors = packageToInternalDescriptors;
     }
+    myPackageToInternalDescriptors = packageToInternalDescriptors;
+    myDescriptors = map.compact();
   }
 
   private void collectMxmlAttributes(final Map<String, AnnotationBackedDescriptor> map,
@@ -759,7 +761,7 @@ public class ClassBackedElementDescriptor extends IconProvider implements XmlEle
     return null;
   }
 
-  private void appendSuperClassDescriptors(final Map<String, AnnotationBackedDescriptor> map,
+  private void appendSuperClassDescriptors(final LayeredDescriptorMap map,
                                            final Map<String, Map<String, AnnotationBackedDescriptor>> packageToInternalDescriptors,
                                            final PsiElement _clazz,
                                            @Nullable Set<JSClass> visited) {
@@ -773,7 +775,10 @@ public class ClassBackedElementDescriptor extends IconProvider implements XmlEle
 
       parentDescriptor.ensureDescriptorsMapsInitialized(clazz, visited);
 
-      map.putAll(parentDescriptor.myDescriptors);
+      // myDescriptors is read first: it is assigned last
+      final Map<String, AnnotationBackedDescriptor> parentDescriptors = parentDescriptor.myDescriptors;
+      // descriptors of predefined classes are still added to by addPredefinedMemberDescriptor(), so they can't be shared
+      map.addLayer(parentDescriptor.predefined ? new THashMap<>(parentDescriptors) : parentDescriptors);
 
       for (final Map.Entry<String, Map<String, AnnotationBackedDescriptor>> entry : parentDescriptor.myPackageToInternalDescriptors
         .entrySet()) {
@@ -26,6 +26,7 @@ import com.intellij.lang.javascript.psi.JSCommonTypeNames;
 import com.intellij.lang.javascript.psi.JSFunction;
 import com.intellij.lang.javascript.psi.JSParameter;
 import com.intellij.lang.javascript.psi.ecmal4.JSClass;
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.fileTypes.FileTypeRegistry;
 import com.intellij.openapi.module.Module;
 import com.intellij.openapi.module.ModuleType;
@@ -45,6 +46,7 @@ import com.intellij.psi.PsiManager;
 import com.intellij.psi.search.GlobalSearchScope;
 import com.intellij.psi.xml.XmlFile;
 import com.intellij.psi.xml.XmlTag;
+import com.intellij.util.containers.ContainerUtil;
 import com.intellij.xml.XmlElementDescriptor;
 import gnu.trove.THashMap;
 import gnu.trove.THashSet;
@@ -56,11 +58,13 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Maxim.Mossienko
  */
 public class CodeContext {
+  private static final Logger LOG = Logger.getInstance(CodeContext.class.getName());
   private static final String CLASS_FACTORY = "mx.core.ClassFactory";
 
   @NonNls static final String DEFINITION_TAG_NAME = "Definition";
@@ -75,14 +79,14 @@ public class CodeContext {
   final static String[] GUMBO_ATTRIBUTES = {FlexStateElementNames.INCLUDE_IN, FlexStateElementNames.EXCLUDE_FROM,
     FlexStateElementNames.ITEM_CREATION_POLICY, FlexStateElementNames.ITEM_DESTRUCTION_POLICY};
 
-  // Component name to descriptor
+  // Component name to descriptor. Standard contexts are still filled by libraries of the module while other threads read them.
   private final Map<String, ClassBackedElementDescriptor> myNameToDescriptorsMap;
   public final String namespace;
   public final Module module;
-  private final Set<Object> dependencies = new THashSet<>();
+  private final Set<Object> dependencies = ContainerUtil.newConcurrentSet();
 
   CodeContext(String _namespace, Module _module) {
-    myNameToDescriptorsMap = new THashMap<>(100);
+    myNameToDescriptorsMap = ContainerUtil.newConcurrentMap();
     namespace = _namespace;
     module = _module;
     if (JavaScriptSupportLoader.isLanguageNamespace(namespace)) {
@@ -143,26 +147,43 @@ public class CodeContext {
     final FlexBuildConfiguration bc = FlexBuildConfigurationManager.getInstance(module).getActiveConfiguration();
     if (bc == null) return CodeContextHolder.EMPTY;
 
-    CodeContext codeContext;
+    final CodeContextHolder contextHolder = CodeContextHolder.getInstance(module.getProject());
+
+    if (isStdNamespace(namespace)) {
+      if (contextHolder.areSdkComponentsHandledForModule(module)) {
+        final CodeContext context = contextHolder.getStandardContext(namespace, module);
+        return context != null ? context : CodeContextHolder.EMPTY;
+      }
+    }
+    else {
+      final CodeContext codeContext = contextHolder.getCodeContext(namespace, module);
+      if (codeContext != null) return codeContext;
+    }
 
-    synchronized (CodeContext.class) {
+    // Contexts of a module are created at most once, contexts of different modules are created in parallel.
+    synchronized (contextHolder.getModuleLock(module)) {
       if (isStdNamespace(namespace)) {
         return getStdCodeContext(namespace, module, bc);
       }
 
-      final CodeContextHolder contextHolder = CodeContextHolder.getInstance(module.getProject());
-      codeContext = contextHolder.getCodeContext(namespace, module);
+      CodeContext codeContext = contextHolder.getCodeContext(namespace, module);
 
       if (codeContext == null) {
+        final long start = System.nanoTime();
         codeContext = createCodeContext(namespace, module, bc);
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Code context for " + namespace + " in module " + module.getName() + " created in " +
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        }
+
         if (codeContext.getAllDescriptorsSize() > 0) {
           // avoid adding of incorrect namespaces that appear during completion like "http://www.adobe.IntellijIdeaRulezzz com/2006/mxml"
           contextHolder.putCodeContext(namespace, module, codeContext);
         }
       }
-    }
 
-    return codeContext;
+      return codeContext;
+    }
   }
 
   public static boolean isStdNamespace(final String namespace) {
@@ -390,10 +411,15 @@ public class CodeContext {
     final CodeContextHolder contextHolder = CodeContextHolder.getInstance(module.getProject());
 
     if (!contextHolder.areSdkComponentsHandledForModule(module)) { // handleAllStandardManifests only once per module
+      final long start = System.nanoTime();
       handleAllStandardManifests(module, bc);
       handleSwcFromSdk(module, bc); //swc files attached to Flex SDK may contribute to standard context
       createCodeContextFromLibraries(namespace, module, bc); // other libraries may contribute to standard context
       contextHolder.setSdkComponentsHandledForModule(module);
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Standard code contexts for module " + module.getName() + " created in " +
+                  TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+      }
     }
 
     final CodeContext context = contextHolder.getStandardContext(namespace, module);
@@ -402,7 +428,8 @@ public class CodeContext {
 
   @Nullable
   public XmlElementDescriptor getElementDescriptor(final @NonNls String localName, final @Nullable XmlTag tag) {
-    ClassBackedElementDescriptor descriptor = this == CodeContextHolder.EMPTY ? null : myNameToDescriptorsMap.get(localName);
+    ClassBackedElementDescriptor descriptor =
+      this == CodeContextHolder.EMPTY || localName == null ? null : myNameToDescriptorsMap.get(localName);
 
     if (tag != null && MxmlJSClass.XML_TAG_NAME.equals(localName)
         && JavaScriptSupportLoader.isLanguageNamespace(tag.getNamespace())) {
@@ -4,16 +4,20 @@ package com.intellij.javascript.flex.mxml.schema;
 import com.intellij.openapi.components.ServiceManager;
 import com.intellij.openapi.module.Module;
 import com.intellij.openapi.project.Project;
+import com.intellij.util.containers.ContainerUtil;
 import gnu.trove.THashMap;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentMap;
 
 public class CodeContextHolder {
   private final Set<Module> myModulesWithSdkComponentsHandled = new HashSet<>();
   private final Map<String, Map<Module, CodeContext>> myStandardContexts = new HashMap<>();
   private final Map<String, Map<Module, CodeContext>> myNSToCodeContextMap = new THashMap<>();
+  // not cleared in clear(): a thread creating contexts at that moment must keep excluding others that start over for the same module
+  private final ConcurrentMap<Module, Object> myModuleLocks = ContainerUtil.createConcurrentWeakMap();
   static final CodeContext EMPTY = new CodeContext(null, null);
 
   synchronized void clear() {
@@ -79,6 +83,15 @@ public class CodeContextHolder {
     map.put(module, codeContext);
   }
 
+  /**
+   * Code contexts of a module are created under this lock, so that they are created once, and creation for different modules
+   * doesn't block each other.
+   */
+  @NotNull
+  Object getModuleLock(@NotNull final Module module) {
+    return myModuleLocks.computeIfAbsent(module, m -> new Object());
+  }
+
   synchronized boolean areSdkComponentsHandledForModule(final Module module) {
     return myModulesWithSdkComponentsHandled.contains(module);
   }
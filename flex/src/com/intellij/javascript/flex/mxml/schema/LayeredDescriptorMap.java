@@ -0,0 +1,161 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.intellij.javascript.flex.mxml.schema;
+
+import com.intellij.lang.javascript.flex.AnnotationBackedDescriptor;
+import gnu.trove.THashMap;
+import gnu.trove.THashSet;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * Attribute and child descriptors of a class, layered over the descriptor tables of its super classes instead of copying them.
+ * Each layer overrides the previous ones as if they were {@code putAll()}-ed in order, and own descriptors override all layers.
+ * Removing a descriptor of a layer (e.g. {@code [Exclude]}) hides it in this map only.
+ * <p>
+ * All layers are added before own descriptors are put. The map is not changed after it is published by
+ * {@link ClassBackedElementDescriptor}, so layers can be shared by all descriptors of the classes of a hierarchy. Layers must not be
+ * changed after they are added either.
+ */
+class LayeredDescriptorMap extends AbstractMap<String, AnnotationBackedDescriptor> {
+  private final ArrayList<Map<String, AnnotationBackedDescriptor>> myLayers = new ArrayList<>(4);
+  private final THashMap<String, AnnotationBackedDescriptor> myOwnDescriptors = new THashMap<>();
+  private Set<String> myRemovedNames;
+
+  void addLayer(@NotNull final Map<String, AnnotationBackedDescriptor> layer) {
+    assert myOwnDescriptors.isEmpty() && myRemovedNames == null;
+    if (!layer.isEmpty()) {
+      myLayers.add(layer);
+    }
+  }
+
+  /**
+   * @return a map with the same content that retains as little as possible, e.g. the only layer itself if nothing is added to it
+   */
+  @NotNull
+  Map<String, AnnotationBackedDescriptor> compact() {
+    if (myLayers.isEmpty()) return myOwnDescriptors;
+    if (myLayers.size() == 1 && myOwnDescriptors.isEmpty() && myRemovedNames == null) return myLayers.get(0);
+
+    myLayers.trimToSize();
+    myOwnDescriptors.compact();
+    return this;
+  }
+
+  @Override
+  public AnnotationBackedDescriptor get(final Object key) {
+    final AnnotationBackedDescriptor own = myOwnDescriptors.get(key);
+    if (own != null) return own;
+    if (myRemovedNames != null && myRemovedNames.contains(key)) return null;
+
+    for (int i = myLayers.size() - 1; i >= 0; i--) {
+      final AnnotationBackedDescriptor descriptor = myLayers.get(i).get(key);
+      if (descriptor != null) return descriptor;
+    }
+    return null;
+  }
+
+  @Override
+  public boolean containsKey(final Object key) {
+    return get(key) != null;
+  }
+
+  @Override
+  public AnnotationBackedDescriptor put(final String key, final AnnotationBackedDescriptor value) {
+    final AnnotationBackedDescriptor previous = get(key);
+    if (myRemovedNames != null) {
+      myRemovedNames.remove(key);
+    }
+    myOwnDescriptors.put(key, value);
+    return previous;
+  }
+
+  @Override
+  public AnnotationBackedDescriptor remove(final Object key) {
+    final AnnotationBackedDescriptor previous = get(key);
+    myOwnDescriptors.remove(key);
+    if (previous != null && key instanceof String) {
+      if (myRemovedNames == null) myRemovedNames = new THashSet<>();
+      myRemovedNames.add((String)key);
+    }
+    return previous;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return myOwnDescriptors.isEmpty() && !entrySet().iterator().hasNext();
+  }
+
+  /**
+   * Iterates own descriptors and then the layers from the last one, skipping the descriptors that are overridden or removed.
+   * Nothing is copied: descriptors of classes with deep hierarchies are listed on every completion and highlighting pass.
+   */
+  @NotNull
+  @Override
+  public Set<Entry<String, AnnotationBackedDescriptor>> entrySet() {
+    return new AbstractSet<Entry<String, AnnotationBackedDescriptor>>() {
+      @NotNull
+      @Override
+      public Iterator<Entry<String, AnnotationBackedDescriptor>> iterator() {
+        return new EntryIterator();
+      }
+
+      @Override
+      public int size() {
+        if (myLayers.isEmpty()) return myOwnDescriptors.size();
+
+        int size = 0;
+        for (Iterator<Entry<String, AnnotationBackedDescriptor>> it = iterator(); it.hasNext(); it.next()) {
+          size++;
+        }
+        return size;
+      }
+    };
+  }
+
+  private boolean isVisible(@NotNull final String key, final int layerIndex) {
+    if (myOwnDescriptors.containsKey(key)) return false;
+    if (myRemovedNames != null && myRemovedNames.contains(key)) return false;
+
+    for (int i = layerIndex + 1; i < myLayers.size(); i++) {
+      if (myLayers.get(i).containsKey(key)) return false;
+    }
+    return true;
+  }
+
+  private class EntryIterator implements Iterator<Entry<String, AnnotationBackedDescriptor>> {
+    // myLayers.size() stands for own descriptors
+    private int myLayerIndex = myLayers.size();
+    private Iterator<Entry<String, AnnotationBackedDescriptor>> myIterator = myOwnDescriptors.entrySet().iterator();
+    private Entry<String, AnnotationBackedDescriptor> myNext;
+
+    @Override
+    public boolean hasNext() {
+      while (myNext == null) {
+        if (myIterator.hasNext()) {
+          final Entry<String, AnnotationBackedDescriptor> entry = myIterator.next();
+          if (myLayerIndex == myLayers.size() || isVisible(entry.getKey(), myLayerIndex)) {
+            myNext = entry;
+          }
+        }
+        else if (myLayerIndex > 0) {
+          myLayerIndex--;
+          myIterator = myLayers.get(myLayerIndex).entrySet().iterator();
+        }
+        else {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public Entry<String, AnnotationBackedDescriptor> next() {
+      if (!hasNext()) throw new NoSuchElementException();
+
+      final Entry<String, AnnotationBackedDescriptor> result = myNext;
+      myNext = null;
+      return result;
+    }
+  }
+}
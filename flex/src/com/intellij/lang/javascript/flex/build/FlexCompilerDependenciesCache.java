@@ -2,6 +2,7 @@
 package com.intellij.lang.javascript.flex.build;
 
 import com.intellij.ProjectTopics;
+import com.intellij.flex.FlexCommonUtils;
 import com.intellij.flex.model.bc.BuildConfigurationNature;
 import com.intellij.lang.javascript.flex.FlexUtils;
 import com.intellij.lang.javascript.flex.projectStructure.model.FlexBuildConfiguration;
@@ -28,18 +29,10 @@ public class FlexCompilerDependenciesCache {
   private final Project myProject;
   private final Map<Module, Collection<BCInfo>> myCache = new THashMap<>();
 
-  private static final String[] TAGS_FOR_FILE_PATHS_IN_CONFIG_FILE =
-    {"<flex-config><compiler><external-library-path><path-element>", "<flex-config><compiler><local-font-paths><path-element>",
-      "<flex-config><compiler><library-path><path-element>", "<flex-config><compiler><namespaces><namespace><manifest>",
-      /*"<flex-config><compiler><source-path><path-element>", "<flex-config><include-sources><path-element>",*/
-      "<flex-config><compiler><theme><filename>", "<flex-config><include-file><path>",
-      "<flex-config><include-stylesheet><path>", "<flex-config><file-specs><path-element>",
-      "<flex-config><compiler><include-libraries><library>", "<flex-config><compiler><local-fonts-snapshot>",
-      "<flex-config><compiler><defaults-css-url>", "<flex-config><compiler><defaults-css-files><filename>",
-      "<flex-config><load-config>", "<flex-config><load-externs>", "<flex-config><link-report>",
-      "<flex-config><services>", "<flex-config><metadata><raw-metadata>",
-      // "<flex-config><output>"   intentionally excluded, because already handled
-    };
+  // "<flex-config><output>" is intentionally excluded, because already handled
+  private static final List<String> TAGS_FOR_FILE_PATHS_IN_CONFIG_FILE =
+    ContainerUtil.concat(FlexCommonUtils.TAGS_FOR_FILE_PATHS_IN_CONFIG_FILE,
+                         Arrays.asList("<flex-config><link-report>", "<flex-config><metadata><raw-metadata>"));
 
   public FlexCompilerDependenciesCache(final Project project) {
     myProject = project;
@@ -158,7 +151,7 @@ public class FlexCompilerDependenciesCache {
 
     try {
       final Map<String, List<String>> elementsMap =
-        FlexUtils.findXMLElements(configFile.getInputStream(), Arrays.asList(TAGS_FOR_FILE_PATHS_IN_CONFIG_FILE));
+        FlexUtils.findXMLElements(configFile.getInputStream(), TAGS_FOR_FILE_PATHS_IN_CONFIG_FILE);
       for (List<String> filePathList : elementsMap.values()) {
         for (String filePath : filePathList) {
           bcInfo.addFileDependency(filePath, configFile.getParent().getPath(), workDirPath);
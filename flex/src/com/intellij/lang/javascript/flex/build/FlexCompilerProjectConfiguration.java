@@ -47,7 +47,7 @@ public class FlexCompilerProjectConfiguration implements PersistentStateComponen
       USE_BUILT_IN_COMPILER = true;
     }
 
-    //  MAX_PARALLEL_COMPILATIONS = state.MAX_PARALLEL_COMPILATIONS;
+    MAX_PARALLEL_COMPILATIONS = state.MAX_PARALLEL_COMPILATIONS;
     HEAP_SIZE_MB = state.HEAP_SIZE_MB;
     VM_OPTIONS = state.VM_OPTIONS;
   }
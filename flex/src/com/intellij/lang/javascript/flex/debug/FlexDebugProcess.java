@@ -83,6 +83,9 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
 
 import static com.intellij.lang.javascript.flex.run.FlashRunnerParameters.AirMobileDebugTransport;
 import static com.intellij.lang.javascript.flex.run.FlashRunnerParameters.AirMobileRunTarget;
@@ -116,6 +119,9 @@ public class FlexDebugProcess extends XDebugProcess {
   @NonNls private static final String FDB_MARKER = "(fdb) ";
   @NonNls private static final String WAITING_PLAYER_MARKER_1 = "Waiting for Player to connect";
   @NonNls private static final String WAITING_PLAYER_MARKER_2 = "Trying to connect to Player";
+  @NonNls private static final String YES_NO_MARKER = "(y or n)";
+  private static final int MAX_MARKER_LENGTH = Math.max(Math.max(FDB_MARKER.length(), YES_NO_MARKER.length()),
+                                                        Math.max(WAITING_PLAYER_MARKER_1.length(), WAITING_PLAYER_MARKER_2.length()));
   @NonNls static final String ATTEMPTING_TO_RESOLVE_BREAKPOINT_MARKER = "Attempting to resolve breakpoint ";
 
   @NonNls private static final String ADL_PREFIX = "[AIR Debug Launcher]: ";
@@ -137,38 +143,10 @@ public class FlexDebugProcess extends XDebugProcess {
 
   private String myFdbLaunchCommand;
 
-  private final LinkedList<DebuggerCommand> commandsToWrite = new LinkedList<DebuggerCommand>() {
-    @Override
-    public synchronized DebuggerCommand removeFirst() {
-      waitForData();
-      return super.removeFirst();
-    }
-
-    @Override
-    public synchronized void addFirst(final DebuggerCommand debuggerCommand) {
-      super.addFirst(debuggerCommand);
-      notify();
-    }
-
-    @Override
-    public synchronized void addLast(final DebuggerCommand debuggerCommand) {
-      super.addLast(debuggerCommand);
-      notify();
-    }
-
-    // TODO: other methods
-
-    private void waitForData() {
-      try {
-        while (size() == 0) {
-          wait();
-        }
-      }
-      catch (InterruptedException ex) {
-        throw new RuntimeException(ex);
-      }
-    }
-  };
+  // written by any thread, read by the debugger manager thread only
+  private final BlockingDeque<DebuggerCommand> commandsToWrite = new LinkedBlockingDeque<>();
+  // object reference (like "#123.") -> fdb output with its fields; object ids and values are valid until the player is resumed
+  private final Map<String, String> myObjectFieldsCache = new ConcurrentHashMap<>();
 
   private boolean suspended;
   private boolean fdbWaitingForPlayerStateReached;
@@ -356,8 +334,8 @@ public class FlexDebugProcess extends XDebugProcess {
         }
 
         @Override
-        public void onData(String line) {
-          getProcessHandler().notifyTextAvailable(line + "\n", ProcessOutputTypes.STDOUT);
+        public void onData(String lines) {
+          getProcessHandler().notifyTextAvailable(lines + "\n", ProcessOutputTypes.STDOUT);
         }
 
         @Override
@@ -952,8 +930,8 @@ public class FlexDebugProcess extends XDebugProcess {
     }
   }
 
-  private DebuggerCommand postCommand() throws IOException {
-    DebuggerCommand command = commandsToWrite.removeFirst();
+  private DebuggerCommand postCommand() throws IOException, InterruptedException {
+    DebuggerCommand command = commandsToWrite.takeFirst();
     final boolean currentlyExecuting = !suspended && startupDone;
 
     if (command.getStartVMState() == VMState.RUNNING) {
@@ -966,9 +944,9 @@ public class FlexDebugProcess extends XDebugProcess {
     }
     else if (!currentlyExecuting) {
       if (command.getEndVMState() == VMState.RUNNING) {
-        final DebuggerCommand nextCommand = commandsToWrite.peek();
+        final DebuggerCommand nextCommand = commandsToWrite.peekFirst();
         if (nextCommand != null && nextCommand.getStartVMState() == VMState.SUSPENDED) {
-          command = commandsToWrite.removeFirst();
+          command = commandsToWrite.takeFirst();
           if (nextCommand.getEndVMState() == VMState.SUSPENDED && !(nextCommand instanceof QuitCommand)) {
             insertCommand(new ContinueCommand());
           }
@@ -998,6 +976,9 @@ public class FlexDebugProcess extends XDebugProcess {
 
     setSuspended(
       command.getOutputProcessingMode() == CommandOutputProcessingType.NO_PROCESSING && command.getEndVMState() == VMState.SUSPENDED);
+    if (command.getEndVMState() == VMState.RUNNING) {
+      clearObjectFieldsCache();
+    }
     log("Sent:" + text);
     fdbProcess.getOutputStream().write((text + "\n").getBytes(StandardCharsets.UTF_8));
     try {
@@ -1184,6 +1165,22 @@ public class FlexDebugProcess extends XDebugProcess {
     }
   }
 
+  @Nullable
+  String getCachedObjectFields(@NotNull final String objectReference) {
+    return myObjectFieldsCache.get(objectReference);
+  }
+
+  void cacheObjectFields(@NotNull final String objectReference, @NotNull final String fdbOutput) {
+    myObjectFieldsCache.put(objectReference, fdbOutput);
+  }
+
+  /**
+   * Must be called when the player is suspended at a new location or values may have been changed by an evaluated expression.
+   */
+  void clearObjectFieldsCache() {
+    myObjectFieldsCache.clear();
+  }
+
   private void setSuspended(final boolean suspended) {
     this.suspended = suspended;
   }
@@ -1224,7 +1221,10 @@ public class FlexDebugProcess extends XDebugProcess {
     private final InputStreamReader myReader;
     private final char[] buf = new char[8192];
     private final StringBuilder lastText = new StringBuilder();
+    // text before this offset is already known to contain no marker, so only newly read text (and a possible beginning of a marker
+    // split between reads) is scanned again
     private int lastTextMarkerScanningStart;
+    private boolean waitingPlayerMarkerFound;
     private final InputStream myInputStream;
 
     MyFdbOutputReader(final InputStream _inputStream) {
@@ -1237,54 +1237,51 @@ public class FlexDebugProcess extends XDebugProcess {
     }
 
     String readLine(boolean nonblock) throws IOException {
-      if (lastText != null) {
-        final String lastText = getNextLine(nonblock);
-        if (lastText != null) return lastText;
-      }
+      final String line = getNextLine(nonblock);
+      if (line != null) return line;
 
       while (true) {
         int read = myReader.read(buf, 0, buf.length);
         if (read == -1) return null;
         lastText.append(buf, 0, read);
 
-        if (read < buf.length) {
-          final String lastText = getNextLine(nonblock);
-          if (lastText != null) return lastText;
+        if (read < buf.length || !myReader.ready()) {
+          final String nextLine = getNextLine(nonblock);
+          if (nextLine != null) return nextLine;
         }
       }
     }
 
     private String getNextLine(boolean allowEmptyMarker) {
-      String result;
       String marker = FDB_MARKER;
       int i = lastText.indexOf(marker, lastTextMarkerScanningStart);
 
       if (i == -1) {
-        marker = "(y or n)";
+        marker = YES_NO_MARKER;
         i = lastText.indexOf(marker, lastTextMarkerScanningStart);
       }
 
-      if (i == -1 &&
-          (allowEmptyMarker ||
-           lastText.indexOf(WAITING_PLAYER_MARKER_1, lastTextMarkerScanningStart) >= 0 ||
-           lastText.indexOf(WAITING_PLAYER_MARKER_2, lastTextMarkerScanningStart) >= 0) &&
-          lastText.length() > 0) {
+      if (i == -1 && !waitingPlayerMarkerFound) {
+        waitingPlayerMarkerFound = lastText.indexOf(WAITING_PLAYER_MARKER_1, lastTextMarkerScanningStart) >= 0 ||
+                                   lastText.indexOf(WAITING_PLAYER_MARKER_2, lastTextMarkerScanningStart) >= 0;
+      }
+
+      if (i == -1 && (allowEmptyMarker || waitingPlayerMarkerFound) && lastText.length() > 0) {
         i = lastText.length();
         marker = "";
       }
 
-      if (i != -1) {
-        result = lastText.substring(0, i);
-        lastText.delete(0, i + marker.length());
-        lastTextMarkerScanningStart = 0;
-        if (isBlank(lastText)) lastText.setLength(0);
-        setSuspended(marker.length() != 0);
-        return result;
-      }
-      else {
-        lastTextMarkerScanningStart = lastText.length();
-        result = null;
+      if (i == -1) {
+        lastTextMarkerScanningStart = Math.max(0, lastText.length() - MAX_MARKER_LENGTH + 1);
+        return null;
       }
+
+      final String result = lastText.substring(0, i);
+      lastText.delete(0, i + marker.length());
+      lastTextMarkerScanningStart = 0;
+      waitingPlayerMarkerFound = false;
+      if (isBlank(lastText)) lastText.setLength(0);
+      setSuspended(marker.length() != 0);
       return result;
     }
 
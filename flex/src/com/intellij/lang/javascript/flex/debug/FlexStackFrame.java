@@ -424,6 +424,9 @@ public class FlexStackFrame extends XStackFrame {
 
     @Override
     public void evaluate(@NotNull final String expression, @NotNull final XEvaluationCallback callback, @Nullable XSourcePosition expressionPosition) {
+      if (mayHaveSideEffects(expression)) {
+        myDebugProcess.clearObjectFieldsCache();
+      }
       final EvaluateCommand command = new EvaluateCommand(expression, callback);
       myDebugProcess.sendCommand(command);
     }
@@ -435,6 +438,11 @@ public class FlexStackFrame extends XStackFrame {
     }
   }
 
+  private static boolean mayHaveSideEffects(final String expression) {
+    // assignments, increments and function calls; comparisons are reported as well, which is harmless
+    return expression.indexOf('=') >= 0 || expression.indexOf('(') >= 0 || expression.contains("++") || expression.contains("--");
+  }
+
   String eval(final String expression, FlexDebugProcess process) {
     final EvaluateCommand command = new EvaluateCommand(expression, null);
     process.sendAndProcessOneCommand(command, null);
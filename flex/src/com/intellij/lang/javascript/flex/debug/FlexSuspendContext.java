@@ -27,10 +27,12 @@ public class FlexSuspendContext extends XSuspendContext {
   private static final String AT_MARKER = "at ";
 
   public FlexSuspendContext(final FlexStackFrame topFrame) {
+    topFrame.getDebugProcess().clearObjectFieldsCache();
     myFlexExecutionStack = new FlexExecutionStack(topFrame);
   }
 
   public FlexSuspendContext(final FlexDebugProcess flexDebugProcess, final String[] frames) {
+    flexDebugProcess.clearObjectFieldsCache();
     myFlexExecutionStack = new FlexExecutionStack(createStackFrame(flexDebugProcess, frames[0]));
     myFlexExecutionStack.myAprioriKnownFrames = myFlexExecutionStack.getFrames(frames);
   }
@@ -379,6 +379,7 @@ class FlexValue extends XValue {
     return new XValueModifier() {
       @Override
       public void setValue(@NotNull XExpression _expression, @NotNull final XModificationCallback callback) {
+        myDebugProcess.clearObjectFieldsCache();
         FlexStackFrame.EvaluateCommand command =
           myFlexStackFrame.new EvaluateCommand(myExpression + "=" + _expression.getExpression(), null) {
           @Override
@@ -409,72 +410,101 @@ class FlexValue extends XValue {
       return;
     }
 
+    final String cachedFields = myDebugProcess.getCachedObjectFields(expression);
+    if (cachedFields != null) {
+      // the same object is expanded again within this suspend context (another frame, watch or path to it); no need to ask fdb,
+      // but children are still built on the debugger thread like for a real response
+      myDebugProcess.sendCommand(new DebuggerCommand("does not matter", CommandOutputProcessingType.SPECIAL_PROCESSING) {
+        @Override
+        public void post(final FlexDebugProcess flexDebugProcess) {
+        }
+
+        @Override
+        public String read(final FlexDebugProcess flexDebugProcess) {
+          return cachedFields;
+        }
+
+        @Override
+        CommandOutputProcessingMode onTextAvailable(@NonNls final String s) {
+          addFieldsAsChildren(node, s, typeFromFlexValueResult);
+          return CommandOutputProcessingMode.DONE;
+        }
+      });
+      return;
+    }
+
     final FlexStackFrame.EvaluateCommand
       command = myFlexStackFrame.new EvaluateCommand(expression, null) {
       @Override
       CommandOutputProcessingMode doOnTextAvailable(@NonNls final String resultS) {
-        StringTokenizer tokenizer = new StringTokenizer(resultS, "\r\n");
-
-        // skip first token; it contains $-prefix followed by myResult: $6 = [Object 30860193, class='__AS3__.vec::Vector.<String>']
-        tokenizer.nextToken();
-
-        final LinkedHashMap<String, FlexValue> fieldNameToFlexValueMap = new LinkedHashMap<>(tokenizer.countTokens());
-
-        final NodeClassInfo nodeClassInfo =
-          DumbService.getInstance(myDebugProcess.getSession().getProject()).runReadActionInSmartMode(() -> {
-            final Project project = myDebugProcess.getSession().getProject();
-            final JSClass jsClass = mySourcePosition == null
-                                    ? null
-                                    : findJSClass(project,
-                                                  ModuleUtilCore.findModuleForFile(mySourcePosition.getFile(), project),
-                                                  typeFromFlexValueResult);
-            return jsClass == null ? null : NodeClassInfo.getNodeClassInfo(jsClass);
-          });
-
-        while (tokenizer.hasMoreElements()) {
-          final String s = tokenizer.nextToken().trim();
-          if (s.length() == 0) continue;
-          final int delimIndex = s.indexOf(FlexStackFrame.DELIM);
-          if (delimIndex == -1) {
-            FlexDebugProcess.log("Unrecognized string:" + s);
-            continue;
-          }
-          final String fieldName = s.substring(0, delimIndex);
-          final String result = s.substring(delimIndex + FlexStackFrame.DELIM.length());
-
-          if (result.startsWith("[Setter ")) {
-            // such values do not give any useful information:
-            // [Setter 62, name='Child@3d613bb::staticSetter']
-            // [Setter 78]
-            continue;
-          }
+        myDebugProcess.cacheObjectFields(expression, resultS);
+        addFieldsAsChildren(node, resultS, typeFromFlexValueResult);
+        return CommandOutputProcessingMode.DONE;
+      }
+    };
 
-          String evaluatedPath = myExpression;
+    myDebugProcess.sendCommand(command);
+  }
 
-          if (fieldName.length() > 0 && Character.isDigit(fieldName.charAt(0))) {
-            evaluatedPath += "[\"" + fieldName + "\"]";
-          }
-          else {
-            evaluatedPath += "." + fieldName;
-          }
-          // either parameter of static function from scopechain or a field. Static functions from scopechain look like following:
-          // // [Object 52571545, class='Main$/staticFunction']
-          final ValueType valueType =
-            typeFromFlexValueResult != null && typeFromFlexValueResult.indexOf('/') > -1 ? ValueType.Parameter : ValueType.Field;
-          final FlexValue flexValue =
-            new FlexValue(myFlexStackFrame, myDebugProcess, mySourcePosition, fieldName, evaluatedPath, result, FlexValue.this.myResult,
-                          valueType);
-
-          addValueCheckingDuplicates(flexValue, fieldNameToFlexValueMap);
-        }
+  private void addFieldsAsChildren(@NotNull final XCompositeNode node,
+                                   @NonNls final String resultS,
+                                   @Nullable final String typeFromFlexValueResult) {
+    StringTokenizer tokenizer = new StringTokenizer(resultS, "\r\n");
 
-        addChildren(node, fieldNameToFlexValueMap, nodeClassInfo);
+    // skip first token; it contains $-prefix followed by myResult: $6 = [Object 30860193, class='__AS3__.vec::Vector.<String>']
+    tokenizer.nextToken();
 
-        return CommandOutputProcessingMode.DONE;
+    final LinkedHashMap<String, FlexValue> fieldNameToFlexValueMap = new LinkedHashMap<>(tokenizer.countTokens());
+
+    final NodeClassInfo nodeClassInfo =
+      DumbService.getInstance(myDebugProcess.getSession().getProject()).runReadActionInSmartMode(() -> {
+        final Project project = myDebugProcess.getSession().getProject();
+        final JSClass jsClass = mySourcePosition == null
+                                ? null
+                                : findJSClass(project,
+                                              ModuleUtilCore.findModuleForFile(mySourcePosition.getFile(), project),
+                                              typeFromFlexValueResult);
+        return jsClass == null ? null : NodeClassInfo.getNodeClassInfo(jsClass);
+      });
+
+    while (tokenizer.hasMoreElements()) {
+      final String s = tokenizer.nextToken().trim();
+      if (s.length() == 0) continue;
+      final int delimIndex = s.indexOf(FlexStackFrame.DELIM);
+      if (delimIndex == -1) {
+        FlexDebugProcess.log("Unrecognized string:" + s);
+        continue;
       }
-    };
+      final String fieldName = s.substring(0, delimIndex);
+      final String result = s.substring(delimIndex + FlexStackFrame.DELIM.length());
 
-    myDebugProcess.sendCommand(command);
+      if (result.startsWith("[Setter ")) {
+        // such values do not give any useful information:
+        // [Setter 62, name='Child@3d613bb::staticSetter']
+        // [Setter 78]
+        continue;
+      }
+
+      String evaluatedPath = myExpression;
+
+      if (fieldName.length() > 0 && Character.isDigit(fieldName.charAt(0))) {
+        evaluatedPath += "[\"" + fieldName + "\"]";
+      }
+      else {
+        evaluatedPath += "." + fieldName;
+      }
+      // either parameter of static function from scopechain or a field. Static functions from scopechain look like following:
+      // // [Object 52571545, class='Main$/staticFunction']
+      final ValueType valueType =
+        typeFromFlexValueResult != null && typeFromFlexValueResult.indexOf('/') > -1 ? ValueType.Parameter : ValueType.Field;
+      final FlexValue flexValue =
+        new FlexValue(myFlexStackFrame, myDebugProcess, mySourcePosition, fieldName, evaluatedPath, result, FlexValue.this.myResult,
+                      valueType);
+
+      addValueCheckingDuplicates(flexValue, fieldNameToFlexValueMap);
+    }
+
+    addChildren(node, fieldNameToFlexValueMap, nodeClassInfo);
   }
 
   @Override
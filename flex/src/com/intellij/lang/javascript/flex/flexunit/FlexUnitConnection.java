@@ -4,6 +4,7 @@ import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.util.EventDispatcher;
 
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -14,12 +15,17 @@ public class FlexUnitConnection extends ServerConnectionBase {
   public interface Listener extends EventListener {
     void statusChanged(ConnectionStatus status);
 
-    void onData(String line);
+    /**
+     * @param lines one or more lines received together, separated by {@code '\n'}, without a trailing line separator
+     */
+    void onData(String lines);
 
     void onFinish();
   }
 
   private static final String TERMINATE_MARKER = "Finish";
+  // lines that are already received are passed to listeners together, but a batch is not delayed for long
+  private static final int MAX_LINES_IN_BATCH = 500;
 
   private static final Logger LOG = Logger.getInstance(FlexUnitConnection.class.getName());
   protected final EventDispatcher<Listener> myDispatcher = EventDispatcher.create(Listener.class);
@@ -27,22 +33,44 @@ public class FlexUnitConnection extends ServerConnectionBase {
 
   @Override
   protected void run(InputStream inputStream) throws IOException {
-    DataInputStream dataInputStream = new DataInputStream(inputStream);
-
-    String line;
-    while (!isStopped() && !StringUtil.isEmpty(line = dataInputStream.readUTF())) {
-      LOG.debug(line);
-      if (TERMINATE_MARKER.equals(line)) {
-        //log("sending terminate command");
-        //write(TERMINATE_MARKER);
-        close();
-        myDispatcher.getMulticaster().onFinish();
-        return;
-      }
-      else {
-        myDispatcher.getMulticaster().onData(line);
+    DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(inputStream));
+    final StringBuilder batch = new StringBuilder();
+    int linesInBatch = 0;
+
+    try {
+      String line;
+      while (!isStopped() && !StringUtil.isEmpty(line = dataInputStream.readUTF())) {
+        LOG.debug(line);
+        if (TERMINATE_MARKER.equals(line)) {
+          //log("sending terminate command");
+          //write(TERMINATE_MARKER);
+          close();
+          flush(batch);
+          myDispatcher.getMulticaster().onFinish();
+          return;
+        }
+
+        if (batch.length() > 0) batch.append('\n');
+        batch.append(line);
+        linesInBatch++;
+
+        // each event makes the test runner update the tree, so the next line is waited for only after all received ones are passed
+        if (linesInBatch >= MAX_LINES_IN_BATCH || dataInputStream.available() == 0) {
+          flush(batch);
+          linesInBatch = 0;
+        }
       }
     }
+    finally {
+      flush(batch);
+    }
+  }
+
+  private void flush(final StringBuilder batch) {
+    if (batch.length() > 0) {
+      myDispatcher.getMulticaster().onData(batch.toString());
+      batch.setLength(0);
+    }
   }
 
   public void addListener(Listener listener) {
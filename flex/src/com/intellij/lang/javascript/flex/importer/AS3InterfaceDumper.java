@@ -152,6 +152,11 @@ class AS3InterfaceDumper extends AbstractDumpProcessor {
     return false;
   }
 
+  @Override
+  public boolean doParseMethodBodies() {
+    return false;
+  }
+
   @Override
   public void setProcessingInterface(final boolean anInterface) {
     isInterface = anInterface;
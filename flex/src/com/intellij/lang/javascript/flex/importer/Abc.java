@@ -328,7 +328,9 @@ class Abc {
     parseInstanceInfos();
     parseClassInfos();
     parseScriptInfos();
-    parseMethodBodies();
+    if (processor.doParseMethodBodies()) {
+      parseMethodBodies();
+    }
   }
 
   private static Object[] buildSparseArray(int index, @NonNls String s1) {
@@ -92,6 +92,11 @@ class AbcDumper extends AbstractDumpProcessor {
     return true;
   }
 
+  @Override
+  public boolean doParseMethodBodies() {
+    return dumpCode;
+  }
+
   @Override
   public void setProcessingInterface(final boolean anInterface) {
   }
@@ -2,43 +2,53 @@ package com.intellij.lang.javascript.flex.importer;
 
 import org.jetbrains.annotations.NotNull;
 
-import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
-import java.util.zip.InflaterInputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 /**
+ * Reader over a {@link java.nio.ByteBuffer}. Sub-buffers created by {@link #readBytes(ByteBuffer, int)} share the data of this buffer,
+ * so parsing an abc block of a swf doesn't copy it.
+ *
  * @author Maxim.Mossienko
 */
 class ByteBuffer {
-  private byte[] bytes;
-  private int position;
+  // deflate can't compress better than ~1032:1, a bigger expected size in a swf header is bogus
+  private static final int MAX_COMPRESSION_RATIO = 1032;
+
+  private java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocate(0);
   private boolean littleEndian;
 
   void read(@NotNull InputStream inputStream) throws IOException {
     try {
-      bytes = readStream(inputStream);
+      setBuffer(readStream(inputStream));
     }
     finally {
       inputStream.close();
     }
   }
 
+  void wrap(@NotNull byte[] bytes) {
+    setBuffer(java.nio.ByteBuffer.wrap(bytes));
+  }
+
   void setLittleEndian() {
     littleEndian = true;
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private void setBuffer(@NotNull java.nio.ByteBuffer newBuffer) {
+    buffer = newBuffer;
+    buffer.order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
   }
 
   int readInt() {
-    int result;
-    if (littleEndian) {
-      result = (((bytes[position + 3] & 0xFF) << 8 | (bytes[position + 2] & 0xFF)) << 16) + ((bytes[position + 1] & 0xFF) << 8) | (bytes[position] & 0xFF);
-    }
-    else {
-      result = (((bytes[position] & 0xFF) << 8 | (bytes[position + 1] & 0xFF)) << 16) + ((bytes[position + 2] & 0xFF) << 8) | (bytes[position + 3] & 0xFF);
-    }
-    position += 4;
-    return result;
+    return buffer.getInt();
   }
 
   public int readUnsignedInt() {
@@ -46,81 +56,119 @@ class ByteBuffer {
   }
 
   public void setPosition(final int i) {
-    position = i;
+    buffer.position(i);
   }
 
   public int bytesSize() {
-    return bytes.length;
-  }
-
-  public void uncompress() throws IOException {
-    final InflaterInputStream zipInputStream = new InflaterInputStream(new ByteArrayInputStream(bytes));
+    return buffer.limit();
+  }
+
+  /**
+   * Inflates the whole buffer in one go into an array of {@code expectedSize}, which is known from the swf header.
+   * The array grows only if the header lies.
+   */
+  public void uncompress(final int expectedSize) throws IOException {
+    final byte[] input;
+    final int offset;
+    final int length = buffer.limit();
+    if (buffer.hasArray()) {
+      input = buffer.array();
+      offset = buffer.arrayOffset();
+    }
+    else {
+      input = new byte[length];
+      offset = 0;
+      final java.nio.ByteBuffer duplicate = buffer.duplicate();
+      duplicate.position(0);
+      duplicate.get(input);
+    }
 
-    bytes = readStream(zipInputStream);
+    final Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(input, offset, length);
+      final long maxExpectedSize = Math.min((long)length * MAX_COMPRESSION_RATIO, Integer.MAX_VALUE - 8);
+      byte[] result = new byte[expectedSize > 0 && expectedSize <= maxExpectedSize ? expectedSize : Math.max(length * 2, 8192)];
+      int total = 0;
+
+      while (!inflater.finished()) {
+        if (total == result.length) {
+          result = Arrays.copyOf(result, result.length * 2);
+        }
+        final int inflated = inflater.inflate(result, total, result.length - total);
+        if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new EOFException("Unexpected end of ZLIB input stream");
+        }
+        total += inflated;
+      }
 
-    zipInputStream.close();
+      setBuffer(java.nio.ByteBuffer.wrap(result, 0, total));
+    }
+    catch (DataFormatException e) {
+      throw new IOException(e);
+    }
+    finally {
+      inflater.end();
+    }
   }
 
-  private static byte[] readStream(final InputStream zipInputStream) throws IOException {
-    final byte[] buf = new byte[8192];
-    byte[] result = new byte[8192];
+  @NotNull
+  private static java.nio.ByteBuffer readStream(final InputStream inputStream) throws IOException {
+    byte[] result = new byte[Math.max(inputStream.available(), 8192)];
     int total = 0;
 
     while (true) {
-      int read = zipInputStream.read(buf);
-      if (read == -1) break;
-      if (total + read >= result.length) {
-        byte[] newresult = new byte[result.length * 2];
-        System.arraycopy(result, 0, newresult, 0, total);
-        result = newresult;
+      if (total == result.length) {
+        result = Arrays.copyOf(result, result.length * 2);
       }
-
-      System.arraycopy(buf, 0, result, total, read);
+      int read = inputStream.read(result, total, result.length - total);
+      if (read == -1) break;
       total += read;
     }
 
-    final byte[] realResult = new byte[total];
-    System.arraycopy(result, 0, realResult, 0, total);
-    return realResult;
+    return java.nio.ByteBuffer.wrap(result, 0, total).slice();
   }
 
   public int readUnsignedByte() {
-    return bytes[position++] & 0xFF;
+    return buffer.get() & 0xFF;
   }
 
   public int readByte() {
-    return bytes[position++];
+    return buffer.get();
   }
 
   public int readUnsignedShort() {
-    int result;
-    if (littleEndian) {
-      result = (bytes[position + 1] & 0xFF) << 8 | (bytes[position] & 0xFF);
-    }
-    else {
-      result = (bytes[position] & 0xFF) << 8 | (bytes[position + 1] & 0xFF);
-    }
-    position += 2;
-    return result;
+    return buffer.getShort() & 0xFFFF;
   }
 
+  /**
+   * Makes {@code data2} a view of the next {@code length} bytes of this buffer, no data is copied.
+   */
   public void readBytes(ByteBuffer data2, int length) {
-    data2.bytes = new byte[length];
-    System.arraycopy(bytes, position, data2.bytes, 0, length);
-    position += length;
+    if (length < 0 || length > buffer.remaining()) {
+      throw new IndexOutOfBoundsException("length " + length + ", remaining " + buffer.remaining());
+    }
+    final java.nio.ByteBuffer view = buffer.duplicate();
+    view.limit(buffer.position() + length);
+    data2.setBuffer(view.slice());
+    buffer.position(buffer.position() + length);
   }
 
   public boolean eof() {
-    return position >= bytes.length;
+    return !buffer.hasRemaining();
   }
 
   public String readUTFBytes(int i) {
-    final byte[] buf = new byte[i];
-    while (i > 0) {
-      buf[buf.length - i] = (byte)readByte();
-      --i;
+    final String result;
+    if (buffer.hasArray()) {
+      result = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), i, StandardCharsets.UTF_8);
+      buffer.position(buffer.position() + i);
     }
-    return new String(buf, StandardCharsets.UTF_8);
+    else {
+      final byte[] buf = new byte[i];
+      buffer.get(buf);
+      result = new String(buf, StandardCharsets.UTF_8);
+    }
+    return result;
   }
 
   public double readDouble() {
@@ -142,14 +190,15 @@ class ByteBuffer {
   }
 
   public byte getByte(int i) {
-    return bytes[i];
+    return buffer.get(i);
   }
 
   public int getPosition() {
-    return position;
+    return buffer.position();
   }
 
   public void incPosition(final int length) {
-    position += length;
+    // like the end of data, a position beyond it stops reading
+    buffer.position((int)Math.min((long)buffer.position() + length, buffer.limit()));
   }
 }
@@ -31,6 +31,11 @@ interface FlexByteCodeInformationProcessor {
   boolean doStarTypeDumpInExtends();
   boolean doStarMetaAttrNameDump();
 
+  /**
+   * @return {@code false} if method bodies (code, activation traits) are not used, so they are not parsed at all
+   */
+  boolean doParseMethodBodies();
+
   void setProcessingInterface(final boolean anInterface);
 
   String getParentName(final MemberInfo member);
@@ -6,11 +6,17 @@ import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.*;
+import java.nio.BufferUnderflowException;
 
 /**
  * Produced from abcdump.as
  */
 public class FlexImporter {
+  /**
+   * Increment when the text built by {@link #buildInterface(byte[])} changes, caches of decompiled text depend on it.
+   */
+  public static final int INTERFACE_VERSION = 1;
+
   private static final int ABC_VER = 46 << 16 | 14;
   private static final int ABC_VER2 = 46 << 16 | 15;
   private static final int ABC_VER3 = 46 << 16 | 16;
@@ -60,19 +66,51 @@ public class FlexImporter {
     catch (IOException ex) {
       return "/* " + ex.getLocalizedMessage() + " */";
     }
-    catch (ArrayIndexOutOfBoundsException ex) {
+    catch (IndexOutOfBoundsException | BufferUnderflowException | IllegalArgumentException ex) {
       return "/* Invalid format */";
     }
   }
 
+  /**
+   * Same as {@link #buildInterfaceFromStream(InputStream)}, but parses {@code content} in place and fails instead of returning
+   * a comment that describes the problem.
+   */
+  @NonNls
+  @NotNull
+  public static String buildInterface(@NotNull final byte[] content) throws IOException {
+    final ByteBuffer data = new ByteBuffer();
+    data.wrap(content);
+    final AbstractDumpProcessor abcDumper = new AS3InterfaceDumper();
+    try {
+      processFlexByteCode(data, abcDumper);
+    }
+    catch (IndexOutOfBoundsException | BufferUnderflowException | IllegalArgumentException ex) {
+      throw new IOException("Invalid format", ex);
+    }
+    return abcDumper.getResult();
+  }
+
   @NonNls
   public static void buildStubsInterfaceFromStream(final InputStream in, final StubElement parent) throws Exception {
     processFlexByteCode(in, new AS3InterfaceStubDumper(parent));
   }
 
+  /**
+   * Same as {@link #buildStubsInterfaceFromStream(InputStream, StubElement)}, but parses {@code content} in place.
+   */
+  public static void buildStubsInterface(@NotNull final byte[] content, final StubElement parent) throws Exception {
+    final ByteBuffer data = new ByteBuffer();
+    data.wrap(content);
+    processFlexByteCode(data, new AS3InterfaceStubDumper(parent));
+  }
+
   private static void processFlexByteCode(@NotNull final InputStream in, @NotNull FlexByteCodeInformationProcessor processor) throws IOException {
     ByteBuffer data = new ByteBuffer();
     data.read(in);
+    processFlexByteCode(data, processor);
+  }
+
+  private static void processFlexByteCode(@NotNull final ByteBuffer data, @NotNull FlexByteCodeInformationProcessor processor) throws IOException {
     data.setLittleEndian();
     if (data.bytesSize() == 0) return;
     int version = data.readUnsignedInt();
@@ -83,12 +121,13 @@ public class FlexImporter {
     }
     else if ((version & SWF_MAGIC) == SWF_MAGIC) {
       final int delta = 8;
+      final int uncompressedSize = data.readInt() - delta; // file length in the header includes the header itself
       data.setPosition(delta);
       ByteBuffer udata = new ByteBuffer();
       udata.setLittleEndian();
       data.readBytes(udata, data.bytesSize() - delta);
       int csize = udata.bytesSize();
-      udata.uncompress();
+      udata.uncompress(uncompressedSize);
       processor.dumpStat("decompressed swf " + csize + " -> " + udata.bytesSize() + "\n");
       udata.setPosition(0);
       new Swf(udata, processor);
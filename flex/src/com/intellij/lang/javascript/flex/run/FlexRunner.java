@@ -244,8 +244,8 @@ public class FlexRunner extends FlexBaseRunner {
     }
 
     @Override
-    public void onData(final String line) {
-      myProcessHandler.notifyTextAvailable(line + "\n", ProcessOutputTypes.STDOUT);
+    public void onData(final String lines) {
+      myProcessHandler.notifyTextAvailable(lines + "\n", ProcessOutputTypes.STDOUT);
     }
 
     @Override